@@ -0,0 +1,32 @@
+package com.nicolasgarcia.filesystem;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, writing the results as JSON to {@code jmh-result.json} (unless another
+ * format or file is given).
+ *
+ * <p>It takes the same arguments as the JMH runner, e.g. a regular expression to select the
+ * benchmarks, or {@code -p fileSize=1024} to restrict a parameter.
+ */
+public class BenchmarkRunner {
+  private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+  public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    OptionsBuilder options = new OptionsBuilder();
+    options.parent(commandLineOptions);
+    if (commandLineOptions.getResultFormat().hasValue()) {
+      options.resultFormat(commandLineOptions.getResultFormat().get());
+    } else {
+      options.resultFormat(ResultFormatType.JSON);
+    }
+    options.result(commandLineOptions.getResult().orElse(DEFAULT_RESULT_FILE));
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,72 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a full {@link FileManager#compactMemory()} of a container where the given ratio of its
+ * files (spread evenly) has been deleted.
+ *
+ * <p>The container is rebuilt before every iteration, so every iteration measures a single
+ * compaction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CompactionBenchmark {
+  @Param({"0.1", "0.3", "0.7"})
+  public double fragmentation;
+
+  @Param({"4096", "65536"})
+  public int fileSize;
+
+  @Param({"1000"})
+  public int fileCount;
+
+  private Path containerPath;
+  private FileManager fileManager;
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    containerPath = Containers.createContainerPath();
+    fileManager = new FileManager(new StorageService(containerPath));
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    byte[] content = Containers.randomContent(fileSize, 1);
+    for (int i = 0; i < fileCount; i++) {
+      fileService.write(Containers.pathOf(i), content);
+    }
+    // Deletes a file every time the accumulated ratio reaches a whole number.
+    for (int i = 0; i < fileCount; i++) {
+      if ((int) ((i + 1) * fragmentation) > (int) (i * fragmentation)) {
+        fileService.delete(Containers.pathOf(i));
+      }
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() {
+    fileManager.close();
+    Containers.delete(containerPath);
+  }
+
+  @Benchmark
+  public void compactMemory() {
+    fileManager.compactMemory();
+  }
+}
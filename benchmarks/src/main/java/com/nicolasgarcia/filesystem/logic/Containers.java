@@ -0,0 +1,55 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static com.nicolasgarcia.filesystem.logic.StorageService.CONTAINER_NAME;
+import static com.nicolasgarcia.filesystem.logic.StorageService.INDEX_SUFFIX;
+import static com.nicolasgarcia.filesystem.logic.StorageService.LOG_SUFFIX;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/** Helpers shared by the benchmarks. */
+final class Containers {
+  private Containers() {}
+
+  /**
+   * Returns the path of a container placed in a new temporary directory, so the benchmarks never
+   * touch the default container.
+   */
+  static Path createContainerPath() {
+    try {
+      return Files.createTempDirectory("file-system-bench").resolve(CONTAINER_NAME);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Removes a container created by {@link #createContainerPath()}, its index, its log and its
+   * directory.
+   */
+  static void delete(Path containerPath) {
+    try {
+      for (String suffix : new String[] {"", INDEX_SUFFIX, LOG_SUFFIX}) {
+        Files.deleteIfExists(StorageService.siblingOf(containerPath, suffix));
+      }
+      Files.deleteIfExists(containerPath.getParent());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Returns the path of the i-th file, spread over a hundred directories. */
+  static String pathOf(int i) {
+    return "/bench/dir" + (i % 100) + "/file" + i;
+  }
+
+  /** Returns random (incompressible) content of the given size. */
+  static byte[] randomContent(int size, long seed) {
+    byte[] content = new byte[size];
+    new Random(seed).nextBytes(content);
+    return content;
+  }
+}
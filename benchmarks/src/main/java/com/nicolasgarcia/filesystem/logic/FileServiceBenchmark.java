@@ -0,0 +1,124 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency of every operation of {@link FileServiceImpl}, over a container that already
+ * holds {@link #fileCount} files of {@link #fileSize} bytes, with every {@link
+ * StorageService.Mode}.
+ *
+ * <p>Every benchmark leaves the container with the same files it found, except {@link #append},
+ * which grows them (by a small chunk per invocation).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileServiceBenchmark {
+  private static final int APPEND_SIZE = 128;
+
+  @Param({"CHANNEL", "MEMORY_MAPPED"})
+  public String storageMode;
+
+  @Param({"1024", "65536", "1048576"})
+  public int fileSize;
+
+  @Param({"100", "1000"})
+  public int fileCount;
+
+  private Path containerPath;
+  private FileServiceImpl fileService;
+  private byte[] content;
+  private byte[] appendedContent;
+  private String[] paths;
+  private String[] movedPaths;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    containerPath = Containers.createContainerPath();
+    fileService =
+        new FileServiceImpl(
+            new FileManager(
+                StorageService.open(containerPath, StorageService.Mode.valueOf(storageMode))));
+    content = Containers.randomContent(fileSize, 1);
+    appendedContent = Containers.randomContent(APPEND_SIZE, 2);
+    paths = new String[fileCount];
+    movedPaths = new String[fileCount];
+    for (int i = 0; i < fileCount; i++) {
+      paths[i] = Containers.pathOf(i);
+      movedPaths[i] = paths[i] + ".moved";
+      fileService.write(paths[i], content);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    fileService.close();
+    Containers.delete(containerPath);
+  }
+
+  /** Returns the index of the next file, going round all of them. */
+  private int nextIndex() {
+    int index = next;
+    next = (next + 1) % fileCount;
+    return index;
+  }
+
+  @Benchmark
+  public Object read() {
+    return fileService.read(paths[nextIndex()]);
+  }
+
+  @Benchmark
+  public Object readBuffer() {
+    return fileService.readBuffer(paths[nextIndex()]);
+  }
+
+  @Benchmark
+  public void write() {
+    fileService.write(paths[nextIndex()], content);
+  }
+
+  @Benchmark
+  public void append() {
+    fileService.append(paths[nextIndex()], appendedContent);
+  }
+
+  @Benchmark
+  public void createAndDelete() {
+    String path = movedPaths[nextIndex()];
+    fileService.create(path);
+    fileService.delete(path);
+  }
+
+  @Benchmark
+  public void writeAndDelete() {
+    String path = movedPaths[nextIndex()];
+    fileService.write(path, content);
+    fileService.delete(path);
+  }
+
+  @Benchmark
+  public void move() {
+    int index = nextIndex();
+    fileService.move(paths[index], movedPaths[index]);
+    fileService.move(movedPaths[index], paths[index]);
+  }
+}
@@ -0,0 +1,110 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how the reads of a single {@link FileServiceImpl} scale with the number of threads
+ * reading it at once, with and without the read cache.
+ *
+ * <p>Every thread reads the files of the same container, going round all of them from a different
+ * file. The throughput is the sum of every thread, so {@code readN} should be about N times {@code
+ * read1} as long as the readers don't contend (and there are N cores to run them).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadScalingBenchmark {
+  @Param({"NONE", "LRU"})
+  public String cachePolicy;
+
+  @Param({"4096"})
+  public int fileSize;
+
+  @Param({"1000"})
+  public int fileCount;
+
+  private Path containerPath;
+  private FileServiceImpl fileService;
+  private String[] paths;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    containerPath = Containers.createContainerPath();
+    fileService =
+        FileServiceImpl.builder()
+            .containerPath(containerPath)
+            .syncPolicy(SyncPolicy.never())
+            // Every file fits in the cache, so every read after the first one is a hit.
+            .cachePolicy(
+                cachePolicy.equals("LRU")
+                    ? CachePolicy.lru(2L * fileCount * fileSize)
+                    : CachePolicy.none())
+            .build();
+    byte[] content = Containers.randomContent(fileSize, 1);
+    paths = new String[fileCount];
+    for (int i = 0; i < fileCount; i++) {
+      paths[i] = Containers.pathOf(i);
+      fileService.write(paths[i], content);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    fileService.close();
+    Containers.delete(containerPath);
+  }
+
+  /** The next file read by every thread. */
+  @State(Scope.Thread)
+  public static class Cursor {
+    private int next = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
+
+    private String nextPath(String[] paths) {
+      next = (next + 1) % paths.length;
+      return paths[next];
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Object read1(Cursor cursor) {
+    return fileService.read(cursor.nextPath(paths));
+  }
+
+  @Benchmark
+  @Threads(2)
+  public Object read2(Cursor cursor) {
+    return fileService.read(cursor.nextPath(paths));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object read4(Cursor cursor) {
+    return fileService.read(cursor.nextPath(paths));
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Object read8(Cursor cursor) {
+    return fileService.read(cursor.nextPath(paths));
+  }
+}
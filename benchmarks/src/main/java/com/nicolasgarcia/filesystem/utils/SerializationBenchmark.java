@@ -0,0 +1,78 @@
+package com.nicolasgarcia.filesystem.utils;
+
+import com.nicolasgarcia.filesystem.api.File;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the legacy Java serialization of a {@link File} ({@link SerializationUtils#serialize})
+ * with the record layout the container uses ({@link SerializationUtils#encode}), both allocating a
+ * new buffer and reusing one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+  private static final String PATH = "/bench/dir/file";
+
+  @Param({"0", "1024", "65536"})
+  public int fileSize;
+
+  private File file;
+  private byte[] serialized;
+  private ByteBuffer encoded;
+  private ByteBuffer reusedBuffer;
+
+  @Setup
+  public void setUp() {
+    byte[] content = new byte[fileSize];
+    new Random(1).nextBytes(content);
+    file = new File(PATH, content);
+    serialized = SerializationUtils.serialize(file);
+    encoded = SerializationUtils.encode(file);
+    reusedBuffer = ByteBuffer.allocate(SerializationUtils.getRecordLength(file));
+  }
+
+  @Benchmark
+  public byte[] serialize() {
+    return SerializationUtils.serialize(file);
+  }
+
+  @Benchmark
+  public File deserialize() {
+    return SerializationUtils.deserialize(new ByteArrayInputStream(serialized));
+  }
+
+  @Benchmark
+  public ByteBuffer encode() {
+    return SerializationUtils.encode(file);
+  }
+
+  @Benchmark
+  public ByteBuffer encodeIntoReusedBuffer() {
+    reusedBuffer.clear();
+    SerializationUtils.encode(file, reusedBuffer);
+    return reusedBuffer;
+  }
+
+  @Benchmark
+  public File decode() {
+    return SerializationUtils.decode(encoded.duplicate(), PATH);
+  }
+}
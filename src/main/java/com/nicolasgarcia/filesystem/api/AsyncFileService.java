@@ -0,0 +1,108 @@
+package com.nicolasgarcia.filesystem.api;
+
+import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The asynchronous counterpart of {@link FileService}, for callers that can't block.
+ *
+ * <p>Every operation returns right away, and its future is completed once it's done. The futures
+ * fail with the same exceptions thrown by {@link FileService} (e.g. {@link FileNotFoundException}),
+ * and besides:
+ *
+ * <ul>
+ *   <li>{@link RejectedExecutionException} if there are too many pending operations.
+ *   <li>{@link TimeoutException} if the operation took too long. Note that it may still be applied
+ *       afterwards, since an operation can't be interrupted halfway.
+ * </ul>
+ *
+ * <p>The operations over the same file are applied in the order they start running, which is not
+ * necessarily the order they were submitted. Callers that need a specific order should chain them.
+ */
+public interface AsyncFileService extends Closeable {
+  /** See {@link FileService#create(String)}. */
+  CompletableFuture<File> create(String absolutePath);
+
+  /** See {@link FileService#write(String, byte[])}. */
+  CompletableFuture<Void> write(String absolutePath, byte[] content);
+
+  /** See {@link FileService#read(String)}. */
+  CompletableFuture<File> read(String absolutePath);
+
+  /** See {@link FileService#readBuffer(String)}. */
+  CompletableFuture<ByteBuffer> readBuffer(String absolutePath);
+
+  /** See {@link FileService#transferTo(String, WritableByteChannel)}. */
+  CompletableFuture<Long> transferTo(String absolutePath, WritableByteChannel target);
+
+  /** See {@link FileService#stat(String)}. */
+  CompletableFuture<FileStat> stat(String absolutePath);
+
+  /** See {@link FileService#append(String, byte[])}. */
+  CompletableFuture<Void> append(String absolutePath, byte[] content);
+
+  /** See {@link FileService#delete(String)}. */
+  CompletableFuture<Void> delete(String absolutePath);
+
+  /** See {@link FileService#rename(String, String)}. */
+  CompletableFuture<Void> rename(String oldAbsolutePath, String newAbsolutePath);
+
+  /** See {@link FileService#move(String, String)}. */
+  CompletableFuture<Void> move(String oldPath, String newPath);
+
+  /** See {@link FileService#moveDirectory(String, String)}. */
+  CompletableFuture<Void> moveDirectory(String oldPath, String newPath);
+
+  /** See {@link FileService#writeAll(Map)}. */
+  CompletableFuture<Void> writeAll(Map<String, byte[]> files);
+
+  /** See {@link FileService#deleteAll(Collection)}. */
+  CompletableFuture<Void> deleteAll(Collection<String> absolutePaths);
+
+  /**
+   * See {@link FileService#batch()}. The changes are only collected until the batch is given to
+   * {@link #commit(Batch)}, so it doesn't block.
+   */
+  Batch batch();
+
+  /**
+   * Commits a batch created by {@link #batch()}. See {@link Batch#commit()}. The batch shouldn't be
+   * changed until the future is completed.
+   */
+  CompletableFuture<Void> commit(Batch batch);
+
+  /** See {@link FileService#list(String)}. */
+  CompletableFuture<List<String>> list(String directoryPath);
+
+  /** See {@link FileService#walk(String)}. */
+  CompletableFuture<List<String>> walk(String directoryPath);
+
+  /**
+   * A set of metrics to monitor the status of the service, including the ones of the underlying
+   * {@link FileService}. It doesn't block, so it's not asynchronous.
+   *
+   * @return The set of metrics.
+   */
+  Map<String, String> metrics();
+
+  /**
+   * See {@link FileService#metricsSnapshot()}. The latencies are the ones of the underlying {@link
+   * FileService}, so they don't include the time the operations were queued.
+   */
+  MetricsSnapshot metricsSnapshot();
+
+  /**
+   * Waits for the pending operations, and closes the underlying {@link FileService}. Any further
+   * operation over this service will fail.
+   */
+  @Override
+  void close();
+}
@@ -0,0 +1,33 @@
+package com.nicolasgarcia.filesystem.api;
+
+import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
+
+/**
+ * A set of changes applied at once by {@link #commit()}. Either all of them are applied, or none
+ * (even if the service crashes meanwhile).
+ *
+ * <p>The last change over a path wins: writing a file discards a previous deletion of the same
+ * path, and deleting a file discards a previous write.
+ */
+public interface Batch {
+  /**
+   * Overwrites the content of a file, or creates it. See {@link FileService#write(String, byte[])}.
+   *
+   * @return This batch, to chain more changes.
+   */
+  Batch write(String absolutePath, byte[] content);
+
+  /**
+   * Deletes a file, which should exist once the batch is committed.
+   *
+   * @return This batch, to chain more changes.
+   */
+  Batch delete(String absolutePath);
+
+  /**
+   * Applies every change of the batch. It can only be committed once.
+   *
+   * @throws FileNotFoundException if any deleted file doesn't exist. Nothing is applied then.
+   */
+  void commit();
+}
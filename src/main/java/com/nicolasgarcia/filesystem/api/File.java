@@ -5,18 +5,19 @@ import java.util.Locale;
 
 /** Represents a file for the emulated file system. */
 public class File implements Serializable {
+  private static final long serialVersionUID = 8393889337520142132L;
   /**
    * The absolute path of the file.
    *
-   * <p>Note that this path is absolute regarding the emulated file system but relative to the
-   * `StorageService#BASE_PHYSICAL_PATH`.
+   * <p>Note that this path is absolute regarding the emulated file system, not the real one where its
+   * container is stored.
    */
   private final String absolutePath;
   /** The content of the file. */
   private final byte[] content;
 
   public File(String absolutePath, byte[] content) {
-    this.absolutePath = normalize(absolutePath);
+    this.absolutePath = normalizePath(absolutePath);
     this.content = content;
   }
 
@@ -33,7 +34,8 @@ public class File implements Serializable {
     return content;
   }
 
-  private String normalize(String path) {
+  /** Normalizes a path the same way as the path of every {@link File}. */
+  public static String normalizePath(String path) {
     return path.toLowerCase(Locale.ROOT);
   }
 }
@@ -1,10 +1,18 @@
 package com.nicolasgarcia.filesystem.api;
 
 import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /** Service for managing file system's operations. */
-public interface FileService {
+public interface FileService extends Closeable {
   /**
    * Creates an empty file located in the provided absolute path.
    *
@@ -33,6 +41,72 @@ public interface FileService {
    */
   File read(String absolutePath);
 
+  /**
+   * Opens a stream to read the content of a file, without holding it in memory.
+   *
+   * <p>The compaction doesn't affect the stream. However, reading fails in case the file is
+   * overwritten or deleted meanwhile.
+   *
+   * @param absolutePath The path where the file is located.
+   * @return The stream, which should be closed once it's not needed anymore.
+   * @throws FileNotFoundException if the file doesn't exist.
+   */
+  InputStream openInputStream(String absolutePath);
+
+  /**
+   * Opens a stream to overwrite the content of a file, without holding it in memory.
+   *
+   * <p>Note that the file is only stored once the stream is closed. A new file will be created in
+   * case it doesn't exist in the provided path.
+   *
+   * @param absolutePath The location of the file.
+   * @return The stream, which should be closed to store the file.
+   */
+  OutputStream openOutputStream(String absolutePath);
+
+  /**
+   * Reads the content of a file into a read-only buffer. The content of a cached file isn't copied:
+   * the buffer wraps the cached content. Otherwise, the content is read from the container into the
+   * heap, as {@link #read(String)} does, but it isn't copied again into a {@link File}. Only {@link
+   * #transferTo(String, WritableByteChannel)} sends a file without copying its content to the heap.
+   *
+   * <p>The buffer is never a view over the container, so it stays valid even if the file is changed
+   * or the container is compacted afterwards.
+   *
+   * @param absolutePath The path where the file is located.
+   * @return A read-only buffer with the content, which is empty if the file has no content.
+   * @throws FileNotFoundException if the file doesn't exist.
+   */
+  ByteBuffer readBuffer(String absolutePath);
+
+  /**
+   * Sends the content of a file to the given channel, straight from the container, without copying
+   * it into the heap (e.g. to serve it through a socket).
+   *
+   * @param absolutePath The path where the file is located.
+   * @param target A blocking channel, which isn't closed.
+   * @return The number of transferred bytes.
+   * @throws FileNotFoundException if the file doesn't exist.
+   */
+  long transferTo(String absolutePath, WritableByteChannel target);
+
+  /**
+   * The same as {@link #openInputStream(String)}, but as a channel.
+   *
+   * @param absolutePath The path where the file is located.
+   * @return The channel, which should be closed once it's not needed anymore.
+   * @throws FileNotFoundException if the file doesn't exist.
+   */
+  ReadableByteChannel openReadableChannel(String absolutePath);
+
+  /**
+   * The same as {@link #openOutputStream(String)}, but as a channel.
+   *
+   * @param absolutePath The location of the file.
+   * @return The channel, which should be closed to store the file.
+   */
+  WritableByteChannel openWritableChannel(String absolutePath);
+
   /**
    * Appends with a new content, the current content of a file.
    *
@@ -52,8 +126,7 @@ public interface FileService {
   /**
    * Renamed the associated file.
    *
-   * <p>Note that this method replicates {@link #move(String, String)}. In a following interation,
-   * it will be improved.
+   * <p>Note that this method replicates {@link #move(String, String)}.
    *
    * @param oldAbsolutePath The path where the file is located.
    * @param newAbsolutePath The desired new path.
@@ -62,7 +135,11 @@ public interface FileService {
   void rename(String oldAbsolutePath, String newAbsolutePath);
 
   /**
-   * Moves the associated file from one path to another.
+   * Moves the associated file from one path to another. If there's a file in the new path, it's
+   * replaced.
+   *
+   * <p>The content of the file is neither read nor copied, so it takes the same time regardless of
+   * its size.
    *
    * @param oldPath The path where the file is located.
    * @param newPath The desired new path.
@@ -70,10 +147,106 @@ public interface FileService {
    */
   void move(String oldPath, String newPath);
 
+  /**
+   * Moves a directory, with all its files and subdirectories, from one path to another. The content
+   * of the files is neither read nor copied.
+   *
+   * @param oldPath The path where the directory is located.
+   * @param newPath The desired new path, which shouldn't exist.
+   * @throws FileNotFoundException if the directory doesn't exist.
+   * @throws IllegalArgumentException if the new path already exists, or it's inside the directory.
+   */
+  void moveDirectory(String oldPath, String newPath);
+
+  /**
+   * Overwrites (or creates) several files at once. Their records are written together, and either
+   * all of them are stored, or none.
+   *
+   * @param files The content of every file, by its location.
+   */
+  void writeAll(Map<String, byte[]> files);
+
+  /**
+   * Deletes several files at once. Either all of them are deleted, or none.
+   *
+   * @param absolutePaths The paths where the files are located.
+   * @throws FileNotFoundException if any file doesn't exist. Nothing is deleted then.
+   */
+  void deleteAll(Collection<String> absolutePaths);
+
+  /**
+   * Starts a set of writes and deletions that are applied at once. See {@link Batch}.
+   *
+   * @return The batch, which does nothing until it's committed.
+   */
+  Batch batch();
+
+  /**
+   * Lists the entries placed directly in a directory.
+   *
+   * @param directoryPath The path of the directory.
+   * @return The absolute paths of its files and subdirectories, sorted. It's empty if the directory
+   *     doesn't exist.
+   */
+  List<String> list(String directoryPath);
+
+  /**
+   * Walks a directory, recursively.
+   *
+   * @param directoryPath The path of the directory.
+   * @return The absolute paths of every file placed in the directory or any of its subdirectories.
+   */
+  List<String> walk(String directoryPath);
+
+  /**
+   * Walks a directory, recursively, without collecting its files first. So, it takes the same
+   * memory regardless of the number of files, and it can be stopped at any point.
+   *
+   * <p>The files are visited in no particular order. Files changed during the walk may or may not
+   * be visited, but every file is visited at most once. The visitor can change the files itself.
+   *
+   * @param directoryPath The path of the directory.
+   * @param visitor Called with every file placed in the directory or any of its subdirectories,
+   *     until it returns false.
+   */
+  void walk(String directoryPath, FileVisitor visitor);
+
+  /**
+   * Gets the attributes of a file, without reading its content.
+   *
+   * @param absolutePath The path where the file is located.
+   * @throws FileNotFoundException if the file doesn't exist.
+   */
+  FileStat stat(String absolutePath);
+
+  /**
+   * Whether there's a file or a directory (with some file inside it) in the given path.
+   *
+   * @param path The path of the file or the directory.
+   */
+  boolean exists(String path);
+
   /**
    * A set of metrics to monitor the status of the service.
    *
    * @return The set of metrics.
    */
   Map<String, String> metrics();
+
+  /**
+   * The same metrics as {@link #metrics()}, as typed values, including the latency of every
+   * operation. It's cheap enough to be polled periodically.
+   *
+   * @return A snapshot of the metrics.
+   */
+  MetricsSnapshot metricsSnapshot();
+
+  /**
+   * Closes the underlying container. Any further operation over this service will fail.
+   *
+   * <p>Note that the container is kept open during the whole life of the service, so this method
+   * should always be called once it's not needed anymore.
+   */
+  @Override
+  void close();
 }
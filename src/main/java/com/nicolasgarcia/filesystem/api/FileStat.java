@@ -0,0 +1,65 @@
+package com.nicolasgarcia.filesystem.api;
+
+import java.time.Instant;
+
+/** The attributes of a file of the emulated file system, without its content. */
+public final class FileStat {
+  private final String absolutePath;
+  private final long size;
+  private final long offset;
+  private final int extentCount;
+  private final Instant modifiedTime;
+
+  public FileStat(
+      String absolutePath, long size, long offset, int extentCount, Instant modifiedTime) {
+    this.absolutePath = absolutePath;
+    this.size = size;
+    this.offset = offset;
+    this.extentCount = extentCount;
+    this.modifiedTime = modifiedTime;
+  }
+
+  public String getAbsolutePath() {
+    return absolutePath;
+  }
+
+  /** The size of the content, in bytes. */
+  public long getSize() {
+    return size;
+  }
+
+  /** The offset of the file in the container (where its first extent starts). */
+  public long getOffset() {
+    return offset;
+  }
+
+  /** The number of extents the file is split in, which is one unless it was appended or blocked. */
+  public int getExtentCount() {
+    return extentCount;
+  }
+
+  /**
+   * The time the content was last changed, with a resolution of one second. It's {@link
+   * Instant#EPOCH} for files stored before it was tracked.
+   */
+  public Instant getModifiedTime() {
+    return modifiedTime;
+  }
+
+  @Override
+  public String toString() {
+    return "FileStat{"
+        + "absolutePath='"
+        + absolutePath
+        + '\''
+        + ", size="
+        + size
+        + ", offset="
+        + offset
+        + ", extentCount="
+        + extentCount
+        + ", modifiedTime="
+        + modifiedTime
+        + '}';
+  }
+}
@@ -0,0 +1,11 @@
+package com.nicolasgarcia.filesystem.api;
+
+/** Visits the files found by {@link FileService#walk(String, FileVisitor)}. */
+@FunctionalInterface
+public interface FileVisitor {
+  /**
+   * @param stat The attributes of the visited file.
+   * @return Whether the walk should go on.
+   */
+  boolean visit(FileStat stat);
+}
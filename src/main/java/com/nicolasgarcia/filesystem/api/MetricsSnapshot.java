@@ -0,0 +1,251 @@
+package com.nicolasgarcia.filesystem.api;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The metrics of a {@link FileService} at a given point in time, as typed values (see {@link
+ * FileService#metricsSnapshot()}).
+ *
+ * <p>Every counter is cumulative since the service was created. The values are read one by one
+ * while the service keeps running, so they may not be consistent with each other.
+ */
+public final class MetricsSnapshot {
+  /** The operations whose latency is measured. */
+  public enum Operation {
+    CREATE,
+    READ,
+    WRITE,
+    APPEND,
+    DELETE,
+    /** Includes renames. */
+    MOVE,
+    MOVE_DIRECTORY,
+    /** Includes {@link FileService#writeAll(Map)} and {@link FileService#deleteAll}. */
+    BATCH
+  }
+
+  /** The number of invocations of an operation, and the distribution of their latencies. */
+  public static final class OperationStats {
+    private final long count;
+    private final long errors;
+    private final long meanNanos;
+    private final long p50Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+    private final long maxNanos;
+
+    /**
+     * @param count The number of invocations, including the failed ones.
+     * @param errors The number of invocations that threw an exception.
+     */
+    public OperationStats(
+        long count,
+        long errors,
+        long meanNanos,
+        long p50Nanos,
+        long p99Nanos,
+        long p999Nanos,
+        long maxNanos) {
+      this.count = count;
+      this.errors = errors;
+      this.meanNanos = meanNanos;
+      this.p50Nanos = p50Nanos;
+      this.p99Nanos = p99Nanos;
+      this.p999Nanos = p999Nanos;
+      this.maxNanos = maxNanos;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getErrors() {
+      return errors;
+    }
+
+    public long getMeanNanos() {
+      return meanNanos;
+    }
+
+    /** The median latency. Percentiles are approximated, with an error below 12.5%. */
+    public long getP50Nanos() {
+      return p50Nanos;
+    }
+
+    public long getP99Nanos() {
+      return p99Nanos;
+    }
+
+    public long getP999Nanos() {
+      return p999Nanos;
+    }
+
+    public long getMaxNanos() {
+      return maxNanos;
+    }
+  }
+
+  private final Map<Operation, OperationStats> operations;
+  private final long bytesRead;
+  private final long bytesWritten;
+  private final long containerSize;
+  private final long freeBytes;
+  private final long liveFiles;
+  private final long indexMemoryBytes;
+  private final long compactionRuns;
+  private final long compactionMovedBytes;
+  private final long compactionReclaimedBytes;
+  private final long reclaimableBytes;
+
+  private MetricsSnapshot(Builder builder) {
+    this.operations = Collections.unmodifiableMap(new EnumMap<>(builder.operations));
+    this.bytesRead = builder.bytesRead;
+    this.bytesWritten = builder.bytesWritten;
+    this.containerSize = builder.containerSize;
+    this.freeBytes = builder.freeBytes;
+    this.liveFiles = builder.liveFiles;
+    this.indexMemoryBytes = builder.indexMemoryBytes;
+    this.compactionRuns = builder.compactionRuns;
+    this.compactionMovedBytes = builder.compactionMovedBytes;
+    this.compactionReclaimedBytes = builder.compactionReclaimedBytes;
+    this.reclaimableBytes = builder.reclaimableBytes;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** The stats of every operation invoked at least once. */
+  public Map<Operation, OperationStats> getOperations() {
+    return operations;
+  }
+
+  /** The bytes of the records read from the container, either whole or streamed. */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /** The bytes of the records written to the container. The compaction isn't included. */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  public long getContainerSize() {
+    return containerSize;
+  }
+
+  /** The bytes of the container not used by any file. */
+  public long getFreeBytes() {
+    return freeBytes;
+  }
+
+  /** The part of the container not used by any file, between 0 and 1. */
+  public double getFragmentationRatio() {
+    return containerSize == 0 ? 0 : Math.min(1, (double) freeBytes / containerSize);
+  }
+
+  public long getLiveFiles() {
+    return liveFiles;
+  }
+
+  /** An estimate of the memory taken by the index of the files. */
+  public long getIndexMemoryBytes() {
+    return indexMemoryBytes;
+  }
+
+  /** The number of finished compactions, either at once or in the background. */
+  public long getCompactionRuns() {
+    return compactionRuns;
+  }
+
+  public long getCompactionMovedBytes() {
+    return compactionMovedBytes;
+  }
+
+  public long getCompactionReclaimedBytes() {
+    return compactionReclaimedBytes;
+  }
+
+  /** The bytes that a compaction would reclaim if it ran now. */
+  public long getReclaimableBytes() {
+    return reclaimableBytes;
+  }
+
+  /** Builds a snapshot. Every value not set is zero. */
+  public static final class Builder {
+    private final Map<Operation, OperationStats> operations = new EnumMap<>(Operation.class);
+    private long bytesRead;
+    private long bytesWritten;
+    private long containerSize;
+    private long freeBytes;
+    private long liveFiles;
+    private long indexMemoryBytes;
+    private long compactionRuns;
+    private long compactionMovedBytes;
+    private long compactionReclaimedBytes;
+    private long reclaimableBytes;
+
+    private Builder() {}
+
+    public Builder operation(Operation operation, OperationStats stats) {
+      operations.put(operation, stats);
+      return this;
+    }
+
+    public Builder bytesRead(long bytesRead) {
+      this.bytesRead = bytesRead;
+      return this;
+    }
+
+    public Builder bytesWritten(long bytesWritten) {
+      this.bytesWritten = bytesWritten;
+      return this;
+    }
+
+    public Builder containerSize(long containerSize) {
+      this.containerSize = containerSize;
+      return this;
+    }
+
+    public Builder freeBytes(long freeBytes) {
+      this.freeBytes = freeBytes;
+      return this;
+    }
+
+    public Builder liveFiles(long liveFiles) {
+      this.liveFiles = liveFiles;
+      return this;
+    }
+
+    public Builder indexMemoryBytes(long indexMemoryBytes) {
+      this.indexMemoryBytes = indexMemoryBytes;
+      return this;
+    }
+
+    public Builder compactionRuns(long compactionRuns) {
+      this.compactionRuns = compactionRuns;
+      return this;
+    }
+
+    public Builder compactionMovedBytes(long compactionMovedBytes) {
+      this.compactionMovedBytes = compactionMovedBytes;
+      return this;
+    }
+
+    public Builder compactionReclaimedBytes(long compactionReclaimedBytes) {
+      this.compactionReclaimedBytes = compactionReclaimedBytes;
+      return this;
+    }
+
+    public Builder reclaimableBytes(long reclaimableBytes) {
+      this.reclaimableBytes = reclaimableBytes;
+      return this;
+    }
+
+    public MetricsSnapshot build() {
+      return new MetricsSnapshot(this);
+    }
+  }
+}
@@ -0,0 +1,300 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import com.nicolasgarcia.filesystem.api.AsyncFileService;
+import com.nicolasgarcia.filesystem.api.Batch;
+import com.nicolasgarcia.filesystem.api.File;
+import com.nicolasgarcia.filesystem.api.FileService;
+import com.nicolasgarcia.filesystem.api.FileStat;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the operations of a {@link FileService} in an {@link Executor}.
+ *
+ * <p>The operations access the container with blocking calls, so they should run in threads that
+ * are allowed to block: a bounded pool, or virtual threads where they are available (e.g. {@code
+ * Executors.newVirtualThreadPerTaskExecutor()}). Reads of different files, and even of the same
+ * file, run in parallel (see {@link FileManager}).
+ *
+ * <p>The number of pending operations (queued or running) is bounded. Once the limit is reached,
+ * new operations fail right away instead of queueing, so the callers can back off. Every operation
+ * has a timeout as well. The ones that time out before they start running are skipped.
+ */
+public class AsyncFileServiceImpl implements AsyncFileService {
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncFileServiceImpl.class);
+  /** The default maximum number of pending operations. */
+  public static final int DEFAULT_MAX_PENDING_OPERATIONS = 1024;
+  /** The default time an operation can take, since it's submitted. */
+  public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+
+  private final FileService fileService;
+  private final Executor executor;
+  /** The executor created by the service itself, if any, which is shut down on close. */
+  private final ExecutorService ownedExecutor;
+
+  private final int maxPendingOperations;
+  private final Semaphore pendingOperations;
+  private final Duration timeout;
+  /** Fails the operations that take too long. The timers are discarded once they are done. */
+  private final ScheduledThreadPoolExecutor timeoutScheduler;
+
+  private volatile boolean closed;
+
+  private final AtomicLong rejectedOperations = new AtomicLong();
+  private final AtomicLong timedOutOperations = new AtomicLong();
+
+  /** Runs the operations in a pool with a thread per processor, and the default limits. */
+  public AsyncFileServiceImpl(FileService fileService) {
+    this(fileService, newDefaultExecutor(), true, DEFAULT_MAX_PENDING_OPERATIONS, DEFAULT_TIMEOUT);
+  }
+
+  /**
+   * @param executor Runs the operations. It's not shut down on close, since it's owned by the
+   *     caller.
+   * @param maxPendingOperations The maximum number of operations queued or running at once.
+   * @param timeout The maximum time an operation can take, since it's submitted.
+   */
+  public AsyncFileServiceImpl(
+      FileService fileService, Executor executor, int maxPendingOperations, Duration timeout) {
+    this(fileService, executor, false, maxPendingOperations, timeout);
+  }
+
+  private AsyncFileServiceImpl(
+      FileService fileService,
+      Executor executor,
+      boolean ownsExecutor,
+      int maxPendingOperations,
+      Duration timeout) {
+    if (maxPendingOperations <= 0) {
+      throw new IllegalArgumentException(
+          "The maximum number of pending operations should be positive");
+    }
+    if (timeout.isNegative() || timeout.isZero()) {
+      throw new IllegalArgumentException("The timeout should be positive");
+    }
+    this.fileService = fileService;
+    this.executor = executor;
+    this.ownedExecutor = ownsExecutor ? (ExecutorService) executor : null;
+    this.maxPendingOperations = maxPendingOperations;
+    this.pendingOperations = new Semaphore(maxPendingOperations);
+    this.timeout = timeout;
+    this.timeoutScheduler =
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              Thread thread = new Thread(runnable, "file-service-timeout");
+              thread.setDaemon(true);
+              return thread;
+            });
+    timeoutScheduler.setRemoveOnCancelPolicy(true);
+  }
+
+  private static ExecutorService newDefaultExecutor() {
+    AtomicInteger threadCount = new AtomicInteger();
+    return Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(),
+        runnable -> {
+          Thread thread = new Thread(runnable, "file-service-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  @Override
+  public CompletableFuture<File> create(String absolutePath) {
+    return submit(() -> fileService.create(absolutePath));
+  }
+
+  @Override
+  public CompletableFuture<Void> write(String absolutePath, byte[] content) {
+    return run(() -> fileService.write(absolutePath, content));
+  }
+
+  @Override
+  public CompletableFuture<File> read(String absolutePath) {
+    return submit(() -> fileService.read(absolutePath));
+  }
+
+  @Override
+  public CompletableFuture<FileStat> stat(String absolutePath) {
+    return submit(() -> fileService.stat(absolutePath));
+  }
+
+  @Override
+  public CompletableFuture<ByteBuffer> readBuffer(String absolutePath) {
+    return submit(() -> fileService.readBuffer(absolutePath));
+  }
+
+  @Override
+  public CompletableFuture<Long> transferTo(String absolutePath, WritableByteChannel target) {
+    return submit(() -> fileService.transferTo(absolutePath, target));
+  }
+
+  @Override
+  public CompletableFuture<Void> append(String absolutePath, byte[] content) {
+    return run(() -> fileService.append(absolutePath, content));
+  }
+
+  @Override
+  public CompletableFuture<Void> delete(String absolutePath) {
+    return run(() -> fileService.delete(absolutePath));
+  }
+
+  @Override
+  public CompletableFuture<Void> rename(String oldAbsolutePath, String newAbsolutePath) {
+    return run(() -> fileService.rename(oldAbsolutePath, newAbsolutePath));
+  }
+
+  @Override
+  public CompletableFuture<Void> move(String oldPath, String newPath) {
+    return run(() -> fileService.move(oldPath, newPath));
+  }
+
+  @Override
+  public CompletableFuture<Void> moveDirectory(String oldPath, String newPath) {
+    return run(() -> fileService.moveDirectory(oldPath, newPath));
+  }
+
+  @Override
+  public CompletableFuture<Void> writeAll(Map<String, byte[]> files) {
+    return run(() -> fileService.writeAll(files));
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteAll(Collection<String> absolutePaths) {
+    return run(() -> fileService.deleteAll(absolutePaths));
+  }
+
+  @Override
+  public Batch batch() {
+    return fileService.batch();
+  }
+
+  @Override
+  public CompletableFuture<Void> commit(Batch batch) {
+    return run(batch::commit);
+  }
+
+  @Override
+  public CompletableFuture<List<String>> list(String directoryPath) {
+    return submit(() -> fileService.list(directoryPath));
+  }
+
+  @Override
+  public CompletableFuture<List<String>> walk(String directoryPath) {
+    return submit(() -> fileService.walk(directoryPath));
+  }
+
+  @Override
+  public Map<String, String> metrics() {
+    Map<String, String> stats = new HashMap<>(fileService.metrics());
+    stats.put(
+        "async_pending_operations",
+        String.valueOf(maxPendingOperations - pendingOperations.availablePermits()));
+    stats.put("async_rejected_operations", String.valueOf(rejectedOperations.get()));
+    stats.put("async_timed_out_operations", String.valueOf(timedOutOperations.get()));
+    return stats;
+  }
+
+  @Override
+  public MetricsSnapshot metricsSnapshot() {
+    return fileService.metricsSnapshot();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      // Every permit is back once the pending operations are done.
+      if (!pendingOperations.tryAcquire(
+          maxPendingOperations, timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+        LOG.warn("The pending operations didn't finish in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+    timeoutScheduler.shutdownNow();
+    fileService.close();
+  }
+
+  private CompletableFuture<Void> run(Runnable operation) {
+    return submit(
+        () -> {
+          operation.run();
+          return null;
+        });
+  }
+
+  private <T> CompletableFuture<T> submit(Supplier<T> operation) {
+    if (closed) {
+      return CompletableFuture.failedFuture(new IllegalStateException("The service is closed"));
+    }
+    if (!pendingOperations.tryAcquire()) {
+      rejectedOperations.incrementAndGet();
+      return CompletableFuture.failedFuture(
+          new RejectedExecutionException(
+              "There are too many pending operations (" + maxPendingOperations + ")"));
+    }
+
+    CompletableFuture<T> result = new CompletableFuture<>();
+    try {
+      executor.execute(
+          () -> {
+            try {
+              // It's already done if it timed out while it was queued.
+              if (!result.isDone()) {
+                result.complete(operation.get());
+              }
+            } catch (Throwable e) {
+              result.completeExceptionally(e);
+            } finally {
+              // The permit is only released once the operation is done, even if it timed out.
+              pendingOperations.release();
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      pendingOperations.release();
+      rejectedOperations.incrementAndGet();
+      return CompletableFuture.failedFuture(e);
+    }
+    ScheduledFuture<?> timer =
+        timeoutScheduler.schedule(
+            () -> {
+              // It's counted before the future fails, so whoever sees the failure sees the count.
+              timedOutOperations.incrementAndGet();
+              if (!result.completeExceptionally(
+                  new TimeoutException(
+                      "The operation took more than " + timeout.toMillis() + "ms"))) {
+                timedOutOperations.decrementAndGet();
+              }
+            },
+            timeout.toNanos(),
+            TimeUnit.NANOSECONDS);
+    result.whenComplete((value, e) -> timer.cancel(false));
+    return result;
+  }
+}
@@ -0,0 +1,120 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compacts the container in the background, in small steps, while it keeps serving reads and
+ * writes.
+ *
+ * <p>Every step moves up to {@code maxBytesPerStep} bytes (or a single file, if it's bigger), and
+ * the following step is delayed so the average throughput doesn't exceed {@code bytesPerSecond}.
+ * Once there's nothing else to move, the free space at the end of the container is dropped (even if
+ * nothing was moved, e.g. when the last file was deleted), and it waits {@code idleDelay} before
+ * looking for new free fragments.
+ */
+class BackgroundCompactor implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(BackgroundCompactor.class);
+  /** The default amount of bytes moved per step (1 MiB). */
+  static final int DEFAULT_MAX_BYTES_PER_STEP = 1024 * 1024;
+  /** The default time to wait when there's nothing to compact. */
+  static final Duration DEFAULT_IDLE_DELAY = Duration.ofSeconds(1);
+
+  private final FileManager fileManager;
+  private final long bytesPerSecond;
+  private final int maxBytesPerStep;
+  private final Duration idleDelay;
+  private final ScheduledThreadPoolExecutor scheduler;
+  /** Whether some file was moved since the last time the compaction finished. */
+  private boolean pendingFinish;
+  /** The number of steps that found nothing to move. */
+  private final AtomicLong idleSteps = new AtomicLong();
+
+  BackgroundCompactor(
+      FileManager fileManager, long bytesPerSecond, int maxBytesPerStep, Duration idleDelay) {
+    if (bytesPerSecond <= 0 || maxBytesPerStep <= 0) {
+      throw new IllegalArgumentException("The throughput and the step size should be positive");
+    }
+    this.fileManager = fileManager;
+    this.bytesPerSecond = bytesPerSecond;
+    this.maxBytesPerStep = maxBytesPerStep;
+    this.idleDelay = idleDelay;
+    this.scheduler =
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              Thread thread = new Thread(runnable, "compactor");
+              thread.setDaemon(true);
+              return thread;
+            });
+    // The pending steps are discarded on close, instead of waiting for them.
+    scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  void start() {
+    schedule(0);
+  }
+
+  /** Stops the compaction. If a step is running, it waits until it's done. */
+  @Override
+  public void close() {
+    // The running step can't be interrupted, since it would close the channels of the container.
+    scheduler.shutdown();
+    try {
+      if (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOG.warn("The compaction didn't stop in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * The number of steps that found nothing to move, and dropped the free space at the end of the
+   * container. The first one after a change could still be running a plan created before it, but
+   * the container is compacted once the following one is done.
+   */
+  long getIdleSteps() {
+    return idleSteps.get();
+  }
+
+  private void step() {
+    long delayNanos;
+    try {
+      long movedBytes = fileManager.compactStep(maxBytesPerStep);
+      if (movedBytes > 0) {
+        pendingFinish = true;
+        delayNanos = movedBytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+      } else {
+        if (pendingFinish || fileManager.endsWithFreeSpace()) {
+          fileManager.finishCompaction();
+          pendingFinish = false;
+        }
+        idleSteps.incrementAndGet();
+        delayNanos = idleDelay.toNanos();
+      }
+    } catch (RuntimeException e) {
+      LOG.warn("Failed to compact the container", e);
+      delayNanos = idleDelay.toNanos();
+    }
+    schedule(delayNanos);
+  }
+
+  private void schedule(long delayNanos) {
+    try {
+      scheduler.schedule(this::step, delayNanos, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // It was closed meanwhile.
+    }
+  }
+}
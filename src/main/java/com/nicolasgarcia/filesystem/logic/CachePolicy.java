@@ -0,0 +1,65 @@
+package com.nicolasgarcia.filesystem.logic;
+
+/**
+ * Defines whether the files read by {@link FileManager} are cached, and how (see {@link
+ * ReadCache}).
+ */
+public final class CachePolicy {
+  enum Mode {
+    /** Every read goes to the container. */
+    NONE,
+    /** The least recently read files are evicted first. */
+    LRU,
+    /**
+     * The least recently read files are evicted first, but only in favour of files that are read
+     * more often. So, a burst of files read once doesn't flush the ones read all the time.
+     */
+    FREQUENCY
+  }
+
+  private final Mode mode;
+  private final long maxBytes;
+
+  private CachePolicy(Mode mode, long maxBytes) {
+    this.mode = mode;
+    this.maxBytes = maxBytes;
+  }
+
+  public static CachePolicy none() {
+    return new CachePolicy(Mode.NONE, 0);
+  }
+
+  /**
+   * @param maxBytes The maximum size of the cached content.
+   */
+  public static CachePolicy lru(long maxBytes) {
+    return new CachePolicy(Mode.LRU, checkMaxBytes(maxBytes));
+  }
+
+  /**
+   * @param maxBytes The maximum size of the cached content.
+   */
+  public static CachePolicy frequency(long maxBytes) {
+    return new CachePolicy(Mode.FREQUENCY, checkMaxBytes(maxBytes));
+  }
+
+  private static long checkMaxBytes(long maxBytes) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("The size of the cache should be positive");
+    }
+    return maxBytes;
+  }
+
+  Mode getMode() {
+    return mode;
+  }
+
+  long getMaxBytes() {
+    return maxBytes;
+  }
+
+  @Override
+  public String toString() {
+    return mode == Mode.NONE ? mode.toString() : mode + "(" + maxBytes + " bytes)";
+  }
+}
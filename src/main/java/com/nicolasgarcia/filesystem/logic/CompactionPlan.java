@@ -0,0 +1,103 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The moves needed to compact the container, computed from a snapshot of the segmentation table.
+ *
+ * <p>The extents of every file are sorted by offset once, and the target layout is computed in a
+ * single sweep: every extent is slid to the end of the previous one. So, it takes {@code O(n log
+ * n)} time, where {@code n} is the number of extents, regardless of the number of free fragments.
+ *
+ * <p>The moves are meant to be executed in order. That way, the space before every extent is always
+ * free by the time it's moved.
+ */
+final class CompactionPlan {
+  /** An extent of a file that should be moved, and the offset where it should end up. */
+  static final class Move {
+    private final FileMetaData fileMetaData;
+    private final Extent extent;
+    private final long target;
+
+    private Move(FileMetaData fileMetaData, Extent extent, long target) {
+      this.fileMetaData = fileMetaData;
+      this.extent = extent;
+      this.target = target;
+    }
+
+    /** The version of the file when the plan was created. */
+    FileMetaData getFileMetaData() {
+      return fileMetaData;
+    }
+
+    Extent getExtent() {
+      return extent;
+    }
+
+    long getTarget() {
+      return target;
+    }
+  }
+
+  private final List<Move> moves;
+  private final long bytesToMove;
+  private final long compactedSize;
+  private int nextMove;
+
+  private CompactionPlan(List<Move> moves, long bytesToMove, long compactedSize) {
+    this.moves = moves;
+    this.bytesToMove = bytesToMove;
+    this.compactedSize = compactedSize;
+  }
+
+  /**
+   * @param files Every file of the container.
+   */
+  static CompactionPlan create(List<FileMetaData> files) {
+    List<Move> extents = new ArrayList<>();
+    for (FileMetaData file : files) {
+      for (Extent extent : file.getExtents()) {
+        extents.add(new Move(file, extent, 0));
+      }
+    }
+    extents.sort(Comparator.comparingLong(move -> move.getExtent().getFrom()));
+
+    List<Move> moves = new ArrayList<>();
+    long bytesToMove = 0;
+    long position = 0;
+    for (Move move : extents) {
+      Extent extent = move.getExtent();
+      if (extent.getFrom() != position) {
+        moves.add(new Move(move.getFileMetaData(), extent, position));
+        bytesToMove += extent.length();
+      }
+      position += extent.length();
+    }
+    return new CompactionPlan(moves, bytesToMove, position);
+  }
+
+  boolean hasNext() {
+    return nextMove < moves.size();
+  }
+
+  Move next() {
+    return moves.get(nextMove++);
+  }
+
+  /** The number of extents to move, including the ones that were already moved. */
+  int size() {
+    return moves.size();
+  }
+
+  /** The amount of bytes to move, including the ones that were already moved. */
+  long getBytesToMove() {
+    return bytesToMove;
+  }
+
+  /** The size of the container once every move is done. */
+  long getCompactedSize() {
+    return compactedSize;
+  }
+}
@@ -0,0 +1,112 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import java.time.Duration;
+
+/**
+ * Defines when the {@link CompactionScheduler} compacts the container, based on the free bytes that
+ * a compaction would reclaim.
+ *
+ * <p>The container is compacted once the free bytes reach the given ratio of the container, as long
+ * as it wasn't changed for a while (so the compaction doesn't compete with a burst of writes).
+ * Also, it's compacted right away, even if it keeps changing, once the free bytes exceed the
+ * maximum overshoot.
+ *
+ * <p>Either way, the compaction runs in small steps throttled to a given amount of bytes per second
+ * (see {@link #withThroughput(long)}), so it never takes the disk away from reads and writes.
+ */
+public final class CompactionPolicy {
+  /** The default amount of bytes moved per second by a compaction (32 MiB). */
+  public static final long DEFAULT_BYTES_PER_SECOND = 32 * 1024 * 1024;
+
+  private final double fragmentationRatio;
+  private final Duration idleTime;
+  private final long maxOvershootBytes;
+  private final long bytesPerSecond;
+
+  private CompactionPolicy(
+      double fragmentationRatio, Duration idleTime, long maxOvershootBytes, long bytesPerSecond) {
+    this.fragmentationRatio = fragmentationRatio;
+    this.idleTime = idleTime;
+    this.maxOvershootBytes = maxOvershootBytes;
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  /** The container is only compacted on demand. */
+  public static CompactionPolicy manual() {
+    return new CompactionPolicy(
+        Double.POSITIVE_INFINITY, Duration.ZERO, Long.MAX_VALUE, DEFAULT_BYTES_PER_SECOND);
+  }
+
+  /**
+   * @param fragmentationRatio The ratio of free bytes (free bytes / container bytes) from which the
+   *     container is compacted, between 0 (excluded) and 1.
+   * @param idleTime How long the container should go without changes before it's compacted.
+   * @param maxOvershootBytes The free bytes from which the container is compacted right away, or
+   *     {@link Long#MAX_VALUE} to always wait for it to be idle.
+   * @return A policy that moves up to {@link #DEFAULT_BYTES_PER_SECOND}.
+   */
+  public static CompactionPolicy of(
+      double fragmentationRatio, Duration idleTime, long maxOvershootBytes) {
+    if (!(fragmentationRatio > 0 && fragmentationRatio <= 1)) {
+      throw new IllegalArgumentException("The fragmentation ratio should be in (0, 1]");
+    }
+    if (idleTime.isNegative()) {
+      throw new IllegalArgumentException("The idle time can't be negative");
+    }
+    if (maxOvershootBytes <= 0) {
+      throw new IllegalArgumentException("The maximum overshoot should be positive");
+    }
+    return new CompactionPolicy(
+        fragmentationRatio, idleTime, maxOvershootBytes, DEFAULT_BYTES_PER_SECOND);
+  }
+
+  /**
+   * @param bytesPerSecond The maximum amount of bytes moved per second by the compaction.
+   * @return The same policy, with the given throughput.
+   */
+  public CompactionPolicy withThroughput(long bytesPerSecond) {
+    if (bytesPerSecond <= 0) {
+      throw new IllegalArgumentException("The throughput should be positive");
+    }
+    return new CompactionPolicy(fragmentationRatio, idleTime, maxOvershootBytes, bytesPerSecond);
+  }
+
+  long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /** Whether the container is only compacted on demand. */
+  boolean isManual() {
+    return fragmentationRatio > 1;
+  }
+
+  /**
+   * @param containerBytes The bytes taken by the container, including the free ones.
+   * @param freeBytes The bytes that a compaction would reclaim.
+   * @param idleTime How long the container has gone without changes.
+   */
+  boolean shouldCompact(long containerBytes, long freeBytes, Duration idleTime) {
+    if (freeBytes <= 0) {
+      return false;
+    }
+    if (freeBytes > maxOvershootBytes) {
+      return true;
+    }
+    return (double) freeBytes / containerBytes >= fragmentationRatio
+        && idleTime.compareTo(this.idleTime) >= 0;
+  }
+
+  @Override
+  public String toString() {
+    if (isManual()) {
+      return "MANUAL";
+    }
+    return "ratio="
+        + fragmentationRatio
+        + ", idle="
+        + idleTime
+        + (maxOvershootBytes == Long.MAX_VALUE ? "" : ", overshoot=" + maxOvershootBytes)
+        + ", bytesPerSecond="
+        + bytesPerSecond;
+  }
+}
@@ -0,0 +1,160 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compacts the container whenever its {@link CompactionPolicy} says it's worth it, instead of
+ * compacting it blindly.
+ *
+ * <p>Every {@code checkInterval}, it compares the free bytes of the container (which are kept up to
+ * date by every change, so checking them is cheap) with its size. The container is considered idle
+ * while the last sequence number of the {@link WriteAheadLog} doesn't change, so the writes don't
+ * pay anything for it.
+ *
+ * <p>Once the policy triggers, the container is compacted like the {@link BackgroundCompactor}
+ * does: every step moves up to {@code maxBytesPerStep} bytes, and the following one is delayed so
+ * the average throughput doesn't exceed the one of the policy. The policy isn't checked again until
+ * the compaction is done.
+ */
+class CompactionScheduler implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(CompactionScheduler.class);
+  /** The default time between checks. */
+  static final Duration DEFAULT_CHECK_INTERVAL = Duration.ofSeconds(1);
+
+  private final FileManager fileManager;
+  private final CompactionPolicy policy;
+  private final Duration checkInterval;
+  private final int maxBytesPerStep;
+  private final ScheduledThreadPoolExecutor scheduler;
+  private final AtomicLong runs = new AtomicLong();
+  /** The last change seen by a check, and when it was seen. Only used by the scheduler thread. */
+  private long lastLsn = -1;
+
+  private long lastChangeNanos;
+  /** Whether a compaction triggered by the policy is running. Only used by the scheduler thread. */
+  private boolean compacting;
+
+  CompactionScheduler(FileManager fileManager, CompactionPolicy policy, Duration checkInterval) {
+    this(fileManager, policy, checkInterval, BackgroundCompactor.DEFAULT_MAX_BYTES_PER_STEP);
+  }
+
+  CompactionScheduler(
+      FileManager fileManager,
+      CompactionPolicy policy,
+      Duration checkInterval,
+      int maxBytesPerStep) {
+    if (checkInterval.isNegative() || checkInterval.isZero()) {
+      throw new IllegalArgumentException("The check interval should be positive");
+    }
+    if (maxBytesPerStep <= 0) {
+      throw new IllegalArgumentException("The step size should be positive");
+    }
+    this.fileManager = fileManager;
+    this.policy = policy;
+    this.checkInterval = checkInterval;
+    this.maxBytesPerStep = maxBytesPerStep;
+    this.scheduler =
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              Thread thread = new Thread(runnable, "compaction-scheduler");
+              thread.setDaemon(true);
+              return thread;
+            });
+    // The pending checks and steps are discarded on close, instead of waiting for them.
+    scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    schedule(checkInterval.toNanos());
+  }
+
+  CompactionPolicy getPolicy() {
+    return policy;
+  }
+
+  /** The number of compactions triggered by the policy, once they are done. */
+  long getRuns() {
+    return runs.get();
+  }
+
+  /** Stops checking the container. If a step is running, it waits until it's done. */
+  @Override
+  public void close() {
+    scheduler.shutdown();
+    try {
+      if (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOG.warn("The compaction didn't stop in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void check() {
+    long delayNanos = checkInterval.toNanos();
+    try {
+      if (compacting || shouldCompact()) {
+        delayNanos = step();
+      }
+    } catch (RuntimeException e) {
+      LOG.warn("Failed to compact the container", e);
+      compacting = false;
+    }
+    schedule(delayNanos);
+  }
+
+  private boolean shouldCompact() {
+    long now = System.nanoTime();
+    long lsn = fileManager.getLastLsn();
+    if (lsn != lastLsn) {
+      lastLsn = lsn;
+      lastChangeNanos = now;
+    }
+    long containerBytes = fileManager.getUsedBytes();
+    long reclaimableBytes = fileManager.getReclaimableBytes();
+    if (!policy.shouldCompact(
+        containerBytes, reclaimableBytes, Duration.ofNanos(now - lastChangeNanos))) {
+      return false;
+    }
+    LOG.info(
+        "Compacting the container: {} of its {} bytes are free ({})",
+        reclaimableBytes,
+        containerBytes,
+        policy);
+    // A plan started by a previous compaction could be outdated, so a new one is created.
+    fileManager.resetCompactionPlan();
+    compacting = true;
+    return true;
+  }
+
+  /**
+   * Runs a step of the compaction. Once there's nothing else to move, the compaction is finished.
+   *
+   * @return The delay before the next check or step.
+   */
+  private long step() {
+    long movedBytes = fileManager.compactStep(maxBytesPerStep);
+    if (movedBytes > 0) {
+      return movedBytes * TimeUnit.SECONDS.toNanos(1) / policy.getBytesPerSecond();
+    }
+    fileManager.finishCompaction();
+    compacting = false;
+    runs.incrementAndGet();
+    // The relocations done by the compaction itself aren't changes of the files.
+    lastLsn = fileManager.getLastLsn();
+    return checkInterval.toNanos();
+  }
+
+  private void schedule(long delayNanos) {
+    try {
+      scheduler.schedule(this::check, delayNanos, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // It was closed meanwhile.
+    }
+  }
+}
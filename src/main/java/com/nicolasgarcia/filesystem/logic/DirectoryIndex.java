@@ -0,0 +1,504 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * A hierarchical index of the files, where every node is a component of their paths (a trie).
+ *
+ * <p>Paths are split by hand, component by component, and the names of the nodes are interned, so
+ * the same name is kept only once regardless of how many directories contain it. A lookup takes a
+ * time proportional to the depth of the path, and listing or walking a directory takes a time
+ * proportional to its content.
+ *
+ * <p>Every path is only stored by the trie itself. The node of a file keeps its segment number, its
+ * modified time and its extents packed in a single {@code long[]}, and the {@link FileMetaData}
+ * (with its path) is created on demand. So, every file takes around a hundred bytes besides its
+ * name (see {@link #estimateMemory()}), instead of a few objects and a copy of its path.
+ *
+ * <p>Lookups don't block. Modifications are serialized, so the directories left empty can be
+ * removed without losing concurrent insertions.
+ *
+ * <p>A whole directory can be moved by relinking its node, so its content isn't visited again but
+ * to count its files.
+ */
+class DirectoryIndex {
+  private static final char SEPARATOR = '/';
+  /** The approximate size of a node (with compressed references). */
+  static final int NODE_BYTES = 32;
+  /** The approximate size of the entry that links a node to its parent. */
+  static final int CHILD_ENTRY_BYTES = 40;
+  /** The approximate size of the map of children of a directory, besides its entries. */
+  static final int CHILDREN_MAP_BYTES = 64;
+  /** The approximate size of a name, besides its characters. */
+  static final int NAME_BYTES = 40;
+  /** The size of the header of an array. */
+  static final int ARRAY_BYTES = 16;
+  /** The latest modified time that can be packed (in 2106). */
+  private static final long MAX_MODIFIED_TIME = 0xFFFFFFFFL;
+
+  private static final class Node {
+    /** The name and the parent only change when the node is moved. Guarded by the index. */
+    private volatile String name;
+
+    private volatile Node parent;
+    /** Created along with the first child, so files don't take an empty map. */
+    private volatile Map<String, Node> children;
+    /**
+     * The segment number of the file placed in the node (in the low 32 bits) and its modified time
+     * (in the high 32 bits, as unsigned seconds), followed by the {@code from} and {@code to} of
+     * every extent. It's replaced as a whole, so it's always consistent. Null if there's no file.
+     */
+    private volatile long[] file;
+
+    private Node(String name, Node parent) {
+      this.name = name;
+      this.parent = parent;
+    }
+
+    private boolean hasChildren() {
+      Map<String, Node> currentChildren = children;
+      return currentChildren != null && !currentChildren.isEmpty();
+    }
+
+    private Node getChild(String name) {
+      Map<String, Node> currentChildren = children;
+      return currentChildren == null ? null : currentChildren.get(name);
+    }
+
+    private Collection<Node> getChildren() {
+      Map<String, Node> currentChildren = children;
+      return currentChildren == null ? List.of() : currentChildren.values();
+    }
+  }
+
+  private final Node root = new Node("", null);
+  /** The number of files. Guarded by {@code this}. */
+  private int size;
+  /** The number of nodes, besides the root. Guarded by {@code this}. */
+  private long nodeCount;
+  /** The number of nodes with a map of children, besides the root. Guarded by {@code this}. */
+  private long directoryCount;
+  /** The number of characters of the names of the nodes. Guarded by {@code this}. */
+  private long nameLength;
+  /** The number of extents of every file. Guarded by {@code this}. */
+  private long extentCount;
+
+  Optional<FileMetaData> find(String absolutePath) {
+    Node node = findNode(absolutePath);
+    if (node == null) {
+      return Optional.empty();
+    }
+    long[] file = node.file;
+    if (file == null) {
+      return Optional.empty();
+    }
+    // The path is only rebuilt if it's not written the same way as in the index.
+    return Optional.of(unpack(isCanonical(absolutePath) ? absolutePath : filePathOf(node), file));
+  }
+
+  /**
+   * Adds or replaces the file placed in the path of the given {@link FileMetaData}.
+   *
+   * @return The replaced {@link FileMetaData}, if any.
+   */
+  synchronized Optional<FileMetaData> put(FileMetaData fileMetaData) {
+    Node node = createNode(fileMetaData.getAbsolutePath(), Integer.MAX_VALUE);
+    return Optional.ofNullable(replace(node, pack(fileMetaData)))
+        .map(oldFile -> unpack(fileMetaData.getAbsolutePath(), oldFile));
+  }
+
+  /**
+   * Removes the file placed in the given path. The directories that are left empty are removed as
+   * well.
+   *
+   * @return The removed {@link FileMetaData}, if any.
+   */
+  synchronized Optional<FileMetaData> remove(String absolutePath) {
+    Node node = findNode(absolutePath);
+    if (node == null || node.file == null) {
+      return Optional.empty();
+    }
+    long[] oldFile = replace(node, null);
+    prune(node);
+    return Optional.of(unpack(absolutePath, oldFile));
+  }
+
+  /**
+   * Moves a file to another path, replacing the file placed there (if any). The file is never
+   * missing for concurrent lookups: it's added to its new path before it's removed from the old
+   * one.
+   *
+   * @return The replaced {@link FileMetaData}, if any.
+   */
+  synchronized Optional<FileMetaData> move(FileMetaData fileMetaData, String newAbsolutePath) {
+    Node node = findNode(fileMetaData.getAbsolutePath());
+    if (node != null && node == findNode(newAbsolutePath)) {
+      // Both paths are the same, but they may be written differently (e.g. "/a//b" and "/a/b").
+      replace(node, pack(fileMetaData));
+      return Optional.empty();
+    }
+    Optional<FileMetaData> replacedFileMetaData =
+        put(fileMetaData.withAbsolutePath(newAbsolutePath));
+    remove(fileMetaData.getAbsolutePath());
+    return replacedFileMetaData;
+  }
+
+  /**
+   * Moves a directory, with everything it contains, to another path. Only its node is relinked to
+   * its new parent, since the paths of its files are never stored.
+   *
+   * @return The number of moved files.
+   * @throws IllegalArgumentException if the directory doesn't exist, the new path already exists,
+   *     or it's inside the directory.
+   */
+  synchronized int moveDirectory(String directoryPath, String newDirectoryPath) {
+    Node directory = findNode(directoryPath);
+    if (directory == null || directory == root || !directory.hasChildren()) {
+      throw new IllegalArgumentException("The directory " + directoryPath + " doesn't exist");
+    }
+    if (findNode(newDirectoryPath) != null) {
+      throw new IllegalArgumentException("The path " + newDirectoryPath + " already exists");
+    }
+    int nameFrom = newDirectoryPath.lastIndexOf(SEPARATOR, lastNonSeparator(newDirectoryPath)) + 1;
+    for (Node node = findDeepestNode(newDirectoryPath, nameFrom);
+        node != null;
+        node = node.parent) {
+      if (node == directory) {
+        throw new IllegalArgumentException(
+            "The directory " + directoryPath + " can't be moved inside itself");
+      }
+    }
+
+    Node oldParent = directory.parent;
+    Node newParent = createNode(newDirectoryPath, nameFrom);
+    String newName = newDirectoryPath.substring(nameFrom, lastNonSeparator(newDirectoryPath) + 1);
+    oldParent.children.remove(directory.name);
+    nameLength += newName.length() - directory.name.length();
+    directory.name = newName.intern();
+    directory.parent = newParent;
+    addChild(newParent, directory);
+    prune(oldParent);
+
+    int movedFiles = 0;
+    Deque<Node> pending = new ArrayDeque<>();
+    pending.push(directory);
+    while (!pending.isEmpty()) {
+      Node node = pending.pop();
+      if (node.file != null) {
+        movedFiles++;
+      }
+      node.getChildren().forEach(pending::push);
+    }
+    return movedFiles;
+  }
+
+  /** Whether the path is a directory, which means that there are files inside it. */
+  boolean isDirectory(String path) {
+    Node node = findNode(path);
+    return node != null && node.hasChildren();
+  }
+
+  /**
+   * Lists the entries placed directly in a directory.
+   *
+   * @return The absolute paths of its files and subdirectories, sorted. It's empty if the directory
+   *     doesn't exist.
+   */
+  List<String> list(String directoryPath) {
+    Node directory = findNode(directoryPath);
+    List<String> entries = new ArrayList<>();
+    if (directory == null) {
+      return entries;
+    }
+    String prefix = pathOf(directory) + SEPARATOR;
+    for (Node child : directory.getChildren()) {
+      entries.add(prefix + child.name);
+    }
+    entries.sort(Comparator.naturalOrder());
+    return entries;
+  }
+
+  /**
+   * Walks a directory, recursively.
+   *
+   * @return Every file placed in the directory or any of its subdirectories.
+   */
+  List<FileMetaData> walk(String directoryPath) {
+    List<FileMetaData> files = new ArrayList<>();
+    walk(directoryPath, files::add);
+    return files;
+  }
+
+  /**
+   * Walks a directory, recursively and depth-first, without collecting its files: only the
+   * iterators of the directories being visited are kept. The files are visited in no particular
+   * order, and the changes done meanwhile may or may not be seen.
+   *
+   * @param visitor Called with every file placed in the directory or any of its subdirectories. The
+   *     walk stops as soon as it returns false.
+   */
+  void walk(String directoryPath, Predicate<FileMetaData> visitor) {
+    Node directory = findNode(directoryPath);
+    if (directory == null) {
+      return;
+    }
+    // The path of every node is built from the one of its parent, as the walk goes down.
+    Deque<Iterator<Node>> pending = new ArrayDeque<>();
+    Deque<String> pendingPaths = new ArrayDeque<>();
+    pending.push(directory.getChildren().iterator());
+    pendingPaths.push(pathOf(directory));
+    while (!pending.isEmpty()) {
+      Iterator<Node> children = pending.peek();
+      if (!children.hasNext()) {
+        pending.pop();
+        pendingPaths.pop();
+        continue;
+      }
+      Node child = children.next();
+      String path = pendingPaths.peek() + SEPARATOR + child.name;
+      long[] file = child.file;
+      if (file != null && !visitor.test(unpack(path, file))) {
+        return;
+      }
+      if (child.hasChildren()) {
+        pending.push(child.getChildren().iterator());
+        pendingPaths.push(path);
+      }
+    }
+  }
+
+  /** Every file of the index. */
+  List<FileMetaData> getFiles() {
+    List<FileMetaData> files = walk("/");
+    // The root itself can't be walked, but a file could have been placed there (e.g. "/").
+    long[] rootFile = root.file;
+    if (rootFile != null) {
+      files.add(unpack(String.valueOf(SEPARATOR), rootFile));
+    }
+    return files;
+  }
+
+  /** Every extent used by a file, in no particular order. The paths aren't built. */
+  List<Extent> getExtents() {
+    List<Extent> extents = new ArrayList<>();
+    Deque<Node> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      Node node = pending.pop();
+      long[] file = node.file;
+      if (file != null) {
+        for (int i = 1; i < file.length; i += 2) {
+          extents.add(new Extent(file[i], file[i + 1]));
+        }
+      }
+      node.getChildren().forEach(pending::push);
+    }
+    return extents;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * An estimate of the memory taken by the index, in bytes. It assumes compressed references, and
+   * that no name is shared (interned names are counted once per node).
+   */
+  synchronized long estimateMemory() {
+    return nodeCount * (NODE_BYTES + CHILD_ENTRY_BYTES + NAME_BYTES)
+        + nameLength
+        + directoryCount * CHILDREN_MAP_BYTES
+        + size * (ARRAY_BYTES + Long.BYTES)
+        + extentCount * 2 * Long.BYTES;
+  }
+
+  synchronized void clear() {
+    root.children = null;
+    root.file = null;
+    size = 0;
+    nodeCount = 0;
+    directoryCount = 0;
+    nameLength = 0;
+    extentCount = 0;
+  }
+
+  /**
+   * Finds the node of a path, creating the missing ones. Only the part of the path before the given
+   * index is considered.
+   */
+  private Node createNode(String path, int end) {
+    Node node = root;
+    int from = 0;
+    int length = Math.min(end, path.length());
+    while (from < length) {
+      int to = Math.min(nextSeparator(path, from), length);
+      if (to > from) {
+        String name = path.substring(from, to);
+        Node child = node.getChild(name);
+        if (child == null) {
+          child = new Node(name.intern(), node);
+          addChild(node, child);
+          nodeCount++;
+          nameLength += name.length();
+        }
+        node = child;
+      }
+      from = to + 1;
+    }
+    return node;
+  }
+
+  private void addChild(Node parent, Node child) {
+    if (parent.children == null) {
+      parent.children = new ConcurrentHashMap<>();
+      // The root is never removed, so its map isn't counted.
+      if (parent != root) {
+        directoryCount++;
+      }
+    }
+    parent.children.put(child.name, child);
+  }
+
+  /** Replaces the file of a node, keeping the counters up to date. */
+  private long[] replace(Node node, long[] file) {
+    long[] oldFile = node.file;
+    node.file = file;
+    if (oldFile != null) {
+      size--;
+      extentCount -= oldFile.length / 2;
+    }
+    if (file != null) {
+      size++;
+      extentCount += file.length / 2;
+    }
+    return oldFile;
+  }
+
+  /**
+   * Finds the deepest existing node along a path. Only the part of the path before the given index
+   * is considered.
+   */
+  private Node findDeepestNode(String path, int end) {
+    Node node = root;
+    int from = 0;
+    while (from < end) {
+      int to = Math.min(nextSeparator(path, from), end);
+      if (to > from) {
+        Node child = node.getChild(path.substring(from, to));
+        if (child == null) {
+          break;
+        }
+        node = child;
+      }
+      from = to + 1;
+    }
+    return node;
+  }
+
+  /** Removes the given node, and its ancestors, while they are empty. */
+  private void prune(Node node) {
+    while (node.parent != null && node.file == null && !node.hasChildren()) {
+      Node parent = node.parent;
+      parent.children.remove(node.name);
+      nodeCount--;
+      nameLength -= node.name.length();
+      if (node.children != null) {
+        directoryCount--;
+      }
+      node = parent;
+    }
+  }
+
+  private Node findNode(String path) {
+    Node node = root;
+    int from = 0;
+    while (node != null && from < path.length()) {
+      int to = nextSeparator(path, from);
+      if (to > from) {
+        node = node.getChild(path.substring(from, to));
+      }
+      from = to + 1;
+    }
+    return node;
+  }
+
+  private static long[] pack(FileMetaData fileMetaData) {
+    List<Extent> extents = fileMetaData.getExtents();
+    long[] file = new long[1 + 2 * extents.size()];
+    long modifiedTime = Math.max(0, Math.min(MAX_MODIFIED_TIME, fileMetaData.getModifiedTime()));
+    file[0] =
+        modifiedTime << Integer.SIZE | Integer.toUnsignedLong(fileMetaData.getSegmentNumber());
+    for (int i = 0; i < extents.size(); i++) {
+      file[1 + 2 * i] = extents.get(i).getFrom();
+      file[2 + 2 * i] = extents.get(i).getTo();
+    }
+    return file;
+  }
+
+  private static FileMetaData unpack(String absolutePath, long[] file) {
+    List<Extent> extents = new ArrayList<>(file.length / 2);
+    for (int i = 1; i < file.length; i += 2) {
+      extents.add(new Extent(file[i], file[i + 1]));
+    }
+    return new FileMetaData(
+        SegmentationTableService.getFileName(absolutePath),
+        absolutePath,
+        extents,
+        (int) file[0],
+        file[0] >>> Integer.SIZE);
+  }
+
+  /** Whether the path is written the same way the index builds it (see {@link #pathOf(Node)}). */
+  private static boolean isCanonical(String path) {
+    if (path.isEmpty() || path.charAt(0) != SEPARATOR) {
+      return false;
+    }
+    if (path.length() == 1) {
+      return true;
+    }
+    if (path.charAt(path.length() - 1) == SEPARATOR) {
+      return false;
+    }
+    return !path.contains("//");
+  }
+
+  private static int nextSeparator(String path, int from) {
+    int separator = path.indexOf(SEPARATOR, from);
+    return separator < 0 ? path.length() : separator;
+  }
+
+  /** The index of the last character that isn't a separator, or -1 if there's none. */
+  private static int lastNonSeparator(String path) {
+    int index = path.length() - 1;
+    while (index >= 0 && path.charAt(index) == SEPARATOR) {
+      index--;
+    }
+    return index;
+  }
+
+  /** The path of a file placed in the given node, where the root is "/". */
+  private static String filePathOf(Node node) {
+    return node.parent == null ? String.valueOf(SEPARATOR) : pathOf(node);
+  }
+
+  private static String pathOf(Node node) {
+    if (node.parent == null) {
+      return "";
+    }
+    Deque<String> names = new ArrayDeque<>();
+    for (Node current = node; current.parent != null; current = current.parent) {
+      names.push(current.name);
+    }
+    return SEPARATOR + String.join(String.valueOf(SEPARATOR), names);
+  }
+}
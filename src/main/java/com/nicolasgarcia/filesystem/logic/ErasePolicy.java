@@ -0,0 +1,16 @@
+package com.nicolasgarcia.filesystem.logic;
+
+/** Defines how {@link FileManager} erases the records of the files that are deleted or replaced. */
+public enum ErasePolicy {
+  /**
+   * Only the magic number of the record is overwritten, so deleting a file costs the same
+   * regardless of its size. The content stays in the container until its space is reused, or the
+   * compaction moves other files over it or truncates it.
+   */
+  TOMBSTONE,
+  /**
+   * Every byte of the record is filled with zeros (secure erase), as well as the locations left
+   * behind by the compaction. It writes as many bytes as it erases.
+   */
+  ZERO_FILL
+}
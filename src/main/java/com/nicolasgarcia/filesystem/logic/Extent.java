@@ -0,0 +1,46 @@
+package com.nicolasgarcia.filesystem.logic;
+
+/** A contiguous region {@code [from, to)} of the container, either used by a file or free. */
+final class Extent {
+  private final long from;
+  private final long to;
+
+  Extent(long from, long to) {
+    this.from = from;
+    this.to = to;
+  }
+
+  long getFrom() {
+    return from;
+  }
+
+  long getTo() {
+    return to;
+  }
+
+  long length() {
+    return to - from;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof Extent)) {
+      return false;
+    }
+    Extent extent = (Extent) o;
+    return from == extent.from && to == extent.to;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Long.hashCode(from) + Long.hashCode(to);
+  }
+
+  @Override
+  public String toString() {
+    return "[" + from + ", " + to + ")";
+  }
+}
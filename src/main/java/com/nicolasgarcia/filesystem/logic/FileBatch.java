@@ -0,0 +1,69 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import com.nicolasgarcia.filesystem.api.Batch;
+import com.nicolasgarcia.filesystem.api.File;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot.Operation;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link Batch} that collects the changes in memory, and commits them to a {@link FileManager}
+ * (see {@link FileManager#commit(List, Collection)}), or to anything that applies them the same
+ * way.
+ */
+class FileBatch implements Batch {
+  private final BiConsumer<List<File>, Collection<String>> committer;
+  private final OperationMetrics operationMetrics;
+  private final Map<String, byte[]> writes = new LinkedHashMap<>();
+  private final Set<String> deletedPaths = new LinkedHashSet<>();
+  private boolean committed;
+
+  FileBatch(FileManager fileManager, OperationMetrics operationMetrics) {
+    this(fileManager::commit, operationMetrics);
+  }
+
+  FileBatch(
+      BiConsumer<List<File>, Collection<String>> committer, OperationMetrics operationMetrics) {
+    this.committer = committer;
+    this.operationMetrics = operationMetrics;
+  }
+
+  @Override
+  public Batch write(String absolutePath, byte[] content) {
+    checkNotCommitted();
+    String normalizedPath = File.normalizePath(absolutePath);
+    deletedPaths.remove(normalizedPath);
+    writes.put(normalizedPath, content);
+    return this;
+  }
+
+  @Override
+  public Batch delete(String absolutePath) {
+    checkNotCommitted();
+    String normalizedPath = File.normalizePath(absolutePath);
+    writes.remove(normalizedPath);
+    deletedPaths.add(normalizedPath);
+    return this;
+  }
+
+  @Override
+  public void commit() {
+    checkNotCommitted();
+    committed = true;
+    List<File> files = new ArrayList<>(writes.size());
+    writes.forEach((absolutePath, content) -> files.add(new File(absolutePath, content)));
+    operationMetrics.measure(Operation.BATCH, () -> committer.accept(files, deletedPaths));
+  }
+
+  private void checkNotCommitted() {
+    if (committed) {
+      throw new IllegalStateException("The batch is already committed");
+    }
+  }
+}
@@ -1,24 +1,48 @@
 package com.nicolasgarcia.filesystem.logic;
 
-import static com.nicolasgarcia.filesystem.utils.SerializationUtils.serialize;
+import static com.nicolasgarcia.filesystem.utils.SerializationUtils.RECORD_HEADER_SIZE;
+import static com.nicolasgarcia.filesystem.utils.SerializationUtils.decode;
+import static com.nicolasgarcia.filesystem.utils.SerializationUtils.decodeContent;
+import static com.nicolasgarcia.filesystem.utils.SerializationUtils.deserialize;
+import static com.nicolasgarcia.filesystem.utils.SerializationUtils.encode;
+import static com.nicolasgarcia.filesystem.utils.SerializationUtils.encodeHeader;
+import static com.nicolasgarcia.filesystem.utils.SerializationUtils.getContentOffset;
+import static com.nicolasgarcia.filesystem.utils.SerializationUtils.getRecordLength;
+import static com.nicolasgarcia.filesystem.utils.SerializationUtils.isLegacyRecord;
+import static com.nicolasgarcia.filesystem.utils.SerializationUtils.isRecord;
 
 import com.nicolasgarcia.filesystem.api.File;
+import com.nicolasgarcia.filesystem.api.FileStat;
+import com.nicolasgarcia.filesystem.api.FileVisitor;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot;
 import com.nicolasgarcia.filesystem.exceptions.FileCorruptedException;
 import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.StreamCorruptedException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.OptionalLong;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,79 +51,934 @@ import org.slf4j.LoggerFactory;
  *
  * <p>It interacts with a {@link StorageService}, which is the responsible to store/retrieve the
  * current status of the emulated file system into/from a single container.
+ *
+ * <p>Reads and writes are executed concurrently, sharing the read side of a lock. The exclusive
+ * side is only taken by the compaction for short periods of time, to swap the location of a moved
+ * file, and by the operations that need a consistent view of the whole container (e.g. persisting
+ * the segmentation table).
+ *
+ * <p>Besides, every operation takes the lock of the paths it involves (see {@link PathLocks}),
+ * before the lock of the container. Reads of a file share it, and changes to a file are exclusive,
+ * so they are applied (and logged) in the same order, and the old location of a file is never
+ * dropped while it's being read. Operations over different files don't wait for each other.
+ *
+ * <p>Files are stored in a single extent by default, so they can be read with a single access. With
+ * the block layout, every record is split in blocks of (at most) a fixed size instead. Every block
+ * takes its own free fragment, so big files can reuse small fragments, and the compaction only
+ * needs to move (and hold in memory) a single block at a time.
  */
 class FileManager {
   private static final Logger LOG = LoggerFactory.getLogger(FileManager.class);
+  /** The block size that stores every file in a single extent (unless it's appended). */
+  static final long CONTIGUOUS = 0;
+  /** The largest extent that can be moved over its own location, since it goes through the heap. */
+  private static final long MAX_OVERLAPPING_MOVE = Integer.MAX_VALUE;
+  /** The maximum size of the records of a batch written at once (unless a single one is bigger). */
+  private static final int MAX_BATCH_WRITE = 64 * 1024 * 1024;
+  /** The bytes overwritten by a tombstone, which are the magic number of the record. */
+  private static final int TOMBSTONE = Integer.BYTES;
+
   private final StorageService storageService;
   private final SegmentationTableService segmentationTableService;
-  private final AtomicInteger nextAvailableBit;
+  private final WriteAheadLog writeAheadLog;
   private final AtomicInteger nextSegmentNumber;
+  private final ReadWriteLock containerLock = new ReentrantReadWriteLock();
+  private final PathLocks pathLocks = new PathLocks();
+  private final ReadCache readCache;
+  /** The maximum size of every extent. */
+  private final long blockSize;
 
+  private final ErasePolicy erasePolicy;
+
+  private volatile BackgroundCompactor backgroundCompactor;
+  private volatile CompactionScheduler compactionScheduler;
+  /** The plan being executed by the compaction. Guarded by {@code this}. */
+  private CompactionPlan compactionPlan;
+
+  private final AtomicLong compactionMovedBytes = new AtomicLong();
+  private final AtomicLong compactionReclaimedBytes = new AtomicLong();
+  private final AtomicLong compactionRuns = new AtomicLong();
+  private final LongAdder bytesRead = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+
+  /**
+   * Every change is durable once it returns ({@link SyncPolicy#everyOperation()}). That takes two
+   * flushes per change: the container first, so the content is there before the log references it,
+   * and then the log.
+   */
   public FileManager(StorageService storageService) {
+    this(storageService, SyncPolicy.everyOperation());
+  }
+
+  FileManager(StorageService storageService, SyncPolicy syncPolicy) {
+    this(storageService, syncPolicy, CONTIGUOUS);
+  }
+
+  /**
+   * @param blockSize The maximum size of every extent, or {@link #CONTIGUOUS}. It only applies to
+   *     the files written from now on, so it can be changed between executions.
+   */
+  FileManager(StorageService storageService, SyncPolicy syncPolicy, long blockSize) {
+    this(storageService, syncPolicy, blockSize, CachePolicy.none());
+  }
+
+  /**
+   * @param cachePolicy Whether the files read are kept in memory (see {@link ReadCache}).
+   */
+  FileManager(
+      StorageService storageService,
+      SyncPolicy syncPolicy,
+      long blockSize,
+      CachePolicy cachePolicy) {
+    this(storageService, syncPolicy, blockSize, cachePolicy, ErasePolicy.TOMBSTONE);
+  }
+
+  /**
+   * @param erasePolicy How the records of the deleted or replaced files are erased.
+   */
+  FileManager(
+      StorageService storageService,
+      SyncPolicy syncPolicy,
+      long blockSize,
+      CachePolicy cachePolicy,
+      ErasePolicy erasePolicy) {
+    if (blockSize != CONTIGUOUS && blockSize < RECORD_HEADER_SIZE) {
+      throw new IllegalArgumentException(
+          "The block size should be at least " + RECORD_HEADER_SIZE + " bytes");
+    }
+    this.blockSize = blockSize == CONTIGUOUS ? Long.MAX_VALUE : blockSize;
     this.storageService = storageService;
     this.segmentationTableService = new SegmentationTableService();
-    this.nextAvailableBit = new AtomicInteger(0);
+    this.writeAheadLog = new WriteAheadLog(storageService, syncPolicy);
     this.nextSegmentNumber = new AtomicInteger(0);
+    this.readCache = new ReadCache(cachePolicy);
+    this.erasePolicy = erasePolicy;
+    recover();
   }
 
+  /**
+   * Restores the segmentation table persisted next to the container, if any, and replays the
+   * changes from the {@link WriteAheadLog} that it doesn't contain yet.
+   *
+   * <p>When the index is loaded, the content after the last file or fragment it has was written
+   * after the checkpoint, by changes that were never logged (e.g. a crash before they were
+   * committed). So, it's released. Otherwise, new files are always stored after the current content
+   * of the container, so even if the index is missing, the existing content is never overwritten.
+   */
+  private void recover() {
+    Optional<Long> checkpoint = storageService.readIndex().flatMap(this::loadIndex);
+    List<WriteAheadLog.Entry> entries = writeAheadLog.recover(checkpoint.orElse(0L));
+    entries.forEach(this::replay);
+    restoreImages(entries);
+
+    long containerSize = storageService.getContainerSize();
+    FreeSpaceAllocator allocator = segmentationTableService.getFragmentedSpace();
+    long indexedEnd = allocator.getEnd();
+    allocator.setEnd(containerSize);
+    nextSegmentNumber.set(segmentationTableService.getNextSegmentNumber());
+    if (!entries.isEmpty()) {
+      segmentationTableService.rebuildFragmentedSpace(containerSize);
+      persistIndex();
+      LOG.info("Recovered {} operations from the write-ahead log", entries.size());
+    } else if (checkpoint.isPresent() && indexedEnd < containerSize) {
+      allocator.release(new Extent(indexedEnd, containerSize));
+      LOG.info("Released {} bytes that were never logged", containerSize - indexedEnd);
+    }
+  }
+
+  private Optional<Long> loadIndex(ByteBuffer index) {
+    OptionalLong checkpointLsn = segmentationTableService.load(index);
+    return checkpointLsn.isPresent() ? Optional.of(checkpointLsn.getAsLong()) : Optional.empty();
+  }
+
+  private void replay(WriteAheadLog.Entry entry) {
+    switch (entry.getType()) {
+      case PUT:
+        segmentationTableService.addOrReplace(entry.getFileMetaData(), true);
+        break;
+      case DELETE:
+        segmentationTableService
+            .find(entry.getAbsolutePath())
+            .ifPresent(segmentationTableService::delete);
+        break;
+      case RELOCATE:
+        segmentationTableService.addOrReplace(entry.getFileMetaData(), false);
+        break;
+      case MOVE:
+        segmentationTableService
+            .find(entry.getAbsolutePath())
+            .flatMap(file -> segmentationTableService.move(file, entry.getNewAbsolutePath()))
+            .ifPresent(segmentationTableService.getFragmentedSpace()::release);
+        break;
+      case MOVE_DIRECTORY:
+        segmentationTableService.moveDirectory(entry.getAbsolutePath(), entry.getNewAbsolutePath());
+        break;
+      case BATCH:
+        entry.getEntries().forEach(this::replay);
+        break;
+    }
+  }
+
+  /**
+   * Writes the content of the relocations that overwrote their old location again, in case the
+   * write was torn by a crash.
+   *
+   * <p>Only the last relocation of every file (every segment number) is restored, and only if the
+   * file still has the extents it logged once every entry has been replayed. Otherwise, the space
+   * of the image could have been reused since then by content that isn't logged: another file, or
+   * an in-place append to the same one. Either way, a later change of the file is only durable once
+   * the container is synced (see {@link WriteAheadLog#force(long)}), so the relocation isn't torn.
+   */
+  private void restoreImages(List<WriteAheadLog.Entry> entries) {
+    Map<Integer, WriteAheadLog.Entry> relocationsBySegment = new HashMap<>();
+    for (WriteAheadLog.Entry entry : entries) {
+      if (entry.getType() == WriteAheadLog.Type.RELOCATE) {
+        relocationsBySegment.put(entry.getFileMetaData().getSegmentNumber(), entry);
+      }
+    }
+    for (FileMetaData file : segmentationTableService.getFiles()) {
+      WriteAheadLog.Entry relocation = relocationsBySegment.get(file.getSegmentNumber());
+      if (relocation != null
+          && relocation.getImage() != null
+          && relocation.getFileMetaData().getExtents().equals(file.getExtents())) {
+        storageService.storeInContainer(relocation.getImage(), relocation.getImageOffset());
+      }
+    }
+  }
+
+  /**
+   * Persists the segmentation table next to the container. Once it's done, the {@link
+   * WriteAheadLog} is discarded (checkpoint).
+   */
+  void persistIndex() {
+    Lock lock = containerLock.writeLock();
+    lock.lock();
+    try {
+      long checkpointLsn = writeAheadLog.getLastLsn();
+      // The pending releases run once the log is durable, so the persisted free space has them.
+      writeAheadLog.force(checkpointLsn);
+      storageService.storeIndex(segmentationTableService.encode(checkpointLsn));
+      writeAheadLog.checkpoint();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stores a file in the smallest free fragment where it fits, or at the end of the container. With
+   * the block layout, every block is placed that way.
+   *
+   * <p>The content is written before the change is logged, in a region that no file references. The
+   * previous version of the file (if any) is only released once the change is committed.
+   */
   void save(File file) {
-    byte[] serializedFile = serialize(file);
+    ByteBuffer record = encode(file);
+    save(file.getAbsolutePath(), record.remaining(), extents -> writeRecord(extents, record, null));
+  }
+
+  /**
+   * Stores a file whose content is read from the given channel, without holding it in memory.
+   *
+   * @param content The channel, placed at the beginning of the content.
+   */
+  void save(String absolutePath, ReadableByteChannel content, long contentLength) {
+    ByteBuffer header = encodeHeader(true);
+    save(
+        absolutePath,
+        header.remaining() + contentLength,
+        extents -> writeRecord(extents, header, content));
+  }
+
+  /**
+   * @param writer Writes the whole record across the given extents.
+   */
+  private void save(String absolutePath, long recordLength, Consumer<List<Extent>> writer) {
+    FreeSpaceAllocator allocator = segmentationTableService.getFragmentedSpace();
+    Lock pathLock = pathLocks.writeLock(absolutePath);
+    pathLock.lock();
+    try {
+      FileMetaData fileMetaData;
+      Optional<FileMetaData> oldFileMetaData;
+      long lsn;
+      Lock lock = containerLock.readLock();
+      lock.lock();
+      try {
+        List<Extent> extents = allocator.allocate(recordLength, blockSize);
+        fileMetaData =
+            new FileMetaData(
+                SegmentationTableService.getFileName(absolutePath),
+                absolutePath,
+                extents,
+                nextSegmentNumber.getAndIncrement(),
+                now());
+        writer.accept(extents);
+        lsn = writeAheadLog.logPut(fileMetaData);
+        oldFileMetaData = segmentationTableService.addOrReplace(fileMetaData, false);
+      } finally {
+        lock.unlock();
+      }
+      readCache.invalidate(absolutePath);
+      writeAheadLog.commit(lsn);
+      oldFileMetaData.ifPresent(oldFile -> dropWhenDurable(lsn, oldFile));
+    } finally {
+      pathLock.unlock();
+    }
+  }
+
+  /**
+   * Writes a record across the given extents, in order.
+   *
+   * @param head The beginning of the record.
+   * @param tail The channel to read the rest of the record from, if the head doesn't contain it.
+   */
+  private void writeRecord(List<Extent> extents, ByteBuffer head, ReadableByteChannel tail) {
+    ByteBuffer remainingHead = head.duplicate();
+    for (Extent extent : extents) {
+      bytesWritten.add(extent.length());
+      long position = extent.getFrom();
+      if (remainingHead.hasRemaining()) {
+        int length = (int) Math.min(remainingHead.remaining(), extent.length());
+        storageService.storeInContainer(remainingHead.slice().limit(length), position);
+        remainingHead.position(remainingHead.position() + length);
+        position += length;
+      }
+      if (position < extent.getTo()) {
+        storageService.storeInContainer(tail, extent.getTo() - position, position);
+      }
+    }
+  }
 
-    Optional<FileMetaData> oldFileMetaData = segmentationTableService.find(file.getAbsolutePath());
+  /**
+   * Appends some content to a file, without rewriting it.
+   *
+   * <p>The content is written right after the last extent of the file when the space there is free
+   * (or it's the end of the container), so the extent just grows (up to the block size). The rest
+   * is written in new extents chained to the file. Either way, the existing content is neither read
+   * nor moved, so it takes a time proportional to the appended content.
+   *
+   * <p>The file keeps its segment number, since its previous content doesn't change. Concurrent
+   * appends to the same file are applied one after the other.
+   */
+  void append(String absolutePath, byte[] content) {
+    Lock pathLock = pathLocks.writeLock(absolutePath);
+    pathLock.lock();
+    try {
+      appendLocked(absolutePath, content);
+    } finally {
+      pathLock.unlock();
+    }
+  }
 
-    oldFileMetaData.ifPresent(
-        fileMetaData ->
-            storageService.dropFromContainer(fileMetaData.getFrom(), fileMetaData.getTo()));
+  /** Appends to a file, holding the lock of its path. See {@link #append(String, byte[])}. */
+  private void appendLocked(String absolutePath, byte[] content) {
+    FreeSpaceAllocator allocator = segmentationTableService.getFragmentedSpace();
+    long lsn = 0;
+    Lock lock = containerLock.readLock();
+    lock.lock();
+    try {
+      FileMetaData fileMetaData =
+          segmentationTableService.find(absolutePath).orElseThrow(FileNotFoundException::new);
+      if (content.length > 0) {
+        Extent lastExtent = fileMetaData.getLastExtent();
+        List<Extent> extents = new ArrayList<>(fileMetaData.getExtents());
+        ByteBuffer remainingContent = ByteBuffer.wrap(content);
+        // The last extent could be bigger than the block size, if it was changed meanwhile.
+        int inPlace = (int) Math.max(0, Math.min(content.length, blockSize - lastExtent.length()));
+        if (inPlace > 0 && allocator.extend(lastExtent.getTo(), inPlace)) {
+          storageService.storeInContainer(
+              remainingContent.slice().limit(inPlace), lastExtent.getTo());
+          bytesWritten.add(inPlace);
+          remainingContent.position(inPlace);
+          extents.set(
+              extents.size() - 1, new Extent(lastExtent.getFrom(), lastExtent.getTo() + inPlace));
+        }
+        if (remainingContent.hasRemaining()) {
+          List<Extent> newExtents = allocator.allocate(remainingContent.remaining(), blockSize);
+          writeRecord(newExtents, remainingContent, null);
+          extents.addAll(newExtents);
+        }
+        FileMetaData newFileMetaData = fileMetaData.withExtents(extents).withModifiedTime(now());
+        lsn = writeAheadLog.logPut(newFileMetaData);
+        segmentationTableService.addOrReplace(newFileMetaData, false);
+        readCache.invalidate(absolutePath);
+      }
+    } finally {
+      lock.unlock();
+    }
+    writeAheadLog.commit(lsn);
+  }
+
+  /** Opens a channel to stream the content of a file. See {@link FileReadableChannel}. */
+  ReadableByteChannel openReadableChannel(String absolutePath) {
+    Lock pathLock = pathLocks.readLock(absolutePath);
+    pathLock.lock();
+    Lock lock = containerLock.readLock();
+    lock.lock();
+    try {
+      FileMetaData fileMetaData =
+          segmentationTableService.find(absolutePath).orElseThrow(FileNotFoundException::new);
+      ByteBuffer header = readHeader(fileMetaData);
+      int contentOffset = getContentOffset(header);
+      return new FileReadableChannel(
+          this, fileMetaData, contentOffset, fileMetaData.getLength() - contentOffset);
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Failed to decode file", e);
+      throw new FileCorruptedException();
+    } finally {
+      lock.unlock();
+      pathLock.unlock();
+    }
+  }
 
-    int from = nextAvailableBit.getAndAdd(serializedFile.length);
-    FileMetaData fileMetaData =
-        new FileMetaData(
-            file.getFileName(),
-            file.getAbsolutePath(),
-            from,
-            from + serializedFile.length,
-            nextSegmentNumber.getAndIncrement());
-    segmentationTableService.addOrReplace(fileMetaData, true);
-    storageService.storeInContainer(serializedFile, from);
+  /**
+   * Opens a channel to write the content of a file, which is stored once the channel is closed. See
+   * {@link FileWritableChannel}.
+   */
+  WritableByteChannel openWritableChannel(String absolutePath) {
+    return new FileWritableChannel(this, absolutePath);
+  }
+
+  /**
+   * Reads a part of a file into the given buffer, as much as it fits.
+   *
+   * @param fileMetaData The version of the file that should be read.
+   * @param offset The offset to read from, relative to the beginning of the record.
+   * @return The number of read bytes.
+   * @throws FileNotFoundException if the file was overwritten or deleted.
+   */
+  int readContent(FileMetaData fileMetaData, long offset, ByteBuffer buffer) {
+    Lock pathLock = pathLocks.readLock(fileMetaData.getAbsolutePath());
+    pathLock.lock();
+    Lock lock = containerLock.readLock();
+    lock.lock();
+    try {
+      // The compaction keeps the segment number of the files it moves.
+      FileMetaData currentFileMetaData =
+          segmentationTableService
+              .find(fileMetaData.getAbsolutePath())
+              .filter(current -> current.getSegmentNumber() == fileMetaData.getSegmentNumber())
+              .orElseThrow(FileNotFoundException::new);
+      int read = 0;
+      long extentOffset = 0;
+      for (Extent extent : currentFileMetaData.getExtents()) {
+        long position = offset + read;
+        if (!buffer.hasRemaining()) {
+          break;
+        }
+        if (position < extentOffset + extent.length()) {
+          int length =
+              (int) Math.min(buffer.remaining(), extentOffset + extent.length() - position);
+          read +=
+              storageService.readFromContainer(
+                  buffer.slice().limit(length), extent.getFrom() + position - extentOffset);
+          buffer.position(buffer.position() + length);
+        }
+        extentOffset += extent.length();
+      }
+      bytesRead.add(read);
+      return read;
+    } finally {
+      lock.unlock();
+      pathLock.unlock();
+    }
   }
 
   File read(String absolutePath) {
-    FileMetaData fileMetaData =
-        segmentationTableService.find(absolutePath).orElseThrow(FileNotFoundException::new);
-    return findFile(fileMetaData.getFrom(), fileMetaData.getTo());
+    Lock pathLock = pathLocks.readLock(absolutePath);
+    pathLock.lock();
+    Lock lock = containerLock.readLock();
+    lock.lock();
+    try {
+      FileMetaData fileMetaData =
+          segmentationTableService.find(absolutePath).orElseThrow(FileNotFoundException::new);
+      File file = readCache.get(fileMetaData);
+      if (file == null) {
+        file = findFile(fileMetaData);
+        readCache.put(fileMetaData, file);
+      }
+      return file;
+    } finally {
+      lock.unlock();
+      pathLock.unlock();
+    }
   }
 
-  private File findFile(int fromPosition, int toPosition) {
+  /**
+   * Reads the content of a file into a read-only buffer. A cached file is served straight from the
+   * cache, without copying its content. Otherwise, the record is read from the container once, and
+   * the buffer is a view over it.
+   *
+   * <p>The content of a memory-mapped container is copied out of the mapping, though. A view over
+   * the mapping would outlive the locks, and accessing it once the compaction truncates the
+   * container under it crashes the process. Only {@link #transferTo(String, WritableByteChannel)}
+   * sends the content without copying it to the heap.
+   *
+   * @return A read-only buffer with the content, which is empty if the file has no content.
+   */
+  ByteBuffer readBuffer(String absolutePath) {
+    Lock pathLock = pathLocks.readLock(absolutePath);
+    pathLock.lock();
+    Lock lock = containerLock.readLock();
+    lock.lock();
     try {
-      byte[] bytes = storageService.readFromContainer(fromPosition, toPosition);
-      if (bytes.length == 0) {
-        throw new FileNotFoundException();
+      FileMetaData fileMetaData =
+          segmentationTableService.find(absolutePath).orElseThrow(FileNotFoundException::new);
+      ByteBuffer cachedContent = readCache.getBuffer(fileMetaData);
+      if (cachedContent != null) {
+        return cachedContent;
       }
-      ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-      ObjectInput in = new ObjectInputStream(bis);
-      Object obj = in.readObject();
-      if (obj == null) {
+      ByteBuffer record = readRecord(fileMetaData);
+      if (!isRecord(record)) {
+        LOG.warn("File logically deleted - Compaction needed");
         throw new FileNotFoundException();
       }
-      return (File) obj;
+      ByteBuffer content = decodeContent(record);
+      if (content == null) {
+        return ByteBuffer.allocate(0).asReadOnlyBuffer();
+      }
+      if (content.isDirect()) {
+        content = ByteBuffer.allocate(content.remaining()).put(content).flip();
+      }
+      return content.asReadOnlyBuffer();
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Failed to decode file", e);
+      throw new FileCorruptedException();
+    } finally {
+      lock.unlock();
+      pathLock.unlock();
+    }
+  }
+
+  /**
+   * Sends the content of a file to the given channel, straight from the container (see {@link
+   * StorageService#transferFromContainer(long, long, WritableByteChannel)}). Changes to the file
+   * and compaction swaps wait until it's done, so the channel shouldn't be slow to consume it.
+   *
+   * @return The number of transferred bytes.
+   */
+  long transferTo(String absolutePath, WritableByteChannel target) {
+    Lock pathLock = pathLocks.readLock(absolutePath);
+    pathLock.lock();
+    Lock lock = containerLock.readLock();
+    lock.lock();
+    try {
+      FileMetaData fileMetaData =
+          segmentationTableService.find(absolutePath).orElseThrow(FileNotFoundException::new);
+      long contentOffset = getContentOffset(readHeader(fileMetaData));
+      long extentOffset = 0;
+      for (Extent extent : fileMetaData.getExtents()) {
+        long skipped = Math.max(0, Math.min(extent.length(), contentOffset - extentOffset));
+        if (skipped < extent.length()) {
+          storageService.transferFromContainer(extent.getFrom() + skipped, extent.getTo(), target);
+        }
+        extentOffset += extent.length();
+      }
+      long transferred = Math.max(0, fileMetaData.getLength() - contentOffset);
+      bytesRead.add(transferred);
+      return transferred;
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Failed to decode file", e);
+      throw new FileCorruptedException();
+    } finally {
+      lock.unlock();
+      pathLock.unlock();
+    }
+  }
 
-    } catch (StreamCorruptedException e) {
-      LOG.warn("File logically deleted - Compaction needed", e);
+  private File findFile(FileMetaData fileMetaData) {
+    ByteBuffer bytes = readRecord(fileMetaData);
+    if (bytes == null || !isRecord(bytes)) {
+      LOG.warn("File logically deleted - Compaction needed");
       throw new FileNotFoundException();
-    } catch (IOException e) {
-      LOG.warn("Failed creating ObjectInputStream", e);
-      throw new IllegalStateException();
-    } catch (ClassNotFoundException e) {
-      LOG.warn("Failed to deserialize file", e);
+    }
+    try {
+      return decode(bytes, fileMetaData.getAbsolutePath());
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Failed to decode file", e);
       throw new FileCorruptedException();
     }
   }
 
+  /**
+   * Reads the whole record of a file. A file with several extents is read straight into a single
+   * buffer, extent by extent.
+   *
+   * @throws IllegalStateException if the record doesn't fit in a buffer. Such files can only be
+   *     streamed.
+   */
+  private ByteBuffer readRecord(FileMetaData fileMetaData) {
+    if (fileMetaData.getLength() > Integer.MAX_VALUE) {
+      LOG.warn(
+          "The file {} is too big to be read at once ({} bytes)",
+          fileMetaData.getAbsolutePath(),
+          fileMetaData.getLength());
+      throw new IllegalStateException();
+    }
+    bytesRead.add(fileMetaData.getLength());
+    List<Extent> extents = fileMetaData.getExtents();
+    if (extents.size() == 1) {
+      return storageService.readBufferFromContainer(
+          fileMetaData.getFirstExtent().getFrom(), fileMetaData.getFirstExtent().getTo());
+    }
+    ByteBuffer record = ByteBuffer.allocate((int) fileMetaData.getLength());
+    for (Extent extent : extents) {
+      int length = (int) extent.length();
+      storageService.readFromContainer(record.slice().limit(length), extent.getFrom());
+      record.position(record.position() + length);
+    }
+    return record.flip();
+  }
+
+  /**
+   * Reads the fixed part of the record of a file, which is always contained in its first extent.
+   *
+   * @throws FileNotFoundException if there's no record.
+   */
+  private ByteBuffer readHeader(FileMetaData fileMetaData) {
+    Extent firstExtent = fileMetaData.getFirstExtent();
+    ByteBuffer header =
+        storageService.readBufferFromContainer(
+            firstExtent.getFrom(),
+            Math.min(firstExtent.getTo(), firstExtent.getFrom() + RECORD_HEADER_SIZE));
+    if (!isRecord(header)) {
+      LOG.warn("File logically deleted - Compaction needed");
+      throw new FileNotFoundException();
+    }
+    return header;
+  }
+
+  /**
+   * Erases the record of a file, according to the {@link ErasePolicy}. Either way, it isn't a
+   * record anymore.
+   */
+  private void drop(FileMetaData fileMetaData) {
+    if (erasePolicy == ErasePolicy.TOMBSTONE) {
+      Extent firstExtent = fileMetaData.getFirstExtent();
+      storageService.dropFromContainer(
+          firstExtent.getFrom(), Math.min(firstExtent.getTo(), firstExtent.getFrom() + TOMBSTONE));
+      return;
+    }
+    for (Extent extent : fileMetaData.getExtents()) {
+      storageService.dropFromContainer(extent.getFrom(), extent.getTo());
+    }
+  }
+
+  /**
+   * Erases the old location of a file and releases it, but only once the change that replaced or
+   * deleted the file is durable. Until then, that location is what a crash would restore, so it can
+   * be neither erased nor reused. It's never read meanwhile, since no file references it.
+   */
+  private void dropWhenDurable(long lsn, FileMetaData oldFileMetaData) {
+    writeAheadLog.afterDurable(
+        lsn,
+        () -> {
+          // The old location is dropped before it's released, so it can't be reused meanwhile.
+          drop(oldFileMetaData);
+          segmentationTableService.getFragmentedSpace().release(oldFileMetaData);
+        });
+  }
+
   void delete(String absolutePath) {
-    FileMetaData fileMetaData =
-        segmentationTableService.find(absolutePath).orElseThrow(FileNotFoundException::new);
-    segmentationTableService.delete(fileMetaData);
-    storageService.dropFromContainer(fileMetaData.getFrom(), fileMetaData.getTo());
+    Lock pathLock = pathLocks.writeLock(absolutePath);
+    pathLock.lock();
+    try {
+      FileMetaData fileMetaData;
+      long lsn;
+      Lock lock = containerLock.readLock();
+      lock.lock();
+      try {
+        fileMetaData =
+            segmentationTableService.find(absolutePath).orElseThrow(FileNotFoundException::new);
+        lsn = writeAheadLog.logDelete(absolutePath);
+        segmentationTableService.remove(fileMetaData);
+      } finally {
+        lock.unlock();
+      }
+      readCache.invalidate(absolutePath);
+      writeAheadLog.commit(lsn);
+      dropWhenDurable(lsn, fileMetaData);
+    } finally {
+      pathLock.unlock();
+    }
+  }
+
+  /**
+   * Stores and deletes several files at once. The changes are logged as a single entry, so either
+   * all of them are recovered after a crash, or none.
+   *
+   * <p>The space of the whole batch is allocated at once, and its records are written together, so
+   * small files take a single write instead of one per file (see {@link #MAX_BATCH_WRITE}). Every
+   * file still gets its own extents, so it can be replaced or deleted on its own afterwards.
+   *
+   * @param files The files to store, with different paths.
+   * @param deletedPaths The paths of the files to delete, which can't be stored as well.
+   * @throws FileNotFoundException if any file to delete doesn't exist. Nothing is changed then.
+   */
+  void commit(List<File> files, Collection<String> deletedPaths) {
+    Set<String> paths = new HashSet<>();
+    files.forEach(file -> paths.add(file.getAbsolutePath()));
+    paths.addAll(deletedPaths);
+    if (paths.size() != files.size() + deletedPaths.size()) {
+      throw new IllegalArgumentException("Every file of a batch should have a different path");
+    }
+    if (paths.isEmpty()) {
+      return;
+    }
+
+    FreeSpaceAllocator allocator = segmentationTableService.getFragmentedSpace();
+    List<Lock> pathLocksToTake = pathLocks.writeLocks(paths.toArray(new String[0]));
+    pathLocksToTake.forEach(Lock::lock);
+    try {
+      List<FileMetaData> replacedFiles = new ArrayList<>();
+      long lsn;
+      Lock lock = containerLock.readLock();
+      lock.lock();
+      try {
+        List<FileMetaData> deletedFiles = new ArrayList<>(deletedPaths.size());
+        for (String deletedPath : deletedPaths) {
+          Optional<FileMetaData> deletedFile = segmentationTableService.find(deletedPath);
+          if (deletedFile.isEmpty()) {
+            LOG.warn("The file {} doesn't exist", deletedPath);
+            throw new FileNotFoundException();
+          }
+          deletedFiles.add(deletedFile.get());
+        }
+
+        List<FileMetaData> storedFiles = writeBatch(files);
+        lsn = writeAheadLog.logBatch(storedFiles, deletedPaths);
+        for (FileMetaData storedFile : storedFiles) {
+          segmentationTableService.addOrReplace(storedFile, false).ifPresent(replacedFiles::add);
+        }
+        deletedFiles.forEach(segmentationTableService::remove);
+        replacedFiles.addAll(deletedFiles);
+      } finally {
+        lock.unlock();
+      }
+      paths.forEach(readCache::invalidate);
+      writeAheadLog.commit(lsn);
+      for (FileMetaData replacedFile : replacedFiles) {
+        dropWhenDurable(lsn, replacedFile);
+      }
+    } finally {
+      for (int i = pathLocksToTake.size() - 1; i >= 0; i--) {
+        pathLocksToTake.get(i).unlock();
+      }
+    }
+  }
+
+  /**
+   * Writes the records of several files, grouping them in as few writes as possible.
+   *
+   * @return The metadata of every file, in the same order.
+   */
+  private List<FileMetaData> writeBatch(List<File> files) {
+    List<FileMetaData> storedFiles = new ArrayList<>(files.size());
+    long modifiedTime = now();
+    int first = 0;
+    while (first < files.size()) {
+      // Takes files until the group is full, but at least one.
+      long groupLength = getRecordLength(files.get(first));
+      int last = first + 1;
+      while (last < files.size()
+          && groupLength + getRecordLength(files.get(last)) <= MAX_BATCH_WRITE) {
+        groupLength += getRecordLength(files.get(last));
+        last++;
+      }
+
+      List<File> group = files.subList(first, last);
+      ByteBuffer records = ByteBuffer.allocate((int) groupLength);
+      group.forEach(file -> encode(file, records));
+      records.flip();
+      List<List<Extent>> groupExtents = allocateGroup(group, groupLength);
+      writeRecord(
+          coalesce(groupExtents.stream().flatMap(List::stream).collect(Collectors.toList())),
+          records,
+          null);
+
+      for (int i = 0; i < group.size(); i++) {
+        File file = group.get(i);
+        List<Extent> fileExtents = groupExtents.get(i);
+        storedFiles.add(
+            new FileMetaData(
+                SegmentationTableService.getFileName(file.getAbsolutePath()),
+                file.getAbsolutePath(),
+                fileExtents,
+                nextSegmentNumber.getAndIncrement(),
+                modifiedTime));
+      }
+      first = last;
+    }
+    return storedFiles;
+  }
+
+  /**
+   * Allocates the records of a group of files. In the contiguous layout, the whole group takes a
+   * single free fragment, and every record takes the next bytes of it. In the block layout, every
+   * record is allocated on its own instead, so its first block always holds its whole header.
+   *
+   * @return The extents of every file, in the same order.
+   */
+  private List<List<Extent>> allocateGroup(List<File> group, long groupLength) {
+    FreeSpaceAllocator allocator = segmentationTableService.getFragmentedSpace();
+    List<List<Extent>> groupExtents = new ArrayList<>(group.size());
+    if (blockSize == Long.MAX_VALUE) {
+      long from = allocator.allocate(groupLength);
+      for (File file : group) {
+        long to = from + getRecordLength(file);
+        groupExtents.add(List.of(new Extent(from, to)));
+        from = to;
+      }
+    } else {
+      for (File file : group) {
+        groupExtents.add(allocator.allocate(getRecordLength(file), blockSize));
+      }
+    }
+    return groupExtents;
+  }
+
+  /** Merges the consecutive extents that are adjacent, so they are written at once. */
+  private static List<Extent> coalesce(List<Extent> extents) {
+    List<Extent> coalesced = new ArrayList<>(extents.size());
+    for (Extent extent : extents) {
+      int lastIndex = coalesced.size() - 1;
+      if (lastIndex >= 0 && coalesced.get(lastIndex).getTo() == extent.getFrom()) {
+        coalesced.set(lastIndex, new Extent(coalesced.get(lastIndex).getFrom(), extent.getTo()));
+      } else {
+        coalesced.add(extent);
+      }
+    }
+    return coalesced;
+  }
+
+  /**
+   * Moves a file to another path, replacing the file placed there (if any). Only the segmentation
+   * table changes: the record of the file stays where it is.
+   */
+  void move(String absolutePath, String newAbsolutePath) {
+    List<Lock> pathLocksToTake = pathLocks.writeLocks(absolutePath, newAbsolutePath);
+    pathLocksToTake.forEach(Lock::lock);
+    try {
+      Optional<FileMetaData> replacedFileMetaData;
+      long lsn;
+      Lock lock = containerLock.readLock();
+      lock.lock();
+      try {
+        FileMetaData fileMetaData =
+            segmentationTableService.find(absolutePath).orElseThrow(FileNotFoundException::new);
+        lsn = writeAheadLog.logMove(absolutePath, newAbsolutePath);
+        replacedFileMetaData = segmentationTableService.move(fileMetaData, newAbsolutePath);
+      } finally {
+        lock.unlock();
+      }
+      readCache.invalidate(absolutePath);
+      readCache.invalidate(newAbsolutePath);
+      writeAheadLog.commit(lsn);
+      replacedFileMetaData.ifPresent(replacedFile -> dropWhenDurable(lsn, replacedFile));
+    } finally {
+      for (int i = pathLocksToTake.size() - 1; i >= 0; i--) {
+        pathLocksToTake.get(i).unlock();
+      }
+    }
+  }
+
+  /**
+   * Moves a directory, with everything it contains, to another path. Only the segmentation table
+   * changes, so it takes a time proportional to the number of files of the directory, regardless of
+   * their size.
+   *
+   * @throws IllegalArgumentException if the new path already exists, or it's inside the directory.
+   */
+  void moveDirectory(String directoryPath, String newDirectoryPath) {
+    long lsn;
+    Lock lock = containerLock.writeLock();
+    lock.lock();
+    try {
+      if (!segmentationTableService.isDirectory(directoryPath)) {
+        LOG.warn("The directory {} doesn't exist", directoryPath);
+        throw new FileNotFoundException();
+      }
+      segmentationTableService.moveDirectory(directoryPath, newDirectoryPath);
+      // The move is only logged once it's known to be valid. Nobody can see it meanwhile, since
+      // the lock is exclusive.
+      lsn = writeAheadLog.logDirectoryMove(directoryPath, newDirectoryPath);
+    } finally {
+      lock.unlock();
+    }
+    // The moved files are never found under their old paths, so their entries are just discarded.
+    readCache.invalidateAll();
+    writeAheadLog.commit(lsn);
+  }
+
+  List<String> list(String directoryPath) {
+    return segmentationTableService.list(directoryPath);
+  }
+
+  List<String> walk(String directoryPath) {
+    return segmentationTableService.walk(directoryPath).stream()
+        .map(FileMetaData::getAbsolutePath)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Walks a directory lazily (see {@link DirectoryIndex#walk(String, Predicate)}). No lock is held
+   * while the visitor runs, so it can change the files itself. The files deleted before they are
+   * visited are skipped.
+   */
+  void walk(String directoryPath, FileVisitor visitor) {
+    segmentationTableService.walk(
+        directoryPath,
+        fileMetaData -> {
+          FileStat stat;
+          try {
+            stat = stat(fileMetaData.getAbsolutePath());
+          } catch (FileNotFoundException e) {
+            return true;
+          }
+          return visitor.visit(stat);
+        });
+  }
+
+  /**
+   * Gets the attributes of a file. Only the header of its record is read, to tell where the content
+   * starts.
+   */
+  FileStat stat(String absolutePath) {
+    Lock pathLock = pathLocks.readLock(absolutePath);
+    pathLock.lock();
+    Lock lock = containerLock.readLock();
+    lock.lock();
+    try {
+      FileMetaData fileMetaData =
+          segmentationTableService.find(absolutePath).orElseThrow(FileNotFoundException::new);
+      int contentOffset = getContentOffset(readHeader(fileMetaData));
+      return new FileStat(
+          fileMetaData.getAbsolutePath(),
+          Math.max(0, fileMetaData.getLength() - contentOffset),
+          fileMetaData.getFirstExtent().getFrom(),
+          fileMetaData.getExtents().size(),
+          Instant.ofEpochSecond(fileMetaData.getModifiedTime()));
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Failed to decode file", e);
+      throw new FileCorruptedException();
+    } finally {
+      lock.unlock();
+      pathLock.unlock();
+    }
+  }
+
+  boolean exists(String path) {
+    return segmentationTableService.find(path).isPresent()
+        || segmentationTableService.isDirectory(path);
+  }
+
+  /** Whether the path is a file, regardless of whether it's also a directory. */
+  boolean isFile(String path) {
+    return segmentationTableService.find(path).isPresent();
+  }
+
+  /** Whether there are files inside the path, regardless of whether it's also a file. */
+  boolean isDirectory(String path) {
+    return segmentationTableService.isDirectory(path);
   }
 
   Map<String, String> metrics() {
@@ -107,94 +986,420 @@ class FileManager {
     long containerSize = storageService.getContainerSize();
 
     stats.put("can_write", String.valueOf(storageService.isAllowedToWriteInContainer()));
+    stats.put("erase_policy", erasePolicy.toString());
     stats.put("container_size", String.valueOf(containerSize));
     stats.put(
         "empty_fragments", String.valueOf(segmentationTableService.getFragmentedSpace().size()));
+    stats.put("compaction_moved_bytes", String.valueOf(compactionMovedBytes.get()));
+    stats.put("compaction_reclaimed_bytes", String.valueOf(compactionReclaimedBytes.get()));
+    stats.put("compaction_reclaimable_bytes", String.valueOf(getReclaimableBytes()));
+    BackgroundCompactor compactor = backgroundCompactor;
+    if (compactor != null) {
+      stats.put(
+          "compaction_background_bytes_per_second", String.valueOf(compactor.getBytesPerSecond()));
+    }
+    CompactionScheduler scheduler = compactionScheduler;
+    if (scheduler != null) {
+      stats.put("compaction_policy", scheduler.getPolicy().toString());
+      stats.put("compaction_scheduled_runs", String.valueOf(scheduler.getRuns()));
+    }
+    stats.put("index_files", String.valueOf(segmentationTableService.size()));
+    stats.put("index_memory_bytes", String.valueOf(segmentationTableService.estimateMemory()));
+    stats.put("bytes_read", String.valueOf(bytesRead.sum()));
+    stats.put("bytes_written", String.valueOf(bytesWritten.sum()));
+    long freeBytes = segmentationTableService.getFragmentedSpace().getFreeBytes();
+    stats.put("free_bytes", String.valueOf(freeBytes));
+    stats.put(
+        "fragmentation_ratio",
+        String.format(
+            Locale.ROOT,
+            "%.4f",
+            containerSize == 0 ? 0 : Math.min(1, (double) freeBytes / containerSize)));
+    readCache.addMetrics(stats);
     return stats;
   }
 
+  /** Adds the metrics of the container and the index to a snapshot. Every value is cheap to get. */
+  void addMetrics(MetricsSnapshot.Builder builder) {
+    builder
+        .bytesRead(bytesRead.sum())
+        .bytesWritten(bytesWritten.sum())
+        .containerSize(storageService.getContainerSize())
+        .freeBytes(segmentationTableService.getFragmentedSpace().getFreeBytes())
+        .liveFiles(segmentationTableService.size())
+        .indexMemoryBytes(segmentationTableService.estimateMemory())
+        .compactionRuns(compactionRuns.get())
+        .compactionMovedBytes(compactionMovedBytes.get())
+        .compactionReclaimedBytes(compactionReclaimedBytes.get())
+        .reclaimableBytes(getReclaimableBytes());
+  }
+
+  /**
+   * The bytes that a compaction would reclaim right now. Every free fragment is slid to the end of
+   * the container by the compaction, where it's dropped.
+   */
+  long getReclaimableBytes() {
+    return segmentationTableService.getFragmentedSpace().getFreeBytes();
+  }
+
+  /** Whether the container ends with a free fragment, which {@link #finishCompaction()} drops. */
+  boolean endsWithFreeSpace() {
+    FreeSpaceAllocator allocator = segmentationTableService.getFragmentedSpace();
+    return allocator.findEndingAt(allocator.getEnd()).isPresent();
+  }
+
+  /** The bytes taken by the container, including the free ones (but not any preallocated space). */
+  long getUsedBytes() {
+    return segmentationTableService.getFragmentedSpace().getEnd();
+  }
+
+  /** The sequence number of the last change, which grows every time a file is changed. */
+  long getLastLsn() {
+    return writeAheadLog.getLastLsn();
+  }
+
+  /**
+   * Compacts the whole container at once, without any throttle. It's only run on demand: the
+   * compactions triggered by a {@link CompactionPolicy} run in throttled steps instead.
+   */
   synchronized void compactMemory() {
     LOG.info("Started memory compaction...");
+    // A plan started by a previous compaction could be outdated, so a new one is created.
+    resetCompactionPlan();
     // We should iterate until we don't move files anymore.
-    while (doCompactMemory() > 0) {}
-
-    // Now we should drop all the empty files at the end of the container.
-    segmentationTableService
-        .findLastFragmentedSpace()
-        .ifPresent(
-            fileMetaData -> {
-              storageService.resizeContainer(fileMetaData);
-
-              nextAvailableBit.set(fileMetaData.getFrom());
-              segmentationTableService.deleteFragmentedSpace(fileMetaData);
-            });
+    while (compactStep(Long.MAX_VALUE) > 0) {}
+
+    finishCompaction();
     LOG.info("Memory compaction done");
   }
 
-  private int doCompactMemory() {
-    segmentationTableService.mergeContiguousFragmentedSpace();
-    List<FileMetaData> sortedSegmentationTable =
-        segmentationTableService.getSortedSegmentationTable();
-    List<FileMetaData> newFileMetaDataList = new ArrayList<>();
-    Queue<FileMetaData> newFragmentedSpace =
-        new PriorityQueue<>(Comparator.comparingInt(FileMetaData::getSegmentNumber));
-
-    while (!segmentationTableService.getFragmentedSpace().isEmpty()) {
-      FileMetaData emptySpace = segmentationTableService.pollFragmentedSpace();
-      Optional<FileMetaData> fileMetaDataToMoveOpt =
-          findFileToMove(sortedSegmentationTable, emptySpace);
-
-      fileMetaDataToMoveOpt.ifPresentOrElse(
-          fileMetaDataToMove -> {
-            byte[] fileToMoveBytes =
-                storageService.readFromContainer(
-                    fileMetaDataToMove.getFrom(), fileMetaDataToMove.getTo());
-
-            FileMetaData newEmptySpace =
-                generateNewEmptySpace(fileMetaDataToMove, fileToMoveBytes, emptySpace);
-            newFragmentedSpace.offer(newEmptySpace);
-
-            // Update the new meta data for the moved file.
-            FileMetaData newFileMetaData =
-                generateNewMetaData(fileMetaDataToMove, fileToMoveBytes, emptySpace);
-
-            newFileMetaDataList.add(newFileMetaData);
-          },
-          () -> newFragmentedSpace.offer(emptySpace));
-    }
-    newFileMetaDataList.forEach(f -> segmentationTableService.addOrReplace(f, false));
-    segmentationTableService.addFragmentedSpace(newFragmentedSpace);
-    return newFileMetaDataList.size();
-  }
-
-  private FileMetaData generateNewEmptySpace(
-      FileMetaData fileMetaData, byte[] fileToMoveBytes, FileMetaData emptySpace) {
-    // Drop the file in old address store it in the new one.
-    storageService.dropFromContainer(fileMetaData.getFrom(), fileMetaData.getTo());
-    storageService.storeInContainer(fileToMoveBytes, emptySpace.getFrom());
-
-    return new FileMetaData(
-        emptySpace.getFileName(),
-        emptySpace.getAbsolutePath(),
-        emptySpace.getFrom() + fileToMoveBytes.length,
-        emptySpace.getTo(),
-        fileMetaData.getSegmentNumber());
-  }
-
-  private static FileMetaData generateNewMetaData(
-      FileMetaData fileMetaData, byte[] fileToMoveBytes, FileMetaData emptySpace) {
-    return new FileMetaData(
-        fileMetaData.getFileName(),
-        fileMetaData.getAbsolutePath(),
-        emptySpace.getFrom(),
-        emptySpace.getFrom() + fileToMoveBytes.length,
-        emptySpace.getSegmentNumber());
-  }
-
-  private static Optional<FileMetaData> findFileToMove(
-      List<FileMetaData> sortedSegmentationTable, FileMetaData emptySpace) {
-    return sortedSegmentationTable.stream()
-        .filter(f -> emptySpace.getTo() <= f.getFrom())
-        .findFirst();
+  /**
+   * Starts compacting the container in the background, while it keeps serving reads and writes. It
+   * replaces the previous background compaction, if any.
+   *
+   * @param bytesPerSecond The maximum amount of bytes moved per second.
+   */
+  void startBackgroundCompaction(long bytesPerSecond) {
+    startBackgroundCompaction(
+        bytesPerSecond,
+        BackgroundCompactor.DEFAULT_MAX_BYTES_PER_STEP,
+        BackgroundCompactor.DEFAULT_IDLE_DELAY);
+  }
+
+  /**
+   * @param maxBytesPerStep The amount of bytes moved per step.
+   * @param idleDelay The time to wait when there's nothing to compact.
+   * @return The started compactor.
+   */
+  BackgroundCompactor startBackgroundCompaction(
+      long bytesPerSecond, int maxBytesPerStep, Duration idleDelay) {
+    BackgroundCompactor compactor =
+        new BackgroundCompactor(this, bytesPerSecond, maxBytesPerStep, idleDelay);
+    // It can't synchronize on the manager, since the running compactor may be waiting for it.
+    synchronized (containerLock) {
+      if (backgroundCompactor != null) {
+        backgroundCompactor.close();
+      }
+      backgroundCompactor = compactor;
+      compactor.start();
+    }
+    return compactor;
+  }
+
+  /** Stops the background compaction, if it's running. A running step is finished first. */
+  void stopBackgroundCompaction() {
+    synchronized (containerLock) {
+      if (backgroundCompactor != null) {
+        backgroundCompactor.close();
+        backgroundCompactor = null;
+      }
+    }
+  }
+
+  /**
+   * Compacts the container whenever the given policy says it's worth it, instead of waiting for a
+   * call to {@link #compactMemory()}. The compaction runs in steps throttled to the throughput of
+   * the policy (see {@link CompactionScheduler}). It replaces the previous policy, if any.
+   */
+  void scheduleCompaction(CompactionPolicy policy) {
+    scheduleCompaction(policy, CompactionScheduler.DEFAULT_CHECK_INTERVAL);
+  }
+
+  /**
+   * @param checkInterval The time between the checks of the policy.
+   */
+  void scheduleCompaction(CompactionPolicy policy, Duration checkInterval) {
+    synchronized (containerLock) {
+      if (compactionScheduler != null) {
+        compactionScheduler.close();
+        compactionScheduler = null;
+      }
+      if (!policy.isManual()) {
+        compactionScheduler = new CompactionScheduler(this, policy, checkInterval);
+      }
+    }
+  }
+
+  /**
+   * Runs the moves of the current {@link CompactionPlan}, until the given amount of bytes is moved.
+   * A new plan is created once the previous one is done.
+   *
+   * <p>Every extent is slid to the beginning of the free fragment placed right before it. The space
+   * left behind is coalesced with the following fragment (if any), so it's moved towards the end of
+   * the container by the following moves.
+   *
+   * <p>Only one step runs at a time, but reads and writes keep running meanwhile. See {@link
+   * #relocate(FileMetaData, int, Extent)}.
+   *
+   * @return The number of moved bytes.
+   */
+  synchronized long compactStep(long maxBytes) {
+    if (compactionPlan == null || !compactionPlan.hasNext()) {
+      // The old locations waiting for their changes to be durable are released first, so the plan
+      // can slide the files over them.
+      writeAheadLog.force(writeAheadLog.getLastLsn());
+      compactionPlan = CompactionPlan.create(segmentationTableService.getFiles());
+      if (compactionPlan.size() > 0) {
+        LOG.info(
+            "Planned {} moves ({} bytes) to compact the container into {} bytes",
+            compactionPlan.size(),
+            compactionPlan.getBytesToMove(),
+            compactionPlan.getCompactedSize());
+      }
+    }
+
+    FreeSpaceAllocator allocator = segmentationTableService.getFragmentedSpace();
+    long movedBytes = 0;
+    while (movedBytes < maxBytes && compactionPlan.hasNext()) {
+      CompactionPlan.Move move = compactionPlan.next();
+      // The file could have changed, or the space before it reused, since the plan was created.
+      // An appended file keeps its segment number and the extents it already had.
+      Optional<FileMetaData> fileMetaData =
+          segmentationTableService
+              .find(move.getFileMetaData().getAbsolutePath())
+              .filter(
+                  current ->
+                      current.getSegmentNumber() == move.getFileMetaData().getSegmentNumber());
+      int index =
+          fileMetaData.map(current -> current.getExtents().indexOf(move.getExtent())).orElse(-1);
+      if (index < 0) {
+        continue;
+      }
+      Optional<Extent> emptySpace = allocator.findEndingAt(move.getExtent().getFrom());
+      if (emptySpace.isEmpty()
+          || isTooBigToOverlap(move.getExtent(), emptySpace.get())
+          || !allocator.take(emptySpace.get())) {
+        continue;
+      }
+      movedBytes += relocate(fileMetaData.get(), index, emptySpace.get());
+    }
+    compactionMovedBytes.addAndGet(movedBytes);
+    return movedBytes;
+  }
+
+  /** Discards the current {@link CompactionPlan}, so the next step creates a new one. */
+  synchronized void resetCompactionPlan() {
+    compactionPlan = null;
+  }
+
+  /**
+   * Drops the free space at the end of the container, and persists the segmentation table. It
+   * should be called once the compaction doesn't move files anymore.
+   */
+  synchronized void finishCompaction() {
+    Lock lock = containerLock.writeLock();
+    lock.lock();
+    try {
+      segmentationTableService
+          .getFragmentedSpace()
+          .truncate()
+          .ifPresent(
+              emptySpace -> {
+                storageService.resizeContainer(emptySpace);
+                compactionReclaimedBytes.addAndGet(emptySpace.length());
+              });
+    } finally {
+      lock.unlock();
+    }
+    persistIndex();
+    compactionRuns.incrementAndGet();
+  }
+
+  /**
+   * Migrates a container whose files were stored with the Java serialization to the current record
+   * layout. It's meant to be executed once, right after opening such a container.
+   *
+   * <p>The legacy region is streamed through a bounded window, so it's never held in memory as a
+   * whole. Every legacy file is decoded and stored again at the end of the container. Then, the
+   * whole legacy region is released and compacted.
+   *
+   * @return The number of migrated files.
+   * @throws IllegalStateException if the container already has files in the current layout.
+   */
+  synchronized int migrateLegacyContainer() {
+    if (segmentationTableService.size() > 0) {
+      LOG.warn("The container already has files in the current layout");
+      throw new IllegalStateException();
+    }
+    long legacySize = storageService.getContainerSize();
+    if (legacySize == 0) {
+      return 0;
+    }
+    // The legacy region could have been released when it was opened before, so it's taken again.
+    FreeSpaceAllocator allocator = segmentationTableService.getFragmentedSpace();
+    allocator.clear();
+    allocator.setEnd(legacySize);
+
+    int migratedFiles = 0;
+    try (InputStream legacy = storageService.openInputStream(0, legacySize)) {
+      while (true) {
+        if (isLegacyRecord(legacy)) {
+          save(deserialize(legacy));
+          migratedFiles++;
+        } else if (legacy.read() < 0) {
+          // Deleted files were filled with zeros, so they are skipped.
+          break;
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to read the legacy container", e);
+      throw new IllegalStateException();
+    }
+
+    allocator.release(new Extent(0, legacySize));
+    compactMemory();
+    LOG.info("Migrated {} files from a legacy container", migratedFiles);
+    return migratedFiles;
+  }
+
+  /**
+   * Persists the segmentation table and releases the container. The manager can't be used
+   * afterwards.
+   */
+  void close() {
+    synchronized (containerLock) {
+      if (backgroundCompactor != null) {
+        backgroundCompactor.close();
+      }
+      if (compactionScheduler != null) {
+        compactionScheduler.close();
+      }
+    }
+    persistIndex();
+    writeAheadLog.close();
+    storageService.close();
+  }
+
+  /**
+   * Moves an extent of a file to the beginning of the given (already taken) free fragment.
+   *
+   * <p>If both locations don't overlap, the extent is copied inside the container (without going
+   * through the heap) and without blocking anyone, and its location is only swapped if the file
+   * didn't change meanwhile (e.g. it was overwritten, appended or deleted). Otherwise, the old
+   * location will be (partially) overwritten. So, the whole move happens while holding the
+   * exclusive lock, and the content is logged and flushed before it's written, so the move can be
+   * redone after a crash.
+   *
+   * <p>With {@link ErasePolicy#ZERO_FILL}, the space left behind is filled with zeros if it won't
+   * be truncated at the end of the compaction.
+   *
+   * <p>The moved extent is merged with the previous extent of the file when they end up next to
+   * each other, as long as the result isn't bigger than the block size.
+   *
+   * @return The number of moved bytes, which is zero if the file changed meanwhile.
+   */
+  private long relocate(FileMetaData fileMetaData, int index, Extent emptySpace) {
+    FreeSpaceAllocator allocator = segmentationTableService.getFragmentedSpace();
+    Extent extent = fileMetaData.getExtents().get(index);
+    Extent newExtent = new Extent(emptySpace.getFrom(), emptySpace.getFrom() + extent.length());
+    FileMetaData newFileMetaData = fileMetaData.withExtent(index, newExtent);
+    if (index > 0) {
+      Extent previousExtent = fileMetaData.getExtents().get(index - 1);
+      if (previousExtent.getTo() == newExtent.getFrom()
+          && previousExtent.length() + newExtent.length() <= blockSize) {
+        List<Extent> extents = new ArrayList<>(newFileMetaData.getExtents());
+        extents.remove(index);
+        extents.set(index - 1, new Extent(previousExtent.getFrom(), newExtent.getTo()));
+        newFileMetaData = newFileMetaData.withExtents(extents);
+      }
+    }
+    boolean overlaps = newExtent.getTo() > extent.getFrom();
+
+    if (!overlaps) {
+      storageService.copyWithinContainer(extent.getFrom(), extent.getTo(), newExtent.getFrom());
+    }
+
+    long lsn = 0;
+    Lock lock = containerLock.writeLock();
+    lock.lock();
+    try {
+      if (!isCurrent(fileMetaData)) {
+        if (!overlaps && erasePolicy == ErasePolicy.ZERO_FILL) {
+          storageService.dropFromContainer(newExtent.getFrom(), newExtent.getTo());
+        }
+        allocator.release(emptySpace);
+        return 0;
+      }
+      if (overlaps) {
+        byte[] content = storageService.readFromContainer(extent.getFrom(), extent.getTo());
+        writeAheadLog.force(
+            writeAheadLog.logRelocation(
+                newFileMetaData, ByteBuffer.wrap(content), newExtent.getFrom()));
+        storageService.storeInContainer(content, newExtent.getFrom());
+        // Only the part of the old location that wasn't overwritten should be dropped.
+        dropUnlessTruncated(newExtent.getTo(), extent.getTo());
+      } else {
+        lsn = writeAheadLog.logRelocation(newFileMetaData, null, newExtent.getFrom());
+      }
+      segmentationTableService.addOrReplace(newFileMetaData, false);
+      readCache.relocate(fileMetaData, newFileMetaData);
+    } finally {
+      lock.unlock();
+    }
+
+    if (!overlaps) {
+      // Nobody can read the old location anymore, but it's only dropped once the move is durable.
+      // The next moves reuse it right away, so it can't wait for the next flush of the log.
+      writeAheadLog.force(lsn);
+      dropUnlessTruncated(extent.getFrom(), extent.getTo());
+    }
+    allocator.release(new Extent(newExtent.getTo(), extent.getTo()));
+    return extent.length();
+  }
+
+  /**
+   * Drops the part of a range that is below the compacted size of the current plan. The rest is
+   * either truncated once the compaction finishes or overwritten by a new file meanwhile.
+   *
+   * <p>It's only needed to erase every copy of the content ({@link ErasePolicy#ZERO_FILL}), since
+   * the range is free, and no metadata points to it anymore.
+   */
+  private void dropUnlessTruncated(long from, long to) {
+    long compactedSize = compactionPlan.getCompactedSize();
+    if (erasePolicy == ErasePolicy.ZERO_FILL && from < compactedSize) {
+      storageService.dropFromContainer(from, Math.min(to, compactedSize));
+    }
+  }
+
+  /**
+   * Whether moving an extent to the given free fragment would overwrite its old location, and the
+   * extent can't be held in memory to do so. It only happens with contiguous files bigger than 2
+   * GB.
+   */
+  private static boolean isTooBigToOverlap(Extent extent, Extent emptySpace) {
+    return emptySpace.length() < extent.length() && extent.length() > MAX_OVERLAPPING_MOVE;
+  }
+
+  /** The current time, in seconds since the epoch, as kept by {@link FileMetaData}. */
+  private static long now() {
+    return Instant.now().getEpochSecond();
+  }
+
+  /** Whether the segmentation table still references the given location of a file. */
+  private boolean isCurrent(FileMetaData fileMetaData) {
+    return segmentationTableService
+        .find(fileMetaData.getAbsolutePath())
+        .filter(current -> current.equals(fileMetaData))
+        .isPresent();
   }
 }
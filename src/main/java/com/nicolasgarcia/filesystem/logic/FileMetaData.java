@@ -1,25 +1,49 @@
 package com.nicolasgarcia.filesystem.logic;
 
 import com.nicolasgarcia.filesystem.api.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
 
 /**
  * Contains meta-data from a specific (existing) {@link File}.
  *
- * <p>It can also represent free memory slots.
+ * <p>The record of the file is split in one or more {@link Extent}s. Their content, in order, is
+ * the whole record. Most files have a single extent, but appending to a file may chain new ones,
+ * and the block layout splits every record in fixed-size blocks (see {@link FileManager}).
+ *
+ * <p>It also keeps the time the content of the file was last changed, in seconds since the epoch
+ * (or zero if it's unknown, e.g. for files stored before it was tracked). Moving a file or
+ * compacting the container doesn't change it.
  */
 class FileMetaData implements Comparable<FileMetaData> {
   private final String fileName;
   private final String absolutePath;
-  private final int from;
-  private final int to;
+  private final List<Extent> extents;
   private final int segmentNumber;
+  private final long modifiedTime;
+
+  public FileMetaData(String fileName, String absolutePath, long from, long to, int segmentNumber) {
+    this(fileName, absolutePath, List.of(new Extent(from, to)), segmentNumber);
+  }
 
-  public FileMetaData(String fileName, String absolutePath, int from, int to, int segmentNumber) {
+  public FileMetaData(
+      String fileName, String absolutePath, List<Extent> extents, int segmentNumber) {
+    this(fileName, absolutePath, extents, segmentNumber, 0);
+  }
+
+  public FileMetaData(
+      String fileName,
+      String absolutePath,
+      List<Extent> extents,
+      int segmentNumber,
+      long modifiedTime) {
     this.fileName = fileName;
     this.absolutePath = absolutePath;
-    this.from = from;
-    this.to = to;
+    this.extents = Collections.unmodifiableList(new ArrayList<>(extents));
     this.segmentNumber = segmentNumber;
+    this.modifiedTime = modifiedTime;
   }
 
   public String getFileName() {
@@ -30,20 +54,86 @@ class FileMetaData implements Comparable<FileMetaData> {
     return absolutePath;
   }
 
-  public int getFrom() {
-    return from;
+  /** The extents of the record, in order. There's always at least one. */
+  public List<Extent> getExtents() {
+    return extents;
+  }
+
+  public Extent getFirstExtent() {
+    return extents.get(0);
+  }
+
+  public Extent getLastExtent() {
+    return extents.get(extents.size() - 1);
   }
 
-  public int getTo() {
-    return to;
+  /** The length of the whole record. */
+  public long getLength() {
+    long length = 0;
+    for (Extent extent : extents) {
+      length += extent.length();
+    }
+    return length;
   }
 
   public int getSegmentNumber() {
     return segmentNumber;
   }
 
-  public boolean isContiguous(FileMetaData emptySpace) {
-    return this.to == emptySpace.getFrom() || this.from == emptySpace.getTo();
+  /** The time the content was last changed, in seconds since the epoch, or zero if unknown. */
+  public long getModifiedTime() {
+    return modifiedTime;
+  }
+
+  /** The same file, placed in another path. */
+  public FileMetaData withAbsolutePath(String newAbsolutePath) {
+    return new FileMetaData(
+        SegmentationTableService.getFileName(newAbsolutePath),
+        newAbsolutePath,
+        extents,
+        segmentNumber,
+        modifiedTime);
+  }
+
+  /** The same file, but with the given extents. */
+  public FileMetaData withExtents(List<Extent> newExtents) {
+    return new FileMetaData(fileName, absolutePath, newExtents, segmentNumber, modifiedTime);
+  }
+
+  /** The same file, but changed at the given time (in seconds since the epoch). */
+  public FileMetaData withModifiedTime(long newModifiedTime) {
+    return new FileMetaData(fileName, absolutePath, extents, segmentNumber, newModifiedTime);
+  }
+
+  /** The same file, but with one of its extents replaced. */
+  public FileMetaData withExtent(int index, Extent extent) {
+    List<Extent> newExtents = new ArrayList<>(extents);
+    newExtents.set(index, extent);
+    return withExtents(newExtents);
+  }
+
+  /**
+   * Two instances are equal if they describe the same version of the same file: same path, same
+   * segment number and same extents. Every change to a file changes at least one of them, so the
+   * modified time isn't compared.
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof FileMetaData)) {
+      return false;
+    }
+    FileMetaData that = (FileMetaData) o;
+    return segmentNumber == that.segmentNumber
+        && absolutePath.equals(that.absolutePath)
+        && extents.equals(that.extents);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(absolutePath, extents, segmentNumber);
   }
 
   @Override
@@ -0,0 +1,66 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Streams the content of a file straight from the container into the caller's buffers, so it's
+ * never held in memory as a whole.
+ *
+ * <p>Every read looks for the current location of the file, so it's not affected by the compaction.
+ * If the file is overwritten or deleted meanwhile, the read fails.
+ */
+class FileReadableChannel implements ReadableByteChannel {
+  private final FileManager fileManager;
+  /** The version of the file being read. */
+  private final FileMetaData fileMetaData;
+  /** The offset of the content, relative to the beginning of the record. */
+  private final int contentOffset;
+
+  private final long contentLength;
+  private long position;
+  private volatile boolean open = true;
+
+  FileReadableChannel(
+      FileManager fileManager, FileMetaData fileMetaData, int contentOffset, long contentLength) {
+    this.fileManager = fileManager;
+    this.fileMetaData = fileMetaData;
+    this.contentOffset = contentOffset;
+    this.contentLength = contentLength;
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    if (position >= contentLength) {
+      return -1;
+    }
+    int limit = dst.limit();
+    dst.limit(dst.position() + (int) Math.min(dst.remaining(), contentLength - position));
+    try {
+      int read = fileManager.readContent(fileMetaData, contentOffset + position, dst);
+      position += read;
+      return read;
+    } catch (FileNotFoundException e) {
+      throw new IOException(
+          "The file " + fileMetaData.getAbsolutePath() + " was modified while reading it", e);
+    } finally {
+      dst.limit(limit);
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() {
+    open = false;
+  }
+}
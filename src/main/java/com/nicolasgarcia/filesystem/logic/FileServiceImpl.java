@@ -1,65 +1,477 @@
 package com.nicolasgarcia.filesystem.logic;
 
+import com.nicolasgarcia.filesystem.api.Batch;
 import com.nicolasgarcia.filesystem.api.File;
 import com.nicolasgarcia.filesystem.api.FileService;
+import com.nicolasgarcia.filesystem.api.FileStat;
+import com.nicolasgarcia.filesystem.api.FileVisitor;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot.Operation;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * The default {@link FileService}, backed by a {@link FileManager}.
+ *
+ * <p>Every operation is counted and timed (see {@link #metricsSnapshot()}). The metrics can be
+ * exposed through JMX as well, with {@link #registerMBean()}.
+ */
 public class FileServiceImpl implements FileService {
+  private static final Logger LOG = LoggerFactory.getLogger(FileServiceImpl.class);
+  private static final String MBEAN_NAME = "com.nicolasgarcia.filesystem:type=FileService,id=";
+  private static final AtomicInteger MBEAN_IDS = new AtomicInteger();
 
   private final FileManager fileManager;
+  private final OperationMetrics operationMetrics = new OperationMetrics();
+  private volatile ObjectName mbeanName;
 
   public FileServiceImpl(FileManager fileManager) {
     this.fileManager = fileManager;
   }
 
+  /** Builds a service over a single container, with the default settings unless told otherwise. */
+  public static Builder builder() {
+    return new Builder();
+  }
+
   @Override
   public File create(String absolutePath) {
-    File file = new File(absolutePath, null);
-    fileManager.save(file);
-    return file;
+    return operationMetrics.measure(
+        Operation.CREATE,
+        () -> {
+          File file = new File(absolutePath, null);
+          fileManager.save(file);
+          return file;
+        });
   }
 
   @Override
   public void write(String absolutePath, byte[] content) {
-    File file = new File(absolutePath, content);
-    fileManager.save(file);
+    operationMetrics.measure(
+        Operation.WRITE,
+        () -> {
+          File file = new File(absolutePath, content);
+          fileManager.save(file);
+        });
   }
 
   @Override
   public File read(String absolutePath) {
-    return fileManager.read(absolutePath);
+    return operationMetrics.measure(Operation.READ, () -> fileManager.read(absolutePath));
   }
 
   @Override
-  public void append(String absolutePath, byte[] content) {
-    File oldFile = fileManager.read(absolutePath);
+  public ByteBuffer readBuffer(String absolutePath) {
+    return operationMetrics.measure(Operation.READ, () -> fileManager.readBuffer(absolutePath));
+  }
 
-    byte[] newContent = new byte[oldFile.getContent().length + content.length];
-    System.arraycopy(oldFile.getContent(), 0, newContent, 0, oldFile.getContent().length);
-    System.arraycopy(content, 0, newContent, oldFile.getContent().length, content.length);
-    fileManager.save(new File(absolutePath, newContent));
+  @Override
+  public long transferTo(String absolutePath, WritableByteChannel target) {
+    return operationMetrics.measure(
+        Operation.READ, () -> fileManager.transferTo(absolutePath, target));
+  }
+
+  @Override
+  public InputStream openInputStream(String absolutePath) {
+    return Channels.newInputStream(openReadableChannel(absolutePath));
+  }
+
+  @Override
+  public OutputStream openOutputStream(String absolutePath) {
+    return Channels.newOutputStream(openWritableChannel(absolutePath));
+  }
+
+  @Override
+  public ReadableByteChannel openReadableChannel(String absolutePath) {
+    return fileManager.openReadableChannel(absolutePath);
+  }
+
+  @Override
+  public WritableByteChannel openWritableChannel(String absolutePath) {
+    return fileManager.openWritableChannel(File.normalizePath(absolutePath));
+  }
+
+  @Override
+  public void append(String absolutePath, byte[] content) {
+    operationMetrics.measure(
+        Operation.APPEND, () -> fileManager.append(File.normalizePath(absolutePath), content));
   }
 
   @Override
   public void delete(String absolutePath) {
-    fileManager.delete(absolutePath);
+    operationMetrics.measure(Operation.DELETE, () -> fileManager.delete(absolutePath));
   }
 
   @Override
   public void rename(String oldAbsolutePath, String newAbsolutePath) {
-    // todo: Instead of deleting + inserting, we could do a search and update the file.
     this.move(oldAbsolutePath, newAbsolutePath);
   }
 
   @Override
   public void move(String oldAbsolutePath, String newAbsolutePath) {
-    File file = fileManager.read(oldAbsolutePath);
-    fileManager.delete(oldAbsolutePath);
-    fileManager.save(new File(newAbsolutePath, file.getContent()));
+    operationMetrics.measure(
+        Operation.MOVE,
+        () -> fileManager.move(oldAbsolutePath, File.normalizePath(newAbsolutePath)));
+  }
+
+  @Override
+  public void moveDirectory(String oldPath, String newPath) {
+    operationMetrics.measure(
+        Operation.MOVE_DIRECTORY,
+        () -> fileManager.moveDirectory(oldPath, File.normalizePath(newPath)));
+  }
+
+  @Override
+  public void writeAll(Map<String, byte[]> files) {
+    Batch batch = batch();
+    files.forEach(batch::write);
+    batch.commit();
+  }
+
+  @Override
+  public void deleteAll(Collection<String> absolutePaths) {
+    Batch batch = batch();
+    absolutePaths.forEach(batch::delete);
+    batch.commit();
+  }
+
+  @Override
+  public Batch batch() {
+    return new FileBatch(fileManager, operationMetrics);
+  }
+
+  @Override
+  public List<String> list(String directoryPath) {
+    return fileManager.list(directoryPath);
+  }
+
+  @Override
+  public List<String> walk(String directoryPath) {
+    return fileManager.walk(directoryPath);
+  }
+
+  @Override
+  public void walk(String directoryPath, FileVisitor visitor) {
+    fileManager.walk(directoryPath, visitor);
+  }
+
+  @Override
+  public FileStat stat(String absolutePath) {
+    return fileManager.stat(absolutePath);
+  }
+
+  @Override
+  public boolean exists(String path) {
+    return fileManager.exists(path);
   }
 
   @Override
   public Map<String, String> metrics() {
-    return fileManager.metrics();
+    Map<String, String> stats = new HashMap<>(fileManager.metrics());
+    operationMetrics.addTo(stats);
+    return stats;
+  }
+
+  @Override
+  public MetricsSnapshot metricsSnapshot() {
+    MetricsSnapshot.Builder builder = MetricsSnapshot.builder();
+    operationMetrics.addTo(builder);
+    fileManager.addMetrics(builder);
+    return builder.build();
+  }
+
+  /**
+   * Compacts the whole container at once, so the free space left by the deleted files is reclaimed.
+   * Reads and writes keep running meanwhile, but it isn't throttled: it's meant for explicit
+   * maintenance. See {@link #scheduleCompaction(CompactionPolicy)} and {@link
+   * #startBackgroundCompaction(long)} for the throttled alternatives.
+   */
+  public void compactMemory() {
+    fileManager.compactMemory();
+  }
+
+  /**
+   * Compacts the container whenever the given policy says it's worth it, instead of waiting for a
+   * call to {@link #compactMemory()}. The compaction runs in small steps throttled to the
+   * throughput of the policy. It replaces the previous policy, if any.
+   */
+  public void scheduleCompaction(CompactionPolicy policy) {
+    fileManager.scheduleCompaction(policy);
+  }
+
+  /**
+   * Compacts the container in the background, in small steps, while it keeps serving reads and
+   * writes. Only the swap of the location of every moved file blocks them. It replaces the previous
+   * background compaction, if any, and it's stopped once the service is closed.
+   *
+   * @param bytesPerSecond The maximum amount of bytes moved per second.
+   */
+  public void startBackgroundCompaction(long bytesPerSecond) {
+    fileManager.startBackgroundCompaction(bytesPerSecond);
+  }
+
+  /** Stops the background compaction, if it's running. */
+  public void stopBackgroundCompaction() {
+    fileManager.stopBackgroundCompaction();
+  }
+
+  /**
+   * Migrates a container whose files were stored with the Java serialization (before the current
+   * record layout) to the current layout. It's meant to be called once, right after opening such a
+   * container. The container is read in chunks, so it can be bigger than the heap.
+   *
+   * @return The number of migrated files.
+   * @throws IllegalStateException if the container already has files in the current layout.
+   */
+  public int migrateLegacyContainer() {
+    return fileManager.migrateLegacyContainer();
+  }
+
+  /**
+   * Exposes the metrics of the service through JMX, as a {@link FileServiceMXBean}. It's
+   * unregistered once the service is closed.
+   *
+   * @return The name of the registered MBean, which is unique for every service.
+   */
+  public ObjectName registerMBean() {
+    mbeanName = registerMBean(this);
+    return mbeanName;
+  }
+
+  /** Exposes the metrics of any service through JMX. See {@link #registerMBean()}. */
+  static ObjectName registerMBean(FileService fileService) {
+    try {
+      ObjectName name = new ObjectName(MBEAN_NAME + MBEAN_IDS.incrementAndGet());
+      ManagementFactory.getPlatformMBeanServer()
+          .registerMBean(
+              new StandardMBean(new MXBean(fileService), FileServiceMXBean.class, true), name);
+      return name;
+    } catch (JMException e) {
+      LOG.warn("Failed to register the MBean", e);
+      throw new IllegalStateException();
+    }
+  }
+
+  /** Unregisters an MBean registered by {@link #registerMBean(FileService)}, if any. */
+  static void unregisterMBean(ObjectName name) {
+    if (name == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (JMException e) {
+      LOG.warn("Failed to unregister the MBean", e);
+    }
+  }
+
+  @Override
+  public void close() {
+    unregisterMBean(mbeanName);
+    mbeanName = null;
+    fileManager.close();
+  }
+
+  private static class MXBean implements FileServiceMXBean {
+    private final FileService fileService;
+
+    MXBean(FileService fileService) {
+      this.fileService = fileService;
+    }
+
+    @Override
+    public long getContainerSize() {
+      return fileService.metricsSnapshot().getContainerSize();
+    }
+
+    @Override
+    public long getFreeBytes() {
+      return fileService.metricsSnapshot().getFreeBytes();
+    }
+
+    @Override
+    public double getFragmentationRatio() {
+      return fileService.metricsSnapshot().getFragmentationRatio();
+    }
+
+    @Override
+    public long getLiveFiles() {
+      return fileService.metricsSnapshot().getLiveFiles();
+    }
+
+    @Override
+    public long getIndexMemoryBytes() {
+      return fileService.metricsSnapshot().getIndexMemoryBytes();
+    }
+
+    @Override
+    public long getBytesRead() {
+      return fileService.metricsSnapshot().getBytesRead();
+    }
+
+    @Override
+    public long getBytesWritten() {
+      return fileService.metricsSnapshot().getBytesWritten();
+    }
+
+    @Override
+    public long getCompactionRuns() {
+      return fileService.metricsSnapshot().getCompactionRuns();
+    }
+
+    @Override
+    public long getCompactionMovedBytes() {
+      return fileService.metricsSnapshot().getCompactionMovedBytes();
+    }
+
+    @Override
+    public long getCompactionReclaimedBytes() {
+      return fileService.metricsSnapshot().getCompactionReclaimedBytes();
+    }
+
+    @Override
+    public long getReclaimableBytes() {
+      return fileService.metricsSnapshot().getReclaimableBytes();
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+      Map<String, Long> counts = new TreeMap<>();
+      fileService
+          .metricsSnapshot()
+          .getOperations()
+          .forEach((operation, stats) -> counts.put(operation.name(), stats.getCount()));
+      return counts;
+    }
+
+    @Override
+    public Map<String, Long> getOperationP99Nanos() {
+      Map<String, Long> latencies = new TreeMap<>();
+      fileService
+          .metricsSnapshot()
+          .getOperations()
+          .forEach((operation, stats) -> latencies.put(operation.name(), stats.getP99Nanos()));
+      return latencies;
+    }
+
+    @Override
+    public Map<String, String> getMetrics() {
+      return new TreeMap<>(fileService.metrics());
+    }
+  }
+
+  /**
+   * Configures the container opened by {@link #build()}. Every setting that isn't given keeps the
+   * default of {@link FileManager#FileManager(StorageService)}.
+   */
+  public static final class Builder {
+    private Path containerPath = StorageService.DEFAULT_CONTAINER_PATH;
+    private boolean memoryMapped;
+    private SyncPolicy syncPolicy = SyncPolicy.everyOperation();
+    private long blockSize = FileManager.CONTIGUOUS;
+    private CachePolicy cachePolicy = CachePolicy.none();
+    private ErasePolicy erasePolicy = ErasePolicy.TOMBSTONE;
+    private CompactionPolicy compactionPolicy = CompactionPolicy.manual();
+    private long backgroundCompactionBytesPerSecond;
+
+    private Builder() {}
+
+    /** The path of the container. The index and the log are placed next to it. */
+    public Builder containerPath(Path containerPath) {
+      this.containerPath = containerPath;
+      return this;
+    }
+
+    /** Whether the container is accessed through memory-mapped chunks instead of a channel. */
+    public Builder memoryMapped(boolean memoryMapped) {
+      this.memoryMapped = memoryMapped;
+      return this;
+    }
+
+    public Builder syncPolicy(SyncPolicy syncPolicy) {
+      this.syncPolicy = syncPolicy;
+      return this;
+    }
+
+    /**
+     * @param blockSize The maximum size of every extent, or 0 to store every file in a single
+     *     extent.
+     */
+    public Builder blockSize(long blockSize) {
+      this.blockSize = blockSize;
+      return this;
+    }
+
+    public Builder cachePolicy(CachePolicy cachePolicy) {
+      this.cachePolicy = cachePolicy;
+      return this;
+    }
+
+    public Builder erasePolicy(ErasePolicy erasePolicy) {
+      this.erasePolicy = erasePolicy;
+      return this;
+    }
+
+    /** When the container is compacted on its own. See {@link #scheduleCompaction}. */
+    public Builder compactionPolicy(CompactionPolicy compactionPolicy) {
+      this.compactionPolicy = compactionPolicy;
+      return this;
+    }
+
+    /**
+     * Compacts the container in the background from the start. See {@link
+     * #startBackgroundCompaction(long)}.
+     *
+     * @param bytesPerSecond The maximum amount of bytes moved per second, or 0 to not compact it in
+     *     the background.
+     */
+    public Builder backgroundCompaction(long bytesPerSecond) {
+      if (bytesPerSecond < 0) {
+        throw new IllegalArgumentException("The throughput can't be negative");
+      }
+      this.backgroundCompactionBytesPerSecond = bytesPerSecond;
+      return this;
+    }
+
+    /** Opens the container (or creates it) and recovers its files. */
+    public FileServiceImpl build() {
+      return new FileServiceImpl(buildFileManager(containerPath));
+    }
+
+    /** Opens a container placed at the given path, ignoring the configured one. */
+    FileManager buildFileManager(Path containerPath) {
+      StorageService storageService =
+          StorageService.open(
+              containerPath,
+              memoryMapped ? StorageService.Mode.MEMORY_MAPPED : StorageService.Mode.CHANNEL);
+      try {
+        FileManager fileManager =
+            new FileManager(storageService, syncPolicy, blockSize, cachePolicy, erasePolicy);
+        fileManager.scheduleCompaction(compactionPolicy);
+        if (backgroundCompactionBytesPerSecond > 0) {
+          fileManager.startBackgroundCompaction(backgroundCompactionBytesPerSecond);
+        }
+        return fileManager;
+      } catch (RuntimeException e) {
+        storageService.close();
+        throw e;
+      }
+    }
   }
 }
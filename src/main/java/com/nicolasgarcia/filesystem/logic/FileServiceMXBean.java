@@ -0,0 +1,42 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot;
+import java.util.Map;
+
+/**
+ * The metrics of a {@link FileServiceImpl} (or a {@link ShardedFileService}), exposed through JMX
+ * (see {@link FileServiceImpl#registerMBean()}). Every attribute takes a new {@link
+ * MetricsSnapshot}.
+ */
+public interface FileServiceMXBean {
+  long getContainerSize();
+
+  long getFreeBytes();
+
+  double getFragmentationRatio();
+
+  long getLiveFiles();
+
+  long getIndexMemoryBytes();
+
+  long getBytesRead();
+
+  long getBytesWritten();
+
+  long getCompactionRuns();
+
+  long getCompactionMovedBytes();
+
+  long getCompactionReclaimedBytes();
+
+  long getReclaimableBytes();
+
+  /** The number of invocations of every operation, by its name. */
+  Map<String, Long> getOperationCounts();
+
+  /** The 99th percentile of the latency of every operation, in nanoseconds, by its name. */
+  Map<String, Long> getOperationP99Nanos();
+
+  /** Every metric, as returned by {@link FileServiceImpl#metrics()}. */
+  Map<String, String> getMetrics();
+}
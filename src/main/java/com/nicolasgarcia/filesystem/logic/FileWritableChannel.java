@@ -0,0 +1,76 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the content of a file in a temporary file, so it's never held in memory as a whole.
+ *
+ * <p>The file is only stored in the container (replacing the previous version, if any) once the
+ * channel is closed, since its length has to be known to find a place for it. The content is then
+ * transferred from the temporary file straight into the container.
+ */
+class FileWritableChannel implements WritableByteChannel {
+  private static final Logger LOG = LoggerFactory.getLogger(FileWritableChannel.class);
+
+  private final FileManager fileManager;
+  private final String absolutePath;
+  private final FileChannel spool;
+  private volatile boolean open = true;
+
+  FileWritableChannel(FileManager fileManager, String absolutePath) {
+    this.fileManager = fileManager;
+    this.absolutePath = absolutePath;
+    try {
+      this.spool =
+          FileChannel.open(
+              Files.createTempFile("file-system-api", ".spool"), READ, WRITE, DELETE_ON_CLOSE);
+    } catch (IOException e) {
+      LOG.warn("Failed to create a temporary file", e);
+      throw new IllegalStateException();
+    }
+  }
+
+  @Override
+  public synchronized int write(ByteBuffer src) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    int written = 0;
+    while (src.hasRemaining()) {
+      written += spool.write(src);
+    }
+    return written;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  /** Stores the file in the container. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (!open) {
+      return;
+    }
+    open = false;
+    try {
+      long contentLength = spool.size();
+      spool.position(0);
+      fileManager.save(absolutePath, spool, contentLength);
+    } finally {
+      spool.close();
+    }
+  }
+}
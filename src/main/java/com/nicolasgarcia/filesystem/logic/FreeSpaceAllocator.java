@@ -0,0 +1,218 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps track of the free fragments of the container, so they can be reused by new files.
+ *
+ * <p>The fragments are indexed by offset, so contiguous fragments are coalesced as soon as they are
+ * released, and by size, so every allocation takes the smallest fragment where it fits (best fit).
+ * Whatever is left of that fragment remains free. When no fragment is big enough, the space is
+ * allocated at the end of the container.
+ *
+ * <p>Every method is synchronized, so there's a single writer at a time. Allocations are short (a
+ * couple of lookups in the trees), so concurrent writers only wait for each other to pick their
+ * place, never while their content is written.
+ */
+class FreeSpaceAllocator {
+  private static final Comparator<Extent> BY_SIZE =
+      Comparator.comparingLong(Extent::length).thenComparingLong(Extent::getFrom);
+
+  private final NavigableMap<Long, Extent> fragmentsByOffset = new TreeMap<>();
+  private final NavigableSet<Extent> fragmentsBySize = new TreeSet<>(BY_SIZE);
+  /** The end of the allocated space, which is where the container grows from. */
+  private long end;
+  /** The total length of the fragments. */
+  private long freeBytes;
+
+  /**
+   * Allocates a region of the given length.
+   *
+   * @return The offset where the region starts.
+   */
+  synchronized long allocate(long length) {
+    Extent fragment = fragmentsBySize.ceiling(new Extent(0, length));
+    if (fragment != null) {
+      remove(fragment);
+      if (fragment.length() > length) {
+        add(new Extent(fragment.getFrom() + length, fragment.getTo()));
+      }
+      return fragment.getFrom();
+    }
+
+    // A fragment at the end of the container can be extended instead.
+    Map.Entry<Long, Extent> lastFragment = fragmentsByOffset.lastEntry();
+    if (lastFragment != null && lastFragment.getValue().getTo() == end) {
+      remove(lastFragment.getValue());
+      end = lastFragment.getKey() + length;
+      return lastFragment.getKey();
+    }
+
+    long from = end;
+    end += length;
+    return from;
+  }
+
+  /**
+   * Allocates a region of the given length, split in blocks of (at most) the given size. Every
+   * block takes its own best fit, so the region doesn't need a single free fragment where it fits
+   * as a whole.
+   *
+   * @return The allocated blocks, in order.
+   */
+  synchronized List<Extent> allocate(long length, long blockSize) {
+    List<Extent> blocks = new ArrayList<>();
+    long allocated = 0;
+    do {
+      long blockLength = Math.min(blockSize, length - allocated);
+      long from = allocate(blockLength);
+      blocks.add(new Extent(from, from + blockLength));
+      allocated += blockLength;
+    } while (allocated < length);
+    return blocks;
+  }
+
+  /**
+   * Allocates a region of the given length that starts right at the given offset, if possible. It's
+   * used to extend an already allocated region in place.
+   *
+   * @return Whether the region was allocated, because there was enough free space right after the
+   *     offset, or because it's the end of the allocated space.
+   */
+  synchronized boolean extend(long offset, long length) {
+    Extent nextFragment = fragmentsByOffset.get(offset);
+    if (nextFragment != null && nextFragment.length() >= length) {
+      remove(nextFragment);
+      if (nextFragment.length() > length) {
+        add(new Extent(offset + length, nextFragment.getTo()));
+      }
+      return true;
+    }
+    if (nextFragment != null && nextFragment.getTo() == end) {
+      // The fragment is too small, but it's at the end of the container so it can grow.
+      remove(nextFragment);
+      end = offset + length;
+      return true;
+    }
+    if (nextFragment == null && offset == end) {
+      end += length;
+      return true;
+    }
+    return false;
+  }
+
+  /** Releases a region, which is coalesced with the free fragments around it. */
+  synchronized void release(Extent region) {
+    if (region.length() <= 0) {
+      return;
+    }
+    long from = region.getFrom();
+    long to = region.getTo();
+
+    Map.Entry<Long, Extent> previous = fragmentsByOffset.lowerEntry(from);
+    if (previous != null && previous.getValue().getTo() == from) {
+      remove(previous.getValue());
+      from = previous.getKey();
+    }
+    Extent next = fragmentsByOffset.get(to);
+    if (next != null) {
+      remove(next);
+      to = next.getTo();
+    }
+    add(new Extent(from, to));
+    end = Math.max(end, to);
+  }
+
+  /** Releases every extent of a file. */
+  synchronized void release(FileMetaData fileMetaData) {
+    fileMetaData.getExtents().forEach(this::release);
+  }
+
+  /**
+   * Takes a specific free fragment, so it's not allocated anymore.
+   *
+   * @return Whether the fragment was free (with the very same boundaries).
+   */
+  synchronized boolean take(Extent fragment) {
+    Extent current = fragmentsByOffset.get(fragment.getFrom());
+    if (current == null || current.getTo() != fragment.getTo()) {
+      return false;
+    }
+    remove(current);
+    return true;
+  }
+
+  /**
+   * Removes the free fragment at the end of the container, so the container can be truncated.
+   *
+   * @return The removed fragment, if any.
+   */
+  synchronized Optional<Extent> truncate() {
+    Map.Entry<Long, Extent> lastFragment = fragmentsByOffset.lastEntry();
+    if (lastFragment == null || lastFragment.getValue().getTo() != end) {
+      return Optional.empty();
+    }
+    remove(lastFragment.getValue());
+    end = lastFragment.getKey();
+    return Optional.of(lastFragment.getValue());
+  }
+
+  /** The free fragment that ends right at the given offset, if any. */
+  synchronized Optional<Extent> findEndingAt(long offset) {
+    return Optional.ofNullable(fragmentsByOffset.lowerEntry(offset))
+        .map(Map.Entry::getValue)
+        .filter(fragment -> fragment.getTo() == offset);
+  }
+
+  /** The free fragments, sorted by offset. */
+  synchronized List<Extent> getFragments() {
+    return new ArrayList<>(fragmentsByOffset.values());
+  }
+
+  synchronized int size() {
+    return fragmentsByOffset.size();
+  }
+
+  synchronized boolean isEmpty() {
+    return fragmentsByOffset.isEmpty();
+  }
+
+  /** The amount of free bytes, between all the fragments. */
+  synchronized long getFreeBytes() {
+    return freeBytes;
+  }
+
+  synchronized long getEnd() {
+    return end;
+  }
+
+  synchronized void setEnd(long end) {
+    this.end = end;
+  }
+
+  synchronized void clear() {
+    fragmentsByOffset.clear();
+    fragmentsBySize.clear();
+    freeBytes = 0;
+  }
+
+  private void add(Extent fragment) {
+    fragmentsByOffset.put(fragment.getFrom(), fragment);
+    fragmentsBySize.add(fragment);
+    freeBytes += fragment.length();
+  }
+
+  private void remove(Extent fragment) {
+    fragmentsByOffset.remove(fragment.getFrom());
+    fragmentsBySize.remove(fragment);
+    freeBytes -= fragment.length();
+  }
+}
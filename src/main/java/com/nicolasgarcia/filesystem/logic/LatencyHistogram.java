@@ -0,0 +1,106 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the distribution of a set of latencies, in a fixed amount of memory and without locks.
+ *
+ * <p>Values are counted in buckets with a logarithmic scale: every power of two is split in {@link
+ * #SUB_BUCKETS} linear buckets (as HdrHistogram does), so the relative error of a percentile is
+ * below 1/{@link #SUB_BUCKETS}, regardless of the magnitude of the values.
+ */
+class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /** Enough buckets for every positive long. */
+  private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(bucketOf(value));
+    count.increment();
+    sum.add(value);
+    if (value > max.get()) {
+      max.accumulateAndGet(value, Math::max);
+    }
+  }
+
+  long getCount() {
+    return count.sum();
+  }
+
+  long getMax() {
+    return max.get();
+  }
+
+  long getMean() {
+    long currentCount = count.sum();
+    return currentCount == 0 ? 0 : sum.sum() / currentCount;
+  }
+
+  /**
+   * @param quantile Between 0 and 1.
+   * @return The highest value of the bucket where the given quantile falls (capped by the maximum
+   *     recorded value), or 0 if there are no values.
+   */
+  long getValueAt(double quantile) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(quantile * total));
+    long accumulated = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      accumulated += snapshot[i];
+      if (accumulated >= target) {
+        return Math.min(upperBoundOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  MetricsSnapshot.OperationStats toStats(long errors) {
+    return new MetricsSnapshot.OperationStats(
+        getCount(),
+        errors,
+        getMean(),
+        getValueAt(0.5),
+        getValueAt(0.99),
+        getValueAt(0.999),
+        getMax());
+  }
+
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** The highest value counted by the given bucket. */
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    long upperBound = ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    // The last bucket would overflow.
+    return upperBound < 0 ? Long.MAX_VALUE : upperBound;
+  }
+}
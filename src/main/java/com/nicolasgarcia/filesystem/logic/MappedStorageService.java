@@ -0,0 +1,136 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link StorageService} that serves reads from a memory mapping of the container.
+ *
+ * <p>The container is mapped in fixed-size chunks. Writes still go through the channel, and the
+ * mapping is extended lazily the first time a read goes beyond the mapped region. When the
+ * container is resized, the chunks that are not fully contained in it anymore are dropped.
+ */
+class MappedStorageService extends StorageService {
+  private static final Logger LOG = LoggerFactory.getLogger(MappedStorageService.class);
+  /** The default size of every mapped chunk (64 MiB). */
+  static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  private final int chunkSize;
+  /** The mapped chunks. Only the last one can be smaller than {@link #chunkSize}. */
+  private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+  public MappedStorageService() {
+    this(DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * @param containerPath The file where the emulated file system is stored. See {@link
+   *     StorageService#StorageService(Path)}.
+   */
+  public MappedStorageService(Path containerPath) {
+    this(containerPath, DEFAULT_CHUNK_SIZE);
+  }
+
+  MappedStorageService(int chunkSize) {
+    this(DEFAULT_CONTAINER_PATH, chunkSize);
+  }
+
+  MappedStorageService(Path containerPath, int chunkSize) {
+    super(containerPath);
+    this.chunkSize = chunkSize;
+  }
+
+  @Override
+  byte[] readFromContainer(long from, long to) {
+    ByteBuffer buffer = readBufferFromContainer(from, to);
+    byte[] output = new byte[buffer.remaining()];
+    buffer.get(output);
+    return output;
+  }
+
+  @Override
+  ByteBuffer readBufferFromContainer(long from, long to) {
+    if (from == to) {
+      return ByteBuffer.allocate(0).asReadOnlyBuffer();
+    }
+    MappedByteBuffer[] currentChunks = chunks;
+    if (to > mappedSize(currentChunks)) {
+      currentChunks = remap(to);
+    }
+    int length = Math.toIntExact(to - from);
+    int firstChunk = (int) (from / chunkSize);
+    int lastChunk = (int) Math.max(firstChunk, (to - 1) / chunkSize);
+    if (firstChunk == lastChunk) {
+      return slice(currentChunks[firstChunk], (int) (from % chunkSize), length);
+    }
+
+    // The range is split between several chunks, so it can't be returned as a single view.
+    ByteBuffer output = ByteBuffer.allocate(length);
+    for (int i = firstChunk; i <= lastChunk; i++) {
+      int chunkFrom = i == firstChunk ? (int) (from % chunkSize) : 0;
+      int chunkTo = i == lastChunk ? (int) (to - (long) i * chunkSize) : chunkSize;
+      output.put(slice(currentChunks[i], chunkFrom, chunkTo - chunkFrom));
+    }
+    return output.flip().asReadOnlyBuffer();
+  }
+
+  /**
+   * Drops the chunks that are not fully contained in the resized container before it's truncated,
+   * so no read can reach the truncated region through them meanwhile.
+   */
+  @Override
+  synchronized void resizeContainer(Extent emptySpace) {
+    int keptChunks = (int) (emptySpace.getFrom() / chunkSize);
+    chunks = Arrays.copyOf(chunks, Math.min(keptChunks, chunks.length));
+    super.resizeContainer(emptySpace);
+  }
+
+  /** Extends the mapping, so it covers (at least) the first {@code requiredSize} bytes. */
+  private synchronized MappedByteBuffer[] remap(long requiredSize) {
+    long mappedSize = mappedSize(chunks);
+    if (requiredSize <= mappedSize) {
+      return chunks;
+    }
+    long containerSize = getContainerSize();
+    if (requiredSize > containerSize) {
+      LOG.warn("Reached the end of the container reading up to {}", requiredSize);
+      throw new FileNotFoundException();
+    }
+
+    int chunkCount = (int) ((containerSize + chunkSize - 1) / chunkSize);
+    MappedByteBuffer[] newChunks = Arrays.copyOf(chunks, chunkCount);
+    // The last chunk could have been partially mapped, so it's mapped again.
+    int firstChunkToMap = mappedSize % chunkSize == 0 ? chunks.length : chunks.length - 1;
+    try {
+      for (int i = firstChunkToMap; i < chunkCount; i++) {
+        long position = (long) i * chunkSize;
+        newChunks[i] =
+            channel.map(MapMode.READ_ONLY, position, Math.min(chunkSize, containerSize - position));
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to map the container", e);
+      throw new IllegalStateException();
+    }
+    chunks = newChunks;
+    return newChunks;
+  }
+
+  private long mappedSize(MappedByteBuffer[] mappedChunks) {
+    if (mappedChunks.length == 0) {
+      return 0;
+    }
+    return (long) (mappedChunks.length - 1) * chunkSize
+        + mappedChunks[mappedChunks.length - 1].capacity();
+  }
+
+  private static ByteBuffer slice(MappedByteBuffer chunk, int offset, int length) {
+    return chunk.duplicate().position(offset).limit(offset + length).slice().asReadOnlyBuffer();
+  }
+}
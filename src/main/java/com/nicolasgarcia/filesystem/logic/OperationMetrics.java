@@ -0,0 +1,76 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot.Operation;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counts the operations of a service, and measures their latency. It only takes a couple of
+ * uncontended atomic updates per operation, so it's always enabled.
+ */
+class OperationMetrics {
+  private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+  private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+
+  OperationMetrics() {
+    for (Operation operation : Operation.values()) {
+      latencies.put(operation, new LatencyHistogram());
+      errors.put(operation, new LongAdder());
+    }
+  }
+
+  /** Runs an operation, measuring it. */
+  <T> T measure(Operation operation, Supplier<T> supplier) {
+    long start = System.nanoTime();
+    try {
+      return supplier.get();
+    } catch (RuntimeException | Error e) {
+      errors.get(operation).increment();
+      throw e;
+    } finally {
+      latencies.get(operation).record(System.nanoTime() - start);
+    }
+  }
+
+  void measure(Operation operation, Runnable runnable) {
+    measure(
+        operation,
+        () -> {
+          runnable.run();
+          return null;
+        });
+  }
+
+  /** Adds the stats of every operation invoked at least once. */
+  void addTo(MetricsSnapshot.Builder builder) {
+    latencies.forEach(
+        (operation, histogram) -> {
+          if (histogram.getCount() > 0) {
+            builder.operation(operation, histogram.toStats(errors.get(operation).sum()));
+          }
+        });
+  }
+
+  /**
+   * Adds the count, errors and some percentiles (in microseconds) of every operation invoked at
+   * least once, e.g. {@code read_count} or {@code read_p99_us}.
+   */
+  void addTo(Map<String, String> stats) {
+    latencies.forEach(
+        (operation, histogram) -> {
+          if (histogram.getCount() == 0) {
+            return;
+          }
+          String prefix = operation.name().toLowerCase(Locale.ROOT) + "_";
+          stats.put(prefix + "count", String.valueOf(histogram.getCount()));
+          stats.put(prefix + "errors", String.valueOf(errors.get(operation).sum()));
+          stats.put(prefix + "p50_us", String.valueOf(histogram.getValueAt(0.5) / 1000));
+          stats.put(prefix + "p99_us", String.valueOf(histogram.getValueAt(0.99) / 1000));
+          stats.put(prefix + "max_us", String.valueOf(histogram.getMax() / 1000));
+        });
+  }
+}
@@ -0,0 +1,84 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed set of {@link ReadWriteLock}s (stripes) shared by every path.
+ *
+ * <p>The same path always takes the same stripe, so the operations over a file are serialized,
+ * while the operations over different files rarely contend. Paths that only differ in repeated or
+ * trailing separators (e.g. "/a//b" and "/a/b/") point to the same file, so they take the same
+ * stripe as well.
+ */
+class PathLocks {
+  static final int DEFAULT_STRIPES = 256;
+  private static final char SEPARATOR = '/';
+
+  private final ReadWriteLock[] stripes;
+
+  PathLocks() {
+    this(DEFAULT_STRIPES);
+  }
+
+  /**
+   * @param stripeCount The number of stripes, which should be a power of two.
+   */
+  PathLocks(int stripeCount) {
+    if (stripeCount <= 0 || Integer.bitCount(stripeCount) != 1) {
+      throw new IllegalArgumentException("The number of stripes should be a power of two");
+    }
+    stripes = new ReadWriteLock[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  Lock readLock(String absolutePath) {
+    return stripes[stripeOf(absolutePath)].readLock();
+  }
+
+  Lock writeLock(String absolutePath) {
+    return stripes[stripeOf(absolutePath)].writeLock();
+  }
+
+  /**
+   * The write locks of several paths, in the order they should be taken (and the reverse order they
+   * should be released). Every thread takes them in the same order, so they can't deadlock.
+   */
+  List<Lock> writeLocks(String... absolutePaths) {
+    boolean[] taken = new boolean[stripes.length];
+    for (String absolutePath : absolutePaths) {
+      taken[stripeOf(absolutePath)] = true;
+    }
+    List<Lock> locks = new ArrayList<>(absolutePaths.length);
+    for (int i = 0; i < stripes.length; i++) {
+      if (taken[i]) {
+        locks.add(stripes[i].writeLock());
+      }
+    }
+    return locks;
+  }
+
+  int stripeOf(String absolutePath) {
+    int hash = 0;
+    boolean afterSeparator = true;
+    for (int i = 0; i < absolutePath.length(); i++) {
+      char c = absolutePath.charAt(i);
+      if (c == SEPARATOR) {
+        afterSeparator = true;
+        continue;
+      }
+      if (afterSeparator) {
+        hash = 31 * hash + SEPARATOR;
+        afterSeparator = false;
+      }
+      hash = 31 * hash + c;
+    }
+    // Spreads the higher bits, since only the lower ones select the stripe.
+    return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+  }
+}
@@ -0,0 +1,356 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import com.nicolasgarcia.filesystem.api.File;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the content of the most read files in memory, up to a total size (see {@link CachePolicy}).
+ *
+ * <p>Every entry remembers the {@link FileMetaData} it was read from. Every change to the file
+ * (including the compaction) changes its metadata, so an entry is only returned while the file it
+ * was read from is still the current one. The entries of changed files are invalidated as well, but
+ * just to free their memory sooner.
+ *
+ * <p>The cached content is copied both ways, since callers can modify the content of a {@link
+ * File}. It can also be read as a read-only buffer, which wraps it without copying it.
+ *
+ * <p>The entries are spread over several segments by the hash of their path, each one with its own
+ * lock, its own share of the size and its own eviction order, so concurrent readers of different
+ * files rarely contend. Every method of a segment is synchronized. They only touch memory, so
+ * they're short. Big caches get up to {@link #MAX_SEGMENTS} segments, as long as every segment
+ * keeps at least {@link #MIN_SEGMENT_BYTES}. A file is only cached if it fits in its segment.
+ */
+class ReadCache {
+  /** The approximate memory taken by every entry besides its content, so empty files count too. */
+  static final int ENTRY_OVERHEAD = 64;
+  /** The maximum number of segments. */
+  static final int MAX_SEGMENTS = 16;
+  /** The minimum size of every segment (1 MiB). */
+  static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+
+  private final CachePolicy policy;
+  private final Segment[] segments;
+
+  ReadCache(CachePolicy policy) {
+    this(policy, segmentCountOf(policy));
+  }
+
+  /**
+   * @param segmentCount The number of segments, which should be a power of two.
+   */
+  ReadCache(CachePolicy policy, int segmentCount) {
+    if (segmentCount <= 0 || Integer.bitCount(segmentCount) != 1) {
+      throw new IllegalArgumentException("The number of segments should be a power of two");
+    }
+    this.policy = policy;
+    this.segments = new Segment[isEnabled() ? segmentCount : 0];
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment(policy, policy.getMaxBytes() / segmentCount);
+    }
+  }
+
+  /** The largest number of segments (up to {@link #MAX_SEGMENTS}) that keeps their minimum size. */
+  private static int segmentCountOf(CachePolicy policy) {
+    int segmentCount = 1;
+    while (segmentCount < MAX_SEGMENTS
+        && policy.getMaxBytes() / (segmentCount * 2) >= MIN_SEGMENT_BYTES) {
+      segmentCount *= 2;
+    }
+    return segmentCount;
+  }
+
+  boolean isEnabled() {
+    return policy.getMode() != CachePolicy.Mode.NONE;
+  }
+
+  /**
+   * @param fileMetaData The current metadata of the file.
+   * @return The cached file, or null if it's not cached (or it's outdated).
+   */
+  File get(FileMetaData fileMetaData) {
+    return isEnabled() ? segmentOf(fileMetaData.getAbsolutePath()).get(fileMetaData) : null;
+  }
+
+  /**
+   * @param fileMetaData The current metadata of the file.
+   * @return A read-only buffer over the cached content (which is empty if the file has no
+   *     content), or null if it's not cached (or it's outdated).
+   */
+  ByteBuffer getBuffer(FileMetaData fileMetaData) {
+    return isEnabled() ? segmentOf(fileMetaData.getAbsolutePath()).getBuffer(fileMetaData) : null;
+  }
+
+  /**
+   * Caches a file just read, evicting the least recently read ones of its segment if there's no
+   * room. With the {@link CachePolicy.Mode#FREQUENCY} policy, it's only cached if it's read more
+   * often than every file it would evict.
+   */
+  void put(FileMetaData fileMetaData, File file) {
+    if (isEnabled()) {
+      segmentOf(fileMetaData.getAbsolutePath()).put(fileMetaData, file);
+    }
+  }
+
+  /**
+   * Keeps the entry of a file whose record was just moved (e.g. by the compaction), since its
+   * content didn't change.
+   */
+  void relocate(FileMetaData fileMetaData, FileMetaData newFileMetaData) {
+    if (isEnabled()) {
+      segmentOf(fileMetaData.getAbsolutePath()).relocate(fileMetaData, newFileMetaData);
+    }
+  }
+
+  void invalidate(String absolutePath) {
+    if (isEnabled()) {
+      segmentOf(absolutePath).invalidate(absolutePath);
+    }
+  }
+
+  void invalidateAll() {
+    for (Segment segment : segments) {
+      segment.invalidateAll();
+    }
+  }
+
+  void addMetrics(Map<String, String> stats) {
+    if (!isEnabled()) {
+      return;
+    }
+    long[] totals = new long[Segment.METRICS];
+    for (Segment segment : segments) {
+      segment.addMetrics(totals);
+    }
+    stats.put("cache_policy", policy.toString());
+    stats.put("cache_segments", String.valueOf(segments.length));
+    stats.put("cache_entries", String.valueOf(totals[0]));
+    stats.put("cache_size", String.valueOf(totals[1]));
+    stats.put("cache_hits", String.valueOf(totals[2]));
+    stats.put("cache_misses", String.valueOf(totals[3]));
+    stats.put("cache_evictions", String.valueOf(totals[4]));
+    stats.put("cache_rejections", String.valueOf(totals[5]));
+  }
+
+  private Segment segmentOf(String absolutePath) {
+    int hash = absolutePath.hashCode();
+    // Spreads the higher bits, since only the lower ones select the segment.
+    return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+  }
+
+  private static long weightOf(byte[] content) {
+    return ENTRY_OVERHEAD + (content == null ? 0 : content.length);
+  }
+
+  private static byte[] copy(byte[] content) {
+    return content == null ? null : content.clone();
+  }
+
+  /** A share of the cache, with its own lock. */
+  private static class Segment {
+    /** The number of metrics added by {@link #addMetrics(long[])}. */
+    private static final int METRICS = 6;
+
+    private final long maxBytes;
+    /** The entries by path, from the least to the most recently read. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final FrequencySketch frequencySketch;
+    private long size;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    private Segment(CachePolicy policy, long maxBytes) {
+      this.maxBytes = maxBytes;
+      this.frequencySketch =
+          policy.getMode() == CachePolicy.Mode.FREQUENCY ? new FrequencySketch(maxBytes) : null;
+    }
+
+    synchronized File get(FileMetaData fileMetaData) {
+      Entry entry = find(fileMetaData);
+      return entry == null ? null : new File(fileMetaData.getAbsolutePath(), copy(entry.content));
+    }
+
+    synchronized ByteBuffer getBuffer(FileMetaData fileMetaData) {
+      Entry entry = find(fileMetaData);
+      if (entry == null) {
+        return null;
+      }
+      return ByteBuffer.wrap(entry.content == null ? new byte[0] : entry.content)
+          .asReadOnlyBuffer();
+    }
+
+    /** Finds the entry of a file, and counts the read. */
+    private Entry find(FileMetaData fileMetaData) {
+      String absolutePath = fileMetaData.getAbsolutePath();
+      if (frequencySketch != null) {
+        frequencySketch.increment(absolutePath);
+      }
+      Entry entry = entries.get(absolutePath);
+      if (entry == null || !entry.fileMetaData.equals(fileMetaData)) {
+        misses++;
+        return null;
+      }
+      hits++;
+      return entry;
+    }
+
+    synchronized void put(FileMetaData fileMetaData, File file) {
+      long weight = weightOf(file.getContent());
+      if (weight > maxBytes) {
+        return;
+      }
+      remove(fileMetaData.getAbsolutePath());
+
+      if (frequencySketch != null && size + weight > maxBytes) {
+        int frequency = frequencySketch.frequency(fileMetaData.getAbsolutePath());
+        long freedSize = 0;
+        Iterator<String> victims = entries.keySet().iterator();
+        while (size - freedSize + weight > maxBytes) {
+          String victim = victims.next();
+          if (frequencySketch.frequency(victim) >= frequency) {
+            rejections++;
+            return;
+          }
+          freedSize += entries.get(victim).weight;
+        }
+      }
+      Iterator<Entry> victims = entries.values().iterator();
+      while (size + weight > maxBytes) {
+        size -= victims.next().weight;
+        victims.remove();
+        evictions++;
+      }
+      entries.put(
+          fileMetaData.getAbsolutePath(),
+          new Entry(fileMetaData, copy(file.getContent()), weight));
+      size += weight;
+    }
+
+    synchronized void relocate(FileMetaData fileMetaData, FileMetaData newFileMetaData) {
+      Entry entry = entries.get(fileMetaData.getAbsolutePath());
+      if (entry != null && entry.fileMetaData.equals(fileMetaData)) {
+        entries.put(
+            fileMetaData.getAbsolutePath(),
+            new Entry(newFileMetaData, entry.content, entry.weight));
+      }
+    }
+
+    synchronized void invalidate(String absolutePath) {
+      remove(absolutePath);
+    }
+
+    synchronized void invalidateAll() {
+      entries.clear();
+      size = 0;
+    }
+
+    /** Adds the entries, size, hits, misses, evictions and rejections of the segment. */
+    synchronized void addMetrics(long[] totals) {
+      totals[0] += entries.size();
+      totals[1] += size;
+      totals[2] += hits;
+      totals[3] += misses;
+      totals[4] += evictions;
+      totals[5] += rejections;
+    }
+
+    private void remove(String absolutePath) {
+      Entry entry = entries.remove(absolutePath);
+      if (entry != null) {
+        size -= entry.weight;
+      }
+    }
+  }
+
+  private static class Entry {
+    private final FileMetaData fileMetaData;
+    private final byte[] content;
+    private final long weight;
+
+    private Entry(FileMetaData fileMetaData, byte[] content, long weight) {
+      this.fileMetaData = fileMetaData;
+      this.content = content;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Estimates how often every path is read, in a fixed amount of memory (count-min sketch). The
+   * counts are halved periodically, so the estimates follow the recent reads.
+   */
+  static class FrequencySketch {
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int MIN_WIDTH = 256;
+    private static final int MAX_WIDTH = 1 << 20;
+    /** The expected size of a cached file, to estimate how many of them fit in the cache. */
+    private static final int EXPECTED_FILE_SIZE = 1024;
+
+    private final byte[][] counts;
+    private final int mask;
+    /** The number of increments between agings. */
+    private final int sampleSize;
+
+    private int increments;
+
+    FrequencySketch(long maxBytes) {
+      long expectedFiles = maxBytes / EXPECTED_FILE_SIZE;
+      int width = MIN_WIDTH;
+      while (width < expectedFiles && width < MAX_WIDTH) {
+        width <<= 1;
+      }
+      this.counts = new byte[ROWS][width];
+      this.mask = width - 1;
+      this.sampleSize = 10 * width;
+    }
+
+    void increment(String absolutePath) {
+      int hash = spread(absolutePath.hashCode());
+      for (int row = 0; row < ROWS; row++) {
+        int index = indexOf(hash, row);
+        if (counts[row][index] < MAX_COUNT) {
+          counts[row][index]++;
+        }
+      }
+      if (++increments == sampleSize) {
+        age();
+      }
+    }
+
+    int frequency(String absolutePath) {
+      int hash = spread(absolutePath.hashCode());
+      int frequency = MAX_COUNT;
+      for (int row = 0; row < ROWS; row++) {
+        frequency = Math.min(frequency, counts[row][indexOf(hash, row)]);
+      }
+      return frequency;
+    }
+
+    private void age() {
+      for (byte[] row : counts) {
+        for (int i = 0; i < row.length; i++) {
+          row[i] >>= 1;
+        }
+      }
+      increments /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+      // Every row takes a different multiple of the hash, so collisions differ across rows.
+      int rowHash = hash * (0x9E3779B9 + 2 * row);
+      return (rowHash ^ (rowHash >>> 16)) & mask;
+    }
+
+    private static int spread(int hash) {
+      hash ^= hash >>> 16;
+      hash *= 0x45d9f3b;
+      return hash ^ (hash >>> 16);
+    }
+  }
+}
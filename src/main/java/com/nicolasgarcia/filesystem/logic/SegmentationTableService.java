@@ -1,43 +1,52 @@
 package com.nicolasgarcia.filesystem.logic;
 
-import java.util.Collection;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.OptionalLong;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /** A service for managing segmentation. */
 class SegmentationTableService {
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentationTableService.class);
   private static final String BASE_LOGIC_PATH = "/";
-  /** A mapping from depth to their associated files, which are indexed by file name. */
-  private final Map<Integer, Map<String, FileMetaData>> data = new ConcurrentHashMap<>();
-  /** A queue that contains all the free fragments between files. */
-  private final Queue<FileMetaData> fragmentedSpace = new PriorityBlockingQueue<>();
+  /** The first bytes of an encoded table ("FSIX"). */
+  private static final int INDEX_MAGIC = 0x46534958;
+  /** The current version of the encoded table layout. */
+  private static final byte INDEX_VERSION = 1;
+  /** The files, indexed by their path. */
+  private final DirectoryIndex data = new DirectoryIndex();
+  /** The free fragments between files. */
+  private final FreeSpaceAllocator fragmentedSpace = new FreeSpaceAllocator();
 
-  Queue<FileMetaData> getFragmentedSpace() {
+  FreeSpaceAllocator getFragmentedSpace() {
     return fragmentedSpace;
   }
 
-  void addFragmentedSpace(Queue<FileMetaData> newFragmentedSpace) {
-    this.fragmentedSpace.addAll(newFragmentedSpace);
+  Optional<FileMetaData> find(String absolutePath) {
+    return data.find(absolutePath);
   }
 
-  public FileMetaData pollFragmentedSpace() {
-    return this.fragmentedSpace.poll();
+  /** See {@link DirectoryIndex#list(String)}. */
+  List<String> list(String directoryPath) {
+    return data.list(directoryPath);
   }
 
-  Optional<FileMetaData> find(String absolutePath) {
-    String[] filePath = absolutePath.split(BASE_LOGIC_PATH);
-    String fileName = filePath[filePath.length - 1];
-    Map<String, FileMetaData> filesFromDepth =
-        data.getOrDefault(getDepth(absolutePath), new ConcurrentHashMap<>());
-    return Optional.ofNullable(filesFromDepth.get(fileName))
-        .filter(file -> file.getAbsolutePath().equals(absolutePath));
+  /** See {@link DirectoryIndex#walk(String)}. */
+  List<FileMetaData> walk(String directoryPath) {
+    return data.walk(directoryPath);
+  }
+
+  /** See {@link DirectoryIndex#walk(String, Predicate)}. */
+  void walk(String directoryPath, Predicate<FileMetaData> visitor) {
+    data.walk(directoryPath, visitor);
   }
 
   /**
@@ -46,89 +55,225 @@ class SegmentationTableService {
    * <p>There are some cases (e.g memory compaction) where it's not needed to update the fragment
    * space because is already done on their side. This could cause inconsistencies, is advisable to
    * avoid it.
+   *
+   * @return The replaced {@link FileMetaData}, if any.
    */
-  void addOrReplace(FileMetaData fileMetaData, boolean updateFragmentedSpace) {
-    int depth = getDepth(fileMetaData.getAbsolutePath());
-    Map<String, FileMetaData> filesFromDepth = data.getOrDefault(depth, new ConcurrentHashMap<>());
+  Optional<FileMetaData> addOrReplace(FileMetaData fileMetaData, boolean updateFragmentedSpace) {
+    Optional<FileMetaData> oldFileMetaData = data.put(fileMetaData);
 
     // We update the fragmented table with the old fileMetaData.
-    if (updateFragmentedSpace && filesFromDepth.containsKey(fileMetaData.getFileName())) {
-      fragmentedSpace.offer(filesFromDepth.get(fileMetaData.getFileName()));
+    if (updateFragmentedSpace) {
+      oldFileMetaData.ifPresent(fragmentedSpace::release);
     }
-
-    filesFromDepth.put(fileMetaData.getFileName(), fileMetaData);
-    data.put(depth, filesFromDepth);
+    return oldFileMetaData;
   }
 
   void delete(FileMetaData file) {
-    int depth = getDepth(file.getAbsolutePath());
-    Map<String, FileMetaData> filesFromDepth = data.getOrDefault(depth, new ConcurrentHashMap<>());
-    filesFromDepth.remove(file.getFileName());
-    data.put(depth, filesFromDepth);
-    fragmentedSpace.offer(file);
+    remove(file);
+    fragmentedSpace.release(file);
   }
 
   /**
-   * Merges all the contiguous free buckets. It's commonly used as a first step before memory
-   * compaction.
+   * Removes a {@link FileMetaData}, without releasing its space. The caller is responsible to
+   * release it once it's not referenced anymore.
    */
-  void mergeContiguousFragmentedSpace() {
-    // We should iterate until we merged every fragmented space.
-    while (doMergeContiguousFragmentedSpace() > 1) {}
-  }
-
-  private int doMergeContiguousFragmentedSpace() {
-    Queue<FileMetaData> newFragmentedSpace =
-        new PriorityQueue<>(Comparator.comparingInt(FileMetaData::getSegmentNumber));
-
-    while (!fragmentedSpace.isEmpty()) {
-      FileMetaData previousEmptySpace = fragmentedSpace.poll();
-      if (fragmentedSpace.size() == 1 && !previousEmptySpace.isContiguous(fragmentedSpace.poll())) {
-        newFragmentedSpace.offer(previousEmptySpace);
-        break;
-      } else if (fragmentedSpace.size() == 0) {
-        // we don't have more elements to compare.
-        newFragmentedSpace.offer(previousEmptySpace);
-        break;
+  void remove(FileMetaData file) {
+    data.remove(file.getAbsolutePath());
+  }
+
+  /**
+   * Moves a {@link FileMetaData} to another path. See {@link DirectoryIndex#move(FileMetaData,
+   * String)}. The space of the replaced file isn't released: the caller is responsible to release
+   * it once it's not referenced anymore.
+   *
+   * @return The replaced {@link FileMetaData}, if any.
+   */
+  Optional<FileMetaData> move(FileMetaData file, String newAbsolutePath) {
+    return data.move(file, newAbsolutePath);
+  }
+
+  /** See {@link DirectoryIndex#moveDirectory(String, String)}. */
+  int moveDirectory(String directoryPath, String newDirectoryPath) {
+    return data.moveDirectory(directoryPath, newDirectoryPath);
+  }
+
+  /** See {@link DirectoryIndex#isDirectory(String)}. */
+  boolean isDirectory(String path) {
+    return data.isDirectory(path);
+  }
+
+  /** Every file of the table. */
+  List<FileMetaData> getFiles() {
+    return data.getFiles();
+  }
+
+  /** Every extent used by a file, sorted by their offset in the container. */
+  List<Extent> getSortedExtents() {
+    List<Extent> extents = data.getExtents();
+    extents.sort(Comparator.comparingLong(Extent::getFrom));
+    return extents;
+  }
+
+  /** The number of files of the table. */
+  int size() {
+    return data.size();
+  }
+
+  /** See {@link DirectoryIndex#estimateMemory()}. */
+  long estimateMemory() {
+    return data.estimateMemory();
+  }
+
+  /**
+   * Encodes the whole table, including the free fragments, so it can be persisted.
+   *
+   * <p>The layout is a header (magic, version, checkpoint lsn, number of files and number of
+   * fragments), followed by every file (segment number, modified time, path length, UTF-8 path,
+   * number of extents and the {@code from} and {@code to} of every extent) and every fragment
+   * ({@code from} and {@code to}). Offsets are 64-bit, so the container can grow beyond 2 GB.
+   *
+   * @param checkpointLsn The lsn of the last {@link WriteAheadLog} entry contained in the table.
+   */
+  ByteBuffer encode(long checkpointLsn) {
+    List<FileMetaData> files = data.getFiles();
+    List<Extent> fragments = fragmentedSpace.getFragments();
+    List<byte[]> paths =
+        files.stream()
+            .map(f -> f.getAbsolutePath().getBytes(StandardCharsets.UTF_8))
+            .collect(Collectors.toList());
+
+    int size =
+        Integer.BYTES
+            + Byte.BYTES
+            + Long.BYTES
+            + 2 * Integer.BYTES
+            + files.size() * (3 * Integer.BYTES + Long.BYTES)
+            + paths.stream().mapToInt(p -> p.length).sum()
+            + files.stream().mapToInt(f -> f.getExtents().size()).sum() * 2 * Long.BYTES
+            + fragments.size() * 2 * Long.BYTES;
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer
+        .putInt(INDEX_MAGIC)
+        .put(INDEX_VERSION)
+        .putLong(checkpointLsn)
+        .putInt(files.size())
+        .putInt(fragments.size());
+    for (int i = 0; i < files.size(); i++) {
+      FileMetaData file = files.get(i);
+      buffer
+          .putInt(file.getSegmentNumber())
+          .putLong(file.getModifiedTime())
+          .putInt(paths.get(i).length)
+          .put(paths.get(i))
+          .putInt(file.getExtents().size());
+      for (Extent extent : file.getExtents()) {
+        buffer.putLong(extent.getFrom()).putLong(extent.getTo());
       }
+    }
+    for (Extent fragment : fragments) {
+      buffer.putLong(fragment.getFrom()).putLong(fragment.getTo());
+    }
+    return buffer.flip();
+  }
 
-      FileMetaData emptySpace = fragmentedSpace.poll();
-      if (previousEmptySpace.isContiguous(emptySpace)) {
-        FileMetaData fileMetaData =
-            new FileMetaData(
-                "",
-                "",
-                previousEmptySpace.getFrom(),
-                emptySpace.getTo(),
-                previousEmptySpace.getSegmentNumber());
-        newFragmentedSpace.offer(fileMetaData);
-      } else {
-        newFragmentedSpace.offer(previousEmptySpace);
-        newFragmentedSpace.offer(emptySpace);
+  /**
+   * Replaces the content of the table with a table previously encoded with {@link #encode(long)}.
+   *
+   * <p>It takes a time proportional to the number of entries, regardless of the size of the files.
+   * The end of the free space is set to the end of the last file or fragment of the table, so the
+   * content written after the table was encoded isn't covered by it.
+   *
+   * @return The checkpoint lsn of the table, or nothing if it couldn't be loaded.
+   */
+  OptionalLong load(ByteBuffer index) {
+    data.clear();
+    fragmentedSpace.clear();
+    try {
+      if (index.getInt() != INDEX_MAGIC) {
+        LOG.warn("Ignoring an index with an unknown format");
+        return OptionalLong.empty();
+      }
+      byte version = index.get();
+      if (version != INDEX_VERSION) {
+        LOG.warn("Ignoring an index with an unknown version: {}", version);
+        return OptionalLong.empty();
+      }
+      long checkpointLsn = index.getLong();
+      int fileCount = index.getInt();
+      int fragmentCount = index.getInt();
+      long end = 0;
+      for (int i = 0; i < fileCount; i++) {
+        FileMetaData file = decodeFile(index);
+        for (Extent extent : file.getExtents()) {
+          end = Math.max(end, extent.getTo());
+        }
+        addOrReplace(file, false);
       }
+      for (int i = 0; i < fragmentCount; i++) {
+        Extent fragment = decodeExtent(index);
+        end = Math.max(end, fragment.getTo());
+        fragmentedSpace.release(fragment);
+      }
+      fragmentedSpace.setEnd(end);
+      return OptionalLong.of(checkpointLsn);
+    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+      LOG.warn("Ignoring a truncated index", e);
+      data.clear();
+      fragmentedSpace.clear();
+      return OptionalLong.empty();
+    }
+  }
+
+  private static FileMetaData decodeFile(ByteBuffer index) {
+    int segmentNumber = index.getInt();
+    long modifiedTime = index.getLong();
+    String absolutePath = decodePath(index);
+    List<Extent> extents = new ArrayList<>();
+    int extentCount = index.getInt();
+    for (int i = 0; i < extentCount; i++) {
+      extents.add(decodeExtent(index));
     }
-    fragmentedSpace.addAll(newFragmentedSpace);
-    return newFragmentedSpace.size();
+    return new FileMetaData(
+        getFileName(absolutePath), absolutePath, extents, segmentNumber, modifiedTime);
+  }
+
+  private static Extent decodeExtent(ByteBuffer index) {
+    return new Extent(index.getLong(), index.getLong());
   }
 
-  List<FileMetaData> getSortedSegmentationTable() {
-    return data.values().stream()
-        .map(Map::values)
-        .flatMap(Collection::stream)
-        .sorted(Comparator.comparingInt(FileMetaData::getSegmentNumber))
-        .collect(Collectors.toList());
+  private static String decodePath(ByteBuffer index) {
+    byte[] path = new byte[index.getInt()];
+    index.get(path);
+    return new String(path, StandardCharsets.UTF_8);
   }
 
-  Optional<FileMetaData> findLastFragmentedSpace() {
-    return fragmentedSpace.stream().max(Comparator.comparing(FileMetaData::getFrom));
+  static String getFileName(String absolutePath) {
+    return absolutePath.substring(absolutePath.lastIndexOf(BASE_LOGIC_PATH) + 1);
   }
 
-  void deleteFragmentedSpace(FileMetaData fileMetaData) {
-    fragmentedSpace.remove(fileMetaData);
+  /**
+   * Replaces the free fragments with the gaps between the files of the container.
+   *
+   * <p>It's used after a recovery, where some fragments may be unknown (e.g. content that was
+   * written but never logged).
+   */
+  void rebuildFragmentedSpace(long containerSize) {
+    fragmentedSpace.clear();
+    fragmentedSpace.setEnd(containerSize);
+    long position = 0;
+    for (Extent extent : getSortedExtents()) {
+      if (position < extent.getFrom()) {
+        fragmentedSpace.release(new Extent(position, extent.getFrom()));
+      }
+      position = Math.max(position, extent.getTo());
+    }
+    if (position < containerSize) {
+      fragmentedSpace.release(new Extent(position, containerSize));
+    }
   }
 
-  private static int getDepth(String absolutePath) {
-    String[] filePath = absolutePath.split(BASE_LOGIC_PATH);
-    return filePath.length - 2;
+  /** The segment number that follows the highest one in use. */
+  int getNextSegmentNumber() {
+    return data.getFiles().stream().mapToInt(FileMetaData::getSegmentNumber).max().orElse(-1) + 1;
   }
 }
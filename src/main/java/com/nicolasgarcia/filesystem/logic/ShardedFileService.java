@@ -0,0 +1,626 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import com.nicolasgarcia.filesystem.api.Batch;
+import com.nicolasgarcia.filesystem.api.File;
+import com.nicolasgarcia.filesystem.api.FileService;
+import com.nicolasgarcia.filesystem.api.FileStat;
+import com.nicolasgarcia.filesystem.api.FileVisitor;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot.Operation;
+import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link FileService} that spreads the files over several containers (shards), each one with its
+ * own {@link FileManager}. The shard of every path is given by a {@link ShardingPolicy}.
+ *
+ * <p>Every shard has its own container, index, log and locks, so operations over different shards
+ * never wait for each other, and the containers can be placed on different disks. The compaction
+ * runs in every shard at the same time.
+ *
+ * <p>The changes that involve a single shard keep their guarantees. The ones that involve several
+ * shards don't: moving a file to another shard copies it (so its modified time changes), and
+ * neither those moves nor the batches and directory moves spread over several shards are atomic.
+ * A directory move is done in every shard first, and then the files whose new path belongs to
+ * another shard are copied there and deleted from the old one. If it's interrupted by a crash, the
+ * files left in the wrong shard are relocated by {@link #relocateMisplacedFiles()}.
+ *
+ * <p>The shard of a path depends on the number of shards, so the same containers should always be
+ * opened in the same order.
+ */
+public class ShardedFileService implements FileService {
+  private static final Logger LOG = LoggerFactory.getLogger(ShardedFileService.class);
+
+  private final List<FileManager> shards;
+  private final ShardingPolicy shardingPolicy;
+  private final OperationMetrics operationMetrics = new OperationMetrics();
+  /** Runs the compaction of every shard at the same time. */
+  private final ExecutorService compactionExecutor;
+
+  private volatile ObjectName mbeanName;
+
+  ShardedFileService(List<FileManager> shards, ShardingPolicy shardingPolicy) {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("There should be at least one shard");
+    }
+    this.shards = List.copyOf(shards);
+    this.shardingPolicy = shardingPolicy;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.compactionExecutor =
+        Executors.newFixedThreadPool(
+            shards.size(),
+            runnable -> {
+              Thread thread =
+                  new Thread(runnable, "shard-compaction-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Opens a container per path, where every file is placed by the hash of its path.
+   *
+   * @param containerPaths The containers of the shards. They can be placed on different disks.
+   */
+  public static ShardedFileService open(List<Path> containerPaths) {
+    return open(containerPaths, ShardingPolicy.hash());
+  }
+
+  /** Opens a container per path, where every file is placed according to the given policy. */
+  public static ShardedFileService open(List<Path> containerPaths, ShardingPolicy shardingPolicy) {
+    return open(containerPaths, shardingPolicy, FileServiceImpl.builder());
+  }
+
+  /**
+   * If any container can't be opened, the ones already opened are closed again.
+   *
+   * @param shardSettings The settings of every shard (e.g. its policies). Its container path is
+   *     ignored.
+   */
+  public static ShardedFileService open(
+      List<Path> containerPaths,
+      ShardingPolicy shardingPolicy,
+      FileServiceImpl.Builder shardSettings) {
+    List<FileManager> shards = new ArrayList<>(containerPaths.size());
+    try {
+      for (Path containerPath : containerPaths) {
+        shards.add(shardSettings.buildFileManager(containerPath));
+      }
+      return new ShardedFileService(shards, shardingPolicy);
+    } catch (RuntimeException e) {
+      for (FileManager shard : shards) {
+        try {
+          shard.close();
+        } catch (RuntimeException closeException) {
+          e.addSuppressed(closeException);
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Opens the given number of containers in the same directory, named after {@link
+   * StorageService#CONTAINER_NAME}.
+   */
+  public static ShardedFileService open(
+      Path directory, int shardCount, ShardingPolicy shardingPolicy) {
+    return open(containerPathsOf(directory, shardCount), shardingPolicy);
+  }
+
+  /** The containers opened by {@link #open(Path, int, ShardingPolicy)}. */
+  static List<Path> containerPathsOf(Path directory, int shardCount) {
+    if (shardCount <= 0) {
+      throw new IllegalArgumentException("The number of shards should be positive");
+    }
+    return IntStream.range(0, shardCount)
+        .mapToObj(shard -> directory.resolve(StorageService.CONTAINER_NAME + "-" + shard))
+        .collect(Collectors.toList());
+  }
+
+  @Override
+  public File create(String absolutePath) {
+    return operationMetrics.measure(
+        Operation.CREATE,
+        () -> {
+          File file = new File(absolutePath, null);
+          shardOf(file.getAbsolutePath()).save(file);
+          return file;
+        });
+  }
+
+  @Override
+  public void write(String absolutePath, byte[] content) {
+    operationMetrics.measure(
+        Operation.WRITE,
+        () -> {
+          File file = new File(absolutePath, content);
+          shardOf(file.getAbsolutePath()).save(file);
+        });
+  }
+
+  @Override
+  public File read(String absolutePath) {
+    return operationMetrics.measure(Operation.READ, () -> shardOf(absolutePath).read(absolutePath));
+  }
+
+  @Override
+  public ByteBuffer readBuffer(String absolutePath) {
+    return operationMetrics.measure(
+        Operation.READ, () -> shardOf(absolutePath).readBuffer(absolutePath));
+  }
+
+  @Override
+  public long transferTo(String absolutePath, WritableByteChannel target) {
+    return operationMetrics.measure(
+        Operation.READ, () -> shardOf(absolutePath).transferTo(absolutePath, target));
+  }
+
+  @Override
+  public InputStream openInputStream(String absolutePath) {
+    return Channels.newInputStream(openReadableChannel(absolutePath));
+  }
+
+  @Override
+  public OutputStream openOutputStream(String absolutePath) {
+    return Channels.newOutputStream(openWritableChannel(absolutePath));
+  }
+
+  @Override
+  public ReadableByteChannel openReadableChannel(String absolutePath) {
+    return shardOf(absolutePath).openReadableChannel(absolutePath);
+  }
+
+  @Override
+  public WritableByteChannel openWritableChannel(String absolutePath) {
+    String normalizedPath = File.normalizePath(absolutePath);
+    return shardOf(normalizedPath).openWritableChannel(normalizedPath);
+  }
+
+  @Override
+  public void append(String absolutePath, byte[] content) {
+    String normalizedPath = File.normalizePath(absolutePath);
+    operationMetrics.measure(
+        Operation.APPEND, () -> shardOf(normalizedPath).append(normalizedPath, content));
+  }
+
+  @Override
+  public void delete(String absolutePath) {
+    operationMetrics.measure(Operation.DELETE, () -> shardOf(absolutePath).delete(absolutePath));
+  }
+
+  @Override
+  public void rename(String oldAbsolutePath, String newAbsolutePath) {
+    this.move(oldAbsolutePath, newAbsolutePath);
+  }
+
+  @Override
+  public void move(String oldAbsolutePath, String newAbsolutePath) {
+    String normalizedPath = File.normalizePath(newAbsolutePath);
+    operationMetrics.measure(
+        Operation.MOVE,
+        () -> {
+          FileManager shard = shardOf(oldAbsolutePath);
+          FileManager newShard = shardOf(normalizedPath);
+          if (shard == newShard) {
+            shard.move(oldAbsolutePath, normalizedPath);
+          } else {
+            moveBetweenShards(shard, oldAbsolutePath, newShard, normalizedPath);
+          }
+        });
+  }
+
+  /**
+   * Moves a directory in every shard that has files inside it. The files whose new path belongs to
+   * another shard are moved there afterwards (see {@link #relocateMisplacedFiles()}).
+   *
+   * <p>Every shard is checked before any of them is changed. A file with the same path as the
+   * directory (which can be placed in another shard) isn't moved.
+   *
+   * @throws IllegalArgumentException if the new path already exists, or it's inside the directory.
+   */
+  @Override
+  public void moveDirectory(String oldPath, String newPath) {
+    String normalizedPath = File.normalizePath(newPath);
+    operationMetrics.measure(
+        Operation.MOVE_DIRECTORY,
+        () -> {
+          List<Integer> movedShards = new ArrayList<>();
+          for (int i : shardsOfDirectory(oldPath)) {
+            if (shards.get(i).isDirectory(oldPath)) {
+              movedShards.add(i);
+            }
+          }
+          if (movedShards.isEmpty()) {
+            LOG.warn("The directory {} doesn't exist", oldPath);
+            throw new FileNotFoundException();
+          }
+          // A shard can only tell whether the new path exists in that shard.
+          if (exists(normalizedPath)) {
+            throw new IllegalArgumentException("The path " + normalizedPath + " already exists");
+          }
+          for (int i : movedShards) {
+            shards.get(i).moveDirectory(oldPath, normalizedPath);
+          }
+          // The files are only relocated once every shard is moved, since they would take the new
+          // path in shards that haven't been moved yet otherwise.
+          LOG.info("Relocating the files moved from {} to {}", oldPath, normalizedPath);
+          int relocatedFiles = 0;
+          for (int i : movedShards) {
+            relocatedFiles += relocateMisplacedFiles(i, normalizedPath);
+          }
+          LOG.info("Relocated {} files to other shards", relocatedFiles);
+        });
+  }
+
+  /**
+   * Moves every file stored in a shard other than the one of its path to its own shard. They are
+   * only left behind when a {@link #moveDirectory(String, String)} is interrupted by a crash, so
+   * it's meant to be called after opening the shards in that case.
+   *
+   * <p>If the shard of the path already has the file, the copy was done before the crash (or the
+   * file was written again since then), so the misplaced file is just deleted.
+   *
+   * @return The number of misplaced files.
+   */
+  public int relocateMisplacedFiles() {
+    int relocatedFiles = 0;
+    for (int i = 0; i < shards.size(); i++) {
+      relocatedFiles += relocateMisplacedFiles(i, "/");
+    }
+    if (relocatedFiles > 0) {
+      LOG.info("Relocated {} misplaced files", relocatedFiles);
+    }
+    return relocatedFiles;
+  }
+
+  private int relocateMisplacedFiles(int shardIndex, String directoryPath) {
+    FileManager shard = shards.get(shardIndex);
+    int relocatedFiles = 0;
+    for (String absolutePath : shard.walk(directoryPath)) {
+      FileManager newShard = shards.get(shardingPolicy.shardOf(absolutePath, shards.size()));
+      if (newShard == shard) {
+        continue;
+      }
+      if (newShard.isFile(absolutePath)) {
+        shard.delete(absolutePath);
+      } else {
+        moveBetweenShards(shard, absolutePath, newShard, absolutePath);
+      }
+      relocatedFiles++;
+    }
+    return relocatedFiles;
+  }
+
+  /**
+   * Copies a file to another shard, and then deletes it from its current shard. If it's interrupted
+   * in between, the file is left in both shards.
+   */
+  private static void moveBetweenShards(
+      FileManager shard, String absolutePath, FileManager newShard, String newAbsolutePath) {
+    File file = shard.read(absolutePath);
+    newShard.save(new File(newAbsolutePath, file.getContent()));
+    shard.delete(absolutePath);
+  }
+
+  @Override
+  public void writeAll(Map<String, byte[]> files) {
+    Batch batch = batch();
+    files.forEach(batch::write);
+    batch.commit();
+  }
+
+  @Override
+  public void deleteAll(Collection<String> absolutePaths) {
+    Batch batch = batch();
+    absolutePaths.forEach(batch::delete);
+    batch.commit();
+  }
+
+  /**
+   * Creates a batch that is committed to every shard involved, one after the other. It's atomic
+   * within every shard, but not across them.
+   */
+  @Override
+  public Batch batch() {
+    return new FileBatch(this::commit, operationMetrics);
+  }
+
+  private void commit(List<File> files, Collection<String> deletedPaths) {
+    // The missing files are checked first, so nothing is committed to any shard if one is missing.
+    for (String deletedPath : deletedPaths) {
+      if (!shardOf(deletedPath).exists(deletedPath)) {
+        LOG.warn("The file {} doesn't exist", deletedPath);
+        throw new FileNotFoundException();
+      }
+    }
+    Map<FileManager, List<File>> filesByShard = new HashMap<>();
+    Map<FileManager, List<String>> deletedPathsByShard = new HashMap<>();
+    for (File file : files) {
+      filesByShard
+          .computeIfAbsent(shardOf(file.getAbsolutePath()), shard -> new ArrayList<>())
+          .add(file);
+    }
+    for (String deletedPath : deletedPaths) {
+      deletedPathsByShard
+          .computeIfAbsent(shardOf(deletedPath), shard -> new ArrayList<>())
+          .add(deletedPath);
+    }
+    for (FileManager shard : shards) {
+      List<File> shardFiles = filesByShard.getOrDefault(shard, List.of());
+      List<String> shardDeletedPaths = deletedPathsByShard.getOrDefault(shard, List.of());
+      if (!shardFiles.isEmpty() || !shardDeletedPaths.isEmpty()) {
+        shard.commit(shardFiles, shardDeletedPaths);
+      }
+    }
+  }
+
+  @Override
+  public List<String> list(String directoryPath) {
+    TreeSet<String> entries = new TreeSet<>();
+    for (int i : shardsOfDirectory(directoryPath)) {
+      // The same subdirectory can have files in several shards.
+      entries.addAll(shards.get(i).list(directoryPath));
+    }
+    return new ArrayList<>(entries);
+  }
+
+  @Override
+  public List<String> walk(String directoryPath) {
+    List<String> files = new ArrayList<>();
+    for (int i : shardsOfDirectory(directoryPath)) {
+      files.addAll(shards.get(i).walk(directoryPath));
+    }
+    return files;
+  }
+
+  /** Walks the directory in every shard that can have files inside it, one after the other. */
+  @Override
+  public void walk(String directoryPath, FileVisitor visitor) {
+    boolean[] stopped = {false};
+    for (int i : shardsOfDirectory(directoryPath)) {
+      shards
+          .get(i)
+          .walk(
+              directoryPath,
+              stat -> {
+                stopped[0] = !visitor.visit(stat);
+                return !stopped[0];
+              });
+      if (stopped[0]) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public FileStat stat(String absolutePath) {
+    return shardOf(absolutePath).stat(absolutePath);
+  }
+
+  @Override
+  public boolean exists(String path) {
+    if (shardOf(path).exists(path)) {
+      return true;
+    }
+    for (int i : shardsOfDirectory(path)) {
+      if (shards.get(i).exists(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Compacts every shard at once, each one in its own thread. See {@link
+   * FileManager#compactMemory()}.
+   */
+  public void compactMemory() {
+    List<Future<?>> compactions = new ArrayList<>(shards.size());
+    for (FileManager shard : shards) {
+      compactions.add(compactionExecutor.submit(shard::compactMemory));
+    }
+    boolean failed = false;
+    for (Future<?> compaction : compactions) {
+      try {
+        compaction.get();
+      } catch (ExecutionException e) {
+        LOG.warn("Failed to compact a shard", e.getCause());
+        failed = true;
+      } catch (InterruptedException e) {
+        LOG.warn("Interrupted while compacting the shards", e);
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException();
+      }
+    }
+    if (failed) {
+      throw new IllegalStateException();
+    }
+  }
+
+  /**
+   * Compacts every shard whenever the given policy says it's worth it for that shard. Every shard
+   * is checked and compacted on its own, so they are never compacted all at once unless all of them
+   * need it. See {@link FileManager#scheduleCompaction(CompactionPolicy)}.
+   */
+  public void scheduleCompaction(CompactionPolicy policy) {
+    shards.forEach(shard -> shard.scheduleCompaction(policy));
+  }
+
+  /**
+   * Compacts every shard in the background, each one with its own thread. The throughput applies to
+   * every shard on its own, since they can be placed on different disks. See {@link
+   * FileServiceImpl#startBackgroundCompaction(long)}.
+   *
+   * @param bytesPerSecond The maximum amount of bytes moved per second in every shard.
+   */
+  public void startBackgroundCompaction(long bytesPerSecond) {
+    shards.forEach(shard -> shard.startBackgroundCompaction(bytesPerSecond));
+  }
+
+  /** Stops the background compaction of every shard, if it's running. */
+  public void stopBackgroundCompaction() {
+    shards.forEach(FileManager::stopBackgroundCompaction);
+  }
+
+  /**
+   * The metrics of every shard, prefixed by its number (e.g. {@code shard_0_container_size}), along
+   * with the totals of the numeric ones and the metrics of the operations.
+   */
+  @Override
+  public Map<String, String> metrics() {
+    Map<String, String> stats = new HashMap<>();
+    for (int i = 0; i < shards.size(); i++) {
+      String prefix = "shard_" + i + "_";
+      shards.get(i).metrics().forEach((name, value) -> stats.put(prefix + name, value));
+    }
+    MetricsSnapshot snapshot = metricsSnapshot();
+    stats.put("shards", String.valueOf(shards.size()));
+    stats.put("sharding_policy", shardingPolicy.toString());
+    stats.put("container_size", String.valueOf(snapshot.getContainerSize()));
+    stats.put("free_bytes", String.valueOf(snapshot.getFreeBytes()));
+    stats.put(
+        "fragmentation_ratio",
+        String.format(Locale.ROOT, "%.4f", snapshot.getFragmentationRatio()));
+    stats.put("index_files", String.valueOf(snapshot.getLiveFiles()));
+    stats.put("index_memory_bytes", String.valueOf(snapshot.getIndexMemoryBytes()));
+    stats.put("bytes_read", String.valueOf(snapshot.getBytesRead()));
+    stats.put("bytes_written", String.valueOf(snapshot.getBytesWritten()));
+    stats.put("compaction_moved_bytes", String.valueOf(snapshot.getCompactionMovedBytes()));
+    stats.put("compaction_reclaimed_bytes", String.valueOf(snapshot.getCompactionReclaimedBytes()));
+    stats.put("compaction_reclaimable_bytes", String.valueOf(snapshot.getReclaimableBytes()));
+    operationMetrics.addTo(stats);
+    return stats;
+  }
+
+  /**
+   * The metrics of the operations, measured across every shard, and the sum of the metrics of the
+   * containers of every shard.
+   */
+  @Override
+  public MetricsSnapshot metricsSnapshot() {
+    long bytesRead = 0;
+    long bytesWritten = 0;
+    long containerSize = 0;
+    long freeBytes = 0;
+    long liveFiles = 0;
+    long indexMemoryBytes = 0;
+    long compactionRuns = 0;
+    long compactionMovedBytes = 0;
+    long compactionReclaimedBytes = 0;
+    long reclaimableBytes = 0;
+    for (MetricsSnapshot shardSnapshot : shardMetricsSnapshots()) {
+      bytesRead += shardSnapshot.getBytesRead();
+      bytesWritten += shardSnapshot.getBytesWritten();
+      containerSize += shardSnapshot.getContainerSize();
+      freeBytes += shardSnapshot.getFreeBytes();
+      liveFiles += shardSnapshot.getLiveFiles();
+      indexMemoryBytes += shardSnapshot.getIndexMemoryBytes();
+      compactionRuns += shardSnapshot.getCompactionRuns();
+      compactionMovedBytes += shardSnapshot.getCompactionMovedBytes();
+      compactionReclaimedBytes += shardSnapshot.getCompactionReclaimedBytes();
+      reclaimableBytes += shardSnapshot.getReclaimableBytes();
+    }
+    MetricsSnapshot.Builder builder =
+        MetricsSnapshot.builder()
+            .bytesRead(bytesRead)
+            .bytesWritten(bytesWritten)
+            .containerSize(containerSize)
+            .freeBytes(freeBytes)
+            .liveFiles(liveFiles)
+            .indexMemoryBytes(indexMemoryBytes)
+            .compactionRuns(compactionRuns)
+            .compactionMovedBytes(compactionMovedBytes)
+            .compactionReclaimedBytes(compactionReclaimedBytes)
+            .reclaimableBytes(reclaimableBytes);
+    operationMetrics.addTo(builder);
+    return builder.build();
+  }
+
+  /**
+   * The metrics of the container of every shard, by shard. The operations are only measured across
+   * every shard, so they aren't included.
+   */
+  public List<MetricsSnapshot> shardMetricsSnapshots() {
+    List<MetricsSnapshot> snapshots = new ArrayList<>(shards.size());
+    for (FileManager shard : shards) {
+      MetricsSnapshot.Builder builder = MetricsSnapshot.builder();
+      shard.addMetrics(builder);
+      snapshots.add(builder.build());
+    }
+    return snapshots;
+  }
+
+  /**
+   * Exposes the aggregated metrics through JMX. See {@link FileServiceImpl#registerMBean()}.
+   *
+   * @return The name of the registered MBean, which is unique for every service.
+   */
+  public ObjectName registerMBean() {
+    mbeanName = FileServiceImpl.registerMBean(this);
+    return mbeanName;
+  }
+
+  /** Closes every shard, even if some of them fail to close. */
+  @Override
+  public void close() {
+    FileServiceImpl.unregisterMBean(mbeanName);
+    mbeanName = null;
+    // The running compactions aren't interrupted, since that would close their containers.
+    compactionExecutor.shutdown();
+    try {
+      if (!compactionExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOG.warn("The compaction of the shards didn't stop in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    RuntimeException failure = null;
+    for (FileManager shard : shards) {
+      try {
+        shard.close();
+      } catch (RuntimeException e) {
+        LOG.warn("Failed to close a shard", e);
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /** The shard of a file. */
+  private FileManager shardOf(String absolutePath) {
+    return shards.get(shardingPolicy.shardOf(File.normalizePath(absolutePath), shards.size()));
+  }
+
+  /** The shards that can hold files under a directory. */
+  private int[] shardsOfDirectory(String directoryPath) {
+    int shard = shardingPolicy.shardOfDirectory(File.normalizePath(directoryPath), shards.size());
+    return shard < 0 ? IntStream.range(0, shards.size()).toArray() : new int[] {shard};
+  }
+}
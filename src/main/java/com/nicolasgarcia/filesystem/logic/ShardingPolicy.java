@@ -0,0 +1,92 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Defines which shard of a {@link ShardedFileService} stores every path.
+ *
+ * <p>Hashing the whole path spreads the files evenly, even within the same directory, but a
+ * directory is spread over every shard. Hashing a prefix of the directories keeps every file under
+ * the same prefix in the same shard, so listing, walking or moving a directory below it only
+ * touches one shard, at the cost of a less even spread.
+ */
+public final class ShardingPolicy {
+  enum Mode {
+    /** The whole path is hashed. */
+    HASH,
+    /** The first directories of the path are hashed. */
+    PREFIX
+  }
+
+  private static final String SEPARATOR = "/";
+
+  private final Mode mode;
+  private final int depth;
+
+  private ShardingPolicy(Mode mode, int depth) {
+    this.mode = mode;
+    this.depth = depth;
+  }
+
+  public static ShardingPolicy hash() {
+    return new ShardingPolicy(Mode.HASH, 0);
+  }
+
+  /**
+   * @param depth The number of directories, from the root, that are hashed. The files placed higher
+   *     up are hashed by the directories they have.
+   */
+  public static ShardingPolicy prefix(int depth) {
+    if (depth <= 0) {
+      throw new IllegalArgumentException("The depth of the prefix should be positive");
+    }
+    return new ShardingPolicy(Mode.PREFIX, depth);
+  }
+
+  /** The shard of a file, between 0 and the number of shards (excluded). */
+  int shardOf(String absolutePath, int shardCount) {
+    List<String> components = componentsOf(absolutePath);
+    if (mode == Mode.HASH) {
+      return shardOfKey(components, shardCount);
+    }
+    // The name of the file itself is never part of the prefix.
+    int directories = Math.max(0, components.size() - 1);
+    return shardOfKey(components.subList(0, Math.min(depth, directories)), shardCount);
+  }
+
+  /**
+   * The shard that holds every file placed under a directory.
+   *
+   * @return The shard, or -1 if the files can be placed in any shard.
+   */
+  int shardOfDirectory(String directoryPath, int shardCount) {
+    List<String> components = componentsOf(directoryPath);
+    if (mode == Mode.HASH || components.size() < depth) {
+      return -1;
+    }
+    return shardOfKey(components.subList(0, depth), shardCount);
+  }
+
+  private static int shardOfKey(List<String> components, int shardCount) {
+    int hash = String.join(SEPARATOR, components).hashCode();
+    // The high bits are spread, so the shard doesn't depend only on the last characters.
+    return Math.floorMod(hash ^ (hash >>> 16), shardCount);
+  }
+
+  /** The names of the path, ignoring repeated or trailing separators. */
+  private static List<String> componentsOf(String path) {
+    List<String> components = new ArrayList<>();
+    for (String component : path.split(SEPARATOR)) {
+      if (!component.isEmpty()) {
+        components.add(component);
+      }
+    }
+    return components;
+  }
+
+  @Override
+  public String toString() {
+    return mode == Mode.HASH ? mode.toString() : mode + "(" + depth + ")";
+  }
+}
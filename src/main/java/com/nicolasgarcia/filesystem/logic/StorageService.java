@@ -1,35 +1,157 @@
 package com.nicolasgarcia.filesystem.logic;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
 import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
 import org.assertj.core.util.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/** A package-private service that interacts with the real file system. */
-class StorageService {
+/**
+ * A package-private service that interacts with the real file system.
+ *
+ * <p>The container is opened once, when the service is created, and it's kept open until {@link
+ * #close()} is invoked. Every read/write is done with positional operations over the same {@link
+ * FileChannel}, so it can be shared between concurrent readers without seeking.
+ */
+class StorageService implements Closeable {
   private static final Logger LOG = LoggerFactory.getLogger(StorageService.class);
-  /** The base path of the emulated file system. */
+  /** The base path of the emulated file system, when no other location is given. */
   @VisibleForTesting static final String BASE_PHYSICAL_PATH = "/tmp/";
-  /** The name of the file where all the emulated file system is stored. */
+  /** The name of the file where all the emulated file system is stored, by default. */
   @VisibleForTesting static final String CONTAINER_NAME = "jetbrains-assignment";
+  /** The location of the container when no other is given. */
+  static final Path DEFAULT_CONTAINER_PATH = Path.of(BASE_PHYSICAL_PATH + CONTAINER_NAME);
+  /** The suffix of the file, next to the container, where the segmentation table is persisted. */
+  @VisibleForTesting static final String INDEX_SUFFIX = ".idx";
+  /** The suffix of the write-ahead log, next to the container. */
+  @VisibleForTesting static final String LOG_SUFFIX = ".wal";
+  /** The default size of the chunks used to copy/drop ranges of the container (1 MiB). */
+  static final int DEFAULT_COPY_CHUNK_SIZE = 1024 * 1024;
+
+  /** The available strategies to access the container. */
+  enum Mode {
+    /** Every read is a positional read over the container's channel. */
+    CHANNEL,
+    /**
+     * Reads are served from a memory mapping of the container. See {@link MappedStorageService}.
+     */
+    MEMORY_MAPPED
+  }
+
+  private final Path containerPath;
+  private final Path indexPath;
+  final FileChannel channel;
+  private final FileChannel logChannel;
+  private final int copyChunkSize;
+  /** A chunk of zeros, shared (read-only) by every drop. */
+  private final ByteBuffer zeros;
+  /** The buffer used to copy ranges inside the container. Guarded by itself. */
+  private final ByteBuffer copyBuffer;
 
   public StorageService() {
-    storeInContainer(new byte[] {}, 0);
+    this(DEFAULT_CONTAINER_PATH);
   }
 
-  void storeInContainer(byte[] content, int position) {
-    // TODO: The subfolders should exist.
-    try (RandomAccessFile raf = new RandomAccessFile(BASE_PHYSICAL_PATH + CONTAINER_NAME, "rw")) {
-      raf.seek(position);
-      raf.write(content);
-    } catch (java.io.FileNotFoundException e) {
-      LOG.warn("File not found", e);
-      throw new FileNotFoundException();
+  /**
+   * @param containerPath The file where the emulated file system is stored. The index and the log
+   *     are placed next to it, and its parent directories are created if they don't exist.
+   */
+  public StorageService(Path containerPath) {
+    this(containerPath, DEFAULT_COPY_CHUNK_SIZE);
+  }
+
+  StorageService(int copyChunkSize) {
+    this(DEFAULT_CONTAINER_PATH, copyChunkSize);
+  }
+
+  StorageService(Path containerPath, int copyChunkSize) {
+    this.copyChunkSize = copyChunkSize;
+    this.zeros = ByteBuffer.allocateDirect(copyChunkSize).asReadOnlyBuffer();
+    this.copyBuffer = ByteBuffer.allocateDirect(copyChunkSize);
+    this.containerPath = containerPath.toAbsolutePath();
+    this.indexPath = siblingOf(this.containerPath, INDEX_SUFFIX);
+    try {
+      Files.createDirectories(this.containerPath.getParent());
+      this.channel = FileChannel.open(this.containerPath, CREATE, READ, WRITE);
+      this.logChannel =
+          FileChannel.open(siblingOf(this.containerPath, LOG_SUFFIX), CREATE, READ, WRITE);
+    } catch (IOException e) {
+      LOG.warn("Failed to open the container", e);
+      throw new IllegalStateException();
+    }
+  }
+
+  /** Opens the container with the given access {@link Mode}. */
+  static StorageService open(Mode mode) {
+    return open(DEFAULT_CONTAINER_PATH, mode);
+  }
+
+  /** Opens the container placed at the given path with the given access {@link Mode}. */
+  static StorageService open(Path containerPath, Mode mode) {
+    return mode == Mode.MEMORY_MAPPED
+        ? new MappedStorageService(containerPath)
+        : new StorageService(containerPath);
+  }
+
+  /** The file placed next to the container, named after it with the given suffix. */
+  static Path siblingOf(Path containerPath, String suffix) {
+    return containerPath.resolveSibling(containerPath.getFileName() + suffix);
+  }
+
+  Path getContainerPath() {
+    return containerPath;
+  }
+
+  void storeInContainer(byte[] content, long position) {
+    storeInContainer(ByteBuffer.wrap(content), position);
+  }
+
+  void storeInContainer(ByteBuffer content, long position) {
+    ByteBuffer buffer = content.duplicate();
+    try {
+      long offset = position;
+      while (buffer.hasRemaining()) {
+        offset += channel.write(buffer, offset);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to store in container", e);
+      throw new IllegalStateException();
+    }
+  }
+
+  /**
+   * Stores the content of another channel, from its current position, without holding it in memory.
+   */
+  void storeInContainer(ReadableByteChannel source, long count, long position) {
+    try {
+      long transferred = 0;
+      while (transferred < count) {
+        long written = channel.transferFrom(source, position + transferred, count - transferred);
+        if (written <= 0) {
+          LOG.warn("The source ended after {} of {} bytes", transferred, count);
+          throw new IllegalStateException();
+        }
+        transferred += written;
+      }
     } catch (IOException e) {
       LOG.warn("Failed to store in container", e);
       throw new IllegalStateException();
@@ -37,61 +159,290 @@ class StorageService {
   }
 
   byte[] readAllFromContainer() {
+    return readFromContainer(0, getContainerSize());
+  }
+
+  /**
+   * Reads a range of the container into the heap. The range can't be longer than {@link
+   * Integer#MAX_VALUE}.
+   */
+  byte[] readFromContainer(long from, long to) {
+    ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(to - from));
     try {
-      RandomAccessFile f = new RandomAccessFile(BASE_PHYSICAL_PATH + CONTAINER_NAME, "r");
-      byte[] output = new byte[(int) f.length()];
-      f.readFully(output);
-      return output;
+      long offset = from;
+      while (buffer.hasRemaining()) {
+        int read = channel.read(buffer, offset);
+        if (read < 0) {
+          LOG.warn("Reached the end of the container reading [{}, {})", from, to);
+          throw new FileNotFoundException();
+        }
+        offset += read;
+      }
     } catch (IOException e) {
       LOG.warn("File not found", e);
       throw new FileNotFoundException();
     }
+    return buffer.array();
   }
 
-  byte[] readFromContainer(int from, int to) {
+  /**
+   * Reads from the given position of the container into the buffer, as much as it fits.
+   *
+   * @return The number of read bytes.
+   */
+  int readFromContainer(ByteBuffer buffer, long position) {
+    int read = 0;
     try {
-      RandomAccessFile raf = new RandomAccessFile(BASE_PHYSICAL_PATH + CONTAINER_NAME, "r");
-      byte[] output = new byte[to - from];
-      raf.seek(from);
-      raf.readFully(output, 0, to - from);
-      return output;
+      while (buffer.hasRemaining()) {
+        int chunk = channel.read(buffer, position + read);
+        if (chunk < 0) {
+          LOG.warn("Reached the end of the container reading from {}", position);
+          throw new FileNotFoundException();
+        }
+        read += chunk;
+      }
     } catch (IOException e) {
       LOG.warn("File not found", e);
       throw new FileNotFoundException();
     }
+    return read;
+  }
+
+  /**
+   * Streams a range of the container, so it's never held in memory as a whole (it can be longer
+   * than {@link Integer#MAX_VALUE}). It's read in chunks, and it supports {@link
+   * InputStream#mark(int)} within a chunk.
+   */
+  InputStream openInputStream(long from, long to) {
+    ReadableByteChannel range =
+        new ReadableByteChannel() {
+          private long position = from;
+          private boolean open = true;
+
+          @Override
+          public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+              throw new ClosedChannelException();
+            }
+            if (position >= to) {
+              return -1;
+            }
+            int limit = dst.limit();
+            dst.limit(dst.position() + (int) Math.min(dst.remaining(), to - position));
+            try {
+              int read = readFromContainer(dst, position);
+              position += read;
+              return read;
+            } finally {
+              dst.limit(limit);
+            }
+          }
+
+          @Override
+          public boolean isOpen() {
+            return open;
+          }
+
+          @Override
+          public void close() {
+            open = false;
+          }
+        };
+    return new BufferedInputStream(Channels.newInputStream(range), copyChunkSize);
   }
 
-  void dropFromContainer(int from, int to) {
-    byte[] emptyData = new byte[to - from];
-    Arrays.fill(emptyData, (byte) 0);
-    storeInContainer(emptyData, from);
+  /**
+   * Reads a range from the container as a read-only {@link ByteBuffer}.
+   *
+   * <p>Implementations may return a view over the container (without copying it into the heap), so
+   * the buffer shouldn't be kept after the range has been modified, nor after the container has
+   * been resized (see {@link #resizeContainer(Extent)}).
+   */
+  ByteBuffer readBufferFromContainer(long from, long to) {
+    return ByteBuffer.wrap(readFromContainer(from, to)).asReadOnlyBuffer();
+  }
+
+  /**
+   * Transfers a range of the container to the given channel, without copying it into the heap (the
+   * operating system can send it straight from its page cache, e.g. to a socket).
+   *
+   * @param target A blocking channel. A non-blocking one would be retried until it takes the whole
+   *     range.
+   */
+  void transferFromContainer(long from, long to, WritableByteChannel target) {
+    try {
+      long offset = from;
+      while (offset < to) {
+        offset += channel.transferTo(offset, to - offset, target);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to transfer [{}, {}) from the container", from, to, e);
+      throw new IllegalStateException();
+    }
+  }
+
+  /** Fills a range of the container with zeros, in chunks, without allocating it in the heap. */
+  void dropFromContainer(long from, long to) {
+    for (long position = from; position < to; position += copyChunkSize) {
+      storeInContainer(
+          zeros.duplicate().limit((int) Math.min(copyChunkSize, to - position)), position);
+    }
+  }
+
+  /**
+   * Copies the range {@code [from, to)} of the container to {@code target}, through a direct
+   * buffer, in chunks. The content never goes through the heap.
+   *
+   * <p>Both ranges can overlap: the chunks are copied in the direction that never overwrites a
+   * chunk before it's read.
+   */
+  void copyWithinContainer(long from, long to, long target) {
+    long length = to - from;
+    if (length <= 0 || from == target) {
+      return;
+    }
+    synchronized (copyBuffer) {
+      for (long copied = 0; copied < length; copied += copyChunkSize) {
+        int chunkLength = (int) Math.min(copyChunkSize, length - copied);
+        // Moving forward, the chunks are copied from the end of the range.
+        long offset = target < from ? copied : length - copied - chunkLength;
+        copyBuffer.clear().limit(chunkLength);
+        readFromContainer(copyBuffer, from + offset);
+        storeInContainer(copyBuffer.flip(), target + offset);
+      }
+    }
   }
 
   boolean isAllowedToWriteInContainer() {
-    java.io.File f = new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME);
-    return f.exists() && f.canWrite() && !f.isDirectory();
+    java.io.File f = containerPath.toFile();
+    return channel.isOpen() && f.exists() && f.canWrite() && !f.isDirectory();
   }
 
   long getContainerSize() {
     try {
-      RandomAccessFile raf = new RandomAccessFile(BASE_PHYSICAL_PATH + CONTAINER_NAME, "r");
-      return raf.length();
-    } catch (java.io.FileNotFoundException e) {
-      LOG.warn("File not found", e);
-      throw new FileNotFoundException();
+      return channel.size();
     } catch (IOException e) {
       LOG.warn("An error has occurred", e);
       throw new IllegalStateException();
     }
   }
 
-  void resizeContainer(FileMetaData fileMetaData) {
-    try (FileChannel outChan =
-        new FileOutputStream(BASE_PHYSICAL_PATH + CONTAINER_NAME, true).getChannel()) {
-      outChan.truncate(fileMetaData.getFrom());
+  void resizeContainer(Extent emptySpace) {
+    try {
+      channel.truncate(emptySpace.getFrom());
     } catch (IOException e) {
       LOG.warn("An error has occurred", e);
       throw new IllegalStateException();
     }
   }
+
+  /**
+   * Persists the given index next to the container.
+   *
+   * <p>The index is first written into a temporary file, which then replaces the previous one
+   * atomically. So, a failure in the middle of the operation never leaves a partial index.
+   */
+  void storeIndex(ByteBuffer index) {
+    Path temporaryPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+    try (FileChannel indexChannel =
+        FileChannel.open(temporaryPath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = index.duplicate();
+      while (buffer.hasRemaining()) {
+        indexChannel.write(buffer);
+      }
+      indexChannel.force(true);
+    } catch (IOException e) {
+      LOG.warn("Failed to store the index", e);
+      throw new IllegalStateException();
+    }
+    try {
+      Files.move(temporaryPath, indexPath, ATOMIC_MOVE, REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOG.warn("Failed to replace the index", e);
+      throw new IllegalStateException();
+    }
+  }
+
+  /**
+   * Reads the index persisted next to the container.
+   *
+   * @return The index, or nothing in case it was never persisted.
+   */
+  Optional<ByteBuffer> readIndex() {
+    if (!Files.exists(indexPath)) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(ByteBuffer.wrap(Files.readAllBytes(indexPath)));
+    } catch (IOException e) {
+      LOG.warn("Failed to read the index", e);
+      return Optional.empty();
+    }
+  }
+
+  /** Flushes every pending write of the container to the disk. */
+  void sync() {
+    try {
+      channel.force(false);
+    } catch (IOException e) {
+      LOG.warn("Failed to sync the container", e);
+      throw new IllegalStateException();
+    }
+  }
+
+  void storeInLog(ByteBuffer content, long position) {
+    ByteBuffer buffer = content.duplicate();
+    try {
+      long offset = position;
+      while (buffer.hasRemaining()) {
+        offset += logChannel.write(buffer, offset);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to store in the log", e);
+      throw new IllegalStateException();
+    }
+  }
+
+  /** Reads the whole write-ahead log. */
+  ByteBuffer readLog() {
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate((int) logChannel.size());
+      while (buffer.hasRemaining() && logChannel.read(buffer, buffer.position()) >= 0) {}
+      return buffer.flip();
+    } catch (IOException e) {
+      LOG.warn("Failed to read the log", e);
+      throw new IllegalStateException();
+    }
+  }
+
+  /** Flushes every pending write of the write-ahead log to the disk. */
+  void syncLog() {
+    try {
+      logChannel.force(false);
+    } catch (IOException e) {
+      LOG.warn("Failed to sync the log", e);
+      throw new IllegalStateException();
+    }
+  }
+
+  void truncateLog(long size) {
+    try {
+      logChannel.truncate(size);
+    } catch (IOException e) {
+      LOG.warn("Failed to truncate the log", e);
+      throw new IllegalStateException();
+    }
+  }
+
+  /** Releases the handles of the container and its log. Any further operation will fail. */
+  @Override
+  public void close() {
+    try {
+      channel.close();
+      logChannel.close();
+    } catch (IOException e) {
+      LOG.warn("Failed to close the container", e);
+      throw new IllegalStateException();
+    }
+  }
 }
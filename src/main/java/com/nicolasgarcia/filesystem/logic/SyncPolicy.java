@@ -0,0 +1,59 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import java.time.Duration;
+
+/** Defines when the {@link WriteAheadLog} is flushed to the disk. */
+public final class SyncPolicy {
+  enum Mode {
+    /** Every operation waits until it's durable. Concurrent operations share the same flush. */
+    EVERY_OPERATION,
+    /** The log is flushed periodically. The operations done since the last flush can be lost. */
+    INTERVAL,
+    /** The log is never flushed explicitly, so it relies on the operating system. */
+    NEVER
+  }
+
+  private final Mode mode;
+  private final Duration interval;
+
+  private SyncPolicy(Mode mode, Duration interval) {
+    this.mode = mode;
+    this.interval = interval;
+  }
+
+  /**
+   * Every operation flushes the container and then the log, so it takes two flushes. The flush of
+   * the container comes first, so the log never references content that could be lost.
+   */
+  public static SyncPolicy everyOperation() {
+    return new SyncPolicy(Mode.EVERY_OPERATION, Duration.ZERO);
+  }
+
+  /**
+   * The old location of a replaced or deleted file is only released once its change is flushed, so
+   * the space freed meanwhile can't be reused until the next flush.
+   */
+  public static SyncPolicy every(Duration interval) {
+    if (interval.isNegative() || interval.isZero()) {
+      throw new IllegalArgumentException("The interval should be positive");
+    }
+    return new SyncPolicy(Mode.INTERVAL, interval);
+  }
+
+  public static SyncPolicy never() {
+    return new SyncPolicy(Mode.NEVER, Duration.ZERO);
+  }
+
+  Mode getMode() {
+    return mode;
+  }
+
+  Duration getInterval() {
+    return interval;
+  }
+
+  @Override
+  public String toString() {
+    return mode == Mode.INTERVAL ? mode + "(" + interval.toMillis() + "ms)" : mode.toString();
+  }
+}
@@ -0,0 +1,566 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A write-ahead log of the changes done over the segmentation table.
+ *
+ * <p>Every change is appended to the log (through the {@link StorageService}) before it's applied
+ * in memory. The log only contains the changes done since the last checkpoint, which happens every
+ * time the segmentation table is persisted.
+ *
+ * <p>Every entry has the following layout (big-endian):
+ *
+ * <pre>
+ * | length (4) | crc32 (4) | lsn (8) | type (1) | payload |
+ * </pre>
+ *
+ * <p>Where the length and the checksum cover everything after them. The log sequence number (lsn)
+ * grows across checkpoints, so the persisted table can tell which entries it already contains.
+ *
+ * <p>The entries become durable according to the {@link SyncPolicy}. Concurrent operations waiting
+ * for their entries are flushed together (group commit).
+ *
+ * <p>Some actions can't run until an entry is durable (see {@link #afterDurable(long, Runnable)}),
+ * e.g. erasing the previous version of a file, which would be restored after a crash otherwise.
+ * They run as soon as the entry is flushed or checkpointed.
+ */
+class WriteAheadLog {
+  private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+  private static final int ENTRY_HEADER_SIZE = 2 * Integer.BYTES;
+  private static final int MIN_ENTRY_LENGTH = Long.BYTES + Byte.BYTES;
+  /**
+   * The number of actions waiting for their entries to be durable from which the log is flushed,
+   * regardless of the {@link SyncPolicy}, so the space they release can be reused.
+   */
+  static final int MAX_PENDING_ACTIONS = 1024;
+
+  enum Type {
+    /** A file was stored (or replaced) in a new location. */
+    PUT,
+    /** A file was deleted. */
+    DELETE,
+    /**
+     * An extent of a file was moved by the compaction. It may contain the content of the extent, in
+     * case the move overwrites its old location.
+     */
+    RELOCATE,
+    /** A file was moved to another path. */
+    MOVE,
+    /** A directory was moved to another path, with everything it contains. */
+    MOVE_DIRECTORY,
+    /** Several files were stored and deleted at once. Either all of them are recovered, or none. */
+    BATCH
+  }
+
+  /** An entry read from the log. */
+  static final class Entry {
+    private final long lsn;
+    private final Type type;
+    private final String absolutePath;
+    private final FileMetaData fileMetaData;
+    private final ByteBuffer image;
+    private final long imageOffset;
+    private final String newAbsolutePath;
+    private final List<Entry> entries;
+
+    private Entry(
+        long lsn,
+        Type type,
+        String absolutePath,
+        FileMetaData fileMetaData,
+        ByteBuffer image,
+        long imageOffset,
+        String newAbsolutePath) {
+      this.lsn = lsn;
+      this.type = type;
+      this.absolutePath = absolutePath;
+      this.fileMetaData = fileMetaData;
+      this.image = image;
+      this.imageOffset = imageOffset;
+      this.newAbsolutePath = newAbsolutePath;
+      this.entries = List.of();
+    }
+
+    private Entry(long lsn, List<Entry> entries) {
+      this.lsn = lsn;
+      this.type = Type.BATCH;
+      this.absolutePath = null;
+      this.fileMetaData = null;
+      this.image = null;
+      this.imageOffset = 0;
+      this.newAbsolutePath = null;
+      this.entries = entries;
+    }
+
+    long getLsn() {
+      return lsn;
+    }
+
+    Type getType() {
+      return type;
+    }
+
+    String getAbsolutePath() {
+      return absolutePath;
+    }
+
+    /** The new location of the file. Only for {@link Type#PUT} and {@link Type#RELOCATE}. */
+    FileMetaData getFileMetaData() {
+      return fileMetaData;
+    }
+
+    /**
+     * The content of the moved extent, if the entry is a {@link Type#RELOCATE} that contains it. It
+     * should be written at {@link #getImageOffset()}.
+     */
+    ByteBuffer getImage() {
+      return image;
+    }
+
+    long getImageOffset() {
+      return imageOffset;
+    }
+
+    /** The new path. Only for {@link Type#MOVE} and {@link Type#MOVE_DIRECTORY}. */
+    String getNewAbsolutePath() {
+      return newAbsolutePath;
+    }
+
+    /**
+     * The {@link Type#PUT} and {@link Type#DELETE} entries contained in a {@link Type#BATCH}, which
+     * involve different paths.
+     */
+    List<Entry> getEntries() {
+      return entries;
+    }
+  }
+
+  private final StorageService storageService;
+  private final SyncPolicy syncPolicy;
+  private final ScheduledExecutorService syncScheduler;
+  private final Object syncLock = new Object();
+  /** The lsn of the last appended entry. Guarded by {@code this}. */
+  private long lastLsn;
+  /** The size of the log. Guarded by {@code this}. */
+  private long logSize;
+  /** The lsn of the last entry known to be durable. */
+  private volatile long syncedLsn;
+  /** The actions waiting for an entry to be durable, by its lsn. Guarded by itself. */
+  private final NavigableMap<Long, List<Runnable>> pendingActions = new TreeMap<>();
+  /** The number of actions in {@link #pendingActions}. Guarded by it. */
+  private int pendingActionCount;
+
+  WriteAheadLog(StorageService storageService, SyncPolicy syncPolicy) {
+    this.storageService = storageService;
+    this.syncPolicy = syncPolicy;
+    if (syncPolicy.getMode() == SyncPolicy.Mode.INTERVAL) {
+      long interval = syncPolicy.getInterval().toMillis();
+      this.syncScheduler =
+          Executors.newSingleThreadScheduledExecutor(
+              runnable -> {
+                Thread thread = new Thread(runnable, "wal-sync");
+                thread.setDaemon(true);
+                return thread;
+              });
+      syncScheduler.scheduleWithFixedDelay(
+          this::syncPending, interval, interval, TimeUnit.MILLISECONDS);
+    } else {
+      this.syncScheduler = null;
+    }
+  }
+
+  long logPut(FileMetaData fileMetaData) {
+    return append(Type.PUT, fileMetaData.getAbsolutePath(), fileMetaData, null, 0, null);
+  }
+
+  long logDelete(String absolutePath) {
+    return append(Type.DELETE, absolutePath, null, null, 0, null);
+  }
+
+  long logMove(String absolutePath, String newAbsolutePath) {
+    return append(Type.MOVE, absolutePath, null, null, 0, newAbsolutePath);
+  }
+
+  long logDirectoryMove(String directoryPath, String newDirectoryPath) {
+    return append(Type.MOVE_DIRECTORY, directoryPath, null, null, 0, newDirectoryPath);
+  }
+
+  /**
+   * Logs several changes as a single entry, so they are recovered atomically.
+   *
+   * @param fileMetaData The stored files.
+   * @param deletedPaths The paths of the deleted files, which can't be stored as well.
+   */
+  long logBatch(List<FileMetaData> fileMetaData, Collection<String> deletedPaths) {
+    return append(lsn -> encodeBatch(lsn, fileMetaData, deletedPaths));
+  }
+
+  /**
+   * @param fileMetaData The file, with the moved extent in its new location.
+   * @param image The content of the moved extent, if the move overwrites its old location.
+   *     Otherwise, it should be null.
+   * @param imageOffset The new location of the moved extent.
+   */
+  long logRelocation(FileMetaData fileMetaData, ByteBuffer image, long imageOffset) {
+    return append(
+        Type.RELOCATE, fileMetaData.getAbsolutePath(), fileMetaData, image, imageOffset, null);
+  }
+
+  /** Waits until the given entry is durable, according to the {@link SyncPolicy}. */
+  void commit(long lsn) {
+    if (syncPolicy.getMode() == SyncPolicy.Mode.EVERY_OPERATION) {
+      force(lsn);
+    }
+  }
+
+  /**
+   * Runs an action once the given entry is durable: right away if it already is, or otherwise in
+   * the thread that flushes or checkpoints it. So, it shouldn't need any lock held by the caller.
+   *
+   * <p>Once {@link #MAX_PENDING_ACTIONS} are waiting, the log is flushed, even if the {@link
+   * SyncPolicy} never does it.
+   */
+  void afterDurable(long lsn, Runnable action) {
+    boolean durable;
+    int pending = 0;
+    synchronized (pendingActions) {
+      durable = syncedLsn >= lsn;
+      if (!durable) {
+        pendingActions.computeIfAbsent(lsn, key -> new ArrayList<>()).add(action);
+        pending = ++pendingActionCount;
+      }
+    }
+    if (durable) {
+      action.run();
+    } else if (pending >= MAX_PENDING_ACTIONS) {
+      force(lsn);
+    }
+  }
+
+  /**
+   * Waits until the given entry is durable, regardless of the {@link SyncPolicy}.
+   *
+   * <p>Only one thread flushes the log at a time. The rest of them wait for it, and they only flush
+   * it again if their entries were appended after that flush started.
+   */
+  void force(long lsn) {
+    if (syncedLsn >= lsn) {
+      return;
+    }
+    synchronized (syncLock) {
+      if (syncedLsn >= lsn) {
+        return;
+      }
+      long lsnToSync;
+      synchronized (this) {
+        lsnToSync = lastLsn;
+      }
+      // The content referenced by the entries should be durable before them.
+      storageService.sync();
+      storageService.syncLog();
+      syncedLsn = Math.max(syncedLsn, lsnToSync);
+    }
+    runDurableActions();
+  }
+
+  /** Runs the pending actions whose entries are durable, in the order of their entries. */
+  private void runDurableActions() {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (pendingActions) {
+      Map<Long, List<Runnable>> durableActions = pendingActions.headMap(syncedLsn, true);
+      durableActions.values().forEach(actions::addAll);
+      durableActions.clear();
+      pendingActionCount -= actions.size();
+    }
+    actions.forEach(Runnable::run);
+  }
+
+  synchronized long getLastLsn() {
+    return lastLsn;
+  }
+
+  /**
+   * Reads the log, and returns the entries that were appended after the given lsn.
+   *
+   * <p>The log is read until the first incomplete or corrupted entry (e.g. one that was being
+   * written when the process crashed). That entry and everything after it is truncated.
+   */
+  synchronized List<Entry> recover(long checkpointLsn) {
+    ByteBuffer log = storageService.readLog();
+    List<Entry> entries = new ArrayList<>();
+    lastLsn = checkpointLsn;
+    if (log == null) {
+      return entries;
+    }
+
+    int validSize = log.position();
+    while (log.remaining() >= ENTRY_HEADER_SIZE) {
+      int length = log.getInt();
+      int checksum = log.getInt();
+      if (length < MIN_ENTRY_LENGTH || length > log.remaining()) {
+        break;
+      }
+      ByteBuffer body = log.slice().limit(length);
+      if (checksum(body) != checksum) {
+        break;
+      }
+      log.position(log.position() + length);
+      validSize = log.position();
+
+      Entry entry = decode(body);
+      lastLsn = Math.max(lastLsn, entry.getLsn());
+      if (entry.getLsn() > checkpointLsn) {
+        entries.add(entry);
+      }
+    }
+
+    if (validSize < log.limit()) {
+      LOG.warn("Truncating the log at {} bytes (it had {} bytes)", validSize, log.limit());
+      storageService.truncateLog(validSize);
+    }
+    logSize = validSize;
+    syncedLsn = lastLsn;
+    return entries;
+  }
+
+  /**
+   * Discards the whole log. It should only be called once every entry is contained in the persisted
+   * segmentation table, so they are all durable.
+   */
+  void checkpoint() {
+    long checkpointLsn;
+    synchronized (this) {
+      storageService.truncateLog(0);
+      logSize = 0;
+      checkpointLsn = lastLsn;
+    }
+    synchronized (syncLock) {
+      syncedLsn = Math.max(syncedLsn, checkpointLsn);
+    }
+    runDurableActions();
+  }
+
+  /** Stops the periodic flushes, and flushes the pending entries (unless the policy is never). */
+  void close() {
+    if (syncScheduler != null) {
+      syncScheduler.shutdownNow();
+    }
+    if (syncPolicy.getMode() != SyncPolicy.Mode.NEVER) {
+      syncPending();
+    }
+  }
+
+  private void syncPending() {
+    try {
+      force(getLastLsn());
+    } catch (RuntimeException e) {
+      LOG.warn("Failed to sync the log", e);
+    }
+  }
+
+  private long append(
+      Type type,
+      String absolutePath,
+      FileMetaData fileMetaData,
+      ByteBuffer image,
+      long imageOffset,
+      String newAbsolutePath) {
+    return append(
+        lsn -> encode(lsn, type, absolutePath, fileMetaData, image, imageOffset, newAbsolutePath));
+  }
+
+  /**
+   * @param encoder Encodes the entry, given its lsn.
+   */
+  private synchronized long append(LongFunction<ByteBuffer> encoder) {
+    long lsn = ++lastLsn;
+    ByteBuffer entry = encoder.apply(lsn);
+    storageService.storeInLog(entry, logSize);
+    logSize += entry.remaining();
+    return lsn;
+  }
+
+  private static ByteBuffer encode(
+      long lsn,
+      Type type,
+      String absolutePath,
+      FileMetaData fileMetaData,
+      ByteBuffer image,
+      long imageOffset,
+      String newAbsolutePath) {
+    byte[] path = absolutePath.getBytes(StandardCharsets.UTF_8);
+    byte[] newPath =
+        newAbsolutePath == null ? null : newAbsolutePath.getBytes(StandardCharsets.UTF_8);
+    int length = MIN_ENTRY_LENGTH + Integer.BYTES + path.length;
+    if (newPath != null) {
+      length += Integer.BYTES + newPath.length;
+    }
+    if (fileMetaData != null) {
+      length += getEncodedLength(fileMetaData);
+    }
+    if (type == Type.RELOCATE) {
+      length += Long.BYTES + Integer.BYTES + (image == null ? 0 : image.remaining());
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(ENTRY_HEADER_SIZE + length);
+    buffer.putInt(length).putInt(0).putLong(lsn).put((byte) type.ordinal());
+    buffer.putInt(path.length).put(path);
+    if (newPath != null) {
+      buffer.putInt(newPath.length).put(newPath);
+    }
+    if (fileMetaData != null) {
+      encodeFileMetaData(buffer, fileMetaData);
+    }
+    if (type == Type.RELOCATE) {
+      buffer.putLong(imageOffset).putInt(image == null ? -1 : image.remaining());
+      if (image != null) {
+        buffer.put(image.duplicate());
+      }
+    }
+    return seal(buffer);
+  }
+
+  /**
+   * The payload of a {@link Type#BATCH} is the number of stored files, followed by the path and the
+   * metadata of every one of them, and the number of deleted files, followed by their paths.
+   */
+  private static ByteBuffer encodeBatch(
+      long lsn, List<FileMetaData> fileMetaData, Collection<String> deletedPaths) {
+    List<byte[]> paths = new ArrayList<>(fileMetaData.size());
+    int length = MIN_ENTRY_LENGTH + 2 * Integer.BYTES;
+    for (FileMetaData file : fileMetaData) {
+      byte[] path = file.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+      paths.add(path);
+      length += Integer.BYTES + path.length + getEncodedLength(file);
+    }
+    List<byte[]> deleted = new ArrayList<>(deletedPaths.size());
+    for (String deletedPath : deletedPaths) {
+      byte[] path = deletedPath.getBytes(StandardCharsets.UTF_8);
+      deleted.add(path);
+      length += Integer.BYTES + path.length;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(ENTRY_HEADER_SIZE + length);
+    buffer.putInt(length).putInt(0).putLong(lsn).put((byte) Type.BATCH.ordinal());
+    buffer.putInt(fileMetaData.size());
+    for (int i = 0; i < fileMetaData.size(); i++) {
+      buffer.putInt(paths.get(i).length).put(paths.get(i));
+      encodeFileMetaData(buffer, fileMetaData.get(i));
+    }
+    buffer.putInt(deleted.size());
+    for (byte[] path : deleted) {
+      buffer.putInt(path.length).put(path);
+    }
+    return seal(buffer);
+  }
+
+  private static int getEncodedLength(FileMetaData fileMetaData) {
+    return 2 * Integer.BYTES + Long.BYTES + fileMetaData.getExtents().size() * 2 * Long.BYTES;
+  }
+
+  /**
+   * The metadata of a file is its segment number, its modified time, its number of extents, and the
+   * {@code from} and {@code to} of every extent.
+   */
+  private static void encodeFileMetaData(ByteBuffer buffer, FileMetaData fileMetaData) {
+    buffer
+        .putInt(fileMetaData.getSegmentNumber())
+        .putLong(fileMetaData.getModifiedTime())
+        .putInt(fileMetaData.getExtents().size());
+    for (Extent extent : fileMetaData.getExtents()) {
+      buffer.putLong(extent.getFrom()).putLong(extent.getTo());
+    }
+  }
+
+  /** Fills the checksum of a fully written entry, and flips it so it can be read. */
+  private static ByteBuffer seal(ByteBuffer buffer) {
+    buffer.flip();
+    buffer.putInt(Integer.BYTES, checksum(buffer.duplicate().position(ENTRY_HEADER_SIZE)));
+    return buffer;
+  }
+
+  private static Entry decode(ByteBuffer body) {
+    long lsn = body.getLong();
+    Type type = Type.values()[body.get()];
+    if (type == Type.BATCH) {
+      return decodeBatch(lsn, body);
+    }
+    String absolutePath = decodePath(body);
+    if (type == Type.DELETE) {
+      return new Entry(lsn, type, absolutePath, null, null, 0, null);
+    }
+    if (type == Type.MOVE || type == Type.MOVE_DIRECTORY) {
+      return new Entry(lsn, type, absolutePath, null, null, 0, decodePath(body));
+    }
+
+    FileMetaData fileMetaData = decodeFileMetaData(body, absolutePath);
+    ByteBuffer image = null;
+    long imageOffset = 0;
+    if (type == Type.RELOCATE) {
+      imageOffset = body.getLong();
+      int imageLength = body.getInt();
+      if (imageLength >= 0) {
+        image = body.slice().limit(imageLength);
+      }
+    }
+    return new Entry(lsn, type, absolutePath, fileMetaData, image, imageOffset, null);
+  }
+
+  private static Entry decodeBatch(long lsn, ByteBuffer body) {
+    List<Entry> entries = new ArrayList<>();
+    int fileCount = body.getInt();
+    for (int i = 0; i < fileCount; i++) {
+      String absolutePath = decodePath(body);
+      FileMetaData fileMetaData = decodeFileMetaData(body, absolutePath);
+      entries.add(new Entry(lsn, Type.PUT, absolutePath, fileMetaData, null, 0, null));
+    }
+    int deletedCount = body.getInt();
+    for (int i = 0; i < deletedCount; i++) {
+      entries.add(new Entry(lsn, Type.DELETE, decodePath(body), null, null, 0, null));
+    }
+    return new Entry(lsn, entries);
+  }
+
+  private static FileMetaData decodeFileMetaData(ByteBuffer body, String absolutePath) {
+    int segmentNumber = body.getInt();
+    long modifiedTime = body.getLong();
+    List<Extent> extents = new ArrayList<>();
+    int extentCount = body.getInt();
+    for (int i = 0; i < extentCount; i++) {
+      extents.add(new Extent(body.getLong(), body.getLong()));
+    }
+    return new FileMetaData(
+        SegmentationTableService.getFileName(absolutePath),
+        absolutePath,
+        extents,
+        segmentNumber,
+        modifiedTime);
+  }
+
+  private static String decodePath(ByteBuffer body) {
+    byte[] path = new byte[body.getInt()];
+    body.get(path);
+    return new String(path, StandardCharsets.UTF_8);
+  }
+
+  private static int checksum(ByteBuffer buffer) {
+    CRC32 crc = new CRC32();
+    crc.update(buffer.duplicate());
+    return (int) crc.getValue();
+  }
+}
@@ -1,10 +1,183 @@
 package com.nicolasgarcia.filesystem.utils;
 
+import com.nicolasgarcia.filesystem.api.File;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 
+/**
+ * Utilities to convert a {@link File} from/to the records stored in the container.
+ *
+ * <p>Every record has the following layout (big-endian):
+ *
+ * <pre>
+ * | magic (4) | version (1) | flags (1) | content |
+ * </pre>
+ *
+ * <p>The content takes the rest of the record, so the length of the record is the only thing needed
+ * to decode it, and appending to a file doesn't require to rewrite its header. A record without the
+ * {@link #HAS_CONTENT} flag and without content means that the file has no content at all (e.g. it
+ * was just created).
+ *
+ * <p>The path of the file isn't part of the record. It's only kept in the segmentation table, so
+ * files can be renamed or moved without touching their records.
+ */
 public class SerializationUtils {
+  /** The first bytes of every record ("FSRC"). */
+  public static final int RECORD_MAGIC = 0x46535243;
+  /** The current version of the record layout. */
+  public static final byte RECORD_VERSION = 1;
+  /** The size of the fixed part of every record. */
+  public static final int RECORD_HEADER_SIZE = Integer.BYTES + 2 * Byte.BYTES;
+  /** The flag set when the file has content, even if it's empty. */
+  private static final byte HAS_CONTENT = 1;
+  /** The first bytes of a stream written by {@link ObjectOutputStream}. */
+  private static final short LEGACY_STREAM_MAGIC = (short) 0xACED;
+
+  /**
+   * Encodes the content of a file as a record. Its path isn't encoded.
+   *
+   * @return A buffer ready to be read, which contains the whole record.
+   */
+  public static ByteBuffer encode(File file) {
+    ByteBuffer buffer = ByteBuffer.allocate(getRecordLength(file));
+    encode(file, buffer);
+    return buffer.flip();
+  }
+
+  /**
+   * Encodes the content of a file as a record, at the current position of the given buffer, so
+   * several records can be written together.
+   *
+   * @param buffer A buffer with at least {@link #getRecordLength(File)} bytes remaining.
+   */
+  public static void encode(File file, ByteBuffer buffer) {
+    byte[] content = file.getContent();
+    putHeader(buffer, content != null);
+    if (content != null) {
+      buffer.put(content);
+    }
+  }
+
+  /** The length of the record that stores the given file. */
+  public static int getRecordLength(File file) {
+    byte[] content = file.getContent();
+    return RECORD_HEADER_SIZE + (content == null ? 0 : content.length);
+  }
+
+  /**
+   * Encodes the beginning of a record (everything but the content), so the content can be written
+   * right after it without holding it in memory.
+   *
+   * @return A buffer ready to be read, which contains the header.
+   */
+  public static ByteBuffer encodeHeader(boolean hasContent) {
+    ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    putHeader(buffer, hasContent);
+    return buffer.flip();
+  }
+
+  /**
+   * The offset where the content starts, relative to the beginning of the record placed at the
+   * current position of the buffer. Only the fixed part of the record is needed ({@link
+   * #RECORD_HEADER_SIZE} bytes).
+   *
+   * @throws IllegalArgumentException if the buffer doesn't contain a valid header.
+   */
+  public static int getContentOffset(ByteBuffer header) {
+    validateHeader(header);
+    return RECORD_HEADER_SIZE;
+  }
+
+  /**
+   * Decodes the record placed at the current position of the buffer. The record takes the rest of
+   * the buffer.
+   *
+   * @param absolutePath The path of the file, which isn't part of the record.
+   * @throws IllegalArgumentException if the buffer doesn't contain a valid record.
+   */
+  public static File decode(ByteBuffer buffer, String absolutePath) {
+    ByteBuffer content = decodeContent(buffer);
+    if (content == null) {
+      return new File(absolutePath, null);
+    }
+    byte[] bytes = new byte[content.remaining()];
+    content.get(bytes);
+    return new File(absolutePath, bytes);
+  }
+
+  /**
+   * Finds the content of the record placed at the current position of the buffer, without copying
+   * it. The record takes the rest of the buffer.
+   *
+   * @return A view of the content (sharing the bytes of the given buffer), or null if the file has
+   *     no content at all.
+   * @throws IllegalArgumentException if the buffer doesn't contain a valid record.
+   */
+  public static ByteBuffer decodeContent(ByteBuffer buffer) {
+    validateHeader(buffer);
+    int start = buffer.position();
+    ByteBuffer content = buffer.duplicate().position(start + RECORD_HEADER_SIZE);
+    boolean hasContent = (buffer.get(start + Integer.BYTES + Byte.BYTES) & HAS_CONTENT) != 0;
+    if (!hasContent && !content.hasRemaining()) {
+      return null;
+    }
+    return content.slice();
+  }
+
+  private static void putHeader(ByteBuffer buffer, boolean hasContent) {
+    buffer.putInt(RECORD_MAGIC).put(RECORD_VERSION).put(hasContent ? HAS_CONTENT : 0);
+  }
+
+  private static void validateHeader(ByteBuffer header) {
+    if (!isRecord(header)) {
+      throw new IllegalArgumentException("The buffer doesn't start with a record");
+    }
+    byte version = header.get(header.position() + Integer.BYTES);
+    if (version != RECORD_VERSION) {
+      throw new IllegalArgumentException("Unsupported record version: " + version);
+    }
+  }
+
+  /** Whether the buffer contains a record at its current position. */
+  public static boolean isRecord(ByteBuffer buffer) {
+    return buffer.remaining() >= RECORD_HEADER_SIZE
+        && buffer.getInt(buffer.position()) == RECORD_MAGIC;
+  }
+
+  /** Whether the buffer contains a record written with {@link #serialize(Object)}. */
+  public static boolean isLegacyRecord(ByteBuffer buffer) {
+    return buffer.remaining() >= Short.BYTES
+        && buffer.getShort(buffer.position()) == LEGACY_STREAM_MAGIC;
+  }
+
+  /**
+   * Whether the stream contains a record written with {@link #serialize(Object)} at its current
+   * position. Nothing is consumed from the stream, so it should support {@link
+   * InputStream#mark(int)}.
+   *
+   * @throws IllegalArgumentException if the stream can't be read.
+   */
+  public static boolean isLegacyRecord(InputStream inputStream) {
+    try {
+      inputStream.mark(Short.BYTES);
+      int magic = inputStream.read() << Byte.SIZE | inputStream.read();
+      inputStream.reset();
+      return magic == Short.toUnsignedInt(LEGACY_STREAM_MAGIC);
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Failed to read the stream", ex);
+    }
+  }
+
+  /**
+   * Serializes an object with the Java serialization.
+   *
+   * <p>Note that it's only kept to deal with containers written before the current record layout
+   * was introduced. Use {@link #encode(File)} instead.
+   */
   public static byte[] serialize(Object object) {
     if (object == null) {
       return null;
@@ -20,4 +193,23 @@ public class SerializationUtils {
     }
     return baos.toByteArray();
   }
+
+  /**
+   * Deserializes a single {@link File} written with {@link #serialize(Object)}.
+   *
+   * <p>Only the bytes of that object are consumed from the stream.
+   *
+   * @throws IllegalArgumentException if the stream doesn't contain a valid file.
+   */
+  public static File deserialize(InputStream inputStream) {
+    try {
+      Object object = new ObjectInputStream(inputStream).readObject();
+      if (!(object instanceof File)) {
+        throw new IllegalArgumentException("The stream doesn't contain a file");
+      }
+      return (File) object;
+    } catch (IOException | ClassNotFoundException ex) {
+      throw new IllegalArgumentException("Failed to deserialize the file", ex);
+    }
+  }
 }
@@ -0,0 +1,167 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.nicolasgarcia.filesystem.api.Batch;
+import com.nicolasgarcia.filesystem.api.File;
+import com.nicolasgarcia.filesystem.api.FileService;
+import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
+
+@Tag("unit")
+class AsyncFileServiceImplTest {
+  private static final String ABSOLUTE_PATH = "/nico/projects/jetbrains/testing/test.json";
+  private static final byte[] CONTENT_BYTES = "This is my first file".getBytes();
+  private static final File FILE = new File(ABSOLUTE_PATH, CONTENT_BYTES);
+  private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+  @Captor private ArgumentCaptor<List<File>> filesCaptor;
+  private AutoCloseable mocks;
+
+  @BeforeEach
+  void setUp() {
+    mocks = MockitoAnnotations.openMocks(this);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    mocks.close();
+  }
+
+  @Test
+  void runOperations() throws Exception {
+    FileService fileService = mock(FileService.class);
+    when(fileService.read(ABSOLUTE_PATH)).thenReturn(FILE);
+    when(fileService.list("/nico")).thenReturn(List.of("/nico/projects"));
+    AsyncFileServiceImpl asyncFileService = new AsyncFileServiceImpl(fileService);
+
+    assertThat(asyncFileService.read(ABSOLUTE_PATH).get()).isSameAs(FILE);
+    assertThat(asyncFileService.list("/nico").get()).containsExactly("/nico/projects");
+    asyncFileService.write(ABSOLUTE_PATH, CONTENT_BYTES).get();
+    verify(fileService).write(ABSOLUTE_PATH, CONTENT_BYTES);
+    asyncFileService.move(ABSOLUTE_PATH, "/another").get();
+    verify(fileService).move(ABSOLUTE_PATH, "/another");
+
+    asyncFileService.close();
+    verify(fileService).close();
+    assertThat(asyncFileService.read(ABSOLUTE_PATH)).isCompletedExceptionally();
+  }
+
+  @Test
+  void commitBatches() throws Exception {
+    FileManager fileManager = mock(FileManager.class);
+    AsyncFileServiceImpl asyncFileService =
+        new AsyncFileServiceImpl(new FileServiceImpl(fileManager));
+
+    Batch batch = asyncFileService.batch().write(ABSOLUTE_PATH, CONTENT_BYTES).delete("/another");
+    verify(fileManager, never()).commit(any(), any());
+    asyncFileService.commit(batch).get();
+    verify(fileManager).commit(filesCaptor.capture(), eq(Set.of("/another")));
+    assertThat(filesCaptor.getValue())
+        .singleElement()
+        .extracting(File::getAbsolutePath)
+        .isEqualTo(ABSOLUTE_PATH);
+
+    CompletableFuture<Void> future = asyncFileService.commit(batch);
+    assertThatExceptionOfType(ExecutionException.class)
+        .isThrownBy(future::get)
+        .withCauseInstanceOf(IllegalStateException.class);
+    asyncFileService.close();
+  }
+
+  @Test
+  void failedOperations() {
+    FileService fileService = mock(FileService.class);
+    when(fileService.read(ABSOLUTE_PATH)).thenThrow(new FileNotFoundException());
+    AsyncFileServiceImpl asyncFileService = new AsyncFileServiceImpl(fileService);
+
+    CompletableFuture<File> future = asyncFileService.read(ABSOLUTE_PATH);
+    assertThatExceptionOfType(ExecutionException.class)
+        .isThrownBy(future::get)
+        .withCauseInstanceOf(FileNotFoundException.class);
+    asyncFileService.close();
+  }
+
+  @Test
+  void rejectTooManyPendingOperations() throws Exception {
+    FileService fileService = mock(FileService.class);
+    List<Runnable> queue = new ArrayList<>();
+    AsyncFileServiceImpl asyncFileService =
+        new AsyncFileServiceImpl(fileService, queue::add, 2, TIMEOUT);
+
+    CompletableFuture<Void> first = asyncFileService.delete(ABSOLUTE_PATH);
+    CompletableFuture<Void> second = asyncFileService.delete(ABSOLUTE_PATH);
+    CompletableFuture<Void> rejected = asyncFileService.delete(ABSOLUTE_PATH);
+    assertThatExceptionOfType(ExecutionException.class)
+        .isThrownBy(rejected::get)
+        .withCauseInstanceOf(RejectedExecutionException.class);
+    assertThat(asyncFileService.metrics())
+        .containsEntry("async_pending_operations", "2")
+        .containsEntry("async_rejected_operations", "1");
+
+    // Once the pending operations are done, new ones are accepted again.
+    queue.forEach(Runnable::run);
+    queue.clear();
+    first.get();
+    second.get();
+    CompletableFuture<Void> accepted = asyncFileService.delete(ABSOLUTE_PATH);
+    queue.forEach(Runnable::run);
+    accepted.get();
+    verify(fileService, times(3)).delete(ABSOLUTE_PATH);
+    assertThat(asyncFileService.metrics()).containsEntry("async_pending_operations", "0");
+  }
+
+  @Test
+  void timeOutOperations() {
+    FileService fileService = mock(FileService.class);
+    when(fileService.metrics()).thenReturn(Map.of("container_size", "0"));
+    List<Runnable> queue = new ArrayList<>();
+    AsyncFileServiceImpl asyncFileService =
+        new AsyncFileServiceImpl(fileService, queue::add, 2, Duration.ofMillis(10));
+
+    CompletableFuture<File> future = asyncFileService.read(ABSOLUTE_PATH);
+    assertThatExceptionOfType(ExecutionException.class)
+        .isThrownBy(future::get)
+        .withCauseInstanceOf(TimeoutException.class);
+
+    // The operation timed out before it started, so it's skipped.
+    queue.forEach(Runnable::run);
+    verify(fileService, never()).read(ABSOLUTE_PATH);
+    assertThat(asyncFileService.metrics())
+        .containsEntry("container_size", "0")
+        .containsEntry("async_pending_operations", "0")
+        .containsEntry("async_timed_out_operations", "1");
+  }
+
+  @Test
+  void invalidLimits() {
+    FileService fileService = mock(FileService.class);
+    assertThatExceptionOfType(IllegalArgumentException.class)
+        .isThrownBy(() -> new AsyncFileServiceImpl(fileService, Runnable::run, 0, TIMEOUT));
+    assertThatExceptionOfType(IllegalArgumentException.class)
+        .isThrownBy(() -> new AsyncFileServiceImpl(fileService, Runnable::run, 1, Duration.ZERO));
+  }
+}
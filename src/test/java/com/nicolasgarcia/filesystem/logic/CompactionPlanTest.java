@@ -0,0 +1,70 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("unit")
+class CompactionPlanTest {
+
+  @Test
+  void planEmptyContainer() {
+    CompactionPlan plan = CompactionPlan.create(List.of());
+
+    assertThat(plan.hasNext()).isFalse();
+    assertThat(plan.getBytesToMove()).isZero();
+    assertThat(plan.getCompactedSize()).isZero();
+  }
+
+  @Test
+  void planCompactedContainer() {
+    CompactionPlan plan = CompactionPlan.create(List.of(file("/a", 0, 10), file("/b", 10, 25)));
+
+    assertThat(plan.hasNext()).isFalse();
+    assertThat(plan.getCompactedSize()).isEqualTo(25);
+  }
+
+  @Test
+  void planFragmentedContainer() {
+    FileMetaData first = file("/a", 0, 10);
+    FileMetaData second = file("/b", 20, 25);
+    FileMetaData third = file("/c", 25, 40);
+    FileMetaData fourth = file("/d", 50, 52);
+    CompactionPlan plan = CompactionPlan.create(List.of(first, second, third, fourth));
+
+    List<FileMetaData> movedFiles = new ArrayList<>();
+    List<Long> targets = new ArrayList<>();
+    while (plan.hasNext()) {
+      CompactionPlan.Move move = plan.next();
+      movedFiles.add(move.getFileMetaData());
+      targets.add(move.getTarget());
+    }
+    assertThat(movedFiles).containsExactly(second, third, fourth);
+    assertThat(targets).containsExactly(10L, 15L, 30L);
+    assertThat(plan.size()).isEqualTo(3);
+    assertThat(plan.getBytesToMove()).isEqualTo(22);
+    assertThat(plan.getCompactedSize()).isEqualTo(32);
+  }
+
+  @Test
+  void planFileWithSeveralExtents() {
+    FileMetaData first = file("/a", 0, 10);
+    FileMetaData second =
+        new FileMetaData("b", "/b", List.of(new Extent(20, 30), new Extent(10, 15)), 1);
+    CompactionPlan plan = CompactionPlan.create(List.of(first, second));
+
+    // Every extent is moved on its own, in the order they are placed in the container.
+    CompactionPlan.Move move = plan.next();
+    assertThat(move.getExtent()).isEqualTo(new Extent(20, 30));
+    assertThat(move.getTarget()).isEqualTo(15L);
+    assertThat(plan.hasNext()).isFalse();
+    assertThat(plan.getCompactedSize()).isEqualTo(25);
+  }
+
+  private static FileMetaData file(String absolutePath, int from, int to) {
+    return new FileMetaData(absolutePath.substring(1), absolutePath, from, to, 0);
+  }
+}
@@ -0,0 +1,66 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("unit")
+class CompactionPolicyTest {
+
+  @Test
+  void compactWhenFragmentedAndIdle() {
+    CompactionPolicy policy = CompactionPolicy.of(0.3, Duration.ofSeconds(5), Long.MAX_VALUE);
+
+    assertThat(policy.shouldCompact(1000, 300, Duration.ofSeconds(5))).isTrue();
+    // Not fragmented enough.
+    assertThat(policy.shouldCompact(1000, 299, Duration.ofMinutes(1))).isFalse();
+    // Still changing.
+    assertThat(policy.shouldCompact(1000, 900, Duration.ofSeconds(4))).isFalse();
+    assertThat(policy.shouldCompact(0, 0, Duration.ofMinutes(1))).isFalse();
+  }
+
+  @Test
+  void compactWhenOvershootIsExceeded() {
+    CompactionPolicy policy = CompactionPolicy.of(0.5, Duration.ofHours(1), 1000);
+
+    assertThat(policy.shouldCompact(1_000_000, 1001, Duration.ZERO)).isTrue();
+    assertThat(policy.shouldCompact(1_000_000, 1000, Duration.ZERO)).isFalse();
+  }
+
+  @Test
+  void manual() {
+    CompactionPolicy policy = CompactionPolicy.manual();
+
+    assertThat(policy.isManual()).isTrue();
+    assertThat(policy.shouldCompact(1000, 1000, Duration.ofDays(1))).isFalse();
+    assertThat(CompactionPolicy.of(1, Duration.ZERO, 1).isManual()).isFalse();
+  }
+
+  @Test
+  void throughput() {
+    CompactionPolicy policy = CompactionPolicy.of(0.5, Duration.ZERO, Long.MAX_VALUE);
+
+    assertThat(policy.getBytesPerSecond()).isEqualTo(CompactionPolicy.DEFAULT_BYTES_PER_SECOND);
+    CompactionPolicy throttled = policy.withThroughput(1024);
+    assertThat(throttled.getBytesPerSecond()).isEqualTo(1024);
+    assertThat(throttled.shouldCompact(1000, 500, Duration.ZERO)).isTrue();
+    assertThat(throttled.toString()).endsWith("bytesPerSecond=1024");
+  }
+
+  @Test
+  void invalidPolicies() {
+    assertThatExceptionOfType(IllegalArgumentException.class)
+        .isThrownBy(() -> CompactionPolicy.of(0, Duration.ZERO, Long.MAX_VALUE));
+    assertThatExceptionOfType(IllegalArgumentException.class)
+        .isThrownBy(() -> CompactionPolicy.of(1.1, Duration.ZERO, Long.MAX_VALUE));
+    assertThatExceptionOfType(IllegalArgumentException.class)
+        .isThrownBy(() -> CompactionPolicy.of(0.5, Duration.ofSeconds(-1), Long.MAX_VALUE));
+    assertThatExceptionOfType(IllegalArgumentException.class)
+        .isThrownBy(() -> CompactionPolicy.of(0.5, Duration.ZERO, 0));
+    assertThatExceptionOfType(IllegalArgumentException.class)
+        .isThrownBy(() -> CompactionPolicy.manual().withThroughput(0));
+  }
+}
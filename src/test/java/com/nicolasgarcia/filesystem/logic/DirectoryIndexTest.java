@@ -0,0 +1,195 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("unit")
+class DirectoryIndexTest {
+
+  @Test
+  void sameNameInDifferentDirectories() {
+    DirectoryIndex index = new DirectoryIndex();
+    FileMetaData first = file("/a/x");
+    FileMetaData second = file("/b/x");
+
+    assertThat(index.put(first)).isEmpty();
+    assertThat(index.put(second)).isEmpty();
+    assertThat(index.find("/a/x")).contains(first);
+    assertThat(index.find("/b/x")).contains(second);
+    assertThat(index.find("/c/x")).isEmpty();
+    assertThat(index.find("/a")).isEmpty();
+    assertThat(index.size()).isEqualTo(2);
+  }
+
+  @Test
+  void replaceAndRemove() {
+    DirectoryIndex index = new DirectoryIndex();
+    FileMetaData first = file("/a/b/x");
+    FileMetaData second = new FileMetaData("x", "/a/b/x", 10, 20, 1);
+    index.put(first);
+
+    assertThat(index.put(second)).contains(first);
+    assertThat(index.size()).isEqualTo(1);
+    assertThat(index.remove("/a/b/x")).contains(second);
+    assertThat(index.remove("/a/b/x")).isEmpty();
+    assertThat(index.size()).isZero();
+    // The directories left empty are removed as well.
+    assertThat(index.list("/")).isEmpty();
+  }
+
+  @Test
+  void listDirectory() {
+    DirectoryIndex index = new DirectoryIndex();
+    index.put(file("/a/x"));
+    index.put(file("/a/b/y"));
+    index.put(file("/a/c"));
+    index.put(file("/d/z"));
+
+    assertThat(index.list("/a")).containsExactly("/a/b", "/a/c", "/a/x");
+    assertThat(index.list("/a/")).containsExactly("/a/b", "/a/c", "/a/x");
+    assertThat(index.list("/")).containsExactly("/a", "/d");
+    assertThat(index.list("/e")).isEmpty();
+  }
+
+  @Test
+  void walkDirectory() {
+    DirectoryIndex index = new DirectoryIndex();
+    FileMetaData first = file("/a/x");
+    FileMetaData second = file("/a/b/y");
+    FileMetaData third = file("/d/z");
+    index.put(first);
+    index.put(second);
+    index.put(third);
+
+    assertThat(index.walk("/a")).containsExactlyInAnyOrder(first, second);
+    assertThat(index.walk("/a/b")).containsExactly(second);
+    assertThat(index.getFiles()).containsExactlyInAnyOrder(first, second, third);
+    assertThat(index.walk("/e")).isEmpty();
+  }
+
+  @Test
+  void walkDirectoryLazily() {
+    DirectoryIndex index = new DirectoryIndex();
+    FileMetaData first = file("/a/x");
+    FileMetaData second = file("/a/b/y");
+    FileMetaData third = file("/a/b/c/z");
+    index.put(first);
+    index.put(second);
+    index.put(third);
+    index.put(file("/d/z"));
+
+    List<FileMetaData> visited = new ArrayList<>();
+    index.walk("/a", visited::add);
+    assertThat(visited).containsExactlyInAnyOrder(first, second, third);
+
+    // The walk stops as soon as the visitor says so.
+    visited.clear();
+    index.walk("/", fileMetaData -> visited.add(fileMetaData) && visited.size() < 2);
+    assertThat(visited).hasSize(2);
+  }
+
+  @Test
+  void moveFile() {
+    DirectoryIndex index = new DirectoryIndex();
+    FileMetaData first = file("/a/x");
+    FileMetaData second = file("/b/y");
+    index.put(first);
+    index.put(second);
+
+    assertThat(index.move(first, "/c/z")).isEmpty();
+    assertThat(index.find("/a/x")).isEmpty();
+    assertThat(index.find("/c/z")).map(FileMetaData::getFileName).contains("z");
+    assertThat(index.list("/")).containsExactly("/b", "/c");
+
+    // The file placed in the new path is replaced.
+    assertThat(index.move(index.find("/c/z").get(), "/b/y")).contains(second);
+    assertThat(index.find("/b/y")).map(FileMetaData::getExtents).contains(first.getExtents());
+    assertThat(index.size()).isEqualTo(1);
+  }
+
+  @Test
+  void moveDirectory() {
+    DirectoryIndex index = new DirectoryIndex();
+    index.put(file("/a/b/x"));
+    index.put(file("/a/b/c/y"));
+    index.put(file("/a/z"));
+
+    assertThat(index.moveDirectory("/a/b", "/d/e")).isEqualTo(2);
+    assertThat(index.find("/d/e/x")).map(FileMetaData::getAbsolutePath).contains("/d/e/x");
+    assertThat(index.find("/d/e/c/y")).map(FileMetaData::getAbsolutePath).contains("/d/e/c/y");
+    assertThat(index.list("/a")).containsExactly("/a/z");
+    assertThat(index.isDirectory("/a/b")).isFalse();
+
+    // The directories left empty are removed.
+    assertThat(index.moveDirectory("/a", "/f")).isEqualTo(1);
+    assertThat(index.list("/")).containsExactly("/d", "/f");
+    assertThat(index.size()).isEqualTo(3);
+  }
+
+  @Test
+  void moveDirectoryToInvalidPaths() {
+    DirectoryIndex index = new DirectoryIndex();
+    index.put(file("/a/b/x"));
+    index.put(file("/c/y"));
+
+    assertThatIllegalArgumentException().isThrownBy(() -> index.moveDirectory("/e", "/f"));
+    assertThatIllegalArgumentException().isThrownBy(() -> index.moveDirectory("/a", "/c"));
+    assertThatIllegalArgumentException().isThrownBy(() -> index.moveDirectory("/a", "/a/b/d/e"));
+    assertThat(index.list("/a/b")).containsExactly("/a/b/x");
+  }
+
+  @Test
+  void packModifiedTime() {
+    DirectoryIndex index = new DirectoryIndex();
+    long modifiedTime = 4_000_000_000L;
+    index.put(new FileMetaData("x", "/a/x", List.of(new Extent(0, 10)), -1, modifiedTime));
+
+    FileMetaData fileMetaData = index.find("/a/x").orElseThrow();
+    assertThat(fileMetaData.getModifiedTime()).isEqualTo(modifiedTime);
+    assertThat(fileMetaData.getSegmentNumber()).isEqualTo(-1);
+  }
+
+  @Test
+  void packFiles() {
+    DirectoryIndex index = new DirectoryIndex();
+    FileMetaData fileMetaData =
+        new FileMetaData(
+            "x", "/a/b/x", List.of(new Extent(10, 20), new Extent(40, 45)), Integer.MAX_VALUE);
+    index.put(fileMetaData);
+
+    assertThat(index.find("/a/b/x")).contains(fileMetaData);
+    // The path is written the same way as in the index.
+    assertThat(index.find("/a//b/x/")).map(FileMetaData::getAbsolutePath).contains("/a/b/x");
+    assertThat(index.getExtents()).containsExactly(new Extent(10, 20), new Extent(40, 45));
+    index.put(file("/"));
+    assertThat(index.getFiles()).extracting(FileMetaData::getAbsolutePath).contains("/");
+  }
+
+  @Test
+  void estimateMemory() {
+    DirectoryIndex index = new DirectoryIndex();
+    assertThat(index.estimateMemory()).isZero();
+
+    index.put(file("/a/x"));
+    long oneFile = index.estimateMemory();
+    index.put(file("/a/y"));
+    // The second file shares its directory with the first one.
+    assertThat(index.estimateMemory() - oneFile).isPositive().isLessThan(oneFile);
+    index.moveDirectory("/a", "/bb");
+    assertThat(index.estimateMemory()).isGreaterThan(oneFile);
+
+    index.remove("/bb/x");
+    index.remove("/bb/y");
+    assertThat(index.estimateMemory()).isZero();
+  }
+
+  private static FileMetaData file(String absolutePath) {
+    String fileName = absolutePath.substring(absolutePath.lastIndexOf('/') + 1);
+    return new FileMetaData(fileName, absolutePath, 0, 0, 0);
+  }
+}
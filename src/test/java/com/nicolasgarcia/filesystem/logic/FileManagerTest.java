@@ -1,8 +1,10 @@
 package com.nicolasgarcia.filesystem.logic;
 
-import static com.nicolasgarcia.filesystem.utils.SerializationUtils.serialize;
+import static com.nicolasgarcia.filesystem.utils.SerializationUtils.encode;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 import com.nicolasgarcia.filesystem.api.File;
@@ -36,7 +38,7 @@ class FileManagerTest {
     FileManager fileManager = new FileManager(storageService);
 
     fileManager.save(file);
-    verify(storageService).storeInContainer(serialize(file), 0);
+    verify(storageService).storeInContainer(encode(file), 0);
   }
 
   @Test
@@ -49,9 +51,10 @@ class FileManagerTest {
 
     fileManager.save(file);
     fileManager.save(modifiedFile);
-    verify(storageService).storeInContainer(serialize(file), 0);
-    verify(storageService).dropFromContainer(0, serialize(file).length);
-    verify(storageService).storeInContainer(serialize(modifiedFile), serialize(file).length);
+    verify(storageService).storeInContainer(encode(file), 0);
+    // Only the magic number of the old record is erased.
+    verify(storageService).dropFromContainer(0, Integer.BYTES);
+    verify(storageService).storeInContainer(encode(modifiedFile), encode(file).remaining());
   }
 
   @Test
@@ -62,9 +65,44 @@ class FileManagerTest {
     FileManager fileManager = new FileManager(storageService);
 
     fileManager.save(file);
-    verify(storageService).storeInContainer(serialize(file), 0);
+    verify(storageService).storeInContainer(encode(file), 0);
     fileManager.delete(ABSOLUTE_PATH);
-    verify(storageService).dropFromContainer(0, serialize(file).length);
+    verify(storageService).dropFromContainer(0, Integer.BYTES);
+  }
+
+  @Test
+  void deleteFileWithZeroFill() {
+    File file = new File(ABSOLUTE_PATH, CONTENT1.getBytes(StandardCharsets.UTF_8));
+
+    StorageService storageService = mock(StorageService.class);
+    FileManager fileManager =
+        new FileManager(
+            storageService,
+            SyncPolicy.everyOperation(),
+            FileManager.CONTIGUOUS,
+            CachePolicy.none(),
+            ErasePolicy.ZERO_FILL);
+
+    fileManager.save(file);
+    fileManager.delete(ABSOLUTE_PATH);
+    verify(storageService).dropFromContainer(0, encode(file).remaining());
+  }
+
+  @Test
+  void moveFile() {
+    File file = new File(ABSOLUTE_PATH, CONTENT1.getBytes(StandardCharsets.UTF_8));
+
+    StorageService storageService = mock(StorageService.class);
+    FileManager fileManager = new FileManager(storageService);
+
+    fileManager.save(file);
+    fileManager.move(ABSOLUTE_PATH, BASE_PATH + "/moved.json");
+    // The record stays where it is.
+    verify(storageService).storeInContainer(encode(file), 0);
+    verify(storageService, never()).readBufferFromContainer(anyInt(), anyInt());
+    verify(storageService, never()).dropFromContainer(anyInt(), anyInt());
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> fileManager.move(ABSOLUTE_PATH, BASE_PATH + "/moved.json"));
   }
 
   @Test
@@ -2,25 +2,61 @@ package com.nicolasgarcia.filesystem.logic;
 
 import static com.nicolasgarcia.filesystem.logic.StorageService.BASE_PHYSICAL_PATH;
 import static com.nicolasgarcia.filesystem.logic.StorageService.CONTAINER_NAME;
+import static com.nicolasgarcia.filesystem.logic.StorageService.INDEX_SUFFIX;
+import static com.nicolasgarcia.filesystem.logic.StorageService.LOG_SUFFIX;
+import static com.nicolasgarcia.filesystem.utils.SerializationUtils.encode;
 import static com.nicolasgarcia.filesystem.utils.SerializationUtils.serialize;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.within;
 import static org.junit.jupiter.params.provider.Arguments.arguments;
-import static org.mockito.Mockito.mock;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 
 import com.nicolasgarcia.filesystem.api.File;
+import com.nicolasgarcia.filesystem.api.FileStat;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot.Operation;
 import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
 import com.nicolasgarcia.filesystem.utils.SerializationUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.EnumSource;
 import org.junit.jupiter.params.provider.MethodSource;
 
 @Tag("integration")
@@ -40,34 +76,48 @@ class FileServiceImplIntegrationTest {
 
   @BeforeEach
   void beforeMethod() {
-    java.io.File file = new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME);
-    file.delete();
+    new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME).delete();
+    new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME + INDEX_SUFFIX).delete();
+    new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME + LOG_SUFFIX).delete();
   }
 
   private static Stream<Arguments> writeMultipleFilesTestCases() {
-    /* { initialFiles, toDeleteFiles, expectedEmptyFragments, containerSizeAfterCompacting } */
+    /* { initialFiles, toDeleteFiles, expectedEmptyFragments, containerSizeBeforeCompacting,
+    containerSizeAfterCompacting } */
     return Stream.of(
         // only add files.
         arguments(
             List.of(FILE1, FILE2, FILE3, FILE4),
             List.of(),
             0,
+            getContentLength(List.of(FILE1, FILE2, FILE3, FILE4)),
             getContentLength(List.of(FILE1, FILE2, FILE3, FILE4))),
-        // add files and delete a subgroup of them.
+        // add files and delete a subgroup of them (contiguous fragments are coalesced).
         arguments(
             List.of(FILE1, FILE2, FILE3, FILE4, FILE5),
             List.of(FILE4, FILE5, FILE1, FILE2),
-            4,
+            2,
+            getContentLength(List.of(FILE1, FILE2, FILE3, FILE4, FILE5)),
             getContentLength(List.of(FILE3))),
-        // add the same file multiple times.
+        // add the same file multiple times (the freed space is reused).
         arguments(
-            List.of(FILE1, FILE1, FILE1, FILE1), List.of(), 3, getContentLength(List.of(FILE1))),
+            List.of(FILE1, FILE1, FILE1, FILE1),
+            List.of(),
+            1,
+            getContentLength(List.of(FILE1, FILE1)),
+            getContentLength(List.of(FILE1))),
         // add the same file multiple times, and then delete it.
-        arguments(List.of(FILE1, FILE1, FILE1, FILE1), List.of(FILE1), 4, 0),
+        arguments(
+            List.of(FILE1, FILE1, FILE1, FILE1),
+            List.of(FILE1),
+            1,
+            getContentLength(List.of(FILE1, FILE1)),
+            0),
         arguments(
             List.of(FILE1, FILE2, FILE3, FILE4, FILE5),
             List.of(FILE1, FILE2, FILE3, FILE4, FILE5),
-            5,
+            1,
+            getContentLength(List.of(FILE1, FILE2, FILE3, FILE4, FILE5)),
             0));
   }
 
@@ -77,6 +127,7 @@ class FileServiceImplIntegrationTest {
       List<File> initialFiles,
       List<File> toDeleteFiles,
       int expectedEmptyFragments,
+      int containerSizeBeforeCompacting,
       int containerSizeAfterCompacting) {
     StorageService storageService = new StorageService();
     FileManager fileManager = new FileManager(storageService);
@@ -103,16 +154,18 @@ class FileServiceImplIntegrationTest {
     Map<String, String> metrics = fileService.metrics();
     assertThat(metrics.get("empty_fragments")).isEqualTo(String.valueOf(expectedEmptyFragments));
     assertThat(fileService.metrics().get("container_size"))
-        .isEqualTo(String.valueOf(getContentLength(initialFiles)));
+        .isEqualTo(String.valueOf(containerSizeBeforeCompacting));
 
     fileManager.compactMemory();
     assertThat(fileService.metrics().get("container_size"))
         .isEqualTo(String.valueOf(containerSizeAfterCompacting));
+    fileService.close();
   }
 
-  @Test
-  void writeAndCompact() {
-    StorageService storageService = new StorageService();
+  @ParameterizedTest
+  @EnumSource(StorageService.Mode.class)
+  void writeAndCompact(StorageService.Mode mode) {
+    StorageService storageService = StorageService.open(mode);
     FileManager fileManager = new FileManager(storageService);
     FileServiceImpl fileService = new FileServiceImpl(fileManager);
 
@@ -125,30 +178,1127 @@ class FileServiceImplIntegrationTest {
       fileService.write(FILE2.getAbsolutePath(), FILE2.getContent());
       fileService.delete(FILE2.getAbsolutePath());
     }
-    // write another file.
-    fileService.write(FILE1.getAbsolutePath(), FILE1.getContent());
+    // write a smaller file, which reuses part of the freed space.
+    File smallFile = new File(FILE1.getAbsolutePath(), "some".getBytes(StandardCharsets.UTF_8));
+    fileService.write(smallFile.getAbsolutePath(), smallFile.getContent());
 
-    assertThat(fileService.metrics().get("empty_fragments")).isEqualTo(String.valueOf(5));
+    assertThat(fileService.metrics().get("empty_fragments")).isEqualTo(String.valueOf(1));
     assertThat(fileService.metrics().get("container_size"))
-        .isEqualTo(String.valueOf(serialize(FILE1).length + serialize(FILE2).length * 5));
+        .isEqualTo(String.valueOf(encode(FILE2).remaining()));
 
     // compact the container
     fileManager.compactMemory();
     assertThat(fileService.metrics().get("empty_fragments")).isEqualTo(String.valueOf(0));
     assertThat(fileService.metrics().get("container_size"))
-        .isEqualTo(String.valueOf(serialize(FILE1).length));
+        .isEqualTo(String.valueOf(encode(smallFile).remaining()));
+    // The small file was already at the beginning, so only the space after it is reclaimed.
+    assertThat(fileService.metrics().get("compaction_moved_bytes")).isEqualTo("0");
+    assertThat(fileService.metrics().get("compaction_reclaimed_bytes"))
+        .isEqualTo(String.valueOf(encode(FILE2).remaining() - encode(smallFile).remaining()));
 
     // write another file.
     fileService.write(FILE3.getAbsolutePath(), FILE3.getContent());
     assertThat(fileService.metrics().get("empty_fragments")).isEqualTo(String.valueOf(0));
+    assertThat(fileService.metrics().get("container_size"))
+        .isEqualTo(String.valueOf(getContentLength(List.of(smallFile, FILE3))));
+    fileService.close();
+  }
+
+  @ParameterizedTest
+  @EnumSource(ErasePolicy.class)
+  void eraseDeletedFiles(ErasePolicy erasePolicy) {
+    StorageService storageService = new StorageService();
+    FileManager fileManager =
+        new FileManager(
+            storageService,
+            SyncPolicy.everyOperation(),
+            FileManager.CONTIGUOUS,
+            CachePolicy.none(),
+            erasePolicy);
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    for (File file : List.of(FILE1, FILE2, FILE3)) {
+      fileService.write(file.getAbsolutePath(), file.getContent());
+    }
+    int fileLength = getContentLength(List.of(FILE1));
+
+    // The new content doesn't fit in the space of the deleted file, so it goes to the end.
+    byte[] newContent = (CONTENT + CONTENT).getBytes(StandardCharsets.UTF_8);
+    fileService.delete(FILE1.getAbsolutePath());
+    fileService.write(FILE2.getAbsolutePath(), newContent);
+    byte[] erased = storageService.readFromContainer(0, 2L * fileLength);
+    if (erasePolicy == ErasePolicy.ZERO_FILL) {
+      assertThat(erased).containsOnly(0);
+    } else {
+      // Only the magic numbers are erased, so the records can't be read anymore.
+      assertThat(Arrays.copyOfRange(erased, 0, Integer.BYTES)).containsOnly(0);
+      assertThat(Arrays.copyOfRange(erased, fileLength, fileLength + Integer.BYTES))
+          .containsOnly(0);
+      assertThat(new String(erased, StandardCharsets.UTF_8)).contains(CONTENT);
+    }
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> fileService.read(FILE1.getAbsolutePath()));
+    assertThat(fileService.read(FILE2.getAbsolutePath()).getContent()).isEqualTo(newContent);
+
+    // The compaction gets rid of the erased records either way.
+    fileManager.compactMemory();
+    assertThat(fileService.metrics().get("container_size"))
+        .isEqualTo(String.valueOf(2 * fileLength + CONTENT.length()));
+    assertThat(fileService.read(FILE3.getAbsolutePath()).getContent())
+        .isEqualTo(FILE3.getContent());
+    fileService.close();
+  }
+
+  @Test
+  void appendInPlaceAndInNewExtents() throws IOException {
+    FileManager fileManager = new FileManager(new StorageService());
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    byte[] more = "-more".getBytes(StandardCharsets.UTF_8);
+    byte[] expectedContent = (CONTENT + "-more-more").getBytes(StandardCharsets.UTF_8);
+
+    // The file is at the end of the container, so it grows in place.
+    fileService.write(FILE1.getAbsolutePath(), FILE1.getContent());
+    fileService.append(FILE1.getAbsolutePath(), more);
+    assertThat(fileService.metrics().get("container_size"))
+        .isEqualTo(String.valueOf(encode(FILE1).remaining() + more.length));
+
+    // Another file follows it, so the appended content goes to a new extent.
+    fileService.write(FILE2.getAbsolutePath(), FILE2.getContent());
+    fileService.append(FILE1.getAbsolutePath(), more);
+    assertThat(fileService.metrics().get("container_size"))
+        .isEqualTo(String.valueOf(getContentLength(List.of(FILE1, FILE2)) + 2 * more.length));
+    assertThat(fileService.read(FILE1.getAbsolutePath()).getContent()).isEqualTo(expectedContent);
+    try (InputStream inputStream = fileService.openInputStream(FILE1.getAbsolutePath())) {
+      assertThat(inputStream.readAllBytes()).isEqualTo(expectedContent);
+    }
+
+    // The compaction moves every extent, and the ones that end up together are merged.
+    fileService.delete(FILE2.getAbsolutePath());
+    fileManager.compactMemory();
+    assertThat(fileService.metrics().get("container_size"))
+        .isEqualTo(String.valueOf(encode(FILE1).remaining() + 2 * more.length));
+    assertThat(fileService.read(FILE1.getAbsolutePath()).getContent()).isEqualTo(expectedContent);
+
+    // A created file has no content until something is appended.
+    fileService.create(FILE5.getAbsolutePath());
+    fileService.append(FILE5.getAbsolutePath(), FILE5.getContent());
+    fileService.close();
+
+    FileServiceImpl reopenedFileService =
+        new FileServiceImpl(new FileManager(new StorageService()));
+    assertThat(reopenedFileService.read(FILE1.getAbsolutePath()).getContent())
+        .isEqualTo(expectedContent);
+    assertThat(reopenedFileService.read(FILE5.getAbsolutePath()).getContent())
+        .isEqualTo(FILE5.getContent());
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> reopenedFileService.append(FILE2.getAbsolutePath(), more));
+    reopenedFileService.close();
+  }
+
+  @Test
+  void storeFilesInBlocks() throws IOException {
+    FileManager fileManager =
+        new FileManager(new StorageService(), SyncPolicy.everyOperation(), 16);
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    for (File file : List.of(FILE1, FILE2, FILE3)) {
+      fileService.write(file.getAbsolutePath(), file.getContent());
+    }
+    fileService.delete(FILE2.getAbsolutePath());
+
+    // The first block reuses the space of the deleted file, even if the whole file doesn't fit.
+    // Only the last 2 bytes of that space are left.
+    File largeFile = new File(BASE_PATH + "/large", new byte[24]);
+    Arrays.fill(largeFile.getContent(), (byte) 7);
+    fileService.write(largeFile.getAbsolutePath(), largeFile.getContent());
+    assertThat(fileService.metrics().get("container_size"))
+        .isEqualTo(String.valueOf(getContentLength(List.of(FILE1, FILE3, largeFile)) + 2));
+
+    // The last block grows up to the block size, and the rest goes to a new one.
+    byte[] more = "-more".getBytes(StandardCharsets.UTF_8);
+    fileService.append(largeFile.getAbsolutePath(), more);
+    byte[] expectedContent = Arrays.copyOf(largeFile.getContent(), 24 + more.length);
+    System.arraycopy(more, 0, expectedContent, 24, more.length);
+    assertThat(fileService.read(largeFile.getAbsolutePath()).getContent())
+        .isEqualTo(expectedContent);
+    try (InputStream inputStream = fileService.openInputStream(largeFile.getAbsolutePath())) {
+      assertThat(inputStream.readAllBytes()).isEqualTo(expectedContent);
+    }
+
+    fileManager.compactMemory();
+    assertThat(fileService.metrics().get("empty_fragments")).isEqualTo("0");
+    assertThat(fileService.metrics().get("container_size"))
+        .isEqualTo(
+            String.valueOf(getContentLength(List.of(FILE1, FILE3, largeFile)) + more.length));
+    fileService.close();
+
+    // The block size only applies to new files, so the container can be reopened without it.
+    FileServiceImpl reopenedFileService =
+        new FileServiceImpl(new FileManager(new StorageService()));
+    for (File file : List.of(FILE1, FILE3)) {
+      assertThat(reopenedFileService.read(file.getAbsolutePath()).getContent())
+          .isEqualTo(file.getContent());
+    }
+    assertThat(reopenedFileService.read(largeFile.getAbsolutePath()).getContent())
+        .isEqualTo(expectedContent);
+    reopenedFileService.close();
+
+    assertThatExceptionOfType(IllegalArgumentException.class)
+        .isThrownBy(() -> new FileManager(new StorageService(), SyncPolicy.never(), 2));
+  }
+
+  @Test
+  void writeAndDeleteInBatches() {
+    StorageService storageService = spy(new StorageService());
+    FileServiceImpl fileService = new FileServiceImpl(new FileManager(storageService));
+    Map<String, byte[]> files = new LinkedHashMap<>();
+    for (File file : List.of(FILE1, FILE2, FILE3)) {
+      files.put(file.getAbsolutePath(), file.getContent());
+    }
+    fileService.writeAll(files);
+
+    // Every record is written at once, one after the other.
+    verify(storageService).storeInContainer(any(ByteBuffer.class), anyLong());
+    assertThat(fileService.metrics().get("container_size"))
+        .isEqualTo(String.valueOf(getContentLength(List.of(FILE1, FILE2, FILE3))));
+    for (File file : List.of(FILE1, FILE2, FILE3)) {
+      assertThat(fileService.read(file.getAbsolutePath()).getContent())
+          .isEqualTo(file.getContent());
+    }
+
+    // Nothing is applied if a file to delete doesn't exist.
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(
+            () -> fileService.deleteAll(List.of(FILE1.getAbsolutePath(), FILE4.getAbsolutePath())));
+    assertThat(fileService.read(FILE1.getAbsolutePath()).getContent())
+        .isEqualTo(FILE1.getContent());
+
+    // The last change over a path wins.
+    byte[] newContent = "new content".getBytes(StandardCharsets.UTF_8);
+    fileService
+        .batch()
+        .delete(FILE1.getAbsolutePath())
+        .write(FILE2.getAbsolutePath(), newContent)
+        .write(FILE4.getAbsolutePath(), FILE4.getContent())
+        .delete(FILE4.getAbsolutePath())
+        .write(FILE4.getAbsolutePath(), newContent)
+        .commit();
+    fileService.deleteAll(List.of(FILE3.getAbsolutePath()));
+
+    // The batches are recovered from the log, since the index isn't persisted.
+    FileServiceImpl recoveredFileService =
+        new FileServiceImpl(new FileManager(new StorageService()));
+    for (File file : List.of(FILE1, FILE3)) {
+      assertThatExceptionOfType(FileNotFoundException.class)
+          .isThrownBy(() -> recoveredFileService.read(file.getAbsolutePath()));
+    }
+    for (File file : List.of(FILE2, FILE4)) {
+      assertThat(recoveredFileService.read(file.getAbsolutePath()).getContent())
+          .isEqualTo(newContent);
+    }
+    recoveredFileService.close();
+  }
+
+  @Test
+  void writeBatchInBlocks() {
+    FileServiceImpl fileService =
+        new FileServiceImpl(new FileManager(new StorageService(), SyncPolicy.everyOperation(), 16));
+    Map<String, byte[]> files = new LinkedHashMap<>();
+    for (File file : List.of(FILE1, FILE2, FILE3)) {
+      files.put(file.getAbsolutePath(), file.getContent());
+    }
+    fileService.writeAll(files);
+    fileService.delete(FILE2.getAbsolutePath());
+    fileService.close();
+
+    // The records share the blocks of the batch, but every file is read (and freed) on its own.
+    FileServiceImpl reopenedFileService =
+        new FileServiceImpl(new FileManager(new StorageService()));
+    for (File file : List.of(FILE1, FILE3)) {
+      assertThat(reopenedFileService.read(file.getAbsolutePath()).getContent())
+          .isEqualTo(file.getContent());
+    }
+    assertThat(reopenedFileService.metrics().get("container_size"))
+        .isEqualTo(String.valueOf(getContentLength(List.of(FILE1, FILE2, FILE3))));
+    reopenedFileService.close();
+  }
+
+  @Test
+  void statAndAppendBatchInBlocks() {
+    FileServiceImpl fileService =
+        new FileServiceImpl(new FileManager(new StorageService(), SyncPolicy.everyOperation(), 16));
+    // Records of every length modulo the block size, so they would start anywhere in a block.
+    Map<String, byte[]> files = new LinkedHashMap<>();
+    for (int i = 0; i < 16; i++) {
+      files.put(BASE_PATH + "/batch/file" + i, "x".repeat(i + 1).getBytes(StandardCharsets.UTF_8));
+    }
+    fileService.writeAll(files);
+
+    byte[] appendedContent = CONTENT.getBytes(StandardCharsets.UTF_8);
+    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+      String absolutePath = file.getKey();
+      assertThat(fileService.stat(absolutePath).getSize()).isEqualTo(file.getValue().length);
+      fileService.append(absolutePath, appendedContent);
+      assertThat(fileService.stat(absolutePath).getSize())
+          .isEqualTo(file.getValue().length + appendedContent.length);
+      assertThat(new String(fileService.read(absolutePath).getContent(), StandardCharsets.UTF_8))
+          .isEqualTo(new String(file.getValue(), StandardCharsets.UTF_8) + CONTENT);
+    }
+    fileService.close();
+  }
+
+  @Test
+  void cacheHotFiles() {
+    FileManager fileManager =
+        new FileManager(
+            new StorageService(),
+            SyncPolicy.never(),
+            FileManager.CONTIGUOUS,
+            CachePolicy.lru(1024));
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    for (File file : List.of(FILE1, FILE2, FILE3)) {
+      fileService.write(file.getAbsolutePath(), file.getContent());
+    }
+    fileService.read(FILE3.getAbsolutePath());
+    assertThat(fileService.read(FILE3.getAbsolutePath()).getContent())
+        .isEqualTo(FILE3.getContent());
+    assertThat(fileService.metrics())
+        .containsEntry("cache_hits", "1")
+        .containsEntry("cache_misses", "1");
+
+    // The compaction moves the file, but its content is still cached.
+    fileService.delete(FILE1.getAbsolutePath());
+    fileManager.compactMemory();
+    assertThat(fileService.read(FILE3.getAbsolutePath()).getContent())
+        .isEqualTo(FILE3.getContent());
+    assertThat(fileService.metrics()).containsEntry("cache_hits", "2");
+
+    // Changes are never hidden by the cache.
+    byte[] more = "-more".getBytes(StandardCharsets.UTF_8);
+    fileService.append(FILE3.getAbsolutePath(), more);
+    assertThat(fileService.read(FILE3.getAbsolutePath()).getContent())
+        .isEqualTo((CONTENT + "-more").getBytes(StandardCharsets.UTF_8));
+    fileService.move(FILE3.getAbsolutePath(), FILE2.getAbsolutePath());
+    assertThat(fileService.read(FILE2.getAbsolutePath()).getContent())
+        .isEqualTo((CONTENT + "-more").getBytes(StandardCharsets.UTF_8));
+    fileService.delete(FILE2.getAbsolutePath());
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> fileService.read(FILE2.getAbsolutePath()));
+    assertThat(fileService.metrics()).containsEntry("cache_hits", "2");
+    fileService.close();
+  }
+
+  @Test
+  void reportMetrics() throws Exception {
+    FileManager fileManager = new FileManager(new StorageService());
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    for (File file : List.of(FILE1, FILE2, FILE3)) {
+      fileService.write(file.getAbsolutePath(), file.getContent());
+    }
+    fileService.read(FILE1.getAbsolutePath());
+    fileService.delete(FILE2.getAbsolutePath());
+
+    long fileLength = getContentLength(List.of(FILE1));
+    MetricsSnapshot snapshot = fileService.metricsSnapshot();
+    assertThat(snapshot.getOperations().get(Operation.WRITE).getCount()).isEqualTo(3);
+    assertThat(snapshot.getOperations().get(Operation.READ).getMaxNanos()).isPositive();
+    assertThat(snapshot.getBytesWritten()).isEqualTo(3 * fileLength);
+    assertThat(snapshot.getBytesRead()).isEqualTo(fileLength);
+    assertThat(snapshot.getLiveFiles()).isEqualTo(2);
+    assertThat(snapshot.getContainerSize()).isEqualTo(3 * fileLength);
+    assertThat(snapshot.getFreeBytes()).isEqualTo(fileLength);
+    assertThat(snapshot.getFragmentationRatio()).isCloseTo(1.0 / 3, within(0.001));
+    assertThat(snapshot.getIndexMemoryBytes()).isPositive();
+
+    fileManager.compactMemory();
+    snapshot = fileService.metricsSnapshot();
+    assertThat(snapshot.getCompactionRuns()).isEqualTo(1);
+    assertThat(snapshot.getCompactionReclaimedBytes()).isEqualTo(fileLength);
+    assertThat(snapshot.getFragmentationRatio()).isZero();
+
+    // The same metrics are exposed through JMX, until the service is closed.
+    ObjectName name = fileService.registerMBean();
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    assertThat(mbeanServer.getAttribute(name, "LiveFiles")).isEqualTo(2L);
+    assertThat(mbeanServer.getAttribute(name, "BytesWritten")).isEqualTo(3 * fileLength);
+    fileService.close();
+    assertThat(mbeanServer.isRegistered(name)).isFalse();
+  }
+
+  @ParameterizedTest
+  @EnumSource(StorageService.Mode.class)
+  void readWithoutCopies(StorageService.Mode mode) throws IOException {
+    FileServiceImpl fileService =
+        new FileServiceImpl(
+            new FileManager(
+                StorageService.open(mode),
+                SyncPolicy.everyOperation(),
+                FileManager.CONTIGUOUS,
+                CachePolicy.lru(1024)));
+    byte[] more = "-more".getBytes(StandardCharsets.UTF_8);
+    byte[] expectedContent = (CONTENT + "-more").getBytes(StandardCharsets.UTF_8);
+    fileService.write(FILE1.getAbsolutePath(), FILE1.getContent());
+    fileService.write(FILE2.getAbsolutePath(), FILE2.getContent());
+    // The appended content goes to a new extent.
+    fileService.append(FILE1.getAbsolutePath(), more);
+    fileService.create(FILE3.getAbsolutePath());
+
+    ByteBuffer buffer = fileService.readBuffer(FILE2.getAbsolutePath());
+    assertThat(buffer.isReadOnly()).isTrue();
+    // The mapped content is copied, since the mapping could be truncated under the buffer.
+    assertThat(buffer.isDirect()).isFalse();
+    assertThat(toBytes(buffer)).isEqualTo(FILE2.getContent());
+    assertThat(toBytes(fileService.readBuffer(FILE1.getAbsolutePath()))).isEqualTo(expectedContent);
+    assertThat(fileService.readBuffer(FILE3.getAbsolutePath()).hasRemaining()).isFalse();
+    // Cached files are served from the cache.
+    fileService.read(FILE2.getAbsolutePath());
+    assertThat(toBytes(fileService.readBuffer(FILE2.getAbsolutePath())))
+        .isEqualTo(FILE2.getContent());
+    assertThat(fileService.metrics()).containsEntry("cache_hits", "1");
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try (WritableByteChannel channel = Channels.newChannel(outputStream)) {
+      assertThat(fileService.transferTo(FILE1.getAbsolutePath(), channel))
+          .isEqualTo(expectedContent.length);
+      assertThat(fileService.transferTo(FILE2.getAbsolutePath(), channel))
+          .isEqualTo(FILE2.getContent().length);
+      assertThat(fileService.transferTo(FILE3.getAbsolutePath(), channel)).isZero();
+    }
+    assertThat(outputStream.toString(StandardCharsets.UTF_8))
+        .isEqualTo(CONTENT + "-more" + CONTENT);
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> fileService.readBuffer(FILE4.getAbsolutePath()));
+    fileService.close();
+  }
+
+  @Test
+  void keepBuffersReadableAfterCompaction() {
+    FileManager fileManager =
+        new FileManager(StorageService.open(StorageService.Mode.MEMORY_MAPPED));
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    fileService.write(FILE1.getAbsolutePath(), FILE1.getContent());
+    fileService.write(FILE2.getAbsolutePath(), FILE2.getContent());
+    ByteBuffer buffer = fileService.readBuffer(FILE2.getAbsolutePath());
+
+    // The container is truncated right where the file was.
+    fileService.delete(FILE2.getAbsolutePath());
+    fileManager.compactMemory();
+    assertThat(fileService.metricsSnapshot().getContainerSize())
+        .isEqualTo(getContentLength(List.of(FILE1)));
+    assertThat(toBytes(buffer)).isEqualTo(FILE2.getContent());
+    fileService.close();
+  }
+
+  private static byte[] toBytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  @Test
+  void streamLargeFile() throws IOException {
+    FileManager fileManager = new FileManager(new StorageService());
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    fileService.write(FILE1.getAbsolutePath(), FILE1.getContent());
+    byte[] chunk = new byte[64 * 1024];
+    for (int i = 0; i < chunk.length; i++) {
+      chunk[i] = (byte) i;
+    }
+
+    String largeFilePath = BASE_PATH + "/large";
+    try (OutputStream outputStream = fileService.openOutputStream(largeFilePath)) {
+      for (int i = 0; i < 64; i++) {
+        outputStream.write(chunk);
+      }
+    }
+    fileService.delete(FILE1.getAbsolutePath());
+    fileManager.compactMemory();
+
+    try (InputStream inputStream = fileService.openInputStream(largeFilePath)) {
+      byte[] readChunk = new byte[chunk.length];
+      for (int i = 0; i < 64; i++) {
+        assertThat(inputStream.readNBytes(readChunk, 0, readChunk.length)).isEqualTo(chunk.length);
+        assertThat(readChunk).isEqualTo(chunk);
+      }
+      assertThat(inputStream.read()).isEqualTo(-1);
+    }
+    fileService.close();
+  }
+
+  @Test
+  void streamWhileModified() throws IOException {
+    FileManager fileManager = new FileManager(new StorageService());
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    fileService.write(FILE1.getAbsolutePath(), FILE1.getContent());
+    fileService.write(FILE2.getAbsolutePath(), FILE2.getContent());
+
+    try (ReadableByteChannel channel = fileService.openReadableChannel(FILE2.getAbsolutePath())) {
+      ByteBuffer buffer = ByteBuffer.allocate(4);
+      assertThat(channel.read(buffer)).isEqualTo(4);
+
+      // The compaction moves the file, but the channel keeps reading it.
+      fileService.delete(FILE1.getAbsolutePath());
+      fileManager.compactMemory();
+      buffer = ByteBuffer.allocate(4);
+      assertThat(channel.read(buffer)).isEqualTo(4);
+      assertThat(buffer.array()).isEqualTo(Arrays.copyOfRange(FILE2.getContent(), 4, 8));
+
+      fileService.write(FILE2.getAbsolutePath(), FILE3.getContent());
+      assertThatExceptionOfType(IOException.class)
+          .isThrownBy(() -> channel.read(ByteBuffer.allocate(4)));
+    }
+    fileService.close();
+  }
+
+  @Test
+  void listAndWalkDirectories() {
+    FileServiceImpl fileService = new FileServiceImpl(new FileManager(new StorageService()));
+    // Same name as FILE1, but in another directory.
+    File sameName =
+        new File(BASE_PATH + "/another/file1", "another content".getBytes(StandardCharsets.UTF_8));
+    for (File file : List.of(FILE1, FILE2, FILE3, FILE4, FILE5, sameName)) {
+      fileService.write(file.getAbsolutePath(), file.getContent());
+    }
+
+    assertThat(fileService.read(FILE1.getAbsolutePath()).getContent())
+        .isEqualTo(FILE1.getContent());
+    assertThat(fileService.read(sameName.getAbsolutePath()).getContent())
+        .isEqualTo(sameName.getContent());
+    assertThat(fileService.list(BASE_PATH))
+        .containsExactly(
+            BASE_PATH + "/another",
+            FILE1.getAbsolutePath(),
+            FILE4.getAbsolutePath(),
+            BASE_PATH + "/test");
+    assertThat(fileService.walk(BASE_PATH + "/another"))
+        .containsExactlyInAnyOrder(
+            FILE2.getAbsolutePath(), FILE3.getAbsolutePath(), sameName.getAbsolutePath());
+
+    fileService.delete(FILE5.getAbsolutePath());
+    assertThat(fileService.list(BASE_PATH)).doesNotContain(BASE_PATH + "/test");
+    fileService.close();
+  }
+
+  @Test
+  void statAndWalkLazily() throws InterruptedException {
+    FileManager fileManager = new FileManager(new StorageService());
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    Instant before = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+    for (File file : List.of(FILE1, FILE2, FILE3)) {
+      fileService.write(file.getAbsolutePath(), file.getContent());
+    }
+
+    FileStat stat = fileService.stat(FILE2.getAbsolutePath());
+    assertThat(stat.getAbsolutePath()).isEqualTo(FILE2.getAbsolutePath());
+    assertThat(stat.getSize()).isEqualTo(CONTENT.length());
+    assertThat(stat.getOffset()).isEqualTo(getContentLength(List.of(FILE1)));
+    assertThat(stat.getExtentCount()).isEqualTo(1);
+    assertThat(stat.getModifiedTime()).isBetween(before, Instant.now());
+    assertThat(fileService.exists(FILE2.getAbsolutePath())).isTrue();
+    assertThat(fileService.exists(BASE_PATH + "/another")).isTrue();
+    assertThat(fileService.exists(FILE4.getAbsolutePath())).isFalse();
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> fileService.stat(FILE4.getAbsolutePath()));
+
+    // Appending changes the modified time, but moving or compacting doesn't.
+    fileService.delete(FILE1.getAbsolutePath());
+    fileService.move(FILE2.getAbsolutePath(), FILE4.getAbsolutePath());
+    fileManager.compactMemory();
+    FileStat movedStat = fileService.stat(FILE4.getAbsolutePath());
+    assertThat(movedStat.getModifiedTime()).isEqualTo(stat.getModifiedTime());
+    assertThat(movedStat.getOffset()).isZero();
+    Thread.sleep(1000);
+    fileService.append(FILE4.getAbsolutePath(), CONTENT.getBytes(StandardCharsets.UTF_8));
+    FileStat appendedStat = fileService.stat(FILE4.getAbsolutePath());
+    assertThat(appendedStat.getSize()).isEqualTo(2 * CONTENT.length());
+    assertThat(appendedStat.getModifiedTime()).isAfter(stat.getModifiedTime());
+
+    // The visitor can delete the files it visits, and stop the walk at any point.
+    List<FileStat> visited = new ArrayList<>();
+    fileService.walk(
+        BASE_PATH,
+        fileStat -> {
+          visited.add(fileStat);
+          fileService.delete(fileStat.getAbsolutePath());
+          return false;
+        });
+    assertThat(visited).hasSize(1);
+    assertThat(fileService.walk(BASE_PATH)).hasSize(1);
+    fileService.close();
+
+    // The modified times are persisted.
+    FileServiceImpl reopenedFileService =
+        new FileServiceImpl(new FileManager(new StorageService()));
+    List<FileStat> reopenedStats = new ArrayList<>();
+    reopenedFileService.walk("/", reopenedStats::add);
+    assertThat(reopenedStats).hasSize(1);
+    assertThat(reopenedStats.get(0).getModifiedTime())
+        .isIn(stat.getModifiedTime(), appendedStat.getModifiedTime());
+    reopenedFileService.close();
+  }
+
+  @Test
+  void moveFilesAndDirectories() {
+    FileServiceImpl fileService = new FileServiceImpl(new FileManager(new StorageService()));
+    for (File file : List.of(FILE1, FILE2, FILE3, FILE4)) {
+      fileService.write(file.getAbsolutePath(), file.getContent());
+    }
+    String containerSize = fileService.metrics().get("container_size");
+
+    fileService.rename(FILE1.getAbsolutePath(), BASE_PATH + "/renamed");
+    // The file placed in the new path is replaced.
+    fileService.move(FILE4.getAbsolutePath(), FILE3.getAbsolutePath());
+    fileService.moveDirectory(BASE_PATH + "/another", "/moved");
+
+    // Nothing is written into the container.
+    assertThat(fileService.metrics().get("container_size")).isEqualTo(containerSize);
+    assertMovedFiles(fileService);
+
+    // The moves are recovered from the write-ahead log, since the service wasn't closed.
+    FileServiceImpl recoveredFileService =
+        new FileServiceImpl(new FileManager(new StorageService()));
+    assertMovedFiles(recoveredFileService);
+    recoveredFileService.close();
+  }
+
+  private static void assertMovedFiles(FileServiceImpl fileService) {
+    assertThat(fileService.list(BASE_PATH)).containsExactly(BASE_PATH + "/renamed");
+    assertThat(fileService.walk("/moved"))
+        .containsExactlyInAnyOrder("/moved/file3", "/moved/path/file2");
+    assertThat(fileService.read(BASE_PATH + "/renamed").getContent()).isEqualTo(FILE1.getContent());
+    assertThat(fileService.read("/moved/path/file2").getContent()).isEqualTo(FILE2.getContent());
+    assertThat(fileService.read("/moved/file3").getAbsolutePath()).isEqualTo("/moved/file3");
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> fileService.read(FILE1.getAbsolutePath()));
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> fileService.moveDirectory(BASE_PATH + "/another", "/elsewhere"));
+  }
+
+  @Test
+  void compactInBackground() throws InterruptedException {
+    FileManager fileManager = new FileManager(new StorageService(), SyncPolicy.never());
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    List<File> files =
+        IntStream.range(0, 200)
+            .mapToObj(i -> new File(BASE_PATH + "/background/file" + i, new byte[i % 7 * 10 + 1]))
+            .collect(Collectors.toList());
+    files.forEach(file -> fileService.write(file.getAbsolutePath(), file.getContent()));
+    for (int i = 0; i < files.size(); i += 2) {
+      fileService.delete(files.get(i).getAbsolutePath());
+    }
+
+    BackgroundCompactor compactor =
+        fileManager.startBackgroundCompaction(10 * 1024 * 1024, 256, Duration.ofMillis(10));
+    // Reads and writes keep running while the container is compacted.
+    for (int round = 0; round < 20; round++) {
+      for (int i = 1; i < files.size(); i += 2) {
+        File file = files.get(i);
+        assertThat(fileService.read(file.getAbsolutePath()).getContent())
+            .isEqualTo(file.getContent());
+        if (i % 10 == 1) {
+          fileService.write(file.getAbsolutePath(), file.getContent());
+        }
+      }
+    }
+
+    List<File> liveFiles =
+        IntStream.range(0, files.size())
+            .filter(i -> i % 2 == 1)
+            .mapToObj(files::get)
+            .collect(Collectors.toList());
+    // The fragments can't be checked while a step is running, since it takes one to move a file.
+    long idleSteps = compactor.getIdleSteps();
+    long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+    while (compactor.getIdleSteps() < idleSteps + 2 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    compactor.close();
+
+    assertThat(fileService.metrics().get("empty_fragments")).isEqualTo("0");
+    assertThat(fileService.metrics().get("container_size"))
+        .isEqualTo(String.valueOf(getContentLength(liveFiles)));
+    for (File file : liveFiles) {
+      assertThat(fileService.read(file.getAbsolutePath()).getContent())
+          .isEqualTo(file.getContent());
+    }
+    fileService.close();
+  }
+
+  @Test
+  void throttleBackgroundCompaction() throws Exception {
+    long bytesPerSecond = 10 * 1024 * 1024;
+    FileServiceImpl fileService =
+        FileServiceImpl.builder().backgroundCompaction(bytesPerSecond).build();
+    assertThat(fileService.metrics())
+        .containsEntry("compaction_background_bytes_per_second", String.valueOf(bytesPerSecond));
+    // Every file takes a step of its own, since it's bigger than the bytes moved per step.
+    List<File> files =
+        IntStream.range(0, 6)
+            .mapToObj(
+                i ->
+                    new File(
+                        BASE_PATH + "/throttled/file" + i,
+                        new byte[BackgroundCompactor.DEFAULT_MAX_BYTES_PER_STEP]))
+            .collect(Collectors.toList());
+    files.forEach(file -> fileService.write(file.getAbsolutePath(), file.getContent()));
+
+    long start = System.nanoTime();
+    fileService.delete(files.get(0).getAbsolutePath());
+    List<File> liveFiles = files.subList(1, files.size());
+    long deadline = start + Duration.ofSeconds(30).toNanos();
+    while (fileService.metricsSnapshot().getContainerSize() > getContentLength(liveFiles)
+        && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+    MetricsSnapshot snapshot = fileService.metricsSnapshot();
+    assertThat(snapshot.getContainerSize()).isEqualTo(getContentLength(liveFiles));
+    assertThat(snapshot.getReclaimableBytes()).isZero();
+    assertThat(snapshot.getCompactionMovedBytes()).isEqualTo(getContentLength(liveFiles));
+    // The first step runs right away, but every following one waits for the previous one.
+    long throttledBytes = getContentLength(liveFiles.subList(1, liveFiles.size()));
+    assertThat(elapsed)
+        .isGreaterThanOrEqualTo(Duration.ofNanos(throttledBytes * 1_000_000_000L / bytesPerSecond));
+
+    // It can be restarted with another throughput, and stopped.
+    fileService.startBackgroundCompaction(2 * bytesPerSecond);
+    assertThat(fileService.metrics())
+        .containsEntry(
+            "compaction_background_bytes_per_second", String.valueOf(2 * bytesPerSecond));
+    fileService.stopBackgroundCompaction();
+    assertThat(fileService.metrics()).doesNotContainKey("compaction_background_bytes_per_second");
+    fileService.startBackgroundCompaction(bytesPerSecond);
+    for (File file : liveFiles) {
+      assertThat(fileService.read(file.getAbsolutePath()).getContent())
+          .isEqualTo(file.getContent());
+    }
+    fileService.close();
+  }
+
+  @Test
+  void scheduleCompaction() throws Exception {
+    FileManager fileManager = new FileManager(new StorageService());
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    List<File> files = List.of(FILE1, FILE2, FILE3);
+    for (File file : files) {
+      fileService.write(file.getAbsolutePath(), file.getContent());
+    }
+    long fileLength = getContentLength(List.of(FILE1));
+    fileManager.scheduleCompaction(
+        CompactionPolicy.of(0.5, Duration.ofMillis(50), Long.MAX_VALUE), Duration.ofMillis(10));
+
+    // A third of the container isn't enough.
+    fileService.delete(FILE1.getAbsolutePath());
+    assertThat(fileService.metricsSnapshot().getReclaimableBytes()).isEqualTo(fileLength);
+    Thread.sleep(200);
+    assertThat(fileService.metricsSnapshot().getCompactionRuns()).isZero();
+
+    // But two thirds are.
+    fileService.delete(FILE2.getAbsolutePath());
+    long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+    while (fileService.metricsSnapshot().getCompactionRuns() == 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+
+    MetricsSnapshot snapshot = fileService.metricsSnapshot();
+    assertThat(snapshot.getCompactionRuns()).isEqualTo(1);
+    assertThat(snapshot.getReclaimableBytes()).isZero();
+    assertThat(snapshot.getContainerSize()).isEqualTo(fileLength);
+    assertThat(fileService.metrics()).containsEntry("compaction_scheduled_runs", "1");
+    assertThat(fileService.read(FILE3.getAbsolutePath()).getContent())
+        .isEqualTo(FILE3.getContent());
+    fileService.close();
+  }
+
+  @Test
+  void throttleScheduledCompaction() throws Exception {
+    long bytesPerSecond = 10 * 1024 * 1024;
+    FileManager fileManager = new FileManager(new StorageService());
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    // Every file takes a step of its own, since it's bigger than the bytes moved per step.
+    List<File> files =
+        IntStream.range(0, 6)
+            .mapToObj(
+                i ->
+                    new File(
+                        BASE_PATH + "/throttled/file" + i,
+                        new byte[BackgroundCompactor.DEFAULT_MAX_BYTES_PER_STEP]))
+            .collect(Collectors.toList());
+    files.forEach(file -> fileService.write(file.getAbsolutePath(), file.getContent()));
+    fileManager.scheduleCompaction(
+        CompactionPolicy.of(0.3, Duration.ZERO, Long.MAX_VALUE).withThroughput(bytesPerSecond),
+        Duration.ofMillis(10));
+
+    long start = System.nanoTime();
+    fileService.delete(files.get(0).getAbsolutePath());
+    fileService.delete(files.get(1).getAbsolutePath());
+    long deadline = start + Duration.ofSeconds(30).toNanos();
+    while (fileService.metricsSnapshot().getCompactionRuns() == 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+    List<File> liveFiles = files.subList(2, files.size());
+    MetricsSnapshot snapshot = fileService.metricsSnapshot();
+    assertThat(snapshot.getCompactionRuns()).isEqualTo(1);
+    assertThat(snapshot.getContainerSize()).isEqualTo(getContentLength(liveFiles));
+    assertThat(snapshot.getCompactionMovedBytes()).isEqualTo(getContentLength(liveFiles));
+    // The first step runs right away, but every following one waits for the previous one.
+    long throttledBytes = getContentLength(liveFiles.subList(1, liveFiles.size()));
+    assertThat(elapsed)
+        .isGreaterThanOrEqualTo(Duration.ofNanos(throttledBytes * 1_000_000_000L / bytesPerSecond));
+    for (File file : liveFiles) {
+      assertThat(fileService.read(file.getAbsolutePath()).getContent())
+          .isEqualTo(file.getContent());
+    }
+    fileService.close();
+  }
+
+  @Test
+  void scheduleCompactionFromTheBuilder() throws Exception {
+    FileServiceImpl fileService =
+        FileServiceImpl.builder()
+            .compactionPolicy(CompactionPolicy.of(0.5, Duration.ZERO, Long.MAX_VALUE))
+            .build();
+    for (File file : List.of(FILE1, FILE2, FILE3)) {
+      fileService.write(file.getAbsolutePath(), file.getContent());
+    }
+    fileService.delete(FILE1.getAbsolutePath());
+    fileService.delete(FILE2.getAbsolutePath());
+
+    long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+    while (fileService.metricsSnapshot().getCompactionRuns() == 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(fileService.metricsSnapshot().getReclaimableBytes()).isZero();
+
+    // The policy can be replaced afterwards, e.g. to compact only on demand.
+    fileService.scheduleCompaction(CompactionPolicy.manual());
+    fileService.delete(FILE3.getAbsolutePath());
+    assertThat(fileService.metrics()).doesNotContainKey("compaction_policy");
+    fileService.compactMemory();
+    assertThat(fileService.metricsSnapshot().getContainerSize()).isZero();
+    fileService.close();
+  }
+
+  @Test
+  void concurrentReadsAndWrites() throws Exception {
+    FileManager fileManager = new FileManager(new StorageService(), SyncPolicy.never());
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    List<String> paths =
+        IntStream.range(0, 8)
+            .mapToObj(i -> BASE_PATH + "/stress/file" + i)
+            .collect(Collectors.toList());
+    String appendedPath = BASE_PATH + "/stress/appended";
+    paths.forEach(path -> fileService.write(path, new byte[] {1}));
+    fileService.create(appendedPath);
+
+    ExecutorService executor = Executors.newFixedThreadPool(12);
+    BackgroundCompactor compactor =
+        fileManager.startBackgroundCompaction(10 * 1024 * 1024, 256, Duration.ofMillis(1));
+    List<Future<?>> tasks = new ArrayList<>();
+    for (int thread = 0; thread < 4; thread++) {
+      byte value = (byte) (thread + 2);
+      // Every version of a file is filled with a single value, so torn reads can be detected.
+      tasks.add(
+          executor.submit(
+              () -> {
+                for (int i = 0; i < 200; i++) {
+                  byte[] content = new byte[1 + (value * 31 + i) % 200];
+                  Arrays.fill(content, value);
+                  fileService.write(paths.get(i % paths.size()), content);
+                }
+              }));
+      tasks.add(
+          executor.submit(
+              () -> {
+                for (int i = 0; i < 100; i++) {
+                  fileService.append(appendedPath, new byte[] {value, value, value, value});
+                }
+              }));
+      tasks.add(
+          executor.submit(
+              () -> {
+                for (int i = 0; i < 400; i++) {
+                  byte[] content = fileService.read(paths.get(i % paths.size())).getContent();
+                  assertThat(content).isNotEmpty().containsOnly(content[0]);
+                  assertThat(content[0]).isPositive();
+                }
+              }));
+    }
+    for (Future<?> task : tasks) {
+      task.get(30, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+    compactor.close();
+
+    // No append is lost.
+    byte[] appendedContent = fileService.read(appendedPath).getContent();
+    assertThat(appendedContent).hasSize(4 * 100 * 4).doesNotContain(0);
+    // The changes were logged in the same order they were applied.
+    FileServiceImpl recoveredFileService =
+        new FileServiceImpl(new FileManager(new StorageService(), SyncPolicy.never()));
+    for (String path : paths) {
+      assertThat(recoveredFileService.read(path).getContent())
+          .isEqualTo(fileService.read(path).getContent());
+    }
+    assertThat(recoveredFileService.read(appendedPath).getContent()).isEqualTo(appendedContent);
+    recoveredFileService.close();
+  }
+
+  @Test
+  void buildWithSettings() {
+    FileServiceImpl fileService =
+        FileServiceImpl.builder()
+            .memoryMapped(true)
+            .syncPolicy(SyncPolicy.never())
+            .blockSize(16)
+            .cachePolicy(CachePolicy.lru(1024))
+            .erasePolicy(ErasePolicy.ZERO_FILL)
+            .build();
+    fileService.write(FILE1.getAbsolutePath(), FILE1.getContent());
+
+    assertThat(fileService.read(FILE1.getAbsolutePath()).getContent())
+        .isEqualTo(FILE1.getContent());
+    assertThat(fileService.stat(FILE1.getAbsolutePath()).getExtentCount()).isGreaterThan(1);
+    assertThat(fileService.metrics())
+        .containsEntry("cache_policy", "LRU(1024 bytes)")
+        .containsEntry("erase_policy", "ZERO_FILL");
+    fileService.close();
+
+    FileServiceImpl reopenedFileService = FileServiceImpl.builder().build();
+    assertThat(reopenedFileService.read(FILE1.getAbsolutePath()).getContent())
+        .isEqualTo(FILE1.getContent());
+    reopenedFileService.close();
+    assertThatExceptionOfType(IllegalArgumentException.class)
+        .isThrownBy(() -> FileServiceImpl.builder().blockSize(2).build());
+  }
+
+  @Test
+  void reopenContainer() {
+    FileServiceImpl fileService = new FileServiceImpl(new FileManager(new StorageService()));
+    for (File file : List.of(FILE1, FILE2, FILE3, FILE4)) {
+      fileService.write(file.getAbsolutePath(), file.getContent());
+    }
+    fileService.delete(FILE2.getAbsolutePath());
+    fileService.close();
+
+    FileServiceImpl reopenedFileService =
+        new FileServiceImpl(new FileManager(new StorageService()));
+    for (File file : List.of(FILE1, FILE3, FILE4)) {
+      assertThat(reopenedFileService.read(file.getAbsolutePath()).getContent())
+          .isEqualTo(file.getContent());
+    }
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> reopenedFileService.read(FILE2.getAbsolutePath()));
+    assertThat(reopenedFileService.metrics().get("empty_fragments")).isEqualTo("1");
+
+    // New files reuse the free space left by the deleted ones.
+    reopenedFileService.write(FILE5.getAbsolutePath(), FILE5.getContent());
+    assertThat(reopenedFileService.read(FILE1.getAbsolutePath()).getContent())
+        .isEqualTo(FILE1.getContent());
+    assertThat(reopenedFileService.metrics().get("container_size"))
+        .isEqualTo(String.valueOf(getContentLength(List.of(FILE1, FILE2, FILE3, FILE4))));
+    assertThat(reopenedFileService.read(FILE5.getAbsolutePath()).getContent())
+        .isEqualTo(FILE5.getContent());
+    reopenedFileService.close();
+  }
+
+  private static Stream<SyncPolicy> syncPolicies() {
+    return Stream.of(
+        SyncPolicy.everyOperation(), SyncPolicy.every(Duration.ofMillis(10)), SyncPolicy.never());
+  }
+
+  @ParameterizedTest
+  @MethodSource("syncPolicies")
+  void recoverAfterCrash(SyncPolicy syncPolicy) {
+    FileServiceImpl fileService =
+        new FileServiceImpl(new FileManager(new StorageService(), syncPolicy));
+    fileService.write(FILE1.getAbsolutePath(), FILE1.getContent());
+    fileService.write(FILE2.getAbsolutePath(), FILE2.getContent());
+    fileService.close();
+
+    // The container is modified but never closed, so the persisted index gets stale.
+    FileManager crashingFileManager = new FileManager(new StorageService(), syncPolicy);
+    FileServiceImpl crashingFileService = new FileServiceImpl(crashingFileManager);
+    crashingFileService.write(FILE3.getAbsolutePath(), FILE3.getContent());
+    crashingFileService.delete(FILE1.getAbsolutePath());
+    crashingFileService.write(FILE2.getAbsolutePath(), FILE4.getContent());
+    crashingFileService.delete(FILE3.getAbsolutePath());
+    crashingFileManager.compactMemory();
+    crashingFileService.write(FILE5.getAbsolutePath(), FILE5.getContent());
+
+    FileServiceImpl recoveredFileService =
+        new FileServiceImpl(new FileManager(new StorageService(), syncPolicy));
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> recoveredFileService.read(FILE1.getAbsolutePath()));
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> recoveredFileService.read(FILE3.getAbsolutePath()));
+    assertThat(recoveredFileService.read(FILE2.getAbsolutePath()).getContent())
+        .isEqualTo(FILE4.getContent());
+    assertThat(recoveredFileService.read(FILE5.getAbsolutePath()).getContent())
+        .isEqualTo(FILE5.getContent());
+    recoveredFileService.close();
+  }
+
+  @Test
+  void keepOldLocationsUntilDurable() throws IOException {
+    FileManager crashingFileManager = new FileManager(new StorageService(), SyncPolicy.never());
+    FileServiceImpl crashingFileService = new FileServiceImpl(crashingFileManager);
+    crashingFileService.write(FILE1.getAbsolutePath(), FILE1.getContent());
+    crashingFileManager.persistIndex();
+    crashingFileService.write(FILE1.getAbsolutePath(), FILE4.getContent());
+    // It would take the old location of the first file, if it had been released.
+    crashingFileService.write(FILE2.getAbsolutePath(), FILE2.getContent());
+    // Simulates a crash before the log was flushed.
+    Files.write(Path.of(BASE_PHYSICAL_PATH + CONTAINER_NAME + LOG_SUFFIX), new byte[0]);
+
+    FileServiceImpl recoveredFileService =
+        new FileServiceImpl(new FileManager(new StorageService(), SyncPolicy.never()));
+    assertThat(recoveredFileService.read(FILE1.getAbsolutePath()).getContent())
+        .isEqualTo(FILE1.getContent());
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> recoveredFileService.read(FILE2.getAbsolutePath()));
+    recoveredFileService.close();
+  }
+
+  @Test
+  void releaseContentThatWasNeverLogged() throws IOException {
+    FileManager crashingFileManager = new FileManager(new StorageService(), SyncPolicy.never());
+    FileServiceImpl crashingFileService = new FileServiceImpl(crashingFileManager);
+    crashingFileService.write(FILE1.getAbsolutePath(), FILE1.getContent());
+    crashingFileManager.persistIndex();
+    // It's stored at the end of the container, after the content covered by the index.
+    crashingFileService.write(FILE2.getAbsolutePath(), FILE2.getContent());
+    // Simulates a crash before the log was flushed.
+    Files.write(Path.of(BASE_PHYSICAL_PATH + CONTAINER_NAME + LOG_SUFFIX), new byte[0]);
+
+    FileManager recoveredFileManager = new FileManager(new StorageService(), SyncPolicy.never());
+    FileServiceImpl recoveredFileService = new FileServiceImpl(recoveredFileManager);
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> recoveredFileService.read(FILE2.getAbsolutePath()));
+    assertThat(recoveredFileManager.getReclaimableBytes())
+        .isEqualTo(getContentLength(List.of(FILE2)));
+    // The space of the lost file is reused, so the container doesn't grow.
+    recoveredFileService.write(FILE2.getAbsolutePath(), FILE2.getContent());
+    assertThat(recoveredFileManager.getReclaimableBytes()).isZero();
+    assertThat(recoveredFileService.metrics().get("container_size"))
+        .isEqualTo(String.valueOf(getContentLength(List.of(FILE1, FILE2))));
+    recoveredFileService.close();
+  }
+
+  @Test
+  void recoverWithoutRestoringReusedImages() {
+    FileManager crashingFileManager = new FileManager(new StorageService());
+    FileServiceImpl crashingFileService = new FileServiceImpl(crashingFileManager);
+    byte[] movedContent = new byte[300];
+    Arrays.fill(movedContent, (byte) 1);
+    byte[] newContent = new byte[300];
+    Arrays.fill(newContent, (byte) 2);
+    crashingFileService.write(FILE1.getAbsolutePath(), FILE1.getContent());
+    crashingFileService.write(FILE2.getAbsolutePath(), movedContent);
+    crashingFileService.delete(FILE1.getAbsolutePath());
+    // The second file overwrites part of its old location, so its content is logged.
+    crashingFileManager.compactStep(Long.MAX_VALUE);
+    // The space it takes is reused by another file, whose content isn't logged.
+    crashingFileService.delete(FILE2.getAbsolutePath());
+    crashingFileService.write(FILE3.getAbsolutePath(), newContent);
+
+    FileServiceImpl recoveredFileService =
+        new FileServiceImpl(new FileManager(new StorageService()));
+    assertThat(recoveredFileService.read(FILE3.getAbsolutePath()).getContent())
+        .isEqualTo(newContent);
+    recoveredFileService.close();
+  }
+
+  @Test
+  void recoverWithoutRestoringOutdatedImages() {
+    FileManager crashingFileManager = new FileManager(new StorageService());
+    FileServiceImpl crashingFileService = new FileServiceImpl(crashingFileManager);
+    byte[] movedContent = new byte[200];
+    Arrays.fill(movedContent, (byte) 1);
+    byte[] firstAppend = new byte[50];
+    Arrays.fill(firstAppend, (byte) 2);
+    byte[] secondAppend = new byte[100];
+    Arrays.fill(secondAppend, (byte) 3);
+    crashingFileService.write(FILE1.getAbsolutePath(), new byte[100]);
+    crashingFileService.write(FILE2.getAbsolutePath(), FILE2.getContent());
+    crashingFileService.write(FILE3.getAbsolutePath(), movedContent);
+    // The third file overwrites part of its old location, so its content is logged.
+    crashingFileService.delete(FILE2.getAbsolutePath());
+    crashingFileManager.compactStep(Long.MAX_VALUE);
+    // It grows in place, and it's moved (and logged) again.
+    crashingFileService.append(FILE3.getAbsolutePath(), firstAppend);
+    crashingFileService.delete(FILE1.getAbsolutePath());
+    crashingFileManager.compactStep(Long.MAX_VALUE);
+    // It grows in place over the space of the first image, whose content isn't current anymore.
+    crashingFileService.append(FILE3.getAbsolutePath(), secondAppend);
+
+    FileServiceImpl recoveredFileService =
+        new FileServiceImpl(new FileManager(new StorageService()));
+    byte[] expectedContent = new byte[350];
+    Arrays.fill(expectedContent, 0, 200, (byte) 1);
+    Arrays.fill(expectedContent, 200, 250, (byte) 2);
+    Arrays.fill(expectedContent, 250, 350, (byte) 3);
+    assertThat(recoveredFileService.read(FILE3.getAbsolutePath()).getContent())
+        .isEqualTo(expectedContent);
+    recoveredFileService.close();
+  }
+
+  @Test
+  void recoverWithTornLog() throws IOException {
+    FileServiceImpl crashingFileService =
+        new FileServiceImpl(new FileManager(new StorageService()));
+    crashingFileService.write(FILE1.getAbsolutePath(), FILE1.getContent());
+    // Simulates an entry that was partially written when the process crashed.
+    Files.write(
+        Path.of(BASE_PHYSICAL_PATH + CONTAINER_NAME + LOG_SUFFIX),
+        new byte[] {0, 0, 0, 42, 1, 2},
+        StandardOpenOption.APPEND);
+
+    FileServiceImpl recoveredFileService =
+        new FileServiceImpl(new FileManager(new StorageService()));
+    assertThat(recoveredFileService.read(FILE1.getAbsolutePath()).getContent())
+        .isEqualTo(FILE1.getContent());
+    assertThat(Files.size(Path.of(BASE_PHYSICAL_PATH + CONTAINER_NAME + LOG_SUFFIX))).isZero();
+    recoveredFileService.close();
+  }
+
+  @Test
+  void migrateLegacyContainer() {
+    // Two legacy files, with a deleted one between them.
+    byte[] legacyFile1 = serialize(FILE1);
+    byte[] deletedFile = new byte[serialize(FILE2).length];
+    byte[] legacyFile3 = serialize(FILE3);
+    try (StorageService storageService = new StorageService()) {
+      storageService.storeInContainer(legacyFile1, 0);
+      storageService.storeInContainer(deletedFile, legacyFile1.length);
+      storageService.storeInContainer(legacyFile3, legacyFile1.length + deletedFile.length);
+    }
+
+    // The legacy container is streamed in chunks smaller than its records.
+    FileServiceImpl fileService =
+        new FileServiceImpl(
+            new FileManager(new StorageService(StorageService.DEFAULT_CONTAINER_PATH, 16)));
+
+    assertThat(fileService.migrateLegacyContainer()).isEqualTo(2);
+    assertThat(fileService.read(FILE1.getAbsolutePath()).getContent())
+        .isEqualTo(FILE1.getContent());
+    assertThat(fileService.read(FILE3.getAbsolutePath()).getContent())
+        .isEqualTo(FILE3.getContent());
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> fileService.read(FILE2.getAbsolutePath()));
     assertThat(fileService.metrics().get("container_size"))
         .isEqualTo(String.valueOf(getContentLength(List.of(FILE1, FILE3))));
+    // The migrated container isn't a legacy one anymore.
+    assertThatExceptionOfType(IllegalStateException.class)
+        .isThrownBy(fileService::migrateLegacyContainer);
+    fileService.close();
   }
 
   private static int getContentLength(List<File> files) {
     return files.stream()
-        .map(SerializationUtils::serialize)
-        .map(b -> b.length)
+        .map(SerializationUtils::encode)
+        .map(ByteBuffer::remaining)
         .reduce(0, Integer::sum);
   }
 }
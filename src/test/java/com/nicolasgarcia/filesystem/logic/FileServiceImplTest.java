@@ -1,14 +1,30 @@
 package com.nicolasgarcia.filesystem.logic;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.when;
 
+import com.nicolasgarcia.filesystem.api.Batch;
 import com.nicolasgarcia.filesystem.api.File;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot.Operation;
+import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
 
 @Tag("unit")
 class FileServiceImplTest {
@@ -17,6 +33,19 @@ class FileServiceImplTest {
   private static final byte[] CONTENT_BYTES = CONTENT_STRING.getBytes();
   private static final File FILE = new File(ABSOLUTE_PATH, CONTENT_BYTES);
 
+  @Captor private ArgumentCaptor<List<File>> filesCaptor;
+  private AutoCloseable mocks;
+
+  @BeforeEach
+  void setUp() {
+    mocks = MockitoAnnotations.openMocks(this);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    mocks.close();
+  }
+
   @Test
   void create() {
     FileManager fileManager = mock(FileManager.class);
@@ -41,6 +70,74 @@ class FileServiceImplTest {
     assertThat(argumentCaptor.getValue().getContent()).isEqualTo(CONTENT_BYTES);
   }
 
+  @Test
+  void writeAll() {
+    FileManager fileManager = mock(FileManager.class);
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    fileService.writeAll(Map.of(ABSOLUTE_PATH.toUpperCase(), CONTENT_BYTES));
+
+    verify(fileManager).commit(filesCaptor.capture(), eq(Set.of()));
+    assertThat(filesCaptor.getValue()).hasSize(1);
+    assertThat(filesCaptor.getValue().get(0).getAbsolutePath()).isEqualTo(ABSOLUTE_PATH);
+    assertThat(filesCaptor.getValue().get(0).getContent()).isEqualTo(CONTENT_BYTES);
+  }
+
+  @Test
+  void deleteAll() {
+    FileManager fileManager = mock(FileManager.class);
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    fileService.deleteAll(List.of(ABSOLUTE_PATH));
+    verify(fileManager).commit(List.of(), Set.of(ABSOLUTE_PATH));
+  }
+
+  @Test
+  void batchIsCommittedOnce() {
+    FileManager fileManager = mock(FileManager.class);
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    Batch batch = fileService.batch().write(ABSOLUTE_PATH, CONTENT_BYTES).delete(ABSOLUTE_PATH);
+    batch.commit();
+    verify(fileManager).commit(List.of(), Set.of(ABSOLUTE_PATH));
+    assertThatExceptionOfType(IllegalStateException.class).isThrownBy(batch::commit);
+  }
+
+  @Test
+  void batchNormalizesDeletedPaths() {
+    FileManager fileManager = mock(FileManager.class);
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    fileService.deleteAll(List.of(ABSOLUTE_PATH.toUpperCase()));
+    verify(fileManager).commit(List.of(), Set.of(ABSOLUTE_PATH));
+
+    // The deletion replaces the write of the same path, however it's spelled.
+    fileService
+        .batch()
+        .write(ABSOLUTE_PATH, CONTENT_BYTES)
+        .delete(ABSOLUTE_PATH.toUpperCase())
+        .commit();
+    verify(fileManager, times(2)).commit(List.of(), Set.of(ABSOLUTE_PATH));
+  }
+
+  @Test
+  void measureOperations() {
+    FileManager fileManager = mock(FileManager.class);
+    doThrow(new FileNotFoundException()).when(fileManager).delete(ABSOLUTE_PATH);
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    fileService.write(ABSOLUTE_PATH, CONTENT_BYTES);
+    fileService.rename(ABSOLUTE_PATH, "/another");
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> fileService.delete(ABSOLUTE_PATH));
+
+    MetricsSnapshot snapshot = fileService.metricsSnapshot();
+    assertThat(snapshot.getOperations())
+        .containsOnlyKeys(Operation.WRITE, Operation.MOVE, Operation.DELETE);
+    assertThat(snapshot.getOperations().get(Operation.WRITE).getCount()).isEqualTo(1);
+    assertThat(snapshot.getOperations().get(Operation.DELETE).getErrors()).isEqualTo(1);
+    verify(fileManager).addMetrics(any(MetricsSnapshot.Builder.class));
+    assertThat(fileService.metrics())
+        .containsEntry("write_count", "1")
+        .containsEntry("move_count", "1")
+        .containsEntry("delete_errors", "1");
+  }
+
   @Test
   void read() {
     FileManager fileManager = mock(FileManager.class);
@@ -52,20 +149,14 @@ class FileServiceImplTest {
   @Test
   void append() {
     byte[] moreContent = "more-content".getBytes();
-    byte[] newContent = new byte[CONTENT_BYTES.length + moreContent.length];
-    System.arraycopy(CONTENT_BYTES, 0, newContent, 0, CONTENT_BYTES.length);
-    System.arraycopy(moreContent, 0, newContent, CONTENT_BYTES.length, moreContent.length);
 
     FileManager fileManager = mock(FileManager.class);
-    when(fileManager.read(ABSOLUTE_PATH)).thenReturn(FILE);
-
     FileServiceImpl fileService = new FileServiceImpl(fileManager);
     fileService.append(ABSOLUTE_PATH, moreContent);
 
-    ArgumentCaptor<File> argumentCaptor = ArgumentCaptor.forClass(File.class);
-    verify(fileManager).save(argumentCaptor.capture());
-    assertThat(argumentCaptor.getValue().getAbsolutePath()).isEqualTo(ABSOLUTE_PATH);
-    assertThat(argumentCaptor.getValue().getContent()).isEqualTo(newContent);
+    // The content is appended in place, without reading the file.
+    verify(fileManager).append(ABSOLUTE_PATH, moreContent);
+    verify(fileManager, never()).read(ABSOLUTE_PATH);
   }
 
   @Test
@@ -78,23 +169,49 @@ class FileServiceImplTest {
 
   @Test
   void rename() {
-    // TODO: With the given implementation, it is the same than #move.
+    FileManager fileManager = mock(FileManager.class);
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
 
+    String newAbsolutePath = "/nico/projects/jetbrains/testing/renamed.json";
+    fileService.rename(ABSOLUTE_PATH, newAbsolutePath);
+    verify(fileManager).move(ABSOLUTE_PATH, newAbsolutePath);
   }
 
   @Test
   void move() {
     FileManager fileManager = mock(FileManager.class);
     FileServiceImpl fileService = new FileServiceImpl(fileManager);
-    when(fileManager.read(ABSOLUTE_PATH)).thenReturn(FILE);
 
     String newAbsolutePath = "/another/path/test.json";
     fileService.move(ABSOLUTE_PATH, newAbsolutePath);
 
-    ArgumentCaptor<File> argumentCaptor = ArgumentCaptor.forClass(File.class);
-    verify(fileManager).delete(ABSOLUTE_PATH);
-    verify(fileManager).save(argumentCaptor.capture());
-    assertThat(argumentCaptor.getValue().getAbsolutePath()).isEqualTo(newAbsolutePath);
-    assertThat(argumentCaptor.getValue().getContent()).isEqualTo(CONTENT_BYTES);
+    // Only the metadata is updated: the file is neither read nor stored again.
+    verify(fileManager).move(ABSOLUTE_PATH, newAbsolutePath);
+    verify(fileManager, never()).read(ABSOLUTE_PATH);
+    verify(fileManager, never()).save(any(File.class));
+  }
+
+  @Test
+  void moveDirectory() {
+    FileManager fileManager = mock(FileManager.class);
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    fileService.moveDirectory("/some/dir", "/Another/Dir");
+    verify(fileManager).moveDirectory("/some/dir", "/another/dir");
+  }
+
+  @Test
+  void openWritableChannel() {
+    FileManager fileManager = mock(FileManager.class);
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    fileService.openWritableChannel("/Some/Path");
+    verify(fileManager).openWritableChannel("/some/path");
+  }
+
+  @Test
+  void close() {
+    FileManager fileManager = mock(FileManager.class);
+    FileServiceImpl fileService = new FileServiceImpl(fileManager);
+    fileService.close();
+    verify(fileManager).close();
   }
 }
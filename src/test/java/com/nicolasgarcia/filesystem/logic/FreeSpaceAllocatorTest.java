@@ -0,0 +1,153 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("unit")
+class FreeSpaceAllocatorTest {
+
+  @Test
+  void allocateAtTheEnd() {
+    FreeSpaceAllocator allocator = new FreeSpaceAllocator();
+    assertThat(allocator.allocate(10)).isEqualTo(0);
+    assertThat(allocator.allocate(5)).isEqualTo(10);
+    assertThat(allocator.getEnd()).isEqualTo(15);
+    assertThat(allocator.isEmpty()).isTrue();
+  }
+
+  @Test
+  void allocateInTheBestFit() {
+    FreeSpaceAllocator allocator = new FreeSpaceAllocator();
+    allocator.setEnd(100);
+    allocator.release(fragment(0, 20));
+    allocator.release(fragment(30, 38));
+    allocator.release(fragment(50, 60));
+
+    // The smallest fragment where it fits is split.
+    assertThat(allocator.allocate(9)).isEqualTo(50);
+    assertThat(boundaries(allocator))
+        .containsExactly(List.of(0L, 20L), List.of(30L, 38L), List.of(59L, 60L));
+    // An exact fit takes the whole fragment.
+    assertThat(allocator.allocate(8)).isEqualTo(30);
+    assertThat(boundaries(allocator)).containsExactly(List.of(0L, 20L), List.of(59L, 60L));
+    // Nothing fits, so it's allocated at the end.
+    assertThat(allocator.allocate(30)).isEqualTo(100);
+    assertThat(allocator.getEnd()).isEqualTo(130);
+    assertThat(allocator.getFreeBytes()).isEqualTo(21);
+  }
+
+  @Test
+  void releaseCoalescesContiguousFragments() {
+    FreeSpaceAllocator allocator = new FreeSpaceAllocator();
+    allocator.setEnd(100);
+    allocator.release(fragment(0, 10));
+    allocator.release(fragment(20, 30));
+    allocator.release(fragment(40, 50));
+    assertThat(allocator.size()).isEqualTo(3);
+
+    allocator.release(fragment(10, 20));
+    allocator.release(fragment(30, 35));
+    assertThat(boundaries(allocator)).containsExactly(List.of(0L, 35L), List.of(40L, 50L));
+  }
+
+  @Test
+  void extendAndTruncateTheLastFragment() {
+    FreeSpaceAllocator allocator = new FreeSpaceAllocator();
+    allocator.setEnd(50);
+    allocator.release(fragment(10, 20));
+    allocator.release(fragment(40, 50));
+
+    // The fragment at the end of the container grows with the container.
+    assertThat(allocator.allocate(15)).isEqualTo(40);
+    assertThat(allocator.getEnd()).isEqualTo(55);
+
+    allocator.release(fragment(45, 55));
+    assertThat(allocator.truncate()).map(Extent::getFrom).contains(45L);
+    assertThat(allocator.getEnd()).isEqualTo(45);
+    assertThat(allocator.truncate()).isEmpty();
+  }
+
+  @Test
+  void extendAllocatedRegions() {
+    FreeSpaceAllocator allocator = new FreeSpaceAllocator();
+    allocator.setEnd(50);
+    allocator.release(fragment(10, 20));
+    allocator.release(fragment(30, 40));
+
+    // There's enough free space right after the region.
+    assertThat(allocator.extend(10, 4)).isTrue();
+    assertThat(boundaries(allocator)).containsExactly(List.of(14L, 20L), List.of(30L, 40L));
+    // There isn't, neither free space nor the end of the container.
+    assertThat(allocator.extend(14, 7)).isFalse();
+    assertThat(allocator.extend(20, 1)).isFalse();
+    // The end of the container can always grow.
+    assertThat(allocator.extend(50, 5)).isTrue();
+    assertThat(allocator.getEnd()).isEqualTo(55);
+    assertThat(boundaries(allocator)).containsExactly(List.of(14L, 20L), List.of(30L, 40L));
+  }
+
+  @Test
+  void extendTheLastFragmentBeyondTheEnd() {
+    FreeSpaceAllocator allocator = new FreeSpaceAllocator();
+    allocator.setEnd(50);
+    allocator.release(fragment(40, 50));
+
+    assertThat(allocator.extend(40, 15)).isTrue();
+    assertThat(allocator.getEnd()).isEqualTo(55);
+    assertThat(allocator.isEmpty()).isTrue();
+  }
+
+  @Test
+  void takeOnlyExactFragments() {
+    FreeSpaceAllocator allocator = new FreeSpaceAllocator();
+    allocator.setEnd(50);
+    allocator.release(fragment(10, 20));
+
+    assertThat(allocator.take(fragment(10, 15))).isFalse();
+    assertThat(allocator.take(fragment(10, 20))).isTrue();
+    assertThat(allocator.isEmpty()).isTrue();
+  }
+
+  @Test
+  void allocateInBlocks() {
+    FreeSpaceAllocator allocator = new FreeSpaceAllocator();
+    allocator.setEnd(100);
+    allocator.release(fragment(0, 4));
+    allocator.release(fragment(10, 20));
+    allocator.release(fragment(30, 34));
+
+    // Every block takes its own best fit, so the small fragments are reused.
+    assertThat(allocator.allocate(14, 4))
+        .containsExactly(fragment(0, 4), fragment(30, 34), fragment(10, 14), fragment(14, 16));
+    assertThat(boundaries(allocator)).containsExactly(List.of(16L, 20L));
+    assertThat(allocator.getEnd()).isEqualTo(100);
+    // A region smaller than a block takes a single one.
+    assertThat(allocator.allocate(3, 4)).containsExactly(fragment(16, 19));
+  }
+
+  @Test
+  void allocateBeyondTwoGigabytes() {
+    FreeSpaceAllocator allocator = new FreeSpaceAllocator();
+    long end = 3L * Integer.MAX_VALUE;
+    allocator.setEnd(end);
+    allocator.release(new Extent(end - 100, end));
+
+    assertThat(allocator.allocate(10)).isEqualTo(end - 100);
+    assertThat(allocator.allocate(200)).isEqualTo(end - 90);
+    assertThat(allocator.getEnd()).isEqualTo(end + 110);
+  }
+
+  private static Extent fragment(long from, long to) {
+    return new Extent(from, to);
+  }
+
+  private static List<List<Long>> boundaries(FreeSpaceAllocator allocator) {
+    return allocator.getFragments().stream()
+        .map(f -> List.of(f.getFrom(), f.getTo()))
+        .collect(Collectors.toList());
+  }
+}
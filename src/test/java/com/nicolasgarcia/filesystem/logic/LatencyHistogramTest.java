@@ -0,0 +1,46 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("unit")
+class LatencyHistogramTest {
+
+  @Test
+  void bucketsCoverEveryValue() {
+    for (long value : new long[] {0, 1, 7, 8, 15, 16, 1000, 123_456_789, Long.MAX_VALUE}) {
+      int bucket = LatencyHistogram.bucketOf(value);
+      assertThat(LatencyHistogram.upperBoundOf(bucket)).isGreaterThanOrEqualTo(value);
+      if (bucket > 0) {
+        assertThat(LatencyHistogram.upperBoundOf(bucket - 1)).isLessThan(value);
+      }
+    }
+  }
+
+  @Test
+  void percentilesWithinError() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 1; value <= 100_000; value++) {
+      histogram.record(value);
+    }
+
+    assertThat(histogram.getCount()).isEqualTo(100_000);
+    assertThat(histogram.getMax()).isEqualTo(100_000);
+    assertThat(histogram.getMean()).isEqualTo(50_000);
+    double maxError = 1.0 / LatencyHistogram.SUB_BUCKETS;
+    assertThat((double) histogram.getValueAt(0.5)).isCloseTo(50_000, within(50_000 * maxError));
+    assertThat((double) histogram.getValueAt(0.99)).isCloseTo(99_000, within(99_000 * maxError));
+    assertThat(histogram.getValueAt(1)).isEqualTo(100_000);
+  }
+
+  @Test
+  void emptyHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertThat(histogram.getValueAt(0.99)).isZero();
+    assertThat(histogram.toStats(0).getCount()).isZero();
+    assertThat(histogram.getMean()).isZero();
+  }
+}
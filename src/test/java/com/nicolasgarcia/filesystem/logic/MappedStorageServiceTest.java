@@ -0,0 +1,75 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static com.nicolasgarcia.filesystem.logic.StorageService.BASE_PHYSICAL_PATH;
+import static com.nicolasgarcia.filesystem.logic.StorageService.CONTAINER_NAME;
+import static com.nicolasgarcia.filesystem.logic.StorageService.INDEX_SUFFIX;
+import static com.nicolasgarcia.filesystem.logic.StorageService.LOG_SUFFIX;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("integration")
+class MappedStorageServiceTest {
+  private static final int CHUNK_SIZE = 8;
+
+  @BeforeEach
+  void beforeMethod() {
+    new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME).delete();
+    new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME + INDEX_SUFFIX).delete();
+    new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME + LOG_SUFFIX).delete();
+  }
+
+  @Test
+  void readReturnsReadOnlyView() {
+    byte[] test = "test".getBytes(StandardCharsets.UTF_8);
+    try (StorageService storageService = new MappedStorageService(CHUNK_SIZE)) {
+      storageService.storeInContainer(test, 0);
+
+      ByteBuffer buffer = storageService.readBufferFromContainer(0, test.length);
+      assertThat(buffer.isReadOnly()).isTrue();
+      assertThat(buffer.isDirect()).isTrue();
+      assertThat(buffer.remaining()).isEqualTo(test.length);
+    }
+  }
+
+  @Test
+  void readAfterContainerGrows() {
+    byte[] test1 = "first".getBytes(StandardCharsets.UTF_8);
+    byte[] test2 = "second-content".getBytes(StandardCharsets.UTF_8);
+    try (StorageService storageService = new MappedStorageService(CHUNK_SIZE)) {
+      storageService.storeInContainer(test1, 0);
+      assertThat(storageService.readFromContainer(0, test1.length)).isEqualTo(test1);
+
+      // The second content goes beyond the mapped region, and it's split between chunks.
+      storageService.storeInContainer(test2, test1.length);
+      assertThat(storageService.readFromContainer(test1.length, test1.length + test2.length))
+          .isEqualTo(test2);
+      assertThat(storageService.readFromContainer(0, test1.length)).isEqualTo(test1);
+    }
+  }
+
+  @Test
+  void readAfterResize() {
+    byte[] test1 = "some-content".getBytes(StandardCharsets.UTF_8);
+    byte[] test2 = "another-content".getBytes(StandardCharsets.UTF_8);
+    try (StorageService storageService = new MappedStorageService(CHUNK_SIZE)) {
+      storageService.storeInContainer(test1, 0);
+      assertThat(storageService.readFromContainer(0, test1.length)).isEqualTo(test1);
+
+      storageService.resizeContainer(new Extent(4, test1.length));
+      assertThat(storageService.getContainerSize()).isEqualTo(4);
+      assertThatExceptionOfType(FileNotFoundException.class)
+          .isThrownBy(() -> storageService.readFromContainer(0, test1.length));
+
+      storageService.storeInContainer(test2, 4);
+      assertThat(storageService.readFromContainer(4, 4 + test2.length)).isEqualTo(test2);
+      assertThat(storageService.readFromContainer(0, 4)).isEqualTo("some".getBytes());
+    }
+  }
+}
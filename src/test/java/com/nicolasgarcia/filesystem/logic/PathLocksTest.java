@@ -0,0 +1,48 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("unit")
+class PathLocksTest {
+
+  @Test
+  void samePathTakesSameStripe() {
+    PathLocks pathLocks = new PathLocks(16);
+
+    int stripe = pathLocks.stripeOf("/some/path/file");
+    assertThat(pathLocks.stripeOf("/some//path/file")).isEqualTo(stripe);
+    assertThat(pathLocks.stripeOf("some/path/file/")).isEqualTo(stripe);
+    assertThat(pathLocks.writeLock("/some/path/file"))
+        .isSameAs(pathLocks.writeLock("//some/path/file"));
+    assertThat(pathLocks.readLock("/some/path/file"))
+        .isNotSameAs(pathLocks.writeLock("/some/path/file"));
+  }
+
+  @Test
+  void takeSeveralLocksInOrder() {
+    PathLocks pathLocks = new PathLocks(4);
+    String first = "/a";
+    String second = "/b";
+    while (pathLocks.stripeOf(second) == pathLocks.stripeOf(first)) {
+      second += "b";
+    }
+
+    List<Lock> locks = pathLocks.writeLocks(second, first);
+    List<Lock> reversedLocks = pathLocks.writeLocks(first, second);
+    assertThat(locks).hasSize(2).isEqualTo(reversedLocks);
+    // The same stripe is only taken once.
+    assertThat(pathLocks.writeLocks(first, "/a/")).containsExactly(pathLocks.writeLock(first));
+  }
+
+  @Test
+  void stripeCountIsPowerOfTwo() {
+    assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new PathLocks(12));
+    assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new PathLocks(0));
+  }
+}
@@ -0,0 +1,220 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import com.nicolasgarcia.filesystem.api.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("unit")
+class ReadCacheTest {
+  private static final int CONTENT_SIZE = 100;
+  /** Room for exactly two files. */
+  private static final long MAX_BYTES = 2 * (ReadCache.ENTRY_OVERHEAD + CONTENT_SIZE);
+
+  @Test
+  void evictLeastRecentlyRead() {
+    ReadCache readCache = new ReadCache(CachePolicy.lru(MAX_BYTES));
+    FileMetaData file1 = metaData("/file1", 0);
+    FileMetaData file2 = metaData("/file2", 1);
+    FileMetaData file3 = metaData("/file3", 2);
+
+    assertThat(readCache.get(file1)).isNull();
+    readCache.put(file1, file(file1));
+    readCache.put(file2, file(file2));
+    assertThat(readCache.get(file1).getContent()).isEqualTo(content(file1));
+    // The second file is the least recently read one.
+    readCache.put(file3, file(file3));
+    assertThat(readCache.get(file2)).isNull();
+    assertThat(readCache.get(file1)).isNotNull();
+    assertThat(readCache.get(file3)).isNotNull();
+
+    assertThat(metrics(readCache))
+        .containsEntry("cache_entries", "2")
+        .containsEntry("cache_size", String.valueOf(MAX_BYTES))
+        .containsEntry("cache_hits", "3")
+        .containsEntry("cache_misses", "2")
+        .containsEntry("cache_evictions", "1");
+  }
+
+  @Test
+  void readCachedContentAsBuffer() {
+    ReadCache readCache = new ReadCache(CachePolicy.lru(MAX_BYTES));
+    FileMetaData file1 = metaData("/file1", 0);
+    FileMetaData emptyFile = metaData("/empty", 1);
+
+    assertThat(readCache.getBuffer(file1)).isNull();
+    readCache.put(file1, file(file1));
+    readCache.put(emptyFile, new File(emptyFile.getAbsolutePath(), null));
+    ByteBuffer buffer = readCache.getBuffer(file1);
+    assertThat(buffer.isReadOnly()).isTrue();
+    assertThat(buffer).isEqualTo(ByteBuffer.wrap(content(file1)));
+    assertThat(readCache.getBuffer(emptyFile).hasRemaining()).isFalse();
+    assertThat(metrics(readCache))
+        .containsEntry("cache_hits", "2")
+        .containsEntry("cache_misses", "1");
+  }
+
+  @Test
+  void admitOnlyMoreFrequentFiles() {
+    ReadCache readCache = new ReadCache(CachePolicy.frequency(MAX_BYTES));
+    FileMetaData file1 = metaData("/file1", 0);
+    FileMetaData file2 = metaData("/file2", 1);
+    FileMetaData file3 = metaData("/file3", 2);
+    for (FileMetaData fileMetaData : new FileMetaData[] {file1, file2}) {
+      readCache.get(fileMetaData);
+      readCache.put(fileMetaData, file(fileMetaData));
+    }
+    readCache.get(file1);
+    readCache.get(file2);
+
+    // A file read once doesn't evict the ones read more often.
+    readCache.get(file3);
+    readCache.put(file3, file(file3));
+    assertThat(readCache.get(file1)).isNotNull();
+    assertThat(readCache.get(file2)).isNotNull();
+    assertThat(metrics(readCache)).containsEntry("cache_rejections", "1");
+
+    // Once it's read more often, it's admitted.
+    for (int i = 0; i < 5; i++) {
+      readCache.get(file3);
+    }
+    readCache.put(file3, file(file3));
+    assertThat(readCache.get(file3)).isNotNull();
+    assertThat(metrics(readCache)).containsEntry("cache_evictions", "1");
+  }
+
+  @Test
+  void ignoreOutdatedEntries() {
+    ReadCache readCache = new ReadCache(CachePolicy.lru(MAX_BYTES));
+    FileMetaData fileMetaData = metaData("/file1", 0);
+    readCache.put(fileMetaData, file(fileMetaData));
+
+    // The file was replaced, so the entry is outdated.
+    FileMetaData newFileMetaData = metaData("/file1", 1);
+    assertThat(readCache.get(newFileMetaData)).isNull();
+
+    // The file was moved, but its content is the same.
+    readCache.put(fileMetaData, file(fileMetaData));
+    FileMetaData relocatedFileMetaData = fileMetaData.withExtents(List.of(new Extent(50, 60)));
+    readCache.relocate(fileMetaData, relocatedFileMetaData);
+    assertThat(readCache.get(fileMetaData)).isNull();
+    assertThat(readCache.get(relocatedFileMetaData)).isNotNull();
+
+    readCache.invalidate("/file1");
+    assertThat(readCache.get(relocatedFileMetaData)).isNull();
+    assertThat(metrics(readCache)).containsEntry("cache_size", "0");
+  }
+
+  @Test
+  void copyCachedContent() {
+    ReadCache readCache = new ReadCache(CachePolicy.lru(MAX_BYTES));
+    FileMetaData fileMetaData = metaData("/file1", 0);
+    File file = file(fileMetaData);
+    readCache.put(fileMetaData, file);
+    file.getContent()[0] = 42;
+    readCache.get(fileMetaData).getContent()[1] = 42;
+
+    assertThat(readCache.get(fileMetaData).getContent()).isEqualTo(content(fileMetaData));
+  }
+
+  @Test
+  void skipFilesBiggerThanCache() {
+    ReadCache readCache = new ReadCache(CachePolicy.lru(MAX_BYTES));
+    FileMetaData fileMetaData = metaData("/large", 0);
+    readCache.put(fileMetaData, new File("/large", new byte[(int) MAX_BYTES]));
+    assertThat(readCache.get(fileMetaData)).isNull();
+  }
+
+  @Test
+  void spreadEntriesOverSegments() {
+    assertThat(metrics(new ReadCache(CachePolicy.lru(MAX_BYTES))))
+        .containsEntry("cache_segments", "1");
+    long maxBytes = ReadCache.MAX_SEGMENTS * ReadCache.MIN_SEGMENT_BYTES;
+    assertThat(metrics(new ReadCache(CachePolicy.lru(maxBytes / 4))))
+        .containsEntry("cache_segments", String.valueOf(ReadCache.MAX_SEGMENTS / 4));
+    ReadCache readCache = new ReadCache(CachePolicy.lru(maxBytes * 4));
+
+    List<FileMetaData> files = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      FileMetaData fileMetaData = metaData("/file" + i, i);
+      files.add(fileMetaData);
+      readCache.put(fileMetaData, file(fileMetaData));
+    }
+    for (FileMetaData fileMetaData : files) {
+      assertThat(readCache.get(fileMetaData).getContent()).isEqualTo(content(fileMetaData));
+    }
+    readCache.invalidate("/file0");
+    assertThat(metrics(readCache))
+        .containsEntry("cache_segments", String.valueOf(ReadCache.MAX_SEGMENTS))
+        .containsEntry("cache_entries", "99")
+        .containsEntry("cache_size", String.valueOf(99 * (ReadCache.ENTRY_OVERHEAD + CONTENT_SIZE)))
+        .containsEntry("cache_hits", "100");
+    readCache.invalidateAll();
+    assertThat(metrics(readCache)).containsEntry("cache_entries", "0");
+  }
+
+  @Test
+  void evictWithinSegment() {
+    // Every segment has room for a single file.
+    ReadCache readCache = new ReadCache(CachePolicy.lru(MAX_BYTES), 2);
+    for (int i = 0; i < 3; i++) {
+      FileMetaData fileMetaData = metaData("/file" + i, i);
+      readCache.put(fileMetaData, file(fileMetaData));
+    }
+    Map<String, String> stats = metrics(readCache);
+    assertThat(Long.parseLong(stats.get("cache_entries"))).isBetween(1L, 2L);
+    assertThat(Long.parseLong(stats.get("cache_evictions"))).isPositive();
+
+    // A file that fits in the whole cache, but not in its segment, isn't cached.
+    FileMetaData largeFile = metaData("/large", 3);
+    readCache.put(largeFile, new File("/large", new byte[CONTENT_SIZE * 3 / 2]));
+    assertThat(readCache.get(largeFile)).isNull();
+
+    assertThatExceptionOfType(IllegalArgumentException.class)
+        .isThrownBy(() -> new ReadCache(CachePolicy.lru(MAX_BYTES), 3));
+  }
+
+  @Test
+  void disabledCache() {
+    ReadCache readCache = new ReadCache(CachePolicy.none());
+    FileMetaData fileMetaData = metaData("/file1", 0);
+    readCache.put(fileMetaData, file(fileMetaData));
+    assertThat(readCache.get(fileMetaData)).isNull();
+    assertThat(metrics(readCache)).isEmpty();
+
+    assertThatExceptionOfType(IllegalArgumentException.class)
+        .isThrownBy(() -> CachePolicy.frequency(0));
+  }
+
+  private static FileMetaData metaData(String absolutePath, int segmentNumber) {
+    return new FileMetaData(
+        absolutePath.substring(1),
+        absolutePath,
+        segmentNumber * 10L,
+        segmentNumber * 10L + 10,
+        segmentNumber);
+  }
+
+  private static byte[] content(FileMetaData fileMetaData) {
+    byte[] content = new byte[CONTENT_SIZE];
+    content[0] = (byte) fileMetaData.getSegmentNumber();
+    return content;
+  }
+
+  private static File file(FileMetaData fileMetaData) {
+    return new File(fileMetaData.getAbsolutePath(), content(fileMetaData));
+  }
+
+  private static Map<String, String> metrics(ReadCache readCache) {
+    Map<String, String> stats = new HashMap<>();
+    readCache.addMetrics(stats);
+    return stats;
+  }
+}
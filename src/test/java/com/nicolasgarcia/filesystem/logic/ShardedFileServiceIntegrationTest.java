@@ -0,0 +1,348 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import com.nicolasgarcia.filesystem.api.File;
+import com.nicolasgarcia.filesystem.api.FileStat;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot;
+import com.nicolasgarcia.filesystem.api.MetricsSnapshot.Operation;
+import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+@Tag("integration")
+class ShardedFileServiceIntegrationTest {
+  private static final int SHARDS = 4;
+  private static final int FILES = 40;
+  private static final String BASE_PATH = "/some/path";
+
+  @TempDir Path directory;
+
+  @Test
+  void spreadFilesOverShards() {
+    Map<String, byte[]> files = files(BASE_PATH);
+    ShardedFileService fileService =
+        ShardedFileService.open(directory, SHARDS, ShardingPolicy.hash());
+    files.forEach(fileService::write);
+
+    files.forEach(
+        (absolutePath, content) ->
+            assertThat(fileService.read(absolutePath).getContent()).isEqualTo(content));
+    assertThat(fileService.list(BASE_PATH))
+        .containsExactlyElementsOf(files.keySet().stream().sorted().collect(Collectors.toList()));
+    assertThat(fileService.walk("/")).containsExactlyInAnyOrderElementsOf(files.keySet());
+    assertThat(fileService.exists(BASE_PATH)).isTrue();
+    assertThat(fileService.exists(BASE_PATH + "/missing")).isFalse();
+    for (Path containerPath : ShardedFileService.containerPathsOf(directory, SHARDS)) {
+      assertThat(containerPath).exists();
+      assertThat(StorageService.siblingOf(containerPath, StorageService.LOG_SUFFIX)).exists();
+    }
+    List<MetricsSnapshot> shardSnapshots = fileService.shardMetricsSnapshots();
+    assertThat(shardSnapshots).hasSize(SHARDS).allMatch(snapshot -> snapshot.getLiveFiles() > 0);
+    fileService.close();
+
+    // The files are found in the same shards once they are opened again.
+    ShardedFileService reopenedFileService =
+        ShardedFileService.open(directory, SHARDS, ShardingPolicy.hash());
+    files.forEach(
+        (absolutePath, content) ->
+            assertThat(reopenedFileService.read(absolutePath).getContent()).isEqualTo(content));
+    reopenedFileService.close();
+  }
+
+  @Test
+  void keepPrefixesInTheSameShard() {
+    ShardedFileService fileService =
+        ShardedFileService.open(directory, SHARDS, ShardingPolicy.prefix(2));
+    files(BASE_PATH).forEach(fileService::write);
+
+    assertThat(fileService.shardMetricsSnapshots())
+        .filteredOn(snapshot -> snapshot.getLiveFiles() > 0)
+        .singleElement()
+        .extracting(MetricsSnapshot::getLiveFiles)
+        .isEqualTo((long) FILES);
+    assertThat(fileService.walk("/some")).hasSize(FILES);
+    fileService.close();
+  }
+
+  @Test
+  void moveFilesAndDirectories() {
+    Map<String, byte[]> files = files(BASE_PATH);
+    ShardedFileService fileService =
+        ShardedFileService.open(directory, SHARDS, ShardingPolicy.hash());
+    files.forEach(fileService::write);
+
+    // Most of the files end up in another shard.
+    for (String absolutePath : files.keySet()) {
+      fileService.move(absolutePath, absolutePath + "-moved");
+    }
+    assertThat(fileService.walk(BASE_PATH))
+        .hasSize(FILES)
+        .allMatch(path -> path.endsWith("-moved"));
+    fileService.moveDirectory(BASE_PATH, "/another/path");
+
+    files.forEach(
+        (absolutePath, content) -> {
+          String newPath = absolutePath.replace(BASE_PATH, "/another/path") + "-moved";
+          assertThat(fileService.read(newPath).getContent()).isEqualTo(content);
+        });
+    assertThat(fileService.exists(BASE_PATH)).isFalse();
+    assertThat(fileService.metricsSnapshot().getLiveFiles()).isEqualTo(FILES);
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> fileService.moveDirectory(BASE_PATH, "/path"));
+    fileService.write("/path/file", new byte[1]);
+    assertThatExceptionOfType(IllegalArgumentException.class)
+        .isThrownBy(() -> fileService.moveDirectory("/another", "/path"));
+    fileService.close();
+  }
+
+  @Test
+  void moveDirectoryNextToFile() {
+    ShardedFileService fileService =
+        ShardedFileService.open(directory, SHARDS, ShardingPolicy.hash());
+    // A file has the same path as the directory, and none of the files inside it are in its shard.
+    int fileShard = ShardingPolicy.hash().shardOf(BASE_PATH, SHARDS);
+    Map<String, byte[]> files = new LinkedHashMap<>();
+    files(BASE_PATH)
+        .forEach(
+            (absolutePath, content) -> {
+              if (ShardingPolicy.hash().shardOf(absolutePath, SHARDS) != fileShard) {
+                files.put(absolutePath, content);
+              }
+            });
+    files.forEach(fileService::write);
+    fileService.write(BASE_PATH, new byte[] {42});
+
+    fileService.moveDirectory(BASE_PATH, "/another/path");
+    assertThat(fileService.read(BASE_PATH).getContent()).containsExactly(42);
+    assertThat(fileService.walk("/another/path")).hasSize(files.size());
+    files.forEach(
+        (absolutePath, content) -> {
+          String newPath = absolutePath.replace(BASE_PATH, "/another/path");
+          assertThat(fileService.read(newPath).getContent()).isEqualTo(content);
+        });
+
+    // A path that is only a file isn't a directory.
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> fileService.moveDirectory(BASE_PATH, "/path"));
+    assertThat(fileService.read(BASE_PATH).getContent()).containsExactly(42);
+    fileService.close();
+  }
+
+  @Test
+  void relocateMisplacedFiles() {
+    List<FileManager> shards =
+        ShardedFileService.containerPathsOf(directory, SHARDS).stream()
+            .map(containerPath -> new FileManager(new StorageService(containerPath)))
+            .collect(Collectors.toList());
+    ShardedFileService fileService = new ShardedFileService(shards, ShardingPolicy.hash());
+    Map<String, byte[]> files = files(BASE_PATH);
+    files.forEach(fileService::write);
+    // Simulates a directory move interrupted by a crash: some files were only copied to their
+    // shard, and the others weren't even copied.
+    int i = 0;
+    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+      int shard = ShardingPolicy.hash().shardOf(file.getKey(), SHARDS);
+      FileManager otherShard = shards.get((shard + 1) % SHARDS);
+      otherShard.save(new File(file.getKey(), file.getValue()));
+      if (i++ % 2 == 0) {
+        shards.get(shard).delete(file.getKey());
+      }
+    }
+
+    assertThat(fileService.relocateMisplacedFiles()).isEqualTo(FILES);
+    files.forEach(
+        (absolutePath, content) ->
+            assertThat(fileService.read(absolutePath).getContent()).isEqualTo(content));
+    assertThat(fileService.walk("/")).containsExactlyInAnyOrderElementsOf(files.keySet());
+    assertThat(fileService.relocateMisplacedFiles()).isZero();
+    fileService.close();
+  }
+
+  @Test
+  void commitBatchesToEveryShard() {
+    Map<String, byte[]> files = files(BASE_PATH);
+    ShardedFileService fileService =
+        ShardedFileService.open(directory, SHARDS, ShardingPolicy.hash());
+    fileService.writeAll(files);
+    assertThat(fileService.walk(BASE_PATH)).hasSize(FILES);
+
+    // Nothing is deleted if any file is missing.
+    List<String> deletedPaths = new ArrayList<>(files.keySet());
+    deletedPaths.add(BASE_PATH + "/missing");
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> fileService.deleteAll(deletedPaths));
+    assertThat(fileService.walk(BASE_PATH)).hasSize(FILES);
+
+    fileService.deleteAll(files.keySet());
+    assertThat(fileService.walk("/")).isEmpty();
+    assertThat(fileService.metricsSnapshot().getOperations().get(Operation.BATCH).getCount())
+        .isEqualTo(3);
+    fileService.close();
+  }
+
+  @Test
+  void compactShardsInParallel() {
+    Map<String, byte[]> files = files(BASE_PATH);
+    ShardedFileService fileService =
+        ShardedFileService.open(directory, SHARDS, ShardingPolicy.hash());
+    files.forEach(fileService::write);
+    List<String> paths = new ArrayList<>(files.keySet());
+    for (int i = 0; i < FILES; i += 2) {
+      fileService.delete(paths.get(i));
+    }
+    MetricsSnapshot fragmented = fileService.metricsSnapshot();
+    assertThat(fragmented.getReclaimableBytes()).isPositive();
+
+    fileService.compactMemory();
+
+    MetricsSnapshot compacted = fileService.metricsSnapshot();
+    assertThat(compacted.getCompactionRuns()).isEqualTo(SHARDS);
+    assertThat(compacted.getReclaimableBytes()).isZero();
+    assertThat(compacted.getContainerSize())
+        .isEqualTo(fragmented.getContainerSize() - fragmented.getReclaimableBytes());
+    assertThat(compacted.getCompactionReclaimedBytes()).isEqualTo(fragmented.getReclaimableBytes());
+    for (int i = 1; i < FILES; i += 2) {
+      assertThat(fileService.read(paths.get(i)).getContent()).isEqualTo(files.get(paths.get(i)));
+    }
+    fileService.close();
+  }
+
+  @Test
+  void aggregateMetrics() throws Exception {
+    ShardedFileService fileService =
+        ShardedFileService.open(directory, SHARDS, ShardingPolicy.hash());
+    files(BASE_PATH).forEach(fileService::write);
+
+    MetricsSnapshot snapshot = fileService.metricsSnapshot();
+    List<MetricsSnapshot> shardSnapshots = fileService.shardMetricsSnapshots();
+    assertThat(snapshot.getLiveFiles()).isEqualTo(FILES);
+    assertThat(snapshot.getOperations().get(Operation.WRITE).getCount()).isEqualTo(FILES);
+    assertThat(snapshot.getContainerSize())
+        .isEqualTo(shardSnapshots.stream().mapToLong(MetricsSnapshot::getContainerSize).sum());
+    assertThat(snapshot.getBytesWritten())
+        .isEqualTo(shardSnapshots.stream().mapToLong(MetricsSnapshot::getBytesWritten).sum());
+
+    Map<String, String> metrics = fileService.metrics();
+    assertThat(metrics)
+        .containsEntry("shards", String.valueOf(SHARDS))
+        .containsEntry("sharding_policy", "HASH")
+        .containsEntry("index_files", String.valueOf(FILES))
+        .containsEntry("container_size", String.valueOf(snapshot.getContainerSize()))
+        .containsKeys("shard_0_container_size", "shard_" + (SHARDS - 1) + "_index_files");
+
+    Object containerSize =
+        ManagementFactory.getPlatformMBeanServer()
+            .getAttribute(fileService.registerMBean(), "ContainerSize");
+    assertThat(containerSize).isEqualTo(snapshot.getContainerSize());
+    fileService.close();
+  }
+
+  @Test
+  void walkEveryShardLazily() {
+    ShardedFileService fileService =
+        ShardedFileService.open(directory, SHARDS, ShardingPolicy.hash());
+    files(BASE_PATH).forEach(fileService::write);
+
+    List<FileStat> visited = new ArrayList<>();
+    fileService.walk(BASE_PATH, visited::add);
+    assertThat(visited).hasSize(FILES);
+
+    // The walk stops as soon as the visitor says so, even in the middle of a shard.
+    visited.clear();
+    fileService.walk(BASE_PATH, stat -> visited.add(stat) && visited.size() < 3);
+    assertThat(visited).hasSize(3);
+    fileService.close();
+  }
+
+  @Test
+  void openShardsWithTheGivenSettings() {
+    ShardedFileService fileService =
+        ShardedFileService.open(
+            ShardedFileService.containerPathsOf(directory, SHARDS),
+            ShardingPolicy.hash(),
+            FileServiceImpl.builder()
+                .blockSize(16)
+                .compactionPolicy(CompactionPolicy.of(0.5, Duration.ofHours(1), Long.MAX_VALUE))
+                .backgroundCompaction(1024 * 1024));
+    Map<String, byte[]> files = files(BASE_PATH);
+    files.forEach(fileService::write);
+
+    assertThat(fileService.stat(BASE_PATH + "/file1").getExtentCount()).isGreaterThan(1);
+    assertThat(fileService.metrics())
+        .containsKeys("shard_0_compaction_policy", "shard_" + (SHARDS - 1) + "_compaction_policy");
+    fileService.scheduleCompaction(CompactionPolicy.manual());
+    assertThat(fileService.metrics()).doesNotContainKey("shard_0_compaction_policy");
+    assertThat(fileService.metrics())
+        .containsEntry("shard_0_compaction_background_bytes_per_second", "1048576");
+    fileService.stopBackgroundCompaction();
+    assertThat(fileService.metrics())
+        .doesNotContainKey("shard_0_compaction_background_bytes_per_second");
+    fileService.startBackgroundCompaction(2 * 1024 * 1024);
+    assertThat(fileService.metrics())
+        .containsEntry(
+            "shard_" + (SHARDS - 1) + "_compaction_background_bytes_per_second", "2097152");
+    fileService.close();
+  }
+
+  @Test
+  void closeOpenedShardsIfAnyFails() throws Exception {
+    Path containerPath = directory.resolve("container");
+    // The second container can't be created, since its directory is a regular file.
+    Path regularFile = Files.createFile(directory.resolve("file"));
+    assertThatExceptionOfType(IllegalStateException.class)
+        .isThrownBy(
+            () ->
+                ShardedFileService.open(
+                    List.of(containerPath, regularFile.resolve("container")),
+                    ShardingPolicy.hash()));
+
+    // The first container was closed, so its index is persisted.
+    assertThat(StorageService.siblingOf(containerPath, StorageService.INDEX_SUFFIX)).exists();
+    ShardedFileService fileService = ShardedFileService.open(List.of(containerPath));
+    fileService.write("/file", new byte[1]);
+    fileService.close();
+  }
+
+  @Test
+  void openContainersAnywhere() throws Exception {
+    Path containerPath = directory.resolve("some/nested/container");
+    FileServiceImpl fileService =
+        new FileServiceImpl(new FileManager(new StorageService(containerPath)));
+    fileService.write("/file", "some content".getBytes(StandardCharsets.UTF_8));
+    fileService.close();
+
+    assertThat(Files.size(containerPath)).isPositive();
+    assertThat(StorageService.siblingOf(containerPath, StorageService.INDEX_SUFFIX)).exists();
+    FileServiceImpl reopenedFileService =
+        new FileServiceImpl(
+            new FileManager(StorageService.open(containerPath, StorageService.Mode.MEMORY_MAPPED)));
+    assertThat(reopenedFileService.read("/file").getContent())
+        .isEqualTo("some content".getBytes(StandardCharsets.UTF_8));
+    reopenedFileService.close();
+  }
+
+  private static Map<String, byte[]> files(String directoryPath) {
+    Map<String, byte[]> files = new LinkedHashMap<>();
+    IntStream.range(0, FILES)
+        .forEach(
+            i ->
+                files.put(
+                    directoryPath + "/file" + i,
+                    ("content of file " + i).repeat(i + 1).getBytes(StandardCharsets.UTF_8)));
+    return files;
+  }
+}
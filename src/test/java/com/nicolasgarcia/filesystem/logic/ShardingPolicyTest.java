@@ -0,0 +1,54 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("unit")
+class ShardingPolicyTest {
+  private static final int SHARDS = 4;
+
+  @Test
+  void hashWholePath() {
+    ShardingPolicy policy = ShardingPolicy.hash();
+
+    Set<Integer> shards = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      int shard = policy.shardOf("/some/path/file" + i, SHARDS);
+      assertThat(shard).isBetween(0, SHARDS - 1);
+      shards.add(shard);
+    }
+    // The files of the same directory are spread over every shard.
+    assertThat(shards).hasSize(SHARDS);
+    assertThat(policy.shardOf("/some//path/file1/", SHARDS))
+        .isEqualTo(policy.shardOf("/some/path/file1", SHARDS));
+    assertThat(policy.shardOfDirectory("/some/path", SHARDS)).isEqualTo(-1);
+  }
+
+  @Test
+  void hashPrefix() {
+    ShardingPolicy policy = ShardingPolicy.prefix(2);
+
+    int shard = policy.shardOf("/some/path/file", SHARDS);
+    assertThat(policy.shardOf("/some/path/another/file", SHARDS)).isEqualTo(shard);
+    assertThat(policy.shardOfDirectory("/some/path", SHARDS)).isEqualTo(shard);
+    assertThat(policy.shardOfDirectory("/some/path/another", SHARDS)).isEqualTo(shard);
+    // The directories above the prefix can have files in any shard.
+    assertThat(policy.shardOfDirectory("/some", SHARDS)).isEqualTo(-1);
+    assertThat(policy.shardOf("/some/file", SHARDS))
+        .isEqualTo(policy.shardOf("/some/another", SHARDS));
+    assertThat(policy.shardOf("/file", SHARDS)).isEqualTo(policy.shardOf("/another", SHARDS));
+  }
+
+  @Test
+  void checkDepth() {
+    assertThatExceptionOfType(IllegalArgumentException.class)
+        .isThrownBy(() -> ShardingPolicy.prefix(0));
+    assertThat(ShardingPolicy.prefix(1)).hasToString("PREFIX(1)");
+    assertThat(ShardingPolicy.hash()).hasToString("HASH");
+  }
+}
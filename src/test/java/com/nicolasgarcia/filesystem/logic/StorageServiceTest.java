@@ -2,8 +2,13 @@ package com.nicolasgarcia.filesystem.logic;
 
 import static com.nicolasgarcia.filesystem.logic.StorageService.BASE_PHYSICAL_PATH;
 import static com.nicolasgarcia.filesystem.logic.StorageService.CONTAINER_NAME;
+import static com.nicolasgarcia.filesystem.logic.StorageService.INDEX_SUFFIX;
+import static com.nicolasgarcia.filesystem.logic.StorageService.LOG_SUFFIX;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 
+import com.nicolasgarcia.filesystem.exceptions.FileNotFoundException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Tag;
@@ -13,30 +18,96 @@ import org.junit.jupiter.api.Test;
 class StorageServiceTest {
   @BeforeEach
   void beforeMethod() {
-    java.io.File file = new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME);
-    file.delete();
+    new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME).delete();
+    new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME + INDEX_SUFFIX).delete();
+    new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME + LOG_SUFFIX).delete();
   }
 
   @Test
   void storeAndReadFromContainer() {
     byte[] test = "teststring".getBytes(StandardCharsets.UTF_8);
-    StorageService storageService = new StorageService();
-    storageService.storeInContainer(test, 0);
-    assertThat(storageService.readFromContainer(0, test.length)).isEqualTo(test);
+    try (StorageService storageService = new StorageService()) {
+      storageService.storeInContainer(test, 0);
+      assertThat(storageService.readFromContainer(0, test.length)).isEqualTo(test);
+    }
   }
 
   @Test
   void storeAndReadMultipleFilesFromContainer() {
     byte[] test1 = "testing1".getBytes(StandardCharsets.UTF_8);
     byte[] test2 = "testing2".getBytes(StandardCharsets.UTF_8);
+    try (StorageService storageService = new StorageService()) {
+      storageService.storeInContainer(test1, 0);
+      storageService.storeInContainer(test2, test1.length);
+
+      byte[] expectedArray = new byte[test1.length + test2.length];
+      System.arraycopy(test1, 0, expectedArray, 0, test1.length);
+      System.arraycopy(test2, 0, expectedArray, test1.length, test2.length);
+
+      assertThat(storageService.readAllFromContainer()).isEqualTo(expectedArray);
+    }
+  }
+
+  @Test
+  void readAfterClose() {
+    byte[] test = "teststring".getBytes(StandardCharsets.UTF_8);
     StorageService storageService = new StorageService();
-    storageService.storeInContainer(test1, 0);
-    storageService.storeInContainer(test2, test1.length);
+    storageService.storeInContainer(test, 0);
+    storageService.close();
 
-    byte[] expectedArray = new byte[test1.length + test2.length];
-    System.arraycopy(test1, 0, expectedArray, 0, test1.length);
-    System.arraycopy(test2, 0, expectedArray, test1.length, test2.length);
+    assertThat(storageService.isAllowedToWriteInContainer()).isFalse();
+    assertThatExceptionOfType(FileNotFoundException.class)
+        .isThrownBy(() -> storageService.readFromContainer(0, test.length));
+  }
+
+  @Test
+  void readBeyondContainer() {
+    try (StorageService storageService = new StorageService()) {
+      storageService.storeInContainer("test".getBytes(StandardCharsets.UTF_8), 0);
+      assertThatExceptionOfType(FileNotFoundException.class)
+          .isThrownBy(() -> storageService.readFromContainer(0, 10));
+    }
+  }
+
+  @Test
+  void dropFromContainer() {
+    try (StorageService storageService = new StorageService(4)) {
+      storageService.storeInContainer("0123456789".getBytes(StandardCharsets.UTF_8), 0);
+      storageService.dropFromContainer(1, 8);
+
+      assertThat(new String(storageService.readAllFromContainer(), StandardCharsets.UTF_8))
+          .isEqualTo("0\0\0\0\0\0\0\089");
+    }
+  }
+
+  @Test
+  void copyWithinContainer() {
+    try (StorageService storageService = new StorageService(4)) {
+      storageService.storeInContainer("0123456789".getBytes(StandardCharsets.UTF_8), 0);
+
+      // Overlapping, towards the beginning.
+      storageService.copyWithinContainer(3, 10, 1);
+      assertThat(new String(storageService.readAllFromContainer(), StandardCharsets.UTF_8))
+          .isEqualTo("0345678989");
+      // Overlapping, towards the end.
+      storageService.copyWithinContainer(0, 7, 2);
+      assertThat(new String(storageService.readAllFromContainer(), StandardCharsets.UTF_8))
+          .isEqualTo("0303456789");
+      // Beyond the end of the container.
+      storageService.copyWithinContainer(0, 4, 10);
+      assertThat(new String(storageService.readAllFromContainer(), StandardCharsets.UTF_8))
+          .isEqualTo("03034567890303");
+    }
+  }
+
+  @Test
+  void storeAndReadIndex() {
+    byte[] index = "index".getBytes(StandardCharsets.UTF_8);
+    try (StorageService storageService = new StorageService()) {
+      assertThat(storageService.readIndex()).isEmpty();
 
-    assertThat(storageService.readAllFromContainer()).isEqualTo(expectedArray);
+      storageService.storeIndex(ByteBuffer.wrap(index));
+      assertThat(storageService.readIndex()).contains(ByteBuffer.wrap(index));
+    }
   }
 }
@@ -0,0 +1,166 @@
+package com.nicolasgarcia.filesystem.logic;
+
+import static com.nicolasgarcia.filesystem.logic.StorageService.BASE_PHYSICAL_PATH;
+import static com.nicolasgarcia.filesystem.logic.StorageService.CONTAINER_NAME;
+import static com.nicolasgarcia.filesystem.logic.StorageService.INDEX_SUFFIX;
+import static com.nicolasgarcia.filesystem.logic.StorageService.LOG_SUFFIX;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("integration")
+class WriteAheadLogTest {
+  private static final FileMetaData FILE1 = new FileMetaData("file1", "/path/file1", 0, 10, 0);
+  private static final FileMetaData FILE2 =
+      new FileMetaData("file2", "/path/file2", List.of(new Extent(10, 30)), 1, 1_700_000_000L);
+
+  @BeforeEach
+  void beforeMethod() {
+    new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME).delete();
+    new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME + INDEX_SUFFIX).delete();
+    new java.io.File(BASE_PHYSICAL_PATH + CONTAINER_NAME + LOG_SUFFIX).delete();
+  }
+
+  @Test
+  void recoverEntriesAfterCheckpoint() {
+    byte[] image = "some content".getBytes(StandardCharsets.UTF_8);
+    try (StorageService storageService = new StorageService()) {
+      WriteAheadLog writeAheadLog = new WriteAheadLog(storageService, SyncPolicy.everyOperation());
+      writeAheadLog.recover(0);
+      writeAheadLog.commit(writeAheadLog.logPut(FILE1));
+      writeAheadLog.commit(writeAheadLog.logRelocation(FILE2, ByteBuffer.wrap(image), 10));
+      writeAheadLog.commit(writeAheadLog.logDelete(FILE1.getAbsolutePath()));
+      writeAheadLog.commit(writeAheadLog.logMove(FILE2.getAbsolutePath(), "/path/file3"));
+      writeAheadLog.close();
+    }
+
+    try (StorageService storageService = new StorageService()) {
+      WriteAheadLog writeAheadLog = new WriteAheadLog(storageService, SyncPolicy.never());
+      List<WriteAheadLog.Entry> entries = writeAheadLog.recover(1);
+
+      assertThat(entries).hasSize(3);
+      assertThat(entries.get(0).getType()).isEqualTo(WriteAheadLog.Type.RELOCATE);
+      assertThat(entries.get(0).getLsn()).isEqualTo(2);
+      assertThat(entries.get(0).getFileMetaData().getExtents()).isEqualTo(FILE2.getExtents());
+      assertThat(entries.get(0).getFileMetaData().getSegmentNumber()).isEqualTo(1);
+      assertThat(entries.get(0).getFileMetaData().getModifiedTime())
+          .isEqualTo(FILE2.getModifiedTime());
+      assertThat(entries.get(0).getImage()).isEqualTo(ByteBuffer.wrap(image));
+      assertThat(entries.get(0).getImageOffset()).isEqualTo(10);
+      assertThat(entries.get(1).getType()).isEqualTo(WriteAheadLog.Type.DELETE);
+      assertThat(entries.get(1).getAbsolutePath()).isEqualTo(FILE1.getAbsolutePath());
+      assertThat(entries.get(2).getType()).isEqualTo(WriteAheadLog.Type.MOVE);
+      assertThat(entries.get(2).getAbsolutePath()).isEqualTo(FILE2.getAbsolutePath());
+      assertThat(entries.get(2).getNewAbsolutePath()).isEqualTo("/path/file3");
+      assertThat(writeAheadLog.getLastLsn()).isEqualTo(4);
+    }
+  }
+
+  @Test
+  void recoverBatch() {
+    try (StorageService storageService = new StorageService()) {
+      WriteAheadLog writeAheadLog = new WriteAheadLog(storageService, SyncPolicy.everyOperation());
+      writeAheadLog.recover(0);
+      writeAheadLog.commit(writeAheadLog.logBatch(List.of(FILE1, FILE2), List.of("/path/file3")));
+      writeAheadLog.close();
+    }
+
+    try (StorageService storageService = new StorageService()) {
+      WriteAheadLog writeAheadLog = new WriteAheadLog(storageService, SyncPolicy.never());
+      List<WriteAheadLog.Entry> entries = writeAheadLog.recover(0);
+
+      assertThat(entries).hasSize(1);
+      assertThat(entries.get(0).getType()).isEqualTo(WriteAheadLog.Type.BATCH);
+      List<WriteAheadLog.Entry> batch = entries.get(0).getEntries();
+      assertThat(batch)
+          .extracting(WriteAheadLog.Entry::getType)
+          .containsExactly(
+              WriteAheadLog.Type.PUT, WriteAheadLog.Type.PUT, WriteAheadLog.Type.DELETE);
+      assertThat(batch)
+          .extracting(WriteAheadLog.Entry::getAbsolutePath)
+          .containsExactly(FILE1.getAbsolutePath(), FILE2.getAbsolutePath(), "/path/file3");
+      assertThat(batch.get(1).getFileMetaData().getExtents()).isEqualTo(FILE2.getExtents());
+      assertThat(batch.get(1).getFileMetaData().getSegmentNumber()).isEqualTo(1);
+      assertThat(batch).extracting(WriteAheadLog.Entry::getLsn).containsOnly(1L);
+    }
+  }
+
+  @Test
+  void checkpointDiscardsEntries() {
+    try (StorageService storageService = new StorageService()) {
+      WriteAheadLog writeAheadLog = new WriteAheadLog(storageService, SyncPolicy.everyOperation());
+      writeAheadLog.recover(0);
+      writeAheadLog.commit(writeAheadLog.logPut(FILE1));
+      writeAheadLog.checkpoint();
+      writeAheadLog.commit(writeAheadLog.logPut(FILE2));
+      writeAheadLog.close();
+    }
+
+    try (StorageService storageService = new StorageService()) {
+      WriteAheadLog writeAheadLog = new WriteAheadLog(storageService, SyncPolicy.never());
+      List<WriteAheadLog.Entry> entries = writeAheadLog.recover(1);
+
+      assertThat(entries).hasSize(1);
+      assertThat(entries.get(0).getLsn()).isEqualTo(2);
+      assertThat(entries.get(0).getAbsolutePath()).isEqualTo(FILE2.getAbsolutePath());
+    }
+  }
+
+  @Test
+  void concurrentCommitsShareTheFlushes() throws InterruptedException {
+    int commits = 200;
+    try (StorageService storageService = spy(new StorageService())) {
+      WriteAheadLog writeAheadLog = new WriteAheadLog(storageService, SyncPolicy.everyOperation());
+      writeAheadLog.recover(0);
+
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      for (int i = 0; i < commits; i++) {
+        executor.execute(() -> writeAheadLog.commit(writeAheadLog.logPut(FILE1)));
+      }
+      executor.shutdown();
+      assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+      verify(storageService, atMost(commits)).syncLog();
+      assertThat(writeAheadLog.recover(0)).hasSize(commits);
+    }
+  }
+
+  @Test
+  void runActionsOnceTheirEntriesAreDurable() {
+    try (StorageService storageService = new StorageService()) {
+      WriteAheadLog writeAheadLog = new WriteAheadLog(storageService, SyncPolicy.never());
+      writeAheadLog.recover(0);
+      List<String> actions = new ArrayList<>();
+
+      long lsn1 = writeAheadLog.logPut(FILE1);
+      writeAheadLog.commit(lsn1);
+      writeAheadLog.afterDurable(lsn1, () -> actions.add("first"));
+      assertThat(actions).isEmpty();
+      writeAheadLog.force(lsn1);
+      assertThat(actions).containsExactly("first");
+
+      // A checkpoint makes every entry durable too.
+      long lsn2 = writeAheadLog.logPut(FILE2);
+      writeAheadLog.afterDurable(lsn2, () -> actions.add("second"));
+      assertThat(actions).containsExactly("first");
+      writeAheadLog.checkpoint();
+      assertThat(actions).containsExactly("first", "second");
+
+      // Once the entry is durable, the action runs right away.
+      writeAheadLog.afterDurable(lsn2, () -> actions.add("third"));
+      assertThat(actions).containsExactly("first", "second", "third");
+    }
+  }
+}
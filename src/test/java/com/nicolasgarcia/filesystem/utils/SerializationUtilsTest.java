@@ -1,11 +1,15 @@
 package com.nicolasgarcia.filesystem.utils;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
 
 import com.nicolasgarcia.filesystem.api.File;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
@@ -22,4 +26,101 @@ class SerializationUtilsTest {
     oos.flush();
     assertThat(SerializationUtils.serialize(file)).isEqualTo(baos.toByteArray());
   }
+
+  @Test
+  void encodeHeader() {
+    File file = new File("/some/path", "some content".getBytes(StandardCharsets.UTF_8));
+
+    ByteBuffer header = SerializationUtils.encodeHeader(true);
+    assertThat(header).isEqualTo(SerializationUtils.encode(file).limit(header.remaining()));
+    assertThat(SerializationUtils.getContentOffset(header)).isEqualTo(header.remaining());
+  }
+
+  @Test
+  void decodeContentWithoutCopying() {
+    File file = new File("/some/path", "some content".getBytes(StandardCharsets.UTF_8));
+    ByteBuffer record = SerializationUtils.encode(file);
+
+    ByteBuffer content = SerializationUtils.decodeContent(record);
+    assertThat(content).isEqualTo(ByteBuffer.wrap(file.getContent()));
+    assertThat(content.array()).isSameAs(record.array());
+    assertThat(SerializationUtils.decodeContent(SerializationUtils.encode(new File("/p", null))))
+        .isNull();
+  }
+
+  @Test
+  void encodeAndDecode() {
+    File file = new File("/some/path", "some content".getBytes(StandardCharsets.UTF_8));
+
+    // The path isn't part of the record.
+    ByteBuffer record = SerializationUtils.encode(file);
+    assertThat(record.remaining()).isEqualTo(SerializationUtils.RECORD_HEADER_SIZE + 12);
+    assertThat(SerializationUtils.isRecord(record)).isTrue();
+
+    File decodedFile = SerializationUtils.decode(record, "/another/path");
+    assertThat(decodedFile.getAbsolutePath()).isEqualTo("/another/path");
+    assertThat(decodedFile.getContent()).isEqualTo(file.getContent());
+  }
+
+  @Test
+  void encodeAndDecodeWithoutContent() {
+    File file = new File("/some/path", null);
+
+    File decodedFile = SerializationUtils.decode(SerializationUtils.encode(file), "/some/path");
+    assertThat(decodedFile.getAbsolutePath()).isEqualTo(file.getAbsolutePath());
+    assertThat(decodedFile.getContent()).isNull();
+  }
+
+  @Test
+  void encodeAndDecodeWithEmptyContent() {
+    File file = new File("/some/path", new byte[0]);
+
+    File decodedFile = SerializationUtils.decode(SerializationUtils.encode(file), "/some/path");
+    assertThat(decodedFile.getContent()).isEmpty();
+  }
+
+  @Test
+  void decodeInvalidRecords() {
+    ByteBuffer record = SerializationUtils.encode(new File("/some/path", new byte[] {1, 2, 3}));
+    ByteBuffer unsupportedRecord = ByteBuffer.allocate(record.remaining()).put(record.duplicate());
+    unsupportedRecord.put(Integer.BYTES, (byte) 42).flip();
+    ByteBuffer truncatedRecord = ByteBuffer.allocate(Integer.BYTES + Byte.BYTES);
+    truncatedRecord.putInt(SerializationUtils.RECORD_MAGIC).put((byte) 1).flip();
+
+    assertThatIllegalArgumentException()
+        .isThrownBy(() -> SerializationUtils.decode(ByteBuffer.allocate(32), "/some/path"));
+    assertThatIllegalArgumentException()
+        .isThrownBy(() -> SerializationUtils.decode(unsupportedRecord, "/some/path"));
+    assertThatIllegalArgumentException()
+        .isThrownBy(() -> SerializationUtils.decode(truncatedRecord, "/some/path"));
+  }
+
+  @Test
+  void deserializeOnlyConsumesOneFile() {
+    File file = new File("/some/path", "some content".getBytes(StandardCharsets.UTF_8));
+    byte[] serializedFile = SerializationUtils.serialize(file);
+    ByteBuffer buffer = ByteBuffer.allocate(serializedFile.length * 2);
+    buffer.put(serializedFile).put(serializedFile).flip();
+
+    File deserializedFile = SerializationUtils.deserialize(new ByteBufferInputStream(buffer));
+    assertThat(deserializedFile.getContent()).isEqualTo(file.getContent());
+    assertThat(buffer.position()).isEqualTo(serializedFile.length);
+    assertThat(SerializationUtils.isLegacyRecord(buffer)).isTrue();
+  }
+
+  @Test
+  void peekLegacyRecords() {
+    byte[] serializedFile =
+        SerializationUtils.serialize(
+            new File("/some/path", "some content".getBytes(StandardCharsets.UTF_8)));
+    InputStream inputStream = new ByteArrayInputStream(serializedFile);
+
+    assertThat(SerializationUtils.isLegacyRecord(inputStream)).isTrue();
+    // Nothing is consumed, so the file can be deserialized afterwards.
+    assertThat(SerializationUtils.deserialize(inputStream).getAbsolutePath())
+        .isEqualTo("/some/path");
+    assertThat(SerializationUtils.isLegacyRecord(inputStream)).isFalse();
+    InputStream truncatedStream = new ByteArrayInputStream(new byte[] {(byte) 0xAC});
+    assertThat(SerializationUtils.isLegacyRecord(truncatedStream)).isFalse();
+  }
 }